@@ -28,6 +28,7 @@ import java.util.Locale;
 import java.util.Scanner;
 import java.util.regex.Pattern;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 
@@ -85,6 +86,28 @@ public abstract class AbstractRMBTTest {
     	return socket;
     }
 
+    /**
+     * opens a measurement connection using the transport selected by {@link RMBTTestParameter#getTransport()}
+     * @param host
+     * @param port
+     * @param isSecure
+     * @param timeOut
+     * @return
+     * @throws UnknownHostException
+     * @throws IOException
+     */
+    protected RMBTConnection openConnection(final String host, final int port, final boolean isSecure, final int timeOut) throws UnknownHostException, IOException
+    {
+        if (Config.TRANSPORT_CHANNEL.equals(params.getTransport()))
+        {
+            final InetSocketAddress sockAddr = new InetSocketAddress(host, port);
+            final SSLContext sslContext = isSecure ? client.getSslContext() : null;
+            return new RMBTChannelConnection(sockAddr, timeOut, sslContext);
+        }
+        
+        return new RMBTSocketConnection(getSocket(host, port, isSecure, timeOut));
+    }
+
     protected Socket connect(final TestResult testResult, final InetAddress host, final int port, final String protocolVersion, final String response, final boolean isSecure, final int connTimeOut) throws IOException {
         log(String.format(Locale.US, "thread %d: connecting...", threadId));
         
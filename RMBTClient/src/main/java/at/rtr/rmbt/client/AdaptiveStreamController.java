@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client;
+
+/**
+ * Chooses the number of parallel connections and the chunk size of a test from the
+ * pre-test throughput and the ping.
+ * <p>
+ * Enough connections are used so that neither a single connection has to carry more
+ * than {@link #STREAM_RATE} nor has to keep more than {@link #STREAM_WINDOW} bytes in
+ * flight (bandwidth-delay product). The chunk size is chosen so that every connection
+ * receives about {@link #CHUNKS_PER_SECOND} chunks per second, within the limits
+ * announced by the server.
+ * <p>
+ * During the main phase {@link #addStream(int, long, long, long)} is consulted
+ * periodically; as long as the aggregate throughput still grows from one window to
+ * the next another connection is added.
+ * <p>
+ * Not thread safe.
+ */
+public class AdaptiveStreamController
+{
+    /**
+     * receive window a single connection is assumed to reach (in bytes)
+     */
+    static final long STREAM_WINDOW = 4L * 1024 * 1024;
+
+    /**
+     * throughput a single connection is assumed to carry (in bytes/s)
+     */
+    static final double STREAM_RATE = 250e6 / 8;
+
+    static final int CHUNKS_PER_SECOND = 100;
+
+    /**
+     * length of the windows compared to detect whether the throughput has settled (in ns)
+     */
+    static final long WINDOW = 500000000L;
+
+    /**
+     * relative growth from one window to the next taken as "not settled yet"
+     */
+    static final double MIN_GROWTH = 0.1;
+
+    /**
+     * no connections are added if less time is left in the phase (in ns)
+     */
+    static final long MIN_REMAINING = 2000000000L;
+
+    private final int minStreams;
+    private final int maxStreams;
+
+    private final int chunksize;
+    private final int chunksizeMin;
+    private final int chunksizeMax;
+
+    private long pretestBytes;
+    private long pretestNsec;
+    private long rtt = -1;
+
+    private long windowStart = -1;
+    private long windowBytes;
+    private double lastRate = -1;
+
+    /**
+     * @param minStreams
+     * @param maxStreams
+     * @param chunksize default chunk size of the server
+     * @param chunksizeMin smallest chunk size accepted by the server
+     * @param chunksizeMax largest chunk size accepted by the server
+     */
+    public AdaptiveStreamController(final int minStreams, final int maxStreams,
+            final int chunksize, final int chunksizeMin, final int chunksizeMax)
+    {
+        this.minStreams = minStreams;
+        this.maxStreams = maxStreams;
+        this.chunksize = chunksize;
+        this.chunksizeMin = Math.min(chunksizeMin, chunksize);
+        this.chunksizeMax = Math.max(chunksizeMax, chunksize);
+    }
+
+    /**
+     * adds the pre-test result of one connection
+     * @param bytes received during the pre-test
+     * @param nsec duration of the pre-test of this connection
+     */
+    public void addPretest(final long bytes, final long nsec)
+    {
+        pretestBytes += bytes;
+        if (nsec > pretestNsec)
+            pretestNsec = nsec;
+    }
+
+    /**
+     * @param rtt round trip time in ns
+     */
+    public void setRtt(final long rtt)
+    {
+        this.rtt = rtt;
+    }
+
+    /**
+     * @return aggregate pre-test throughput in bytes/s
+     */
+    public double getPretestRate()
+    {
+        if (pretestNsec <= 0)
+            return 0;
+        return pretestBytes * 1e9 / pretestNsec;
+    }
+
+    /**
+     * @param current number of connections used for the pre-test
+     * @return number of connections to use for the main phase
+     */
+    public int getStreams(final int current)
+    {
+        final double rate = getPretestRate();
+        if (rate <= 0)
+            return current;
+
+        long streams = (long) Math.ceil(rate / STREAM_RATE);
+        if (rtt > 0 && rtt != Long.MAX_VALUE)
+            streams = Math.max(streams, (long) Math.ceil(rate * rtt / 1e9 / STREAM_WINDOW));
+        return (int) Math.max(minStreams, Math.min(maxStreams, streams));
+    }
+
+    /**
+     * @param streams number of connections used
+     * @return chunk size to request for the main phase
+     */
+    public int getChunksize(final int streams)
+    {
+        final double rate = getPretestRate() / Math.max(1, streams);
+        if (rate <= 0)
+            return chunksize;
+
+        final long target = (long) (rate / CHUNKS_PER_SECOND);
+        int size = chunksizeMin;
+        // largest power of two not exceeding the target
+        while (size < chunksizeMax && (long) size * 2 <= target)
+            size *= 2;
+        return Math.min(size, chunksizeMax);
+    }
+
+    /**
+     * discards the throughput history, e.g. at the start of a phase
+     */
+    public void resetWindow()
+    {
+        windowStart = -1;
+        lastRate = -1;
+    }
+
+    /**
+     * @param streams number of connections currently used
+     * @param now
+     * @param totalBytes bytes received by all connections in this phase
+     * @param phaseEnd expected end of the phase
+     * @return <code>true</code> if another connection should be added now
+     */
+    public boolean addStream(final int streams, final long now, final long totalBytes, final long phaseEnd)
+    {
+        if (streams >= maxStreams || phaseEnd - now < MIN_REMAINING)
+            return false;
+
+        if (windowStart < 0)
+        {
+            windowStart = now;
+            windowBytes = totalBytes;
+            return false;
+        }
+        if (now - windowStart < WINDOW)
+            return false;
+
+        final double rate = (totalBytes - windowBytes) * 1e9 / (now - windowStart);
+        final boolean growing = lastRate > 0 && rate > lastRate * (1 + MIN_GROWTH);
+        windowStart = now;
+        windowBytes = totalBytes;
+        // after adding a connection it gets a full window to settle before the next comparison
+        lastRate = growing ? -1 : rate;
+        return growing;
+    }
+}
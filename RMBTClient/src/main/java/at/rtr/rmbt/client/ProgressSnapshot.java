@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import at.rtr.rmbt.client.RMBTTest.CurrentSpeed;
+
+/**
+ * Transferred bytes and elapsed time of a single test thread, published by that thread and read by others.
+ * <p>
+ * The pair is kept twice and protected by a sequence number: the writer makes the sequence odd and
+ * stores the first copy, then makes it even again and stores the second copy. A reader takes the copy
+ * the writer is not working on (the first one for an even sequence, the second one for an odd one) and
+ * retries only if the sequence changed while it was reading. All stores are ordered stores
+ * ({@link AtomicLongArray#lazySet(int, long)}), so an update costs no full memory fence on the
+ * measurement thread and readers never block it.
+ * <p>
+ * {@link #get(CurrentSpeed)} always returns a pair that was published by one call of
+ * {@link #set(long, long)} (or the initial zeros); during an update that is the previous pair. A writer
+ * that stops halfway through an update, e.g. because its thread was cancelled, leaves the previous pair
+ * readable and never makes readers wait.
+ * <p>
+ * The values are padded to their own cache line so snapshots of different threads do not share one.
+ * Only one thread may call {@link #set(long, long)}.
+ */
+public class ProgressSnapshot
+{
+    /**
+     * 64 bytes on each side of the values
+     */
+    private static final int PAD = 8;
+    private static final int SEQ = PAD;
+    /**
+     * first copy: trans, time; read while the sequence is even
+     */
+    private static final int FIRST = PAD + 1;
+    /**
+     * second copy: trans, time; read while the sequence is odd
+     */
+    private static final int SECOND = PAD + 3;
+
+    private final AtomicLongArray slots = new AtomicLongArray(SECOND + 2 + PAD);
+
+    /**
+     * sequence as last written; only accessed by the writer
+     */
+    private long seq;
+
+    /**
+     * publishes a new pair of values; must only be called by the owning thread
+     * @param trans bytes transferred
+     * @param time in ns
+     */
+    public void set(final long trans, final long time)
+    {
+        slots.lazySet(SEQ, ++seq);
+        slots.lazySet(FIRST, trans);
+        slots.lazySet(FIRST + 1, time);
+        slots.lazySet(SEQ, ++seq);
+        slots.lazySet(SECOND, trans);
+        slots.lazySet(SECOND + 1, time);
+    }
+
+    /**
+     * reads a consistent pair of values, never a mix of two updates; only retries while the writer
+     * completes an update during the read
+     * @param result object to fill; a new one is created if <code>null</code>
+     * @return
+     */
+    public CurrentSpeed get(CurrentSpeed result)
+    {
+        if (result == null)
+            result = new CurrentSpeed();
+        for (;;)
+        {
+            final long before = slots.get(SEQ);
+            final int copy = (before & 1) == 0 ? FIRST : SECOND;
+            result.trans = slots.get(copy);
+            result.time = slots.get(copy + 1);
+            if (slots.get(SEQ) == before)
+                return result;
+        }
+    }
+
+    /**
+     * @return number of updates published so far
+     */
+    public long getUpdates()
+    {
+        return slots.get(SEQ) >>> 1;
+    }
+}
@@ -126,8 +126,6 @@ public class QualityOfServiceTest implements Callable<QoSResultCollector> {
 		this.client = client;
 		client.createSSLSocketFactory();
 
-		executor = Executors.newFixedThreadPool(client.getTaskDescList().size());
-		executorService = new ExecutorCompletionService<>(executor);
 		updateQoSStatus(QoSTestEnum.START);
 		testCount.set(client.getTaskDescList().size());
 
@@ -280,6 +278,14 @@ public class QualityOfServiceTest implements Callable<QoSResultCollector> {
 			}
 		}
 
+		//the groups run one after another: the largest group needs a thread for each of its tasks, the others reuse them
+		int maxConcurrentTasks = 1;
+		for (List<AbstractQoSTask> tasks : concurrentTasks.values()) {
+			maxConcurrentTasks = Math.max(maxConcurrentTasks, tasks.size());
+		}
+		executor = Executors.newFixedThreadPool(maxConcurrentTasks);
+		executorService = new ExecutorCompletionService<>(executor);
+
 		if (qoSTestSettings != null) {
 			qoSTestSettings.dispatchTestProgressEvent(TestProgressEvent.ON_CREATED, null, this);
 		}
@@ -319,6 +325,8 @@ public class QualityOfServiceTest implements Callable<QoSResultCollector> {
 			}
 
 			List<AbstractQoSTask> tasks = concurrentTasks.get(groupId);
+			final long groupStartNs = System.nanoTime();
+			long maxTaskDurationNs = 0;
 			for (AbstractQoSTask task : tasks) {
 				//if the test is the first one of its kind, fire the group started event
 				final String typeString = (String) task.getTaskDesc().getParams().get(TaskDesc.QOS_TEST_IDENTIFIER_KEY);
@@ -363,6 +371,9 @@ public class QualityOfServiceTest implements Callable<QoSResultCollector> {
 							throw new InterruptedException("interrupted due to test fatal error: " + curResult.toString());
 						}
 
+						maxTaskDurationNs = Math.max(maxTaskDurationNs,
+								curResult.getQosTask().getTestEndTimestampNs() - curResult.getQosTask().getTestStartTimestampNs());
+
 						if (!curResult.getQosTask().hasConnectionError()) {
 							result.getResults().add(curResult);
 						}
@@ -412,6 +423,10 @@ public class QualityOfServiceTest implements Callable<QoSResultCollector> {
 				}
 			}
 
+			final QoSResultCollector.GroupTiming groupTiming = new QoSResultCollector.GroupTiming(groupId, tasks.size(),
+					System.nanoTime() - groupStartNs, maxTaskDurationNs);
+			result.addGroupTiming(groupTiming);
+
 			closeControlConnections(groupId);
 		}
 
@@ -0,0 +1,713 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * {@link SocketChannel} based transport.
+ * <p>
+ * Bulk data is received into and sent from reusable direct {@link ByteBuffer}s, so neither the stream
+ * layers nor the TLS socket implementation copy the payload around. Encrypted connections are handled
+ * by an {@link SSLEngine} working on the same buffers.
+ * <p>
+ * By default the channel is in blocking mode and every test thread drives exactly one connection. After
+ * {@link #configureBlocking(boolean)} the connection can be driven by a {@link java.nio.channels.Selector}
+ * (see {@link RMBTSelectorTest}): {@link #readData()} may then return 0, {@link #pollLine()} replaces
+ * {@link #readLine()} and writes are queued with {@link #queue(byte[])} / {@link #queueChunk(boolean)} and
+ * completed by {@link #flushPending()}.
+ */
+public class RMBTChannelConnection extends RMBTConnection
+{
+    /**
+     * minimum size of the receive buffer; larger reads mean less system calls per received chunk
+     */
+    public static final int MIN_RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+
+    private boolean blocking = true;
+    private boolean handshakeStarted;
+
+    /**
+     * received application data, always kept in read mode (pending bytes between position and limit)
+     */
+    private ByteBuffer appIn;
+    /**
+     * received TLS records, always kept in read mode
+     */
+    private ByteBuffer netIn;
+    /**
+     * outgoing TLS records not yet written, always kept in read mode; guarded by {@link #writeLock}
+     */
+    private ByteBuffer netOut;
+    /**
+     * application data not yet written (or wrapped); guarded by {@link #writeLock}
+     */
+    private ByteBuffer pendingOut;
+    private ByteBuffer txChunk;
+
+    private final Object writeLock = new Object();
+
+    private byte[] lineBuf = new byte[256];
+    private int dataStart;
+
+    private long readCount;
+    private long writeCount;
+
+    /**
+     * opens the connection and performs the TLS handshake if a {@link SSLContext} is given
+     * @param address
+     * @param timeOut connect timeout in ms
+     * @param sslContext <code>null</code> for an unencrypted connection
+     * @throws IOException
+     */
+    public RMBTChannelConnection(final InetSocketAddress address, final int timeOut, final SSLContext sslContext) throws IOException
+    {
+        this(SocketChannel.open(), address, sslContext);
+        try
+        {
+            channel.socket().connect(address, timeOut);
+            continueHandshake();
+        }
+        catch (final IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * wraps a channel which is not connected yet; the caller is responsible for connecting it and for calling
+     * {@link #continueHandshake()} until it returns <code>true</code>
+     * @param channel
+     * @param address
+     * @param sslContext <code>null</code> for an unencrypted connection
+     */
+    public RMBTChannelConnection(final SocketChannel channel, final InetSocketAddress address, final SSLContext sslContext)
+    {
+        this.channel = channel;
+        if (sslContext != null)
+        {
+            engine = sslContext.createSSLEngine(address.getHostString(), address.getPort());
+            engine.setUseClientMode(true);
+            final SSLSession session = engine.getSession();
+            appIn = allocate(Math.max(MIN_RECEIVE_BUFFER_SIZE, session.getApplicationBufferSize()));
+            netIn = allocate(session.getPacketBufferSize());
+            netOut = allocate(session.getPacketBufferSize());
+        }
+        else
+        {
+            engine = null;
+            appIn = allocate(MIN_RECEIVE_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * allocates a direct buffer in read mode
+     */
+    private static ByteBuffer allocate(final int capacity)
+    {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.limit(0);
+        return buffer;
+    }
+
+    /**
+     * copies the pending bytes of a buffer in read mode into a larger one
+     */
+    private static ByteBuffer enlarge(final ByteBuffer buffer, final int capacity)
+    {
+        final ByteBuffer newBuffer = ByteBuffer.allocateDirect(capacity);
+        newBuffer.put(buffer);
+        newBuffer.flip();
+        return newBuffer;
+    }
+
+    public SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    public void configureBlocking(final boolean blocking) throws IOException
+    {
+        channel.configureBlocking(blocking);
+        this.blocking = blocking;
+    }
+
+    @Override
+    public void setChunksize(final int chunksize)
+    {
+        this.chunksize = chunksize;
+        if (appIn.capacity() < chunksize)
+            appIn = enlarge(appIn, chunksize);
+        if (txChunk == null || txChunk.capacity() != chunksize)
+            txChunk = ByteBuffer.allocateDirect(chunksize);
+    }
+
+    @Override
+    public String readLine() throws IOException
+    {
+        for (;;)
+        {
+            final String line = scanLine();
+            if (line != null)
+                return line;
+
+            if (fill() < 0)
+            {
+                if (!appIn.hasRemaining())
+                    return null;
+                final int start = appIn.position();
+                appIn.position(appIn.limit());
+                return decode(start, appIn.limit());
+            }
+        }
+    }
+
+    @Override
+    public boolean readResponse(final RMBTResponseParser parser) throws IOException
+    {
+        for (;;)
+        {
+            if (parser.feed(appIn))
+                return true;
+            if (fill() < 0)
+                return false;
+        }
+    }
+
+    /**
+     * non-blocking variant of {@link #readResponse(RMBTResponseParser)}; a partially received line is kept by the parser
+     * @param parser
+     * @return <code>true</code> if a line has been completed
+     * @throws EOFException if the connection has been closed
+     * @throws IOException
+     */
+    public boolean pollResponse(final RMBTResponseParser parser) throws IOException
+    {
+        for (;;)
+        {
+            if (parser.feed(appIn))
+                return true;
+            final int read = fill();
+            if (read < 0)
+                throw new EOFException("connection lost");
+            if (read == 0)
+                return false;
+        }
+    }
+
+    /**
+     * non-blocking variant of {@link #readLine()}
+     * @return the next line or <code>null</code> if no complete line has been received yet
+     * @throws EOFException if the connection has been closed
+     * @throws IOException
+     */
+    public String pollLine() throws IOException
+    {
+        for (;;)
+        {
+            final String line = scanLine();
+            if (line != null)
+                return line;
+
+            final int read = fill();
+            if (read < 0)
+                throw new EOFException("connection lost");
+            if (read == 0)
+                return null;
+        }
+    }
+
+    /**
+     * @return the next line already contained in {@link #appIn} or <code>null</code>
+     */
+    private String scanLine() throws IOException
+    {
+        final int limit = appIn.limit();
+        for (int i = appIn.position(); i < limit; i++)
+        {
+            if (appIn.get(i) == '\n')
+            {
+                final int start = appIn.position();
+                final int end = i > start && appIn.get(i - 1) == '\r' ? i - 1 : i;
+                appIn.position(i + 1);
+                return decode(start, end);
+            }
+        }
+        return null;
+    }
+
+    private String decode(final int start, final int end) throws IOException
+    {
+        final int length = end - start;
+        if (lineBuf.length < length)
+            lineBuf = new byte[length];
+        for (int i = 0; i < length; i++)
+            lineBuf[i] = appIn.get(start + i);
+        return new String(lineBuf, 0, length, "US-ASCII");
+    }
+
+    @Override
+    public void write(final byte[] data) throws IOException
+    {
+        queue(data);
+        awaitFlushed();
+    }
+
+    @Override
+    public int readData() throws IOException
+    {
+        if (!appIn.hasRemaining())
+        {
+            final int read = fill();
+            if (read <= 0)
+                return read;
+        }
+        dataStart = appIn.position();
+        final int read = appIn.remaining();
+        appIn.position(appIn.limit());
+        return read;
+    }
+
+    @Override
+    public byte getDataByte(final int index)
+    {
+        return appIn.get(dataStart + index);
+    }
+
+    @Override
+    public void writeChunk(final boolean last) throws IOException
+    {
+        queueChunk(last);
+        awaitFlushed();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        // nothing is buffered
+    }
+
+    /**
+     * queues a control message and writes as much of it as possible
+     * @param data
+     * @return <code>true</code> if the message has been written completely
+     * @throws IOException
+     */
+    public boolean queue(final byte[] data) throws IOException
+    {
+        return queue(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * queues one chunk (see {@link #writeChunk(boolean)}) and writes as much of it as possible
+     * @param last
+     * @return <code>true</code> if the chunk has been written completely
+     * @throws IOException
+     */
+    public boolean queueChunk(final boolean last) throws IOException
+    {
+        txChunk.clear();
+        txChunk.put(chunksize - 1, last ? (byte) 0xff : (byte) 0x00);
+        txChunk.limit(chunksize);
+        return queue(txChunk);
+    }
+
+    private boolean queue(final ByteBuffer src) throws IOException
+    {
+        synchronized (writeLock)
+        {
+            if (pendingOut != null)
+                throw new IllegalStateException("previous write not completed");
+            pendingOut = src;
+            return flushPending();
+        }
+    }
+
+    public boolean hasPendingWrite()
+    {
+        synchronized (writeLock)
+        {
+            return pendingOut != null || (netOut != null && netOut.hasRemaining());
+        }
+    }
+
+    /**
+     * writes queued data
+     * @return <code>true</code> if nothing is left to be written; always the case in blocking mode
+     * @throws IOException
+     */
+    public boolean flushPending() throws IOException
+    {
+        synchronized (writeLock)
+        {
+            if (engine == null)
+            {
+                if (pendingOut == null)
+                    return true;
+                final int before = pendingOut.remaining();
+                final boolean done = writeOut(pendingOut);
+                writeCount += before - pendingOut.remaining();
+                if (done)
+                    pendingOut = null;
+                return done;
+            }
+
+            for (;;)
+            {
+                if (!writeOut(netOut))
+                    return false;
+                if (pendingOut == null)
+                    return true;
+
+                netOut.clear();
+                final SSLEngineResult result;
+                try
+                {
+                    result = engine.wrap(pendingOut, netOut);
+                }
+                finally
+                {
+                    netOut.flip();
+                }
+                runDelegatedTasks(result);
+                switch (result.getStatus())
+                {
+                case OK:
+                    writeCount += result.bytesConsumed();
+                    if (!pendingOut.hasRemaining())
+                        pendingOut = null;
+                    break;
+
+                case BUFFER_OVERFLOW:
+                    netOut = allocate(netOut.capacity() + engine.getSession().getPacketBufferSize());
+                    break;
+
+                default:
+                    throw new SSLException("unexpected TLS state: " + result.getStatus());
+                }
+            }
+        }
+    }
+
+    /**
+     * writes queued data completely; in non-blocking mode waits on a temporary selector until the channel is writable
+     * @throws IOException
+     */
+    private void awaitFlushed() throws IOException
+    {
+        if (flushPending())
+            return;
+        try (Selector selector = Selector.open())
+        {
+            channel.register(selector, SelectionKey.OP_WRITE);
+            while (!flushPending())
+            {
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the channel would block
+     */
+    private boolean writeOut(final ByteBuffer src) throws IOException
+    {
+        while (src.hasRemaining())
+            if (channel.write(src) == 0 && !blocking)
+                return false;
+        return true;
+    }
+
+    /**
+     * receives more application data into {@link #appIn}
+     * @return number of bytes received; 0 if nothing is available (non-blocking mode only); -1 if the connection has been closed
+     * @throws IOException
+     */
+    private int fill() throws IOException
+    {
+        appIn.compact();
+        try
+        {
+            if (!appIn.hasRemaining())
+                throw new IOException("receive buffer overflow");
+
+            if (engine == null)
+            {
+                final int read = channel.read(appIn);
+                if (read > 0)
+                    readCount += read;
+                return read;
+            }
+
+            final int before = appIn.position();
+            for (;;)
+            {
+                final SSLEngineResult result = engine.unwrap(netIn, appIn);
+                final HandshakeStatus handshakeStatus = runDelegatedTasks(result);
+                switch (result.getStatus())
+                {
+                case OK:
+                    if (handshakeStatus == HandshakeStatus.NEED_WRAP)
+                        // e.g. TLS 1.3 key update; is sent with the next write otherwise
+                        synchronized (writeLock)
+                        {
+                            if (pendingOut == null)
+                            {
+                                pendingOut = EMPTY;
+                                flushPending();
+                            }
+                        }
+                    if (appIn.position() > before)
+                    {
+                        readCount += appIn.position() - before;
+                        return appIn.position() - before;
+                    }
+                    break;
+
+                case BUFFER_UNDERFLOW:
+                    final int read = receive();
+                    if (read <= 0)
+                        return read;
+                    break;
+
+                case BUFFER_OVERFLOW:
+                    if (appIn.position() > before)
+                    {
+                        readCount += appIn.position() - before;
+                        return appIn.position() - before;
+                    }
+                    appIn.flip();
+                    appIn = enlarge(appIn, appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                    appIn.compact();
+                    break;
+
+                case CLOSED:
+                    return -1;
+                }
+            }
+        }
+        finally
+        {
+            appIn.flip();
+        }
+    }
+
+    /**
+     * reads TLS records from the channel into {@link #netIn}
+     * @return number of bytes read; 0 if nothing is available (non-blocking mode only); -1 if the connection has been closed
+     * @throws IOException
+     */
+    private int receive() throws IOException
+    {
+        if (netIn.remaining() == netIn.capacity())
+            netIn = enlarge(netIn, netIn.capacity() + engine.getSession().getPacketBufferSize());
+        netIn.compact();
+        try
+        {
+            return channel.read(netIn);
+        }
+        finally
+        {
+            netIn.flip();
+        }
+    }
+
+    private HandshakeStatus runDelegatedTasks(final SSLEngineResult result)
+    {
+        if (result.getHandshakeStatus() != HandshakeStatus.NEED_TASK)
+            return result.getHandshakeStatus();
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+        return engine.getHandshakeStatus();
+    }
+
+    /**
+     * performs the TLS handshake (if any); the channel has to be connected
+     * @return <code>true</code> if the handshake is finished; in non-blocking mode <code>false</code> if
+     * the connection has to wait for the network (see {@link #hasPendingWrite()})
+     * @throws IOException
+     */
+    public boolean continueHandshake() throws IOException
+    {
+        if (engine == null)
+            return true;
+
+        if (!handshakeStarted)
+        {
+            engine.beginHandshake();
+            handshakeStarted = true;
+        }
+
+        for (;;)
+        {
+            if (!flushPending())
+                return false;
+
+            final HandshakeStatus status = engine.getHandshakeStatus();
+            switch (status)
+            {
+            case FINISHED:
+            case NOT_HANDSHAKING:
+                return true;
+
+            case NEED_WRAP:
+                synchronized (writeLock)
+                {
+                    pendingOut = EMPTY;
+                }
+                break;
+
+            case NEED_UNWRAP:
+            {
+                appIn.compact();
+                final SSLEngineResult result;
+                try
+                {
+                    result = engine.unwrap(netIn, appIn);
+                }
+                finally
+                {
+                    appIn.flip();
+                }
+                readCount += result.bytesProduced();
+                runDelegatedTasks(result);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+                {
+                    final int read = receive();
+                    if (read < 0)
+                        throw new EOFException("connection closed during TLS handshake");
+                    if (read == 0)
+                        return false;
+                }
+                else if (result.getStatus() != SSLEngineResult.Status.OK)
+                    throw new SSLException("TLS handshake failed: " + result.getStatus());
+                break;
+            }
+
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                    task.run();
+                break;
+
+            default:
+                throw new SSLException("unexpected TLS handshake state: " + status);
+            }
+        }
+    }
+
+    @Override
+    public long getReadCount()
+    {
+        return readCount;
+    }
+
+    @Override
+    public long getWriteCount()
+    {
+        return writeCount;
+    }
+
+    @Override
+    public InetAddress getLocalAddress()
+    {
+        return channel.socket().getLocalAddress();
+    }
+
+    @Override
+    public InetAddress getInetAddress()
+    {
+        return channel.socket().getInetAddress();
+    }
+
+    @Override
+    public int getPort()
+    {
+        return channel.socket().getPort();
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws IOException
+    {
+        return channel.socket().getReceiveBufferSize();
+    }
+
+    @Override
+    public int getSendBufferSize() throws IOException
+    {
+        return channel.socket().getSendBufferSize();
+    }
+
+    @Override
+    public String getEncryption()
+    {
+        if (engine == null)
+            return null;
+        final SSLSession session = engine.getSession();
+        return String.format(Locale.US, "%s (%s)", session.getProtocol(), session.getCipherSuite());
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            if (engine != null && handshakeStarted && channel.isOpen())
+            {
+                engine.closeOutbound();
+                synchronized (writeLock)
+                {
+                    // best effort close_notify; pending data is discarded
+                    netOut.clear();
+                    engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    channel.write(netOut);
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            // ignore
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
@@ -24,7 +24,6 @@ import java.security.cert.X509Certificate;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -35,6 +34,10 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -50,6 +53,7 @@ import at.rtr.rmbt.client.RMBTTest.CurrentSpeed;
 import at.rtr.rmbt.client.helper.Config;
 import at.rtr.rmbt.client.helper.ControlServerConnection;
 import at.rtr.rmbt.client.helper.IntermediateResult;
+import at.rtr.rmbt.client.helper.IntermediateResultListener;
 import at.rtr.rmbt.client.helper.RMBTOutputCallback;
 import at.rtr.rmbt.client.helper.TestStatus;
 import at.rtr.rmbt.client.v2.task.TaskDesc;
@@ -62,6 +66,16 @@ public class RMBTClient
 {
     private static final ExecutorService COMMON_THREAD_POOL = Executors.newCachedThreadPool();
     
+    private static final ScheduledExecutorService PROGRESS_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        public Thread newThread(final Runnable r)
+        {
+            final Thread thread = new Thread(r, "RMBTClient progress");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
     private final RMBTTestParameter params;
     
     private final long durationInitNano = 2500000000L; // TODO
@@ -80,16 +94,21 @@ public class RMBTClient
     private final static long MIN_DIFF_TIME = 100000000; // 100 ms
     
     private final static int KEEP_LAST_ENTRIES = 20;
-    private int lastCounter;
-    private final long[][] lastTransfer;
-    private final long[][] lastTime;
+    private final SpeedHistory speedHistory;
+    private final CurrentSpeed avgSpeed = new CurrentSpeed();
     
     private final ExecutorService testThreadPool;
     
     private final RMBTTest[] testTasks;
     
+    /**
+     * replaces {@link #testTasks} if {@link Config#TRANSPORT_SELECTOR} is used
+     */
+    private volatile RMBTSelectorTest selectorTest;
+    
     private TotalTestResult result;
     
+    private SSLContext sslContext;
     private SSLSocketFactory sslSocketFactory;
     
     private RMBTOutputCallback outputCallback;
@@ -199,8 +218,7 @@ public class RMBTClient
         durationDownNano = params.getDuration() * 1000000000L;
         durationUpNano = params.getDuration() * 1000000000L;
         
-        lastTransfer = new long[params.getNumThreads()][KEEP_LAST_ENTRIES];
-        lastTime = new long[params.getNumThreads()][KEEP_LAST_ENTRIES];
+        speedHistory = new SpeedHistory(RMBTSelectorTest.getMaxStreams(params), KEEP_LAST_ENTRIES);
         
         if (controlConnection != null)
             this.taskDescList = controlConnection.v2TaskDesc;
@@ -223,6 +241,7 @@ public class RMBTClient
         try
         {
             final SSLContext sc = getSSLContext(null, null);
+            sslContext = sc;
             
             final SSLSocketFactory factory = sc.getSocketFactory();
             
@@ -412,19 +431,34 @@ public class RMBTClient
             log(String.format(Locale.US, "Host: %s; Port: %s; Enc: %s", params.getHost(), params.getPort(), params.isEncryption()));
             log(String.format(Locale.US, "starting %d threads...", numThreads));
             
-            final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+            final int storeResults = (int) (params.getDuration() * 1000000000L / MIN_DIFF_TIME);
+            
+            final boolean useSelector = Config.TRANSPORT_SELECTOR.equals(params.getTransport())
+                    || Config.TRANSPORT_ADAPTIVE.equals(params.getTransport());
             
             @SuppressWarnings("unchecked")
             final Future<ThreadTestResult>[] results = new Future[numThreads];
+            final Future<ThreadTestResult[]> selectorResults;
             
-            final int storeResults = (int) (params.getDuration() * 1000000000L / MIN_DIFF_TIME);
-            
-            final AtomicBoolean fallbackToOneThread = new AtomicBoolean();
-            
-            for (int i = 0; i < numThreads; i++)
+            if (useSelector)
+            {
+                // all connections are driven by a single thread
+                selectorTest = new RMBTSelectorTest(this, params, storeResults, MIN_DIFF_TIME);
+                selectorResults = testThreadPool.submit(selectorTest);
+            }
+            else
             {
-                testTasks[i] = new RMBTTest(this, params, i, barrier, storeResults, MIN_DIFF_TIME, fallbackToOneThread);
-                results[i] = testThreadPool.submit(testTasks[i]);
+                selectorTest = null;
+                selectorResults = null;
+                
+                final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+                final AtomicBoolean fallbackToOneThread = new AtomicBoolean();
+                
+                for (int i = 0; i < numThreads; i++)
+                {
+                    testTasks[i] = new RMBTTest(this, params, i, barrier, storeResults, MIN_DIFF_TIME, fallbackToOneThread);
+                    results[i] = testThreadPool.submit(testTasks[i]);
+                }
             }
             
             try
@@ -433,22 +467,31 @@ public class RMBTClient
                 long shortestPing = Long.MAX_VALUE;
                 
                 // wait for all threads first
-                for (int i = 0; i < numThreads; i++)
-                    results[i].get();
+                final ThreadTestResult[] threadResults;
+                if (useSelector)
+                    threadResults = selectorResults.get();
+                else
+                {
+                    threadResults = new ThreadTestResult[numThreads];
+                    for (int i = 0; i < numThreads; i++)
+                        threadResults[i] = results[i].get();
+                }
                 
                 if (aborted.get())
                     return null;
                 
-                final long[][] allDownBytes = new long[numThreads][];
-                final long[][] allDownNsecs = new long[numThreads][];
-                final long[][] allUpBytes = new long[numThreads][];
-                final long[][] allUpNsecs = new long[numThreads][];
+                // the adaptive selector test may have used more connections than requested
+                final int numResults = threadResults.length;
+                final long[][] allDownBytes = new long[numResults][];
+                final long[][] allDownNsecs = new long[numResults][];
+                final long[][] allUpBytes = new long[numResults][];
+                final long[][] allUpNsecs = new long[numResults][];
                 
                 int realNumThreads = 0;
                 log("");
-                for (int i = 0; i < numThreads; i++)
+                for (int i = 0; i < numResults; i++)
                 {
-                    final ThreadTestResult testResult = results[i].get();
+                    final ThreadTestResult testResult = threadResults[i];
                     
                     if (testResult != null)
                     {
@@ -494,10 +537,10 @@ public class RMBTClient
                 log(String.format(Locale.US, "Total calculated time up:    %.3f s", result.nsec_upload / 1e9));
                 
                 // get Connection Info from thread 1 (one thread must run)
-                result.ip_local = results[0].get().ip_local;
-                result.ip_server = results[0].get().ip_server;
-                result.port_remote = results[0].get().port_remote;
-                result.encryption = results[0].get().encryption;
+                result.ip_local = threadResults[0].ip_local;
+                result.ip_server = threadResults[0].ip_server;
+                result.port_remote = threadResults[0].port_remote;
+                result.encryption = threadResults[0].encryption;
                 
                 result.num_threads = realNumThreads;
                 
@@ -597,6 +640,14 @@ public class RMBTClient
         return sslSocketFactory;
     }
     
+    /**
+     * @return the context of {@link #getSslSocketFactory()}; used to create {@link javax.net.ssl.SSLEngine}s for channel based connections
+     */
+    public SSLContext getSslContext()
+    {
+        return sslContext;
+    }
+    
     public void setOutputCallback(final RMBTOutputCallback outputCallback)
     {
         this.outputCallback = outputCallback;
@@ -604,7 +655,24 @@ public class RMBTClient
     
     private void resetSpeed()
     {
-        lastCounter = 0;
+        synchronized (speedHistory)
+        {
+            speedHistory.reset();
+        }
+    }
+    
+    /**
+     * @return <code>false</code> if the thread is not running
+     */
+    private boolean getCurrentSpeed(final int thread, final CurrentSpeed currentSpeed)
+    {
+        final RMBTSelectorTest selectorTest = this.selectorTest;
+        if (selectorTest != null)
+            return selectorTest.getCurrentSpeed(thread, currentSpeed);
+        if (testTasks[thread] == null)
+            return false;
+        testTasks[thread].getCurrentSpeed(currentSpeed);
+        return true;
     }
     
     private float getTotalSpeed()
@@ -612,72 +680,51 @@ public class RMBTClient
         long sumTrans = 0;
         long maxTime = 0;
         
-        final CurrentSpeed currentSpeed = new CurrentSpeed();
-        
-        for (int i = 0; i < params.getNumThreads(); i++)
-            if (testTasks[i] != null)
-            {
-                testTasks[i].getCurrentSpeed(currentSpeed);
-                
-                if (currentSpeed.time > maxTime)
-                    maxTime = currentSpeed.time;
-                sumTrans += currentSpeed.trans;
-            }
+        synchronized (speedHistory)
+        {
+            final CurrentSpeed currentSpeed = avgSpeed;
+            
+            for (int i = 0; i < speedHistory.getThreads(); i++)
+                if (getCurrentSpeed(i, currentSpeed))
+                {
+                    if (currentSpeed.time > maxTime)
+                        maxTime = currentSpeed.time;
+                    sumTrans += currentSpeed.trans;
+                }
+        }
         
         return maxTime == 0f ? 0f : (float) sumTrans / (float) maxTime * 1e9f * 8.0f;
     }
     
-    final Map<Integer, List<SpeedItem>> speedMap = new HashMap<Integer, List<SpeedItem>>();
-    
     private float getAvgSpeed()
     {
         long sumDiffTrans = 0;
         long maxDiffTime = 0;
         
-        final CurrentSpeed currentSpeed = new CurrentSpeed();
-        
-        final int currentIndex = lastCounter % KEEP_LAST_ENTRIES;
-        int diffReferenceIndex = (lastCounter - KEEP_LAST_ENTRIES + 1) % KEEP_LAST_ENTRIES;
-        if (diffReferenceIndex < 0)
-            diffReferenceIndex = 0;
-        
-        lastCounter++;
-        
-        for (int i = 0; i < params.getNumThreads(); i++)
-            if (testTasks[i] != null)
-            {
-                testTasks[i].getCurrentSpeed(currentSpeed);
-                
-                lastTime[i][currentIndex] = currentSpeed.time;
-                lastTransfer[i][currentIndex] = currentSpeed.trans;
-                
-//                System.out.println("T" + i + ": " + currentSpeed);
-                
-                List<SpeedItem> speedList = speedMap.get(i);
-                if (speedList == null) {
-                	speedList = new ArrayList<SpeedItem>();
-                	speedMap.put(i, speedList);
+        synchronized (speedHistory)
+        {
+            final CurrentSpeed currentSpeed = avgSpeed;
+            
+            for (int i = 0; i < speedHistory.getThreads(); i++)
+                if (getCurrentSpeed(i, currentSpeed))
+                {
+                    speedHistory.add(i, currentSpeed.time, currentSpeed.trans);
+                    
+                    // compare to the oldest sample kept
+                    final long diffTime = currentSpeed.time - speedHistory.getTime(i, 0);
+                    final long diffTrans = currentSpeed.trans - speedHistory.getBytes(i, 0);
+                    
+                    if (diffTime > maxDiffTime)
+                        maxDiffTime = diffTime;
+                    sumDiffTrans += diffTrans;
                 }
-                
-                speedList.add(new SpeedItem(false, i, currentSpeed.time, currentSpeed.trans));
-                
-                final long diffTime = currentSpeed.time - lastTime[i][diffReferenceIndex];
-                final long diffTrans = currentSpeed.trans - lastTransfer[i][diffReferenceIndex];
-                
-                if (diffTime > maxDiffTime)
-                    maxDiffTime = diffTime;
-                sumDiffTrans += diffTrans;
-            }
-                
-        //TotalTestResult totalResult = TotalTestResult.calculateAndGet(lastTransfer, lastTime, false);
-        //TotalTestResult totalResult = TotalTestResult.calculateAndGet(speedMap);
+        }
+        
+        //TotalTestResult totalResult = TotalTestResult.calculateAndGet(speedHistory);
         
         final float speedAvg = maxDiffTime == 0f ? 0f : (float) sumDiffTrans / (float) maxDiffTime * 1e9f * 8.0f;
         //final float speedAvg = (float)totalResult.speed_download * 1e3f;
         
-//        System.out.println("calculate: bytes=" + totalResult.bytes_download + " speed=" + (totalResult.speed_download * 1e3) 
-//        		+ " nsec=" + totalResult.nsec_download + ", simple: diff=" + sumDiffTrans + " avg=" + speedAvg);
-        
         return speedAvg;
     }
     
@@ -739,6 +786,33 @@ public class RMBTClient
         return iResult;
     }
     
+    /**
+     * delivers the intermediate result at a fixed rate instead of having the caller poll {@link #getIntermediateResult(IntermediateResult)}
+     * @param listener
+     * @param period
+     * @param unit
+     * @return cancel it to end the subscription
+     */
+    public ScheduledFuture<?> subscribeIntermediateResult(final IntermediateResultListener listener, final long period, final TimeUnit unit)
+    {
+        final IntermediateResult iResult = new IntermediateResult();
+        return PROGRESS_SCHEDULER.scheduleAtFixedRate(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    listener.onIntermediateResult(getIntermediateResult(iResult));
+                }
+                catch (final RuntimeException e)
+                {
+                    // keep the subscription alive
+                    log(e);
+                }
+            }
+        }, 0, period, unit);
+    }
+    
     public TestStatus getStatus()
     {
         return testStatus.get();
@@ -90,6 +90,10 @@ public class RMBTClientRunner
 
                 acceptsAll(Arrays.asList("server-type"),"type of test server to use, if a token is supplied (default: RMBT)");
                 
+                acceptsAll(Arrays.asList("channel"), "use NIO channels (SocketChannel/SSLEngine) instead of sockets for the measurement connections");
+                acceptsAll(Arrays.asList("selector"), "drive all measurement connections from a single thread (implies --channel)");
+                acceptsAll(Arrays.asList("adaptive"), "choose number of connections and chunk size from the pre-test (implies --selector)");
+                
             }
         };
         
@@ -146,6 +150,10 @@ public class RMBTClientRunner
             serverType = Config.SERVER_TYPE_RMBT;
         }
         
+        final String transport = options.has("adaptive") ? Config.TRANSPORT_ADAPTIVE
+                : options.has("selector") ? Config.TRANSPORT_SELECTOR
+                : options.has("channel") ? Config.TRANSPORT_CHANNEL : Config.TRANSPORT_SOCKET;
+        
         final RMBTClient client;
         
         final String host = (String) options.valueOf("h");
@@ -176,8 +184,9 @@ public class RMBTClientRunner
         int numPings = 10;
         
         RMBTTestParameter overrideParams = null;
-        if (numThreads > 0 || duration > 0)
-            overrideParams = new RMBTTestParameter(null, 0, false, duration, numThreads, numPings);
+        if (numThreads > 0 || duration > 0 || options.has("channel") || options.has("selector")
+                || options.has("adaptive"))
+            overrideParams = new RMBTTestParameter(null, 0, false, duration, numThreads, numPings, transport);
             
         
         if (options.has("token")) // direct mode
@@ -192,7 +201,7 @@ public class RMBTClientRunner
             final String token = (String) options.valueOf("token");
             final long startTime = System.currentTimeMillis(); // startTime = now
             
-            final RMBTTestParameter params = new RMBTTestParameter(host, port, encryption, token, duration, numPings, numPings, startTime, serverType);
+            final RMBTTestParameter params = new RMBTTestParameter(host, port, encryption, token, duration, numPings, numPings, startTime, serverType, transport);
             
             client = new RMBTClient(params, null);
         }
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Transport of a single RMBT test thread.
+ * <p>
+ * The RMBT protocol alternates between short ASCII control lines
+ * (<code>ACCEPT</code>, <code>GETCHUNKS</code>, <code>TIME</code>, ...) and
+ * bulk data made of fixed size chunks whose last byte marks the end of the
+ * transfer. Implementations own the receive and send buffers, so the
+ * measurement loops never allocate while moving data.
+ * <p>
+ * One thread may receive while another one sends (see upload), all other
+ * methods must be called by the owning test thread only.
+ *
+ * @see RMBTSocketConnection
+ * @see RMBTChannelConnection
+ */
+public abstract class RMBTConnection implements Closeable
+{
+    protected int chunksize;
+
+    /**
+     * sets the chunk size announced by the server and (re)allocates the data buffers if needed
+     * @param chunksize
+     */
+    public abstract void setChunksize(int chunksize);
+
+    public int getChunksize()
+    {
+        return chunksize;
+    }
+
+    /**
+     * reads the next control line (without line terminator)
+     * @return the line or <code>null</code> if the connection has been closed by the server
+     * @throws IOException
+     */
+    public abstract String readLine() throws IOException;
+
+    /**
+     * reads the next control line into the given parser without creating a string
+     * @param parser
+     * @return <code>false</code> if the connection has been closed by the server
+     * @throws IOException
+     */
+    public abstract boolean readResponse(RMBTResponseParser parser) throws IOException;
+
+    /**
+     * sends a control message and flushes it
+     * @param data
+     * @throws IOException
+     */
+    public abstract void write(byte[] data) throws IOException;
+
+    /**
+     * receives the next block of bulk data into the internal buffer
+     * @return number of bytes received; -1 if the connection has been closed
+     * @throws IOException
+     */
+    public abstract int readData() throws IOException;
+
+    /**
+     * @param index position inside the block returned by the last call of {@link #readData()}
+     * @return the received byte at this position
+     */
+    public abstract byte getDataByte(int index);
+
+    /**
+     * sends one chunk of {@link #getChunksize()} bytes
+     * @param last if <code>true</code> the chunk is marked as the last one (termination byte 0xff)
+     * @throws IOException
+     */
+    public abstract void writeChunk(boolean last) throws IOException;
+
+    /**
+     * forces buffered bytes to be written out
+     * @throws IOException
+     */
+    public abstract void flush() throws IOException;
+
+    /**
+     * @return total number of (payload) bytes received on this connection
+     */
+    public abstract long getReadCount();
+
+    /**
+     * @return total number of (payload) bytes sent on this connection
+     */
+    public abstract long getWriteCount();
+
+    public abstract InetAddress getLocalAddress();
+
+    public abstract InetAddress getInetAddress();
+
+    public abstract int getPort();
+
+    public abstract int getReceiveBufferSize() throws IOException;
+
+    public abstract int getSendBufferSize() throws IOException;
+
+    /**
+     * @return description of the negotiated protocol and cipher suite or <code>null</code> if the connection is not encrypted
+     */
+    public abstract String getEncryption();
+
+    /**
+     * returns the position of the termination byte of the last chunk touched by the current data block
+     * @param totalRead bytes received before the current block
+     * @param read size of the current block
+     * @return index inside the current block or -1 if the block does not complete a chunk
+     */
+    public int getLastChunkEnd(final long totalRead, final int read)
+    {
+        final int posLast = chunksize - 1 - (int) (totalRead % chunksize);
+        if (read <= posLast)
+            return -1;
+        return posLast + (read - 1 - posLast) / chunksize * chunksize;
+    }
+}
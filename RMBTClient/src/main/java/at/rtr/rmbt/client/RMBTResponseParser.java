@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Incremental parser for the control lines sent by the RMBT server.
+ * <p>
+ * Bytes are fed as they are received, a line may be split across several calls.
+ * Once the line terminator has been seen the line is classified and its numeric
+ * arguments are available as primitives, so the measurement loops do not create
+ * any strings or regex matches per server message. The line itself is only
+ * decoded on request ({@link #toString()}), e.g. for logging unexpected responses.
+ * <p>
+ * Not thread safe, every receiving thread needs its own instance.
+ */
+public class RMBTResponseParser
+{
+    public enum Type
+    {
+        /** <code>ACCEPT &lt;commands&gt;</code> */
+        ACCEPT,
+        /** <code>OK</code> */
+        OK,
+        /** <code>PONG</code> */
+        PONG,
+        /** <code>ERR ...</code> */
+        ERR,
+        /** <code>TIME &lt;ns&gt;</code> */
+        TIME,
+        /** <code>TIME &lt;ns&gt; BYTES &lt;bytes&gt;</code> */
+        TIME_BYTES,
+        /** <code>CHUNKSIZE &lt;size&gt; [&lt;min&gt; &lt;max&gt;]</code> */
+        CHUNKSIZE,
+        /** any other line, e.g. the greeting */
+        OTHER
+    }
+
+    /**
+     * longer lines are truncated (but consumed completely)
+     */
+    public static final int MAX_LINE_LENGTH = 4096;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] ACCEPT = "ACCEPT".getBytes(ASCII);
+    private static final byte[] OK = "OK".getBytes(ASCII);
+    private static final byte[] PONG = "PONG".getBytes(ASCII);
+    private static final byte[] ERR = "ERR".getBytes(ASCII);
+    private static final byte[] TIME = "TIME ".getBytes(ASCII);
+    private static final byte[] BYTES = " BYTES ".getBytes(ASCII);
+    private static final byte[] CHUNKSIZE = "CHUNKSIZE ".getBytes(ASCII);
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int length;
+    private boolean complete;
+
+    private Type type;
+    private long time;
+    private long bytes;
+    private long chunksize;
+    private long chunksizeMin;
+    private long chunksizeMax;
+
+    /** position of the next digit in {@link #parseNumber(int)} */
+    private int numberEnd;
+
+    /**
+     * discards the current (partial) line
+     */
+    public void reset()
+    {
+        length = 0;
+        complete = false;
+        type = null;
+    }
+
+    /**
+     * @param b
+     * @return <code>true</code> if this byte completed a line
+     */
+    public boolean feed(final byte b)
+    {
+        if (complete)
+            reset();
+        if (b == '\n')
+        {
+            if (length > 0 && line[length - 1] == '\r')
+                length--;
+            complete = true;
+            parse();
+            return true;
+        }
+        if (length < line.length)
+            line[length++] = b;
+        return false;
+    }
+
+    /**
+     * feeds bytes until a line is complete
+     * @param src
+     * @param offset
+     * @param end
+     * @return index after the last byte consumed; <code>end</code> if the line is not complete yet
+     */
+    public int feed(final byte[] src, final int offset, final int end)
+    {
+        for (int i = offset; i < end; i++)
+            if (feed(src[i]))
+                return i + 1;
+        return end;
+    }
+
+    /**
+     * feeds bytes from the position of the buffer until a line is complete; the position is advanced accordingly
+     * @param src
+     * @return <code>true</code> if a line has been completed
+     */
+    public boolean feed(final ByteBuffer src)
+    {
+        final int limit = src.limit();
+        for (int i = src.position(); i < limit; i++)
+            if (feed(src.get(i)))
+            {
+                src.position(i + 1);
+                return true;
+            }
+        src.position(limit);
+        return false;
+    }
+
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * @return the type of the completed line; <code>null</code> if no line has been completed yet
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return argument of {@link Type#TIME} and {@link Type#TIME_BYTES}
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+    /**
+     * @return second argument of {@link Type#TIME_BYTES}
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return first argument of {@link Type#CHUNKSIZE}
+     */
+    public int getChunksize()
+    {
+        return (int) chunksize;
+    }
+
+    /**
+     * @return smallest chunk size the server accepts in commands; same as {@link #getChunksize()} if the server does not announce it
+     */
+    public int getChunksizeMin()
+    {
+        return (int) chunksizeMin;
+    }
+
+    /**
+     * @return largest chunk size the server accepts in commands; same as {@link #getChunksize()} if the server does not announce it
+     */
+    public int getChunksizeMax()
+    {
+        return (int) chunksizeMax;
+    }
+
+    public int length()
+    {
+        return length;
+    }
+
+    /**
+     * @param prefix ASCII text
+     * @return <code>true</code> if the current line starts with the given text
+     */
+    public boolean startsWith(final String prefix)
+    {
+        if (prefix.length() > length)
+            return false;
+        for (int i = 0; i < prefix.length(); i++)
+            if (line[i] != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * @param text ASCII text
+     * @return <code>true</code> if the current line contains the given text
+     */
+    public boolean contains(final String text)
+    {
+        outer: for (int start = 0; start + text.length() <= length; start++)
+        {
+            for (int i = 0; i < text.length(); i++)
+                if (line[start + i] != text.charAt(i))
+                    continue outer;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the (possibly incomplete) line without terminator
+     */
+    @Override
+    public String toString()
+    {
+        return new String(line, 0, length, ASCII);
+    }
+
+    private void parse()
+    {
+        type = Type.OTHER;
+        if (equals(OK))
+            type = Type.OK;
+        else if (equals(PONG))
+            type = Type.PONG;
+        else if (startsWith(ACCEPT) && (length == ACCEPT.length || line[ACCEPT.length] == ' '))
+            type = Type.ACCEPT;
+        else if (startsWith(ERR))
+            type = Type.ERR;
+        else if (startsWith(TIME))
+        {
+            if (!parseNumber(TIME.length))
+                return;
+            time = bytes;
+            if (numberEnd == length)
+                type = Type.TIME;
+            else if (startsWith(BYTES, numberEnd) && parseNumber(numberEnd + BYTES.length) && numberEnd == length)
+                type = Type.TIME_BYTES;
+        }
+        else if (startsWith(CHUNKSIZE))
+        {
+            if (!parseNumber(CHUNKSIZE.length))
+                return;
+            if ((numberEnd == length || line[numberEnd] == ' ') && bytes <= Integer.MAX_VALUE)
+            {
+                chunksize = bytes;
+                chunksizeMin = bytes;
+                chunksizeMax = bytes;
+                type = Type.CHUNKSIZE;
+                // limits announced since RMBT protocol 1.2
+                if (numberEnd < length && parseNumber(numberEnd + 1) && bytes <= chunksize)
+                {
+                    final long min = bytes;
+                    if (numberEnd < length && line[numberEnd] == ' ' && parseNumber(numberEnd + 1)
+                            && bytes >= chunksize && bytes <= Integer.MAX_VALUE)
+                    {
+                        chunksizeMin = min;
+                        chunksizeMax = bytes;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * parses a decimal number into {@link #bytes}
+     * @param offset
+     * @return <code>false</code> if there are no digits at this position or the number is too large
+     */
+    private boolean parseNumber(final int offset)
+    {
+        long value = 0;
+        int i = offset;
+        while (i < length && line[i] >= '0' && line[i] <= '9')
+        {
+            if (i - offset >= 18)
+                return false;
+            value = value * 10 + (line[i] - '0');
+            i++;
+        }
+        if (i == offset)
+            return false;
+        bytes = value;
+        numberEnd = i;
+        return true;
+    }
+
+    private boolean equals(final byte[] text)
+    {
+        return length == text.length && startsWith(text, 0);
+    }
+
+    private boolean startsWith(final byte[] text)
+    {
+        return startsWith(text, 0);
+    }
+
+    private boolean startsWith(final byte[] text, final int offset)
+    {
+        if (offset + text.length > length)
+            return false;
+        for (int i = 0; i < text.length; i++)
+            if (line[offset + i] != text[i])
+                return false;
+        return true;
+    }
+}
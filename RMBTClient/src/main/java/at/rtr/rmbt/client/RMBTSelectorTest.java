@@ -0,0 +1,1059 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+
+import at.rtr.rmbt.client.RMBTTest.CurrentSpeed;
+import at.rtr.rmbt.client.helper.Config;
+import at.rtr.rmbt.client.helper.TestStatus;
+
+/**
+ * Runs all connections of a speed test on a single thread.
+ * <p>
+ * {@link RMBTTest} uses one blocking thread per connection and lines the threads up with a
+ * {@link java.util.concurrent.CyclicBarrier} between the phases of the test. Here every connection is a
+ * small state machine on top of a non-blocking {@link RMBTChannelConnection} which is advanced by the
+ * readiness events of one {@link Selector}. A phase (pre-test, ping, download, upload pre-test, upload)
+ * starts for all connections as soon as every connection has finished the previous one; the protocol
+ * and the recorded results are the same as with {@link RMBTTest}.
+ * <p>
+ * With {@link Config#TRANSPORT_ADAPTIVE} the number of connections and the chunk size of the main
+ * phases are not fixed: after the ping an {@link AdaptiveStreamController} derives them from the pre-test
+ * throughput and the round trip time, surplus connections are closed and missing ones opened. During the
+ * download further connections are added as long as the aggregate throughput keeps growing; their
+ * results share the time axis of the other connections.
+ */
+public class RMBTSelectorTest implements Callable<ThreadTestResult[]>
+{
+    private static final long nsecsL = 1000000000L;
+
+    private static final long UPLOAD_MAX_DISCARD_TIME = 1 * nsecsL;
+    private static final long UPLOAD_MAX_WAIT_SECS = 3;
+
+    private static final long CONNECT_TIMEOUT = 20 * nsecsL;
+
+    /**
+     * upper bound for a single select; deadlines are checked at least this often (in ms)
+     */
+    private static final long SELECT_TIMEOUT = 10;
+
+    private enum Phase
+    {
+        CONNECT, PRETEST_DOWN, PING,
+        /** adaptive only: adjusts the connections to the pre-test result */
+        RAMP,
+        DOWN, PRETEST_UP, UP, END
+    }
+
+    private enum Step
+    {
+        CONNECTING, HANDSHAKE, HTTP_UPGRADE, GREETING, ACCEPT_TOKEN, TOKEN_OK, CHUNKSIZE,
+        /** waiting for the ACCEPT line preceding every command */
+        ACCEPT,
+        /** ready for the next command */
+        IDLE,
+        RECEIVE_DATA, PONG, PUT_OK, SEND_CHUNKS, UPLOAD,
+        /** waiting for the TIME line concluding a command */
+        TIME,
+        DONE
+    }
+
+    private final RMBTClient client;
+    private final RMBTTestParameter params;
+    private final Stream[] streams;
+
+    private final long minDiffTime;
+    private final int maxCoarseResults;
+    private final int maxFineResults;
+
+    private Selector selector;
+    private Phase phase;
+    private boolean fallbackToOneThread;
+
+    /** <code>null</code> unless {@link Config#TRANSPORT_ADAPTIVE} is used; created once the server limits are known */
+    private AdaptiveStreamController controller;
+    private final boolean adaptive;
+
+    /** as announced by the server on the first connection */
+    private int serverChunksize;
+    private int serverChunksizeMin;
+    private int serverChunksizeMax;
+
+    /** chunk size requested in the commands of the main phases; <code>0</code> for the server default */
+    private int chunksize;
+
+    private long downPhaseStart;
+
+    public RMBTSelectorTest(final RMBTClient client, final RMBTTestParameter params, final int storeResults,
+            final long minDiffTime)
+    {
+        this.client = client;
+        this.params = params;
+        this.maxCoarseResults = storeResults;
+        this.maxFineResults = storeResults;
+        this.minDiffTime = minDiffTime;
+        adaptive = Config.TRANSPORT_ADAPTIVE.equals(params.getTransport());
+        streams = new Stream[getMaxStreams(params)];
+        for (int i = 0; i < streams.length; i++)
+        {
+            streams[i] = new Stream(i);
+            // spare connections of the adaptive test are only opened on demand
+            streams[i].active = i < params.getNumThreads();
+        }
+    }
+
+    /**
+     * @param params
+     * @return the number of connections a test with these parameters may use at most
+     */
+    public static int getMaxStreams(final RMBTTestParameter params)
+    {
+        if (Config.TRANSPORT_ADAPTIVE.equals(params.getTransport()))
+            return Math.max(params.getNumThreads(), Config.ADAPTIVE_MAX_THREADS);
+        return params.getNumThreads();
+    }
+
+    /**
+     * @param threadId
+     * @param result
+     * @return <code>false</code> if the connection is not (or no longer) part of the test
+     */
+    public boolean getCurrentSpeed(final int threadId, final CurrentSpeed result)
+    {
+        final Stream stream = streams[threadId];
+        if (!stream.active)
+            return false;
+        stream.progress.get(result);
+        return true;
+    }
+
+    /**
+     * @return the results of all connections; <code>null</code> for connections dropped after the pre-test
+     */
+    public ThreadTestResult[] call()
+    {
+        log(String.format(Locale.US, "selector: started %d connections.", params.getNumThreads()));
+        try
+        {
+            selector = Selector.open();
+            phase = Phase.CONNECT;
+            for (final Stream stream : streams)
+                if (stream.active)
+                    stream.open();
+
+            while (phase != Phase.END)
+            {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                selector.select(SELECT_TIMEOUT);
+                final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext())
+                {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    ((Stream) key.attachment()).process();
+                }
+
+                final long now = System.nanoTime();
+                for (final Stream stream : streams)
+                    if (stream.active)
+                        stream.checkDeadlines(now);
+
+                if (phase == Phase.DOWN && controller != null)
+                    checkAddStream(now);
+
+                while (phase != Phase.END && isPhaseDone())
+                    nextPhase();
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            client.log("interrupted");
+            Thread.currentThread().interrupt();
+        }
+        catch (final Exception e)
+        {
+            client.log(e);
+            client.abortTest(true);
+        }
+        finally
+        {
+            for (final Stream stream : streams)
+                stream.close();
+            if (selector != null)
+                try
+                {
+                    selector.close();
+                }
+                catch (final IOException e)
+                {
+                    client.log(e);
+                }
+        }
+
+        final ThreadTestResult[] results = new ThreadTestResult[streams.length];
+        for (int i = 0; i < streams.length; i++)
+            if (streams[i].active)
+                results[i] = streams[i].testResult;
+        return results;
+    }
+
+    private boolean isPhaseDone()
+    {
+        for (final Stream stream : streams)
+            if (stream.active && !stream.phaseDone)
+                return false;
+        return true;
+    }
+
+    /**
+     * starts the next phase on all connections; the status changes are the ones done by thread 0 of {@link RMBTTest}
+     */
+    private void nextPhase() throws IOException
+    {
+        phase = Phase.values()[phase.ordinal() + 1];
+        log(String.format(Locale.US, "selector: phase %s", phase));
+
+        switch (phase)
+        {
+        case PING:
+            client.setStatus(TestStatus.PING);
+            break;
+        case RAMP:
+            if (adaptive)
+                adaptStreams();
+            break;
+        case DOWN:
+            client.setStatus(TestStatus.DOWN);
+            downPhaseStart = System.nanoTime();
+            if (controller != null)
+                controller.resetWindow();
+            break;
+        case PRETEST_UP:
+            client.setStatus(TestStatus.INIT_UP);
+            break;
+        case UP:
+            client.setStatus(TestStatus.UP);
+            break;
+        default:
+            break;
+        }
+
+        for (final Stream stream : streams)
+            if (stream.active)
+            {
+                stream.phaseDone = false;
+                stream.startPhase();
+                stream.process();
+            }
+    }
+
+    /**
+     * sets the number of connections and the chunk size for the main phases from the pre-test and the ping
+     */
+    private void adaptStreams() throws IOException
+    {
+        controller = new AdaptiveStreamController(1, streams.length,
+                serverChunksize, serverChunksizeMin, serverChunksizeMax);
+        int current = 0;
+        for (final Stream stream : streams)
+            if (stream.active)
+            {
+                controller.addPretest(stream.pretestBytes, stream.pretestNsec);
+                current++;
+            }
+        controller.setRtt(streams[0].testResult.ping_median);
+
+        final int numStreams = fallbackToOneThread ? 1 : controller.getStreams(current);
+        final int newChunksize = controller.getChunksize(numStreams);
+        chunksize = newChunksize == serverChunksize ? 0 : newChunksize;
+        log(String.format(Locale.US, "selector: pre-test %.0f kBit/s, using %d connections, chunk size %d",
+                controller.getPretestRate() * 8 / 1e3, numStreams, newChunksize));
+
+        for (int i = 0; i < streams.length; i++)
+        {
+            final Stream stream = streams[i];
+            if (i >= numStreams && stream.active)
+            {
+                stream.active = false;
+                stream.close();
+            }
+            else if (i < numStreams && !stream.active)
+            {
+                stream.active = true;
+                stream.open();
+            }
+        }
+    }
+
+    /**
+     * opens another connection during the download if the aggregate throughput is still growing
+     */
+    private void checkAddStream(final long now) throws IOException
+    {
+        int current = 0;
+        long totalBytes = 0;
+        Stream unused = null;
+        for (final Stream stream : streams)
+            if (stream.active)
+            {
+                current++;
+                totalBytes += stream.totalRead;
+            }
+            else if (unused == null && !stream.used)
+                unused = stream;
+
+        if (unused == null || !controller.addStream(current, now, totalBytes, downPhaseStart + params.getDuration() * nsecsL))
+            return;
+
+        log(String.format(Locale.US, "selector: throughput still growing, adding connection %d", unused.threadId));
+        unused.active = true;
+        unused.late = true;
+        unused.phaseDone = false;
+        unused.open();
+    }
+
+    private void log(final CharSequence text)
+    {
+        client.log(text);
+    }
+
+    /**
+     * state of a single connection, corresponds to one {@link RMBTTest}
+     */
+    private class Stream
+    {
+        final int threadId;
+        final ThreadTestResult testResult = new ThreadTestResult();
+
+        final ProgressSnapshot progress = new ProgressSnapshot();
+
+        final RMBTResponseParser response = new RMBTResponseParser();
+
+        RMBTChannelConnection connection;
+        SelectionKey key;
+        Step step;
+        boolean active = true;
+        boolean phaseDone;
+        /** the connection has been opened at some point */
+        boolean used;
+        /** joined the download after it had started */
+        boolean late;
+
+        long totalDown;
+        long totalUp;
+
+        long connectDeadline;
+        boolean httpStatusRead;
+
+        /** pre-test */
+        long targetTimeEnd;
+        int chunks;
+        int chunksToSend;
+        boolean putNoResult;
+        long pretestStart;
+        long pretestBytes;
+        long pretestNsec;
+
+        /** ping */
+        int pingsDone;
+        long[] pings;
+        long shortestPing = Long.MAX_VALUE;
+        long pingPhaseStart;
+        long pingTimeNs;
+        long pingStart;
+        long pingEnd;
+        boolean pongReceived;
+
+        /** download and upload */
+        SingleResult result;
+        long timeStart;
+        long timeLatestEnd;
+        long totalRead;
+        byte lastByte;
+        boolean downloadStarted;
+
+        /** upload */
+        long enoughTime;
+        long txEnd;
+        boolean txDone;
+        long rxTerminateIfEnough;
+        long rxTerminateAtAllEvents;
+        long rxCancel;
+
+        Stream(final int threadId)
+        {
+            this.threadId = threadId;
+            // connections opened after the ping phase do not ping
+            testResult.ping_shortest = Long.MAX_VALUE;
+            testResult.ping_median = Long.MAX_VALUE;
+        }
+
+        void open() throws IOException
+        {
+            log(String.format(Locale.US, "thread %d: connecting...", threadId));
+
+            final InetAddress inetAddress = InetAddress.getByName(params.getHost());
+            final InetSocketAddress address = new InetSocketAddress(inetAddress, params.getPort());
+
+            final SocketChannel channel = SocketChannel.open();
+            try
+            {
+                connection = new RMBTChannelConnection(channel, address, client.getSslContext());
+                connection.configureBlocking(false);
+                channel.connect(address);
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+            catch (final IOException e)
+            {
+                channel.close();
+                throw e;
+            }
+            used = true;
+            step = Step.CONNECTING;
+            httpStatusRead = false;
+            connectDeadline = System.nanoTime() + CONNECT_TIMEOUT;
+        }
+
+        /**
+         * closes the current connection and opens a new one, the current phase is finished once it is established
+         */
+        void reconnect() throws IOException
+        {
+            totalDown += connection.getReadCount();
+            totalUp += connection.getWriteCount();
+            close();
+            open();
+        }
+
+        void close()
+        {
+            if (connection == null)
+                return;
+            try
+            {
+                if (key != null)
+                    key.cancel();
+                connection.close();
+            }
+            catch (final IOException e)
+            {
+                client.log(e);
+            }
+            connection = null;
+            key = null;
+        }
+
+        void startPhase() throws IOException
+        {
+            switch (phase)
+            {
+            case PRETEST_DOWN:
+                pretestStart = System.nanoTime();
+                pretestBytes = 0;
+                targetTimeEnd = pretestStart + params.getPretestDuration() * nsecsL;
+                chunks = 1;
+                getChunks();
+                break;
+
+            case PING:
+                client.startTrafficService(threadId, TestStatus.PING);
+                if (fallbackToOneThread && threadId != 0)
+                {
+                    // connection is quite slow, we only use 1 thread
+                    active = false;
+                    close();
+                    return;
+                }
+                if (threadId == 0) // only one thread pings!
+                {
+                    pings = new long[params.getNumPings()];
+                    pingsDone = 0;
+                    pingPhaseStart = System.nanoTime();
+                    if (pings.length > 0)
+                    {
+                        ping();
+                        break;
+                    }
+                    finishPing();
+                }
+                else
+                    finishPing();
+                break;
+
+            case RAMP:
+                // connections opened for the main phases are done once they are ready
+                phaseDone = step == Step.IDLE;
+                break;
+
+            case DOWN:
+                client.stopTrafficMeasurement(threadId, TestStatus.PING);
+                client.startTrafficService(threadId, TestStatus.DOWN);
+                progress.set(0, 0);
+                download();
+                break;
+
+            case PRETEST_UP:
+                client.stopTrafficMeasurement(threadId, TestStatus.DOWN);
+                progress.set(0, 0);
+                targetTimeEnd = System.nanoTime() + params.getPretestDuration() * nsecsL;
+                chunks = 1;
+                putChunks();
+                break;
+
+            case UP:
+                client.startTrafficService(threadId, TestStatus.UP);
+                progress.set(0, 0);
+                upload();
+                break;
+
+            default:
+                phaseDone = true;
+                break;
+            }
+        }
+
+        /**
+         * called whenever the connection is ready for the next command
+         */
+        void commandDone() throws IOException
+        {
+            switch (phase)
+            {
+            case PRETEST_DOWN:
+                chunks *= 2;
+                if (System.nanoTime() < targetTimeEnd)
+                    getChunks();
+                else
+                {
+                    pretestNsec = System.nanoTime() - pretestStart;
+                    if (chunks <= 4)
+                        fallbackToOneThread = true;
+                    phaseDone = true;
+                }
+                break;
+
+            case PING:
+                if (pingsDone < pings.length)
+                    ping();
+                else
+                    finishPing();
+                break;
+
+            case DOWN:
+                // a connection added during the download joins it as soon as it is ready
+                if (!downloadStarted)
+                    download();
+                else
+                    phaseDone = true;
+                break;
+
+            case PRETEST_UP:
+                chunks *= 2;
+                if (System.nanoTime() < targetTimeEnd)
+                    putChunks();
+                else
+                    phaseDone = true;
+                break;
+
+            default:
+                phaseDone = true;
+                break;
+            }
+        }
+
+        void send(final String command) throws IOException
+        {
+            connection.queue(command.getBytes("US-ASCII"));
+        }
+
+        void getChunks() throws IOException
+        {
+            log(String.format(Locale.US, "thread %d: getting %d chunk(s)", threadId, chunks));
+            send(String.format(Locale.US, "GETCHUNKS %d\n", chunks));
+            totalRead = 0;
+            lastByte = 0;
+            result = null;
+            step = Step.RECEIVE_DATA;
+        }
+
+        void download() throws IOException
+        {
+            downloadStarted = true;
+            result = new SingleResult(maxCoarseResults, maxFineResults, minDiffTime);
+            totalRead = 0;
+            lastByte = 0;
+            final long now = System.nanoTime();
+            final int duration;
+            if (late)
+            {
+                // results are relative to the start of the phase, the remaining time is rounded up
+                duration = (int) Math.max(1, (downPhaseStart + params.getDuration() * nsecsL - now + nsecsL - 1) / nsecsL);
+                timeStart = downPhaseStart;
+                result.addResult(0, now - timeStart);
+            }
+            else
+            {
+                duration = params.getDuration();
+                timeStart = now;
+            }
+            timeLatestEnd = now + duration * nsecsL;
+            log(String.format(Locale.US, "thread %d: download test %d seconds", threadId, duration));
+            applyChunksize();
+            send(String.format(Locale.US, "GETTIME %d%s\n", duration, getChunksizeArg()));
+            step = Step.RECEIVE_DATA;
+        }
+
+        void putChunks() throws IOException
+        {
+            log(String.format(Locale.US, "thread %d: putting %d chunk(s)", threadId, chunks));
+            putNoResult = true;
+            applyChunksize();
+            send(String.format(Locale.US, "PUTNORESULT%s\n", getChunksizeArg()));
+            step = Step.PUT_OK;
+        }
+
+        void applyChunksize()
+        {
+            if (chunksize > 0 && connection.getChunksize() != chunksize)
+                connection.setChunksize(chunksize);
+        }
+
+        /**
+         * @return the optional chunk size argument of GETTIME, PUT and PUTNORESULT
+         */
+        String getChunksizeArg()
+        {
+            return chunksize > 0 ? " " + chunksize : "";
+        }
+
+        void upload() throws IOException
+        {
+            final int duration = params.getDuration();
+            log(String.format(Locale.US, "thread %d: upload test %d seconds", threadId, duration));
+            enoughTime = Math.max((duration - UPLOAD_MAX_DISCARD_TIME) * nsecsL, 0);
+            result = new SingleResult(maxCoarseResults, maxFineResults, minDiffTime);
+            putNoResult = false;
+            applyChunksize();
+            send(String.format(Locale.US, "PUT%s\n", getChunksizeArg()));
+            step = Step.PUT_OK;
+        }
+
+        void ping() throws IOException
+        {
+            log(String.format(Locale.US, "thread %d: ping test", threadId));
+            pingTimeNs = System.nanoTime();
+            pingStart = System.nanoTime();
+            send("PING\n");
+            step = Step.PONG;
+        }
+
+        void finishPing()
+        {
+            long medianPing = Long.MAX_VALUE;
+            if (pings != null)
+            {
+                medianPing = RMBTTest.getMedianPing(pings);
+                // display median ping
+                client.setPing(medianPing);
+            }
+            testResult.ping_shortest = shortestPing;
+            testResult.ping_median = medianPing;
+            phaseDone = true;
+        }
+
+        void finishUpload()
+        {
+            testResult.up = result.getAllResults();
+            result.addCoarseSpeedItems(testResult.speedItems, true, threadId);
+
+            totalDown += connection.getReadCount();
+            totalUp += connection.getWriteCount();
+            testResult.totalDownBytes = totalDown;
+            testResult.totalUpBytes = totalUp;
+
+            progress.set(result.getBytes(), result.getNsec());
+
+            client.stopTrafficMeasurement(threadId, TestStatus.UP);
+
+            close();
+            step = Step.DONE;
+            phaseDone = true;
+        }
+
+        void checkDeadlines(final long now) throws IOException
+        {
+            if (step == Step.CONNECTING || step == Step.HANDSHAKE)
+            {
+                if (now > connectDeadline)
+                    throw new SocketTimeoutException(String.format(Locale.US, "thread %d: connect timed out", threadId));
+            }
+            else if (step == Step.UPLOAD)
+                // the end of the upload is time driven, not only event driven
+                process();
+        }
+
+        /**
+         * advances the state machine as far as possible without blocking and updates the interest set
+         */
+        void process() throws IOException
+        {
+            while (connection != null && advance())
+                ;
+            if (key != null)
+                key.interestOps(getInterestOps());
+        }
+
+        int getInterestOps()
+        {
+            final int write = connection.hasPendingWrite() ? SelectionKey.OP_WRITE : 0;
+            switch (step)
+            {
+            case CONNECTING:
+                return SelectionKey.OP_CONNECT;
+            case IDLE:
+            case DONE:
+                return write;
+            case SEND_CHUNKS:
+                return SelectionKey.OP_WRITE;
+            case UPLOAD:
+                return SelectionKey.OP_READ | (txDone ? write : SelectionKey.OP_WRITE);
+            default:
+                return SelectionKey.OP_READ | write;
+            }
+        }
+
+        /**
+         * @return <code>true</code> if progress has been made and the next step may be taken right away
+         */
+        boolean advance() throws IOException
+        {
+            String line;
+            switch (step)
+            {
+            case CONNECTING:
+                if (!connection.getChannel().finishConnect())
+                    return false;
+                testResult.ip_local = connection.getLocalAddress();
+                testResult.ip_server = connection.getInetAddress();
+                testResult.port_remote = connection.getPort();
+                log(String.format(Locale.US, "thread %d: ReceiveBufferSize: '%s'.", threadId, connection.getReceiveBufferSize()));
+                log(String.format(Locale.US, "thread %d: SendBufferSize: '%s'.", threadId, connection.getSendBufferSize()));
+                step = Step.HANDSHAKE;
+                return true;
+
+            case HANDSHAKE:
+                if (!connection.continueHandshake())
+                    return false;
+                final String encryption = connection.getEncryption();
+                if (encryption != null)
+                    testResult.encryption = encryption;
+                //Server type RMBThttp -> The client has to do a HTTP request and upgrade the connection
+                if (params.getServerType().equals(Config.SERVER_TYPE_RMBT_HTTP))
+                {
+                    log(String.format(Locale.US, "thread %d: requesting HTTP upgrade", threadId));
+                    send(String.format("GET /rmbt HTTP/1.1\r\n" +
+                            "Connection: Upgrade\r\n" +
+                            "Upgrade: RMBT\r\n" +
+                            "RMBT-Version: %s\r\n" +
+                            "\r\n", Config.RMBT_LATEST_SERVER));
+                    step = Step.HTTP_UPGRADE;
+                }
+                else
+                    step = Step.GREETING;
+                return true;
+
+            case HTTP_UPGRADE:
+                if ((line = connection.pollLine()) == null)
+                    return false;
+                //Read the HTTP response (terminated with an empty newline)
+                if (!httpStatusRead)
+                {
+                    if (!line.contains("101")) //HTTP status code 101 Switching Protocols
+                        throw unexpected(line, AbstractRMBTTest.EXPECT_GREETING);
+                    httpStatusRead = true;
+                }
+                else if (line.isEmpty())
+                    step = Step.GREETING;
+                return true;
+
+            case GREETING:
+                if ((line = connection.pollLine()) == null)
+                    return false;
+                if (!line.contains(AbstractRMBTTest.EXPECT_GREETING))
+                    throw unexpected(line, AbstractRMBTTest.EXPECT_GREETING);
+                final Matcher matcher = AbstractRMBTTest.RMBT_SERVER_PATTERN.matcher(line.trim());
+                if (matcher.find())
+                    testResult.client_version = matcher.group(1);
+                step = Step.ACCEPT_TOKEN;
+                return true;
+
+            case ACCEPT_TOKEN:
+                if (!connection.pollResponse(response))
+                    return false;
+                expect(RMBTResponseParser.Type.ACCEPT);
+                send(String.format(Locale.US, "TOKEN %s\n", params.getToken()));
+                step = Step.TOKEN_OK;
+                return true;
+
+            case TOKEN_OK:
+                if (!connection.pollResponse(response))
+                    return false;
+                expect(RMBTResponseParser.Type.OK);
+                step = Step.CHUNKSIZE;
+                return true;
+
+            case CHUNKSIZE:
+                if (!connection.pollResponse(response))
+                    return false;
+                if (!response.startsWith("CHUNKSIZE"))
+                    throw unexpected(response.toString(), "CHUNKSIZE");
+                if (response.getType() != RMBTResponseParser.Type.CHUNKSIZE || response.getChunksize() < 1)
+                    throw new IllegalStateException(String.format(Locale.US, "thread %d: invalid CHUNKSIZE: '%s'", threadId, response));
+                log(String.format(Locale.US, "thread %d: CHUNKSIZE is %d", threadId, response.getChunksize()));
+                connection.setChunksize(response.getChunksize());
+                if (serverChunksize == 0)
+                {
+                    serverChunksize = response.getChunksize();
+                    serverChunksizeMin = response.getChunksizeMin();
+                    serverChunksizeMax = response.getChunksizeMax();
+                }
+                log(String.format(Locale.US, "thread %d: connected", threadId));
+                step = Step.ACCEPT;
+                return true;
+
+            case ACCEPT:
+                if (!connection.pollResponse(response))
+                    return false;
+                expect(RMBTResponseParser.Type.ACCEPT);
+                step = Step.IDLE;
+                commandDone();
+                return step != Step.IDLE;
+
+            case RECEIVE_DATA:
+                return receiveData();
+
+            case PONG:
+                if (!connection.pollResponse(response))
+                    return false;
+                pingEnd = System.nanoTime();
+                pongReceived = response.getType() == RMBTResponseParser.Type.PONG;
+                send("OK\n");
+                step = Step.TIME;
+                return true;
+
+            case PUT_OK:
+                if (!connection.pollResponse(response))
+                    return false;
+                expect(RMBTResponseParser.Type.OK);
+                if (putNoResult)
+                {
+                    chunksToSend = chunks;
+                    step = Step.SEND_CHUNKS;
+                }
+                else
+                {
+                    txDone = false;
+                    timeStart = System.nanoTime();
+                    txEnd = timeStart + params.getDuration() * nsecsL;
+                    rxTerminateIfEnough = Long.MAX_VALUE;
+                    rxTerminateAtAllEvents = Long.MAX_VALUE;
+                    rxCancel = Long.MAX_VALUE;
+                    step = Step.UPLOAD;
+                }
+                return true;
+
+            case SEND_CHUNKS:
+                for (;;)
+                {
+                    if (!connection.flushPending())
+                        return false;
+                    if (chunksToSend == 0)
+                    {
+                        step = Step.TIME;
+                        return true;
+                    }
+                    // last chunk carries the termination value
+                    connection.queueChunk(--chunksToSend == 0);
+                }
+
+            case UPLOAD:
+                upload(System.nanoTime());
+                return false;
+
+            case TIME:
+                if (!connection.pollResponse(response))
+                    return false;
+                if (phase == Phase.PING)
+                    addPing();
+                step = Step.ACCEPT;
+                return true;
+
+            default:
+                return false;
+            }
+        }
+
+        boolean receiveData() throws IOException
+        {
+            final int read = connection.readData();
+            if (read == 0)
+                return false;
+            if (read < 0)
+            {
+                log(String.format(Locale.US, "thread %d: error while receiving data", threadId));
+                throw new IllegalStateException("connection lost");
+            }
+
+            final int posLast = connection.getLastChunkEnd(totalRead, read);
+            if (posLast >= 0)
+                lastByte = connection.getDataByte(posLast);
+            totalRead += read;
+
+            if (result == null)
+            {
+                // pre-test
+                pretestBytes += read;
+                if (lastByte == (byte) 0xff)
+                {
+                    send("OK\n");
+                    step = Step.TIME;
+                }
+                return true;
+            }
+
+            final long now = System.nanoTime();
+            final long nsec = now - timeStart;
+            result.addResult(totalRead, nsec);
+            progress.set(totalRead, nsec);
+
+            if (lastByte != (byte) 0xff && now <= timeLatestEnd)
+                return true;
+
+            final long timeEnd = System.nanoTime();
+            result.addResult(totalRead, timeEnd - timeStart);
+            progress.set(totalRead, timeEnd - timeStart);
+
+            testResult.down = result.getAllResults();
+            result.addCoarseSpeedItems(testResult.speedItems, false, threadId);
+            progress.set(result.getBytes(), result.getNsec());
+            result = null;
+
+            if (lastByte != (byte) 0xff)
+            {
+                reconnect();
+                log(String.format(Locale.US, "thread %d: reconnecting", threadId));
+                return false;
+            }
+            send("OK\n");
+            step = Step.TIME;
+            return true;
+        }
+
+        /**
+         * sends chunks until the socket buffer is full and consumes the intermediate results sent by the server
+         */
+        void upload(final long now) throws IOException
+        {
+            while (!txDone && connection.flushPending())
+            {
+                if (now >= txEnd)
+                {
+                    // last package
+                    connection.queueChunk(true);
+                    txDone = true;
+                    rxTerminateIfEnough = System.nanoTime() + 100000000L;
+                    rxTerminateAtAllEvents = rxTerminateIfEnough + UPLOAD_MAX_WAIT_SECS * nsecsL;
+                    rxCancel = rxTerminateAtAllEvents + 250000000L;
+                }
+                else
+                    connection.queueChunk(false);
+            }
+            if (txDone)
+                connection.flushPending();
+
+            while (connection.pollResponse(response))
+            {
+                if (response.getType() != RMBTResponseParser.Type.TIME_BYTES)
+                {
+                    expect(RMBTResponseParser.Type.TIME);
+                    finishUpload();
+                    return;
+                }
+
+                final long nsec = response.getTime();
+                final long bytes = response.getBytes();
+                result.addResult(bytes, nsec);
+                progress.set(bytes, nsec);
+
+                final long time = System.nanoTime();
+                if (time >= rxTerminateAtAllEvents || time >= rxTerminateIfEnough && nsec > enoughTime)
+                {
+                    finishUpload();
+                    return;
+                }
+            }
+
+            if (now >= rxCancel)
+                finishUpload();
+        }
+
+        void addPing()
+        {
+            final int i = pingsDone++;
+            if (!pongReceived)
+                return;
+
+            expect(RMBTResponseParser.Type.TIME);
+
+            final long diffClient = pingEnd - pingStart;
+            final long diffServer = response.getTime();
+
+            log(String.format(Locale.US, "thread %d - client: %.3f ms ping", threadId, diffClient / 1e6));
+            log(String.format(Locale.US, "thread %d - server: %.3f ms ping", threadId, diffServer / 1e6));
+
+            pings[i] = diffServer;
+            client.updatePingStatus(pingPhaseStart, i + 1, System.nanoTime());
+            if (diffClient < shortestPing)
+                shortestPing = diffClient;
+            testResult.pings.add(new Ping(diffClient, diffServer, pingTimeNs));
+        }
+
+        void expect(final RMBTResponseParser.Type type)
+        {
+            if (response.getType() != type)
+                throw unexpected(response.toString(), type.name());
+        }
+
+        IllegalStateException unexpected(final String line, final String expected)
+        {
+            log(String.format(Locale.US, "thread %d: got '%s' expected '%s'", threadId, line, expected));
+            return new IllegalStateException(String.format(Locale.US, "thread %d: unexpected response", threadId));
+        }
+    }
+}
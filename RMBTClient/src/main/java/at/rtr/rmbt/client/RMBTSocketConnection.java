@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Locale;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Classic {@link Socket} based transport using blocking streams.
+ */
+public class RMBTSocketConnection extends RMBTConnection
+{
+    private final Socket socket;
+    private final InputStreamCounter in;
+    private final OutputStreamCounter out;
+
+    /**
+     * control lines are read through this buffer; bytes read ahead are handed out by {@link #readData()}
+     */
+    private final byte[] lineBuf = new byte[4096];
+    private int linePos;
+    private int lineLimit;
+    private final RMBTResponseParser lineParser = new RMBTResponseParser();
+
+    private byte[] buf;
+    private byte[] bufTx;
+
+    public RMBTSocketConnection(final Socket socket) throws IOException
+    {
+        this.socket = socket;
+        in = new InputStreamCounter(socket.getInputStream());
+        out = new OutputStreamCounter(socket.getOutputStream());
+    }
+
+    @Override
+    public void setChunksize(final int chunksize)
+    {
+        this.chunksize = chunksize;
+        if (buf == null || buf.length != chunksize)
+        {
+            buf = new byte[chunksize];
+            bufTx = new byte[chunksize];
+        }
+    }
+
+    @Override
+    public String readLine() throws IOException
+    {
+        if (!readResponse(lineParser))
+            return lineParser.length() > 0 ? lineParser.toString() : null;
+        return lineParser.toString();
+    }
+
+    @Override
+    public boolean readResponse(final RMBTResponseParser parser) throws IOException
+    {
+        if (parser.isComplete())
+            parser.reset();
+        for (;;)
+        {
+            linePos = parser.feed(lineBuf, linePos, lineLimit);
+            if (parser.isComplete())
+                return true;
+            final int read = in.read(lineBuf);
+            if (read < 0)
+                return false;
+            linePos = 0;
+            lineLimit = read;
+        }
+    }
+
+    @Override
+    public void write(final byte[] data) throws IOException
+    {
+        out.write(data);
+        out.flush();
+    }
+
+    @Override
+    public int readData() throws IOException
+    {
+        if (linePos < lineLimit)
+        {
+            final int read = Math.min(lineLimit - linePos, buf.length);
+            System.arraycopy(lineBuf, linePos, buf, 0, read);
+            linePos += read;
+            return read;
+        }
+        return in.read(buf);
+    }
+
+    @Override
+    public byte getDataByte(final int index)
+    {
+        return buf[index];
+    }
+
+    @Override
+    public void writeChunk(final boolean last) throws IOException
+    {
+        bufTx[chunksize - 1] = last ? (byte) 0xff : (byte) 0x00;
+        out.write(bufTx, 0, chunksize);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public long getReadCount()
+    {
+        return in.getCount();
+    }
+
+    @Override
+    public long getWriteCount()
+    {
+        return out.getCount();
+    }
+
+    @Override
+    public InetAddress getLocalAddress()
+    {
+        return socket.getLocalAddress();
+    }
+
+    @Override
+    public InetAddress getInetAddress()
+    {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public int getPort()
+    {
+        return socket.getPort();
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws IOException
+    {
+        return socket.getReceiveBufferSize();
+    }
+
+    @Override
+    public int getSendBufferSize() throws IOException
+    {
+        return socket.getSendBufferSize();
+    }
+
+    @Override
+    public String getEncryption()
+    {
+        if (socket instanceof SSLSocket)
+        {
+            final SSLSession session = ((SSLSocket) socket).getSession();
+            return String.format(Locale.US, "%s (%s)", session.getProtocol(), session.getCipherSuite());
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+}
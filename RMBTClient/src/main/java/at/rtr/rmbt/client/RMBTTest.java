@@ -16,17 +16,12 @@
  ******************************************************************************/
 package at.rtr.rmbt.client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.util.Arrays;
-import java.util.InputMismatchException;
 import java.util.List;
 import java.util.Locale;
-import java.util.Scanner;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CyclicBarrier;
@@ -35,13 +30,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocket;
 
 import at.rtr.rmbt.client.helper.Config;
 import at.rtr.rmbt.client.helper.TestStatus;
@@ -60,167 +49,15 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
     private final boolean doDownload = true;
     private final boolean doUpload = true;
     
-    private final AtomicLong curTransfer = new AtomicLong();
-    private final AtomicLong curTime = new AtomicLong();
+    private RMBTConnection connection;
+    private final RMBTResponseParser response = new RMBTResponseParser();
+    
+    private final ProgressSnapshot progress = new ProgressSnapshot();
         
     private final long minDiffTime;
     private final int maxCoarseResults;
     private final int maxFineResults;
     
-    private class SingleResult
-    {
-        private final Results fine;
-        private final Results coarse;
-        
-        private int fineResults = 0;
-        private int coarseResults = 0;
-        
-        SingleResult()
-        {
-            fine = new Results(maxFineResults);
-            coarse = new Results(maxCoarseResults);
-        }
-        
-        @Override
-		public String toString() {
-			return "SingleResult [fine=" + fine + ", coarse=" + coarse
-					+ ", fineResults=" + fineResults + ", coarseResults="
-					+ coarseResults + "]";
-		}
-
-
-
-		public void addResult(final long newBytes, final long newNsec)
-        {
-            
-            boolean addToCoarse = coarseResults == 0;
-            if (! addToCoarse)
-            {
-                final long diffTime = newNsec - coarse.nsec[(coarseResults - 1) % coarse.nsec.length];
-                if (diffTime > minDiffTime)
-                    addToCoarse = true;
-            }
-            
-            if (coarse.bytes.length > 0) {
-                if (addToCoarse)
-                {
-                    int coarsePos = coarseResults++ % coarse.bytes.length;
-                    coarse.bytes[coarsePos] = newBytes;
-                    coarse.nsec[coarsePos] = newNsec;
-                }
-                
-                int finePos = fineResults++ % fine.bytes.length;
-                fine.bytes[finePos] = newBytes;
-                fine.nsec[finePos] = newNsec;
-            }
-        }
-        
-//        @SuppressWarnings("unused")
-//        void logResult(final String type)
-//        {
-//            log(String.format(Locale.US, "thread %d - Time Diff %d", threadId, nsec));
-//            log(String.format(Locale.US, "thread %d: %.0f kBit/s %s (%.2f kbytes / %.3f secs)", threadId, getSpeed() / 1e3, type,
-//                    getBytes() / 1e3, getNsec() / nsecs));
-//        }
-        
-//        // bit/s
-//        double getSpeed()
-//        {
-//            return (double) getBytes() / (double) getNsec() * nsecs * 8.0;
-//        }
-        
-        public long getBytes()
-        {
-            if (fineResults == 0)
-                return 0;
-            else
-                return fine.bytes[(fineResults - 1) % fine.bytes.length];
-        }
-        
-        public long getNsec()
-        {
-            if (fineResults == 0)
-                return 0;
-            else
-                return fine.nsec[(fineResults - 1) % fine.nsec.length];
-        }
-        
-        public Results getAllResults()
-        {
-            final int numResultsCoarse = Math.min(coarseResults, maxCoarseResults);
-            final int numResultsFine = Math.min(fineResults, maxFineResults);
-            final int numResults = numResultsCoarse + numResultsFine;
-            
-            long[] resultBytes = new long[numResults];
-            long[] resultNsec = new long[numResults];
-            
-            int results = 0;
-            int posCoarse = coarseResults - numResultsCoarse;
-            int posFine = fineResults - numResultsFine;
-            
-            while (results < numResults && (posCoarse < coarseResults || posFine < fineResults))
-            {
-                final boolean coarseAvail = posCoarse < coarseResults;
-                final boolean fineAvail = posFine < fineResults;
-                final long thisCoarse = coarseAvail ? coarse.nsec[posCoarse % coarse.nsec.length] : -1;
-                final long thisFine = fineAvail ? fine.nsec[posFine % fine.nsec.length] : -1;
-                
-                if ((thisFine <= thisCoarse || thisCoarse == -1) && fineAvail)
-                {
-                    resultNsec[results] = thisFine;
-                    resultBytes[results++] = fine.bytes[posFine++ % fine.bytes.length];
-                    
-                    if (thisFine == thisCoarse && coarseAvail)
-                        posCoarse++;
-                }
-                else if ((thisCoarse < thisFine || thisFine == -1) && coarseAvail)
-                {
-                    resultNsec[results] = thisCoarse;
-                    resultBytes[results++] = coarse.bytes[posCoarse++ % coarse.bytes.length];
-                }
-                else // shoudn't happen; avoid endless loop
-                    break;
-            }
-            
-            if (results < numResults)
-            {
-//                resultBytes = Arrays.copyOf(resultBytes, results); // copyOf not avail in android sdk < 9
-//                resultNsec = Arrays.copyOf(resultNsec, results);
-                
-                long[] newResultBytes = new long[results];
-                long[] newResultNsec = new long[results];
-                System.arraycopy(resultBytes, 0, newResultBytes, 0, results);
-                System.arraycopy(resultNsec, 0, newResultNsec, 0, results);
-                resultBytes = newResultBytes;
-                resultNsec = newResultNsec;
-            }
-            final Results result = new Results(resultBytes, resultNsec);
-            return result;
-        }
-        
-        public void addCoarseSpeedItems(List<SpeedItem> list, boolean upload, int thread)
-        {
-            long lastNsec = 0;
-            final int numResultsCoarse = Math.min(coarseResults, maxCoarseResults);
-            for (int i = 0; i < numResultsCoarse; i++)
-            {
-                final long nsec = coarse.nsec[i % coarse.nsec.length];
-                final long bytes = coarse.bytes[i % coarse.bytes.length];
-                final SpeedItem item = new SpeedItem(upload, thread, nsec, bytes);
-                list.add(item);
-                lastNsec = nsec;
-            }
-            
-            final long nsec = getNsec();
-            if (nsec > lastNsec)
-            {
-                final long bytes = getBytes();
-                final SpeedItem item = new SpeedItem(upload, thread, nsec, bytes);
-                list.add(item);
-            }
-        }
-    }
-    
     public RMBTTest(final RMBTClient client, final RMBTTestParameter params, final int threadId,
             final CyclicBarrier barrier, final int storeResults, final long minDiffTime,
             final AtomicBoolean fallbackToOneThread)
@@ -246,45 +83,37 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
     
     public CurrentSpeed getCurrentSpeed(CurrentSpeed result)
     {
-        if (result == null)
-            result = new CurrentSpeed();
-        result.trans = curTransfer.get();
-        result.time = curTime.get();
-        return result;
+        return progress.get(result);
     }
     
-    protected Socket connect(final TestResult testResult) throws IOException
+    private RMBTConnection establishConnection(final TestResult testResult) throws IOException
     {
         log(String.format(Locale.US, "thread %d: connecting...", threadId));
         
         final InetAddress inetAddress = InetAddress.getByName(params.getHost());
         
         System.out.println("connecting to: " + inetAddress.getHostName() + ":" + params.getPort());
-        final Socket s = getSocket(inetAddress.getHostAddress(), params.getPort(), true, 20000);
+        final RMBTConnection s = openConnection(inetAddress.getHostAddress(), params.getPort(), true, 20000);
         
         testResult.ip_local = s.getLocalAddress();
         testResult.ip_server = s.getInetAddress();
         
         testResult.port_remote = s.getPort();
         
-        if (s instanceof SSLSocket)
-        {
-            final SSLSocket sslSocket = (SSLSocket) s;
-            final SSLSession session = sslSocket.getSession();
-            testResult.encryption = String.format(Locale.US, "%s (%s)", session.getProtocol(), session.getCipherSuite());
-        }
+        final String encryption = s.getEncryption();
+        if (encryption != null)
+            testResult.encryption = encryption;
         
         log(String.format(Locale.US, "thread %d: ReceiveBufferSize: '%s'.", threadId, s.getReceiveBufferSize()));
         log(String.format(Locale.US, "thread %d: SendBufferSize: '%s'.", threadId, s.getSendBufferSize()));
         
-        if (in != null)
-            totalDown += in.getCount();
-        if (out != null)
-            totalUp += out.getCount();
+        if (connection != null)
+        {
+            totalDown += connection.getReadCount();
+            totalUp += connection.getWriteCount();
+        }
         
-        in = new InputStreamCounter(s.getInputStream());
-        reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"), 4096);
-        out = new OutputStreamCounter(s.getOutputStream());
+        connection = s;
 
         String line;
 
@@ -298,10 +127,9 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
                     "RMBT-Version: %s\r\n" +
                     "\r\n", Config.RMBT_LATEST_SERVER);
 
-            out.write(request.getBytes("US-ASCII"));
-            out.flush();
+            s.write(request.getBytes("US-ASCII"));
 
-            line = reader.readLine();
+            line = s.readLine();
 
             //Read the HTTP response (terminated with an empty newline)
             if (!line.contains("101")) { //HTTP status code 101 Switching Protocols
@@ -309,12 +137,12 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
                 return null;
             }
             while (!line.equals("\r\n") && !line.isEmpty()) {
-                line = reader.readLine();
+                line = s.readLine();
             }
         }
         //At this point, the communication is based on RMBT
         // - either directly from the start, or from switching from RMBThttp
-        line = reader.readLine();
+        line = s.readLine();
         if (line.contains(EXPECT_GREETING)) {
             line = line.trim();
             Matcher matcher = RMBT_SERVER_PATTERN.matcher(line.trim());
@@ -328,68 +156,52 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
             return null;
         }
         
-        line = reader.readLine();
-        if (!line.startsWith("ACCEPT "))
+        if (!s.readResponse(response) || response.getType() != RMBTResponseParser.Type.ACCEPT)
         {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
+            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, response));
             return null;
         }
         
         final String send = String.format(Locale.US, "TOKEN %s\n", params.getToken());
         
-        out.write(send.getBytes("US-ASCII"));
-        
-        line = reader.readLine();
+        s.write(send.getBytes("US-ASCII"));
         
-        if (line == null)
+        if (!s.readResponse(response))
         {
-            log(String.format(Locale.US, "thread %d: got no answer expected 'OK'", threadId, line));
+            log(String.format(Locale.US, "thread %d: got no answer expected 'OK'", threadId));
             return null;
         }
-        else if (!line.equals("OK"))
+        else if (response.getType() != RMBTResponseParser.Type.OK)
         {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'OK'", threadId, line));
+            log(String.format(Locale.US, "thread %d: got '%s' expected 'OK'", threadId, response));
             return null;
         }
         
-        line = reader.readLine();
-        final Scanner scanner = new Scanner(line);
-        try
+        if (!s.readResponse(response) || !response.startsWith("CHUNKSIZE"))
         {
-            if (!"CHUNKSIZE".equals(scanner.next()))
-            {
-                log(String.format(Locale.US, "thread %d: got '%s' expected 'CHUNKSIZE'", threadId, line));
-                return null;
-            }
-            try
-            {
-                chunksize = scanner.nextInt();
-                log(String.format(Locale.US, "thread %d: CHUNKSIZE is %d", threadId, chunksize));
-            }
-            catch (final Exception e)
-            {
-                log(String.format(Locale.US, "thread %d: invalid CHUNKSIZE: '%s'", threadId, line));
-                return null;
-            }
-            if (buf == null || buf != null && buf.length != chunksize)
-                buf = new byte[chunksize];
-            return s;
+            log(String.format(Locale.US, "thread %d: got '%s' expected 'CHUNKSIZE'", threadId, response));
+            return null;
         }
-        finally
+        if (response.getType() != RMBTResponseParser.Type.CHUNKSIZE || response.getChunksize() < 1)
         {
-            scanner.close();
+            log(String.format(Locale.US, "thread %d: invalid CHUNKSIZE: '%s'", threadId, response));
+            return null;
         }
+        chunksize = response.getChunksize();
+        log(String.format(Locale.US, "thread %d: CHUNKSIZE is %d", threadId, chunksize));
+        s.setChunksize(chunksize);
+        return s;
     }
     
     public ThreadTestResult call()
     {
         log(String.format(Locale.US, "thread %d: started.", threadId));
         final ThreadTestResult testResult = new ThreadTestResult();
-        Socket s = null;
+        RMBTConnection s = null;
         try
         {
             
-            s = connect(testResult);
+            s = establishConnection(testResult);
             if (s == null)
                 throw new Exception("error during connect to test server");
             
@@ -448,16 +260,7 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
                 		}
                 	}
                 	
-                	// median
-                	Arrays.sort(pings);
-                	int middle = ((pings.length) / 2);
-                	if(pings.length % 2 == 0){
-                		long medianA = pings[middle];
-                		long medianB = pings[middle-1];
-                		medianPing = (medianA + medianB) / 2;
-                	} else{
-                		medianPing = pings[middle + 1];
-                	}
+                	medianPing = getMedianPing(pings);
                 	// display median ping
                 	client.setPing(medianPing);
                 }
@@ -482,15 +285,14 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
                 stopTrafficService(TestStatus.PING);
                 startTrafficService(TestStatus.DOWN);
                 
-                curTransfer.set(0);
-                curTime.set(0);
+                progress.set(0, 0);
                 
-                final SingleResult result = new SingleResult();
+                final SingleResult result = new SingleResult(maxCoarseResults, maxFineResults, minDiffTime);
                 final boolean reinitSocket = download(duration, 0, result);
                 if (reinitSocket)
                 {
                     s.close();
-                    s = connect(testResult);
+                    s = establishConnection(testResult);
                     log(String.format(Locale.US, "thread %d: reconnected", threadId));
                     if (s == null)
                         throw new Exception("error during connect to test server");
@@ -504,8 +306,7 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
 //                	System.out.println("download raw results: " + result);
 //                }
                 
-                curTransfer.set(result.getBytes());
-                curTime.set(result.getNsec());
+                progress.set(result.getBytes(), result.getNsec());
              
                 
                 /*********************/
@@ -525,8 +326,7 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
                     
                     stopTrafficService(TestStatus.DOWN);
                     
-                    curTransfer.set(0);
-                    curTime.set(0);
+                    progress.set(0, 0);
                     
                     final long targetTimeEnd = System.nanoTime() + params.getPretestDuration() * nsecsL;
                     int chunks = 1;
@@ -545,29 +345,26 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
                 
                 startTrafficService(TestStatus.UP);
                 
-                curTransfer.set(0);
-                curTime.set(0);
+                progress.set(0, 0);
                 
                 if (!_fallbackToOneThread)
                     barrier.await();
                 
-                final SingleResult result = new SingleResult();
+                final SingleResult result = new SingleResult(maxCoarseResults, maxFineResults, minDiffTime);
                 
                 upload(duration, result);
                 
                 testResult.up = result.getAllResults();
                 result.addCoarseSpeedItems(testResult.speedItems, true, threadId);
                 
-                if (in != null)
-                    totalDown += in.getCount();
-                if (out != null)
-                    totalUp += out.getCount();
+                totalDown += connection.getReadCount();
+                totalUp += connection.getWriteCount();
+                connection = null;
                 
                 testResult.totalDownBytes = totalDown;
                 testResult.totalUpBytes = totalUp;
                 
-                curTransfer.set(result.getBytes());
-                curTime.set(result.getNsec());
+                progress.set(result.getBytes(), result.getNsec());
                 
                 stopTrafficService(TestStatus.UP);
                 
@@ -615,44 +412,35 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
         
         log(String.format(Locale.US, "thread %d: getting %d chunk(s)", threadId, chunks));
         
-        String line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.startsWith("ACCEPT "))
-        {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
-            throw new IllegalStateException();
-        }
+        readAccept();
         
         String send;
         send = String.format(Locale.US, "GETCHUNKS %d\n", chunks);
-        out.write(send.getBytes("US-ASCII"));
-        out.flush();
+        connection.write(send.getBytes("US-ASCII"));
         
         // long expectBytes = chunksize * chunks;
         long totalRead = 0;
-        long read;
+        int read;
         byte lastByte = (byte) 0;
         do
         {
             if (Thread.interrupted())
                 throw new InterruptedException();
-            read = in.read(buf);
+            read = connection.readData();
             if (read > 0)
             {
-                final int posLast = chunksize - 1 - (int) (totalRead % chunksize);
-                if (read > posLast)
-                    lastByte = buf[posLast];
+                final int posLast = connection.getLastChunkEnd(totalRead, read);
+                if (posLast >= 0)
+                    lastByte = connection.getDataByte(posLast);
                 totalRead += read;
             }
         }
         while (read > 0 && lastByte != (byte) 0xff);
         
         send = "OK\n";
-        out.write(send.getBytes("US-ASCII"));
-        out.flush();
+        connection.write(send.getBytes("US-ASCII"));
         
-        line = reader.readLine(); // read TIME line
+        connection.readResponse(response); // read TIME line
     }
     
     /**
@@ -680,44 +468,35 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
         
         log(String.format(Locale.US, "thread %d: download test %d seconds", threadId, seconds));
         
-        String line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.startsWith("ACCEPT "))
-        {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
-            throw new IllegalStateException();
-        }
+        readAccept();
         
         final long timeStart = System.nanoTime();
         final long timeLatestEnd = timeStart + (seconds + additionalWait) * nsecsL;
         
         String send;
         send = String.format(Locale.US, "GETTIME %d\n", seconds);
-        out.write(send.getBytes("US-ASCII"));
-        out.flush();
+        connection.write(send.getBytes("US-ASCII"));
         
         long totalRead = 0;
-        long read;
+        int read;
         byte lastByte = (byte) 0;
         
         do
         {
             if (Thread.interrupted())
                 throw new InterruptedException();
-            read = in.read(buf);
+            read = connection.readData();
             if (read > 0)
             {
-                final int posLast = chunksize - 1 - (int) (totalRead % chunksize);
-                if (read > posLast)
-                    lastByte = buf[posLast];
+                final int posLast = connection.getLastChunkEnd(totalRead, read);
+                if (posLast >= 0)
+                    lastByte = connection.getDataByte(posLast);
                 totalRead += read;
                 
                 final long nsec = System.nanoTime() - timeStart;
                 
                 result.addResult(totalRead, nsec);
-                curTransfer.set(totalRead);
-                curTime.set(nsec);
+                progress.set(totalRead, nsec);
             }
         }
         while (read > 0 && lastByte != (byte) 0xff && System.nanoTime() <= timeLatestEnd);
@@ -732,23 +511,16 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
         
         final long nsec = timeEnd - timeStart;
         result.addResult(totalRead, nsec);
-        curTransfer.set(totalRead);
-        curTime.set(nsec);
+        progress.set(totalRead, nsec);
         
         if (lastByte != (byte) 0xff)
             return true;
         
         send = "OK\n";
-        out.write(send.getBytes("US-ASCII"));
-        out.flush();
+        connection.write(send.getBytes("US-ASCII"));
         
-        line = reader.readLine();
-        if (line == null)
+        if (!connection.readResponse(response))
             throw new IllegalStateException("connection lost");
-        final Scanner s = new Scanner(line);
-        s.findInLine("TIME (\\d+)");
-        s.close();
-        // result.nsecServer = Long.parseLong(s.match().group(1));
         return false;
         
     }
@@ -763,35 +535,18 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
         
         log(String.format(Locale.US, "thread %d: putting %d chunk(s)", threadId, chunks));
         
-        String line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.startsWith("ACCEPT "))
-        {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
-            throw new IllegalStateException();
-        }
+        readAccept();
         
-        out.write("PUTNORESULT\n".getBytes("US-ASCII"));
-        out.flush();
+        connection.write("PUTNORESULT\n".getBytes("US-ASCII"));
         
-        line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.equals("OK"))
-            throw new IllegalStateException();
-        
-        buf[chunksize - 1] = (byte) 0; // set last byte to continue value
+        readOK();
         
         for (int i = 0; i < chunks; i++)
-        {
-            if (i == chunks - 1)
-                buf[chunksize - 1] = (byte) 0xff; // set last byte to
-                                                  // termination value
-            out.write(buf, 0, chunksize);
-        }
+            // last chunk carries the termination value
+            connection.writeChunk(i == chunks - 1);
+        connection.flush();
         
-        line = reader.readLine(); // TIME line
+        connection.readResponse(response); // TIME line
     }
     
     /**
@@ -822,23 +577,11 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
             _enoughTime = 0;
         final long enoughTime = _enoughTime;
         
-        String line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.startsWith("ACCEPT "))
-        {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
-            throw new IllegalStateException();
-        }
+        readAccept();
         
-        out.write("PUT\n".getBytes("US-ASCII"));
-        out.flush();
+        connection.write("PUT\n".getBytes("US-ASCII"));
         
-        line = reader.readLine();
-        if (line == null)
-            throw new IllegalStateException("connection lost");
-        if (!line.equals("OK"))
-            throw new IllegalStateException();
+        readOK();
         
         final AtomicBoolean terminateRxIfEnough = new AtomicBoolean(false);
         final AtomicBoolean terminateRxAtAllEvents = new AtomicBoolean(false);
@@ -848,65 +591,39 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
             public Boolean call() throws Exception
             {
                 
-                final Pattern patternFull = Pattern.compile("TIME (\\d+) BYTES (\\d+)");
-                final Pattern patternTime = Pattern.compile("TIME (\\d+)");
-                
-                final Scanner s = new Scanner(reader);
-                try
+                boolean terminate = false;
+                do
                 {
-                    s.useDelimiter("\n");
-                    boolean terminate = false;
-                    do
+                    if (!connection.readResponse(response))
+                        throw new IllegalStateException("connection lost");
+                    
+                    if (response.getType() != RMBTResponseParser.Type.TIME_BYTES)
                     {
-                        String next = null;
-                        try
-                        {
-                            next = s.next(patternFull);
-                        }
-                        catch (final InputMismatchException e)
-                        {
-                        }
-                        
-                        if (next == null)
-                        {
-                            next = s.next(patternTime);
-                            if (next == null)
-                            {
-                                System.out.println(s.nextLine());
-                                throw new IllegalStateException();
-                            }
-                            return false;
-                        }
-                        
-                        final MatchResult match = s.match();
-                        if (match.groupCount() == 2)
+                        if (response.getType() != RMBTResponseParser.Type.TIME)
                         {
-                            final long nsec = Long.parseLong(match.group(1));
-                            final long bytes = Long.parseLong(match.group(2));
-                            result.addResult(bytes, nsec);
-                            curTransfer.set(bytes);
-                            curTime.set(nsec);
+                            System.out.println(response);
+                            throw new IllegalStateException();
                         }
-                        
-                        if (terminateRxAtAllEvents.get())
-                            terminate = true;
-                        if (terminateRxIfEnough.get() && curTime.get() > enoughTime)
-                            terminate = true;
+                        return false;
                     }
-                    while (! terminate);
-                    return true;
-                }
-                finally
-                {
-                    s.close();
+                    
+                    final long nsec = response.getTime();
+                    final long bytes = response.getBytes();
+                    result.addResult(bytes, nsec);
+                    progress.set(bytes, nsec);
+                    
+                    if (terminateRxAtAllEvents.get())
+                        terminate = true;
+                    if (terminateRxIfEnough.get() && nsec > enoughTime)
+                        terminate = true;
                 }
+                while (! terminate);
+                return true;
             }
         });
         
         final long maxnsecs = seconds * 1000000000L;
-        buf[chunksize - 1] = (byte) 0x00; // set last byte to continue value
         
-        final byte[] bufTx = buf.clone();
         final AtomicBoolean terminateTx = new AtomicBoolean(false);
         final Future<Void> futureTx = RMBTClient.getCommonThreadPool().submit(new Callable<Void>()
         {
@@ -919,14 +636,13 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
                     if (terminateTx.get())
                     {
                         // last package
-                        bufTx[chunksize - 1] = (byte) 0xff; // set last byte to termination value
-                        out.write(bufTx, 0, chunksize);
+                        connection.writeChunk(true);
                         // forces buffered bytes to be written out.
-                        out.flush();
+                        connection.flush();
                         return null;
                     }
                     else
-                        out.write(bufTx, 0, chunksize);
+                        connection.writeChunk(false);
                 }
             }
         });
@@ -991,37 +707,69 @@ public class RMBTTest extends AbstractRMBTTest implements Callable<ThreadTestRes
         return returnValue;
     }
     
+    private void readAccept() throws IOException
+    {
+        if (!connection.readResponse(response))
+            throw new IllegalStateException("connection lost");
+        if (response.getType() != RMBTResponseParser.Type.ACCEPT)
+        {
+            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, response));
+            throw new IllegalStateException();
+        }
+    }
+    
+    private void readOK() throws IOException
+    {
+        if (!connection.readResponse(response))
+            throw new IllegalStateException("connection lost");
+        if (response.getType() != RMBTResponseParser.Type.OK)
+            throw new IllegalStateException();
+    }
+    
+    /**
+     * sorts the given server side ping durations and returns their median
+     * @param pings
+     * @return
+     */
+    static long getMedianPing(final long[] pings)
+    {
+        Arrays.sort(pings);
+        int middle = ((pings.length) / 2);
+        if(pings.length % 2 == 0){
+            long medianA = pings[middle];
+            long medianB = pings[middle-1];
+            return (medianA + medianB) / 2;
+        } else{
+            return pings[middle];
+        }
+    }
+    
     private Ping ping() throws IOException
     {
         log(String.format(Locale.US, "thread %d: ping test", threadId));
         
         final long pingTimeNs = System.nanoTime();
         
-        String line = reader.readLine();
-        if (!line.startsWith("ACCEPT "))
+        if (!connection.readResponse(response) || response.getType() != RMBTResponseParser.Type.ACCEPT)
         {
-            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, line));
+            log(String.format(Locale.US, "thread %d: got '%s' expected 'ACCEPT'", threadId, response));
             return null;
         }
         
         final byte[] data = "PING\n".getBytes("US-ASCII");
         final long timeStart = System.nanoTime();
-        out.write(data);
-        out.flush();
-        line = reader.readLine();
+        connection.write(data);
+        final boolean pong = connection.readResponse(response) && response.getType() == RMBTResponseParser.Type.PONG;
         final long timeEnd = System.nanoTime();
-        out.write("OK\n".getBytes("US-ASCII"));
-        out.flush();
-        if (!line.equals("PONG"))
+        connection.write("OK\n".getBytes("US-ASCII"));
+        if (!pong)
             return null;
         
-        line = reader.readLine();
-        final Scanner s = new Scanner(line);
-        s.findInLine("TIME (\\d+)");
-        s.close();
+        if (!connection.readResponse(response) || response.getType() != RMBTResponseParser.Type.TIME)
+            throw new IllegalStateException(String.format(Locale.US, "thread %d: got '%s' expected 'TIME'", threadId, response));
         
         final long diffClient = timeEnd - timeStart;
-        final long diffServer = Long.parseLong(s.match().group(1));
+        final long diffServer = response.getTime();
         
         final double pingClient = diffClient / 1e6;
         final double pingServer = diffServer / 1e6;
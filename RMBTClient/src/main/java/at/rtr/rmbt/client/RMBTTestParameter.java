@@ -33,10 +33,18 @@ public class RMBTTestParameter
     private int numPings;
     private long startTime;
     private String serverType;
+    private String transport = Config.TRANSPORT_SOCKET;
 
     //RMBT
     public RMBTTestParameter(final String host, final int port, final boolean encryption, final String token,
             final int duration, final int numThreads, final int numPings, final long startTime, final String serverType)
+    {
+        this(host, port, encryption, token, duration, numThreads, numPings, startTime, serverType, Config.TRANSPORT_SOCKET);
+    }
+
+    public RMBTTestParameter(final String host, final int port, final boolean encryption, final String token,
+            final int duration, final int numThreads, final int numPings, final long startTime, final String serverType,
+            final String transport)
     {
         super();
         this.host = host;
@@ -48,6 +56,7 @@ public class RMBTTestParameter
         this.numPings = numPings;
         this.startTime = startTime;
         this.serverType = serverType;
+        this.transport = transport;
     }
 
     //nntool new constructors
@@ -71,6 +80,12 @@ public class RMBTTestParameter
     //QoS
     public RMBTTestParameter(final String host, final int port, final boolean encryption,
             final int duration, final int numThreads, final int numPings)
+    {
+        this(host, port, encryption, duration, numThreads, numPings, Config.TRANSPORT_SOCKET);
+    }
+
+    public RMBTTestParameter(final String host, final int port, final boolean encryption,
+            final int duration, final int numThreads, final int numPings, final String transport)
     {
         super();
         this.host = host;
@@ -82,6 +97,7 @@ public class RMBTTestParameter
         this.token = null;
         this.startTime = 0;
         this.serverType = Config.SERVER_TYPE_QOS;
+        this.transport = transport;
     }
     
     public String getHost()
@@ -143,6 +159,14 @@ public class RMBTTestParameter
         return serverType;
     }
 
+    /**
+     * @return {@link Config#TRANSPORT_SOCKET}, {@link Config#TRANSPORT_CHANNEL}, {@link Config#TRANSPORT_SELECTOR}
+     *  or {@link Config#TRANSPORT_ADAPTIVE}
+     */
+    public String getTransport() {
+        return transport;
+    }
+
     public void check() throws IllegalArgumentException
     {
         if (host == null || host.length() == 0)
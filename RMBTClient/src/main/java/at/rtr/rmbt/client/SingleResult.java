@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2013-2015 alladin-IT GmbH
+ * Copyright 2013-2017 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client;
+
+import java.util.List;
+
+/**
+ * Results of a single direction of a single test thread
+ */
+public class SingleResult
+{
+    private final long minDiffTime;
+    private final int maxCoarseResults;
+    private final int maxFineResults;
+    
+    private final Results fine;
+    private final Results coarse;
+    
+    private int fineResults = 0;
+    private int coarseResults = 0;
+    
+    /**
+     * 
+     * @param maxCoarseResults number of results kept with at least <code>minDiffTime</code> between them
+     * @param maxFineResults number of latest results kept
+     * @param minDiffTime in ns
+     */
+    public SingleResult(final int maxCoarseResults, final int maxFineResults, final long minDiffTime)
+    {
+        this.maxCoarseResults = maxCoarseResults;
+        this.maxFineResults = maxFineResults;
+        this.minDiffTime = minDiffTime;
+        fine = new Results(maxFineResults);
+        coarse = new Results(maxCoarseResults);
+    }
+    
+    @Override
+    public String toString() {
+        return "SingleResult [fine=" + fine + ", coarse=" + coarse
+                + ", fineResults=" + fineResults + ", coarseResults="
+                + coarseResults + "]";
+    }
+    
+    public void addResult(final long newBytes, final long newNsec)
+    {
+        
+        boolean addToCoarse = coarseResults == 0;
+        if (! addToCoarse)
+        {
+            final long diffTime = newNsec - coarse.nsec[(coarseResults - 1) % coarse.nsec.length];
+            if (diffTime > minDiffTime)
+                addToCoarse = true;
+        }
+        
+        if (coarse.bytes.length > 0) {
+            if (addToCoarse)
+            {
+                int coarsePos = coarseResults++ % coarse.bytes.length;
+                coarse.bytes[coarsePos] = newBytes;
+                coarse.nsec[coarsePos] = newNsec;
+            }
+            
+            int finePos = fineResults++ % fine.bytes.length;
+            fine.bytes[finePos] = newBytes;
+            fine.nsec[finePos] = newNsec;
+        }
+    }
+    
+    public long getBytes()
+    {
+        if (fineResults == 0)
+            return 0;
+        else
+            return fine.bytes[(fineResults - 1) % fine.bytes.length];
+    }
+    
+    public long getNsec()
+    {
+        if (fineResults == 0)
+            return 0;
+        else
+            return fine.nsec[(fineResults - 1) % fine.nsec.length];
+    }
+    
+    public Results getAllResults()
+    {
+        final int numResultsCoarse = Math.min(coarseResults, maxCoarseResults);
+        final int numResultsFine = Math.min(fineResults, maxFineResults);
+        final int numResults = numResultsCoarse + numResultsFine;
+        
+        long[] resultBytes = new long[numResults];
+        long[] resultNsec = new long[numResults];
+        
+        int results = 0;
+        int posCoarse = coarseResults - numResultsCoarse;
+        int posFine = fineResults - numResultsFine;
+        
+        while (results < numResults && (posCoarse < coarseResults || posFine < fineResults))
+        {
+            final boolean coarseAvail = posCoarse < coarseResults;
+            final boolean fineAvail = posFine < fineResults;
+            final long thisCoarse = coarseAvail ? coarse.nsec[posCoarse % coarse.nsec.length] : -1;
+            final long thisFine = fineAvail ? fine.nsec[posFine % fine.nsec.length] : -1;
+            
+            if ((thisFine <= thisCoarse || thisCoarse == -1) && fineAvail)
+            {
+                resultNsec[results] = thisFine;
+                resultBytes[results++] = fine.bytes[posFine++ % fine.bytes.length];
+                
+                if (thisFine == thisCoarse && coarseAvail)
+                    posCoarse++;
+            }
+            else if ((thisCoarse < thisFine || thisFine == -1) && coarseAvail)
+            {
+                resultNsec[results] = thisCoarse;
+                resultBytes[results++] = coarse.bytes[posCoarse++ % coarse.bytes.length];
+            }
+            else // shoudn't happen; avoid endless loop
+                break;
+        }
+        
+        if (results < numResults)
+        {
+//            resultBytes = Arrays.copyOf(resultBytes, results); // copyOf not avail in android sdk < 9
+//            resultNsec = Arrays.copyOf(resultNsec, results);
+            
+            long[] newResultBytes = new long[results];
+            long[] newResultNsec = new long[results];
+            System.arraycopy(resultBytes, 0, newResultBytes, 0, results);
+            System.arraycopy(resultNsec, 0, newResultNsec, 0, results);
+            resultBytes = newResultBytes;
+            resultNsec = newResultNsec;
+        }
+        final Results result = new Results(resultBytes, resultNsec);
+        return result;
+    }
+    
+    public void addCoarseSpeedItems(List<SpeedItem> list, boolean upload, int thread)
+    {
+        long lastNsec = 0;
+        final int numResultsCoarse = Math.min(coarseResults, maxCoarseResults);
+        for (int i = 0; i < numResultsCoarse; i++)
+        {
+            final long nsec = coarse.nsec[i % coarse.nsec.length];
+            final long bytes = coarse.bytes[i % coarse.bytes.length];
+            final SpeedItem item = new SpeedItem(upload, thread, nsec, bytes);
+            list.add(item);
+            lastNsec = nsec;
+        }
+        
+        final long nsec = getNsec();
+        if (nsec > lastNsec)
+        {
+            final long bytes = getBytes();
+            final SpeedItem item = new SpeedItem(upload, thread, nsec, bytes);
+            list.add(item);
+        }
+    }
+}
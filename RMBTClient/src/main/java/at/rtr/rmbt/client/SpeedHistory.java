@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client;
+
+/**
+ * Latest intermediate (time, bytes) samples of every test thread.
+ * <p>
+ * Each thread has a ring of fixed capacity backed by primitive arrays, adding a sample
+ * never allocates and the memory used does not depend on the duration of the test.
+ * Not thread safe.
+ */
+public class SpeedHistory
+{
+    private final long[][] time;
+    private final long[][] bytes;
+    private final int[] count;
+    private final int capacity;
+
+    /**
+     * @param threads number of test threads
+     * @param capacity number of samples kept per thread
+     */
+    public SpeedHistory(final int threads, final int capacity)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        time = new long[threads][capacity];
+        bytes = new long[threads][capacity];
+        count = new int[threads];
+    }
+
+    public int getThreads()
+    {
+        return count.length;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * discards all samples
+     */
+    public void reset()
+    {
+        for (int i = 0; i < count.length; i++)
+            count[i] = 0;
+    }
+
+    public void add(final int thread, final long nsec, final long transferred)
+    {
+        final int pos = count[thread]++ % capacity;
+        if (count[thread] == 2 * capacity)
+            // keep the counter bounded, the position stays the same
+            count[thread] = capacity;
+        time[thread][pos] = nsec;
+        bytes[thread][pos] = transferred;
+    }
+
+    /**
+     * @param thread
+     * @return number of samples kept for this thread
+     */
+    public int size(final int thread)
+    {
+        return Math.min(count[thread], capacity);
+    }
+
+    /**
+     * @param thread
+     * @param index 0 is the oldest sample kept, {@link #size(int)} - 1 the latest one
+     * @return
+     */
+    public long getTime(final int thread, final int index)
+    {
+        return time[thread][position(thread, index)];
+    }
+
+    /**
+     * @param thread
+     * @param index 0 is the oldest sample kept, {@link #size(int)} - 1 the latest one
+     * @return
+     */
+    public long getBytes(final int thread, final int index)
+    {
+        return bytes[thread][position(thread, index)];
+    }
+
+    private int position(final int thread, final int index)
+    {
+        final int size = size(thread);
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        return (count[thread] - size + index) % capacity;
+    }
+
+    /**
+     * copies the samples of a thread in chronological order
+     * @param thread
+     * @param bytesDst array of at least {@link #size(int)} elements
+     * @param timeDst array of at least {@link #size(int)} elements
+     * @return number of samples copied
+     */
+    public int copy(final int thread, final long[] bytesDst, final long[] timeDst)
+    {
+        final int size = size(thread);
+        for (int i = 0; i < size; i++)
+        {
+            final int pos = (count[thread] - size + i) % capacity;
+            bytesDst[i] = bytes[thread][pos];
+            timeDst[i] = time[thread][pos];
+        }
+        return size;
+    }
+}
@@ -16,9 +16,7 @@
  ******************************************************************************/
 package at.rtr.rmbt.client;
 
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import at.rtr.rmbt.client.helper.TestStatus;
 import at.rtr.rmbt.client.v2.task.service.TestMeasurement;
@@ -111,27 +109,16 @@ public class TotalTestResult extends TestResult
         calculate(bytes, nsecs, true);
     }
     
-    public static TotalTestResult calculateAndGet(final Map<Integer, List<SpeedItem>> speedMap) {
-    	final int threads = speedMap.keySet().size();
+    public static TotalTestResult calculateAndGet(final SpeedHistory speedHistory) {
+    	final int threads = speedHistory.getThreads();
     	
-    	long[][] allBytes = null;
-    	long[][] allNsecs = null;
+    	final long[][] allBytes = new long[threads][];
+    	final long[][] allNsecs = new long[threads][];
     	
-    	int threadCounter = 0;
-    	for (Entry<Integer, List<SpeedItem>> e : speedMap.entrySet()) {
-    		final List<SpeedItem> speedList = e.getValue();
-    		
-    		if (allBytes == null) {
-    			allBytes = new long[threads][speedList.size()];
-    			allNsecs = new long[threads][speedList.size()];
-    		}
-    		
-    		for (int i = 0; i < speedList.size(); i++) {
-    			allBytes[threadCounter][i] = speedList.get(i).bytes;
-    			allNsecs[threadCounter][i] = speedList.get(i).time;
-    		}
-    		
-    		threadCounter++;
+    	for (int i = 0; i < threads; i++) {
+    		allBytes[i] = new long[speedHistory.size(i)];
+    		allNsecs[i] = new long[speedHistory.size(i)];
+    		speedHistory.copy(i, allBytes[i], allNsecs[i]);
     	}
     	
     	return TotalTestResult.calculateAndGet(allBytes, allNsecs, false);
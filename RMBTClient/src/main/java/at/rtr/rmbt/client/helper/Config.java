@@ -63,4 +63,13 @@ public abstract interface Config
     public static final String SERVER_TYPE_RMBT = "RMBT";
     public static final String SERVER_TYPE_RMBT_HTTP = "RMBThttp";
 
+    public static final String TRANSPORT_SOCKET = "socket";
+    public static final String TRANSPORT_CHANNEL = "channel";
+    public static final String TRANSPORT_SELECTOR = "selector";
+    /** selector transport, number of connections and chunk size are chosen after the pre-test */
+    public static final String TRANSPORT_ADAPTIVE = "adaptive";
+
+    /** upper limit for the number of connections used by {@link #TRANSPORT_ADAPTIVE} */
+    public static final int ADAPTIVE_MAX_THREADS = 8;
+
 }
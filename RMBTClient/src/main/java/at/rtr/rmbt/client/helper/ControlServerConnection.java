@@ -737,6 +737,7 @@ public class ControlServerConnection
         int duration = testDuration;
         int numThreads = testNumThreads;
         int numPings = testNumPings;
+        String transport = Config.TRANSPORT_SOCKET;
         
         if (overrideParams != null)
         {
@@ -750,8 +751,10 @@ public class ControlServerConnection
                 duration = overrideParams.getDuration();
             if (overrideParams.getNumThreads() > 0)
                 numThreads = overrideParams.getNumThreads();
+            if (overrideParams.getTransport() != null)
+                transport = overrideParams.getTransport();
         }
-        return new RMBTTestParameter(host, port, encryption, testToken, duration, numThreads, numPings, testTime, serverType);
+        return new RMBTTestParameter(host, port, encryption, testToken, duration, numThreads, numPings, testTime, serverType, transport);
     }
 
 	public Set<ErrorStatus> getLastErrorList() {
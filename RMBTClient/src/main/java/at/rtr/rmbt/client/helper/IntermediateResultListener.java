@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.client.helper;
+
+/**
+ * @see at.rtr.rmbt.client.RMBTClient#subscribeIntermediateResult(IntermediateResultListener, long, java.util.concurrent.TimeUnit)
+ */
+public interface IntermediateResultListener
+{
+    /**
+     * called from the progress scheduler thread; the result object is reused for the next call
+     * @param result
+     */
+    public void onIntermediateResult(IntermediateResult result);
+}
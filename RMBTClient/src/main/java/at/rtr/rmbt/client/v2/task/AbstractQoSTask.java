@@ -25,6 +25,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import at.rtr.rmbt.shared.qos.QosMeasurementType;
 import at.rtr.rmbt.client.AbstractRMBTTest;
@@ -403,6 +405,23 @@ public abstract class AbstractQoSTask extends AbstractRMBTTest implements QoSTas
 		controlConnection.sendTaskCommand(this, command, callback);
 	}
 
+	/**
+	 * waits for the response(s) to commands sent with {@link #sendCommand(String, ControlConnectionResponseCallback)};
+	 * the callbacks are run on the calling thread
+	 * @param latch counted down by the callbacks
+	 * @param timeout
+	 * @param unit
+	 * @return true if the latch has been counted down before the timeout
+	 * @throws InterruptedException
+	 */
+	protected boolean awaitResponse(CountDownLatch latch, long timeout, TimeUnit unit) throws InterruptedException {
+		if (controlConnection == null) {
+			return latch.await(timeout, unit);
+		}
+		controlConnection.await(this, latch, timeout, unit);
+		return latch.getCount() == 0;
+	}
+
 	@Override
 	public void interrupt() {
 
@@ -141,7 +141,7 @@ public class NonTransparentProxyTask extends AbstractQoSTask {
 			};
 			
 			sendCommand("NTPTEST " + port, callback);
-			if (!latch.await(timeout, TimeUnit.NANOSECONDS)) {
+			if (!awaitResponse(latch, timeout, TimeUnit.NANOSECONDS)) {
 				result.getResultMap().put(RESULT_STATUS, "TIMEOUT");
 			}
 			
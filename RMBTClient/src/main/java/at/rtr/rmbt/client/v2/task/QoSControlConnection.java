@@ -19,8 +19,11 @@ package at.rtr.rmbt.client.v2.task;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -30,6 +33,10 @@ import at.rtr.rmbt.client.RMBTClient;
 import at.rtr.rmbt.client.RMBTTestParameter;
 
 /**
+ * Control connection to a QoS test server shared by all tasks of that server.<br>
+ * A single reader ({@link #run()}) demultiplexes the responses by their <code>+ID</code> to the tasks:
+ * a task waiting in {@link #await(AbstractQoSTask, CountDownLatch, long, TimeUnit)} handles the response on its own thread,
+ * responses nobody is waiting for are handled by the common thread pool.
  * 
  * @author lb
  *
@@ -38,6 +45,12 @@ public class QoSControlConnection extends AbstractRMBTTest implements Runnable {
 	
 	public final static Pattern ID_REGEX_PATTERN = Pattern.compile("\\+ID([\\d]*)");
 	
+	/**
+	 * a response that arrived before the task started waiting is handled by the common thread pool,
+	 * so the waiting task checks its latch at least this often
+	 */
+	private final static long MAX_RESPONSE_POLL_NS = TimeUnit.MILLISECONDS.toNanos(20);
+	
 	public final AtomicBoolean isRunning = new AtomicBoolean(true);
 	
 	public final AtomicBoolean couldNotConnect = new AtomicBoolean(false);
@@ -45,6 +58,9 @@ public class QoSControlConnection extends AbstractRMBTTest implements Runnable {
 	private final ConcurrentHashMap<Integer, ControlConnectionResponseCallbackHolder> requestMap = 
 			new ConcurrentHashMap<Integer, ControlConnectionResponseCallbackHolder>();
 
+	private final ConcurrentHashMap<Integer, TaskResponseQueue> taskResponseQueueMap = 
+			new ConcurrentHashMap<Integer, TaskResponseQueue>();
+
 	private final TreeSet<Integer> concurrencyGroupSet = new TreeSet<Integer>();
 	
 	protected Socket controlSocket;
@@ -84,14 +100,11 @@ public class QoSControlConnection extends AbstractRMBTTest implements Runnable {
 						Integer id = Integer.valueOf(m.group(1));
 						final ControlConnectionResponseCallbackHolder holder = requestMap.remove(id);
 						if (holder != null && holder.getCallback() != null) {
-							Runnable responseRunnable = new Runnable() {
-								
-								public void run() {
-									holder.getCallback().onResponse(response, holder.getReqeust());
-								}
-							};
-							
-							RMBTClient.getCommonThreadPool().execute(responseRunnable);
+							holder.setResponse(response);
+							final TaskResponseQueue queue = taskResponseQueueMap.get(id);
+							if (queue == null || !queue.offer(holder)) {
+								RMBTClient.getCommonThreadPool().execute(holder);
+							}
 						}
 					}
 				}
@@ -111,6 +124,52 @@ public class QoSControlConnection extends AbstractRMBTTest implements Runnable {
 		}
 	}
 
+	/**
+	 * waits until the latch has been counted down or the timeout has been reached;
+	 * the callbacks of the responses to the task's commands are run on the calling thread meanwhile
+	 * @param qosTask
+	 * @param latch
+	 * @param timeout
+	 * @param unit
+	 * @throws InterruptedException
+	 */
+	public void await(AbstractQoSTask qosTask, CountDownLatch latch, long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+		final TaskResponseQueue queue = new TaskResponseQueue();
+		final TaskResponseQueue previous = taskResponseQueueMap.putIfAbsent(qosTask.getId(), queue);
+		if (previous != null) {
+			//called from a callback: the outer call releases the queue
+			await(previous, latch, deadlineNs);
+			return;
+		}
+		
+		try {
+			await(queue, latch, deadlineNs);
+		}
+		finally {
+			taskResponseQueueMap.remove(qosTask.getId());
+			//responses that arrived after the latch: handle them like the ones nobody waits for
+			for (ControlConnectionResponseCallbackHolder holder : queue.close()) {
+				RMBTClient.getCommonThreadPool().execute(holder);
+			}
+		}
+	}
+
+	private static void await(TaskResponseQueue queue, CountDownLatch latch, long deadlineNs) throws InterruptedException {
+		long remainingNs;
+		while (latch.getCount() > 0 && (remainingNs = deadlineNs - System.nanoTime()) > 0) {
+			final ControlConnectionResponseCallbackHolder holder = queue.poll(Math.min(remainingNs, MAX_RESPONSE_POLL_NS));
+			if (holder != null) {
+				try {
+					holder.run();
+				}
+				catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
 	/**
 	 * @throws Exception 
 	 * 
@@ -150,14 +209,55 @@ public class QoSControlConnection extends AbstractRMBTTest implements Runnable {
 		return concurrencyGroupSet;
 	}
 	
+	/**
+	 * responses to the commands of a single task, handed from the reader to the task's thread
+	 * 
+	 * @author lb
+	 *
+	 */
+	private final static class TaskResponseQueue {
+		private final ArrayDeque<ControlConnectionResponseCallbackHolder> queue = new ArrayDeque<ControlConnectionResponseCallbackHolder>();
+		
+		private boolean isClosed = false;
+		
+		/**
+		 * 
+		 * @param holder
+		 * @return false if the task does not wait for responses anymore
+		 */
+		synchronized boolean offer(ControlConnectionResponseCallbackHolder holder) {
+			if (isClosed) {
+				return false;
+			}
+			queue.add(holder);
+			notifyAll();
+			return true;
+		}
+		
+		synchronized ControlConnectionResponseCallbackHolder poll(long timeoutNs) throws InterruptedException {
+			if (queue.isEmpty()) {
+				TimeUnit.NANOSECONDS.timedWait(this, timeoutNs);
+			}
+			return queue.poll();
+		}
+		
+		synchronized ControlConnectionResponseCallbackHolder[] close() {
+			isClosed = true;
+			final ControlConnectionResponseCallbackHolder[] remaining = queue.toArray(new ControlConnectionResponseCallbackHolder[queue.size()]);
+			queue.clear();
+			return remaining;
+		}
+	}
+	
 	/**
 	 * 
 	 * @author lb
 	 *
 	 */
-	protected final class ControlConnectionResponseCallbackHolder {
+	protected final class ControlConnectionResponseCallbackHolder implements Runnable {
 		ControlConnectionResponseCallback callback;
 		String reqeust;
+		String response;
 		
 		public ControlConnectionResponseCallbackHolder(String request, ControlConnectionResponseCallback callback) {
 			this.reqeust = request;
@@ -176,5 +276,18 @@ public class QoSControlConnection extends AbstractRMBTTest implements Runnable {
 		public void setReqeust(String reqeust) {
 			this.reqeust = reqeust;
 		}
+		public String getResponse() {
+			return response;
+		}
+		public void setResponse(String response) {
+			this.response = response;
+		}
+		
+		/**
+		 * runs the callback with the response
+		 */
+		public void run() {
+			callback.onResponse(response, reqeust);
+		}
 	}
 }
@@ -216,7 +216,7 @@ public class SipTask extends AbstractQoSTask {
         };
 
         sendCommand("SIPTEST " + port, callback);
-        if (!latch.await(timeout, TimeUnit.NANOSECONDS)) {
+        if (!awaitResponse(latch, timeout, TimeUnit.NANOSECONDS)) {
             result.put(SipTaskHelper.PARAM_RESULT, "TIMEOUT");
         }
     }
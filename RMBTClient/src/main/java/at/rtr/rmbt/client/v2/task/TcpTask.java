@@ -138,7 +138,7 @@ public class TcpTask extends AbstractQoSTask {
 					};	    				
 		    		
 					sendCommand("TCPTEST OUT " + testPortOut, callback);
-					if(!latch.await(timeout, TimeUnit.NANOSECONDS)) {
+					if(!awaitResponse(latch, timeout, TimeUnit.NANOSECONDS)) {
 						result.getResultMap().put(RESULT_OUT, "TIMEOUT");
 					}
 		    	}
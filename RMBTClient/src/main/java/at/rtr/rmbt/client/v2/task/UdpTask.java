@@ -47,6 +47,7 @@ import at.rtr.rmbt.shared.qos.util.UdpPayloadUtil;
 import at.rtr.rmbt.client.QualityOfServiceTest;
 import at.rtr.rmbt.client.v2.task.result.QoSTestResult;
 import at.rtr.rmbt.util.net.udp.NioUdpStreamSender;
+import at.rtr.rmbt.util.net.udp.PacketPacer;
 import at.rtr.rmbt.util.net.udp.StreamSender.UdpStreamCallback;
 import at.rtr.rmbt.util.net.udp.StreamSender.UdpStreamSenderSettings;
 import at.rtr.rmbt.util.net.udp.UdpStreamReceiver;
@@ -117,6 +118,10 @@ public class UdpTask extends AbstractQoSTask {
 
 	public final static String RESULT_NUM_PACKETS_OUTGOING_RESPONSE = "udp_result_out_response_num_packets";
 
+	public final static String RESULT_OUTGOING_SEND_JITTER_AVG = "udp_result_out_send_jitter_avg_ns";
+
+	public final static String RESULT_OUTGOING_SEND_JITTER_MAX = "udp_result_out_send_jitter_max_ns";
+
 	public final static String RESULT_PORT_OUTGOING = "udp_objective_out_port";
 
 	public final static String RESULT_PORT_INCOMING = "udp_objective_in_port";
@@ -141,6 +146,7 @@ public class UdpTask extends AbstractQoSTask {
 		int dupNumPackets;
 		int rcvServerResponse;
 		TreeMap<Integer, Long> rtts = new TreeMap<>();
+		PacketPacer.SendStatistics sendStatistics;
 
 		public UdpPacketData(int remotePort, int numPackets, int dupNumPackets) {
 			this.remotePort = remotePort;
@@ -247,7 +253,7 @@ public class UdpTask extends AbstractQoSTask {
 						sendCommand("UDPTEST OUT " + outgoingPort + " " + packetCountOutgoing, outgoingRequestCallback);
 					}
 
-					if (!outgoingLatch.await(timeout, TimeUnit.NANOSECONDS)) {
+					if (!awaitResponse(outgoingLatch, timeout, TimeUnit.NANOSECONDS)) {
 						System.out.println("OUT " + outgoingPort + " TIMEOUT REACHED: " + outgoingPacketData);
 					}
 
@@ -270,7 +276,7 @@ public class UdpTask extends AbstractQoSTask {
 					};
 
 					sendCommand("GET UDPRESULT OUT " + outgoingPort, outgoingResultRequestCallback);
-					outgoingResultLatch.await(CONTROL_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+					awaitResponse(outgoingResultLatch, CONTROL_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
 
 				}
 
@@ -330,7 +336,7 @@ public class UdpTask extends AbstractQoSTask {
 					Thread.sleep(150);
 					//request server results:
 					sendCommand("GET UDPRESULT IN " + incomingPort, incomingResultRequestCallback);
-					incomingLatch.await(CONTROL_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+					awaitResponse(incomingLatch, CONTROL_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
 				}
 			}
 			catch (Exception e) {
@@ -373,6 +379,11 @@ public class UdpTask extends AbstractQoSTask {
 				else {
 					result.getResultMap().put(RESULT_OUTGOING_PLR, "0");
 				}
+
+				if (outgoingPacketData.sendStatistics != null) {
+					result.getResultMap().put(RESULT_OUTGOING_SEND_JITTER_AVG, outgoingPacketData.sendStatistics.getMeanJitterNs());
+					result.getResultMap().put(RESULT_OUTGOING_SEND_JITTER_MAX, outgoingPacketData.sendStatistics.getMaxJitterNs());
+				}
 			}
 
 			if (this.packetCountIncoming != null && this.incomingPort != null) {
@@ -504,7 +515,12 @@ public class UdpTask extends AbstractQoSTask {
 			}
 		});
 
-		return udpStreamSender.send();
+		try {
+			return udpStreamSender.send();
+		}
+		finally {
+			packetData.sendStatistics = udpStreamSender.getSendStatistics();
+		}
 	}
 
 	/**
@@ -21,8 +21,6 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -37,8 +35,8 @@ import at.rtr.rmbt.client.v2.task.result.QoSTestResult;
 import at.rtr.rmbt.util.net.rtp.RealtimeTransportProtocol.PayloadType;
 import at.rtr.rmbt.util.net.rtp.RealtimeTransportProtocol.RtpException;
 import at.rtr.rmbt.util.net.rtp.RtpPacket;
+import at.rtr.rmbt.util.net.rtp.RtpQoSCalculator;
 import at.rtr.rmbt.util.net.rtp.RtpUtil;
-import at.rtr.rmbt.util.net.rtp.RtpUtil.RtpControlData;
 import at.rtr.rmbt.util.net.rtp.RtpUtil.RtpQoSResult;
 import at.rtr.rmbt.util.net.udp.StreamSender.UdpStreamCallback;
 
@@ -221,7 +219,7 @@ public class VoipTask extends AbstractQoSTask {
 			final Random r = new Random();
 			final int initialSequenceNumber = r.nextInt(10000);
 			final CountDownLatch latch = new CountDownLatch(1);			
-			final Map<Integer, RtpControlData> rtpControlDataList = new HashMap<Integer, RtpUtil.RtpControlData>();
+			final RtpQoSCalculator rtpQoSCalculator = new RtpQoSCalculator(initialSequenceNumber, sampleRate, buffer);
 			
 			final ControlConnectionResponseCallback callback = new ControlConnectionResponseCallback() {
 				
@@ -247,7 +245,7 @@ public class VoipTask extends AbstractQoSTask {
 										final byte[] data = dp.getData();
 										try {
 											final RtpPacket rtp = new RtpPacket(data);
-										    rtpControlDataList.put(rtp.getSequnceNumber(), new RtpControlData(rtp, receivedNs));
+										    rtpQoSCalculator.add(rtp, receivedNs);
 										} catch (RtpException e) {
 											e.printStackTrace();
 										}
@@ -311,7 +309,7 @@ public class VoipTask extends AbstractQoSTask {
 					+ initialSequenceNumber + " " + payloadType.getValue() + " " + buffer, callback);
 			
 			//wait for countdownlatch or timeout:
-			latch.await(timeout, TimeUnit.NANOSECONDS);
+			awaitResponse(latch, timeout, TimeUnit.NANOSECONDS);
 			
 			//if rtpreceivestream did not finish cancel the task
 			/*
@@ -354,11 +352,10 @@ public class VoipTask extends AbstractQoSTask {
 			//request server results:
 			if (ssrc.get() >= 0) {
 				sendCommand("GET VOIPRESULT " + ssrc.get(), incomingResultRequestCallback);
-				resultLatch.await(CONTROL_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+				awaitResponse(resultLatch, CONTROL_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
 			}
 
-			final RtpQoSResult rtpResults = rtpControlDataList.size() > 0 ?
-					RtpUtil.calculateQoS(rtpControlDataList, initialSequenceNumber, sampleRate, buffer) : null;
+			final RtpQoSResult rtpResults = rtpQoSCalculator.getResult();
 			
 			final String prefix = RESULT_VOIP_PREFIX + RESULT_INCOMING_PREFIX;
 			if (rtpResults != null) {
@@ -30,6 +30,8 @@ import org.json.JSONObject;
 public class QoSResultCollector {
 	private List<QoSTestResult> results = new ArrayList<>();
 
+	private final List<GroupTiming> groupTimings = new ArrayList<>();
+
 	private String testToken;
 
 	/**
@@ -56,6 +58,22 @@ public class QoSResultCollector {
 		this.results = results;
 	}
 	
+	/**
+	 * 
+	 * @return the timing of each concurrency group, in the order the groups were run
+	 */
+	public List<GroupTiming> getGroupTimings() {
+		return groupTimings;
+	}
+
+	/**
+	 * 
+	 * @param groupTiming
+	 */
+	public void addGroupTiming(GroupTiming groupTiming) {
+		groupTimings.add(groupTiming);
+	}
+	
 	/**
 	 * 
 	 * @return
@@ -68,4 +86,57 @@ public class QoSResultCollector {
 		}
 		return json;
 	}
+
+	/**
+	 * how long a concurrency group took
+	 * @author lb
+	 *
+	 */
+	public static class GroupTiming {
+		private final int concurrencyGroup;
+		private final int tasks;
+		private final long durationNs;
+		private final long maxTaskDurationNs;
+
+		public GroupTiming(int concurrencyGroup, int tasks, long durationNs, long maxTaskDurationNs) {
+			this.concurrencyGroup = concurrencyGroup;
+			this.tasks = tasks;
+			this.durationNs = durationNs;
+			this.maxTaskDurationNs = maxTaskDurationNs;
+		}
+
+		public int getConcurrencyGroup() {
+			return concurrencyGroup;
+		}
+
+		/**
+		 * 
+		 * @return number of tasks in this group
+		 */
+		public int getTasks() {
+			return tasks;
+		}
+
+		/**
+		 * 
+		 * @return time from the start of the first task to the end of the last one
+		 */
+		public long getDurationNs() {
+			return durationNs;
+		}
+
+		/**
+		 * 
+		 * @return duration of the slowest task of this group
+		 */
+		public long getMaxTaskDurationNs() {
+			return maxTaskDurationNs;
+		}
+
+		@Override
+		public String toString() {
+			return "GroupTiming [concurrencyGroup=" + concurrencyGroup + ", tasks=" + tasks
+					+ ", durationNs=" + durationNs + ", maxTaskDurationNs=" + maxTaskDurationNs + "]";
+		}
+	}
 }
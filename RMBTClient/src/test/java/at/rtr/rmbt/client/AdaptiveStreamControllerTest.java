@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveStreamControllerTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testSlowConnectionUsesOneStream () {
+        final AdaptiveStreamController controller = new AdaptiveStreamController(1, 8, 4096, 4096, 4194304);
+        // 1 MBit/s
+        controller.addPretest(125000, SECOND);
+        controller.setRtt(20000000L);
+        assertEquals(1, controller.getStreams(3));
+        assertEquals(4096, controller.getChunksize(1));
+    }
+
+    @Test
+    public void testFastConnectionUsesMoreStreams () {
+        final AdaptiveStreamController controller = new AdaptiveStreamController(1, 8, 4096, 4096, 4194304);
+        // 1 GBit/s measured on three connections
+        for (int i = 0; i < 3; i++)
+            controller.addPretest(125000000L / 3, SECOND);
+        controller.setRtt(1000000L);
+        assertEquals(125e6, controller.getPretestRate(), 10);
+        assertEquals(4, controller.getStreams(3));
+        // 31.25 MB/s per connection, 100 chunks per second
+        assertEquals(262144, controller.getChunksize(4));
+    }
+
+    @Test
+    public void testBandwidthDelayProduct () {
+        final AdaptiveStreamController controller = new AdaptiveStreamController(1, 8, 4096, 4096, 4194304);
+        // 100 MBit/s, 300 ms: 3.75 MB in flight
+        controller.addPretest(12500000L, SECOND);
+        controller.setRtt(300000000L);
+        assertEquals(1, controller.getStreams(3));
+        // 1 s: 12.5 MB in flight
+        controller.setRtt(SECOND);
+        assertEquals(3, controller.getStreams(3));
+    }
+
+    @Test
+    public void testServerWithoutLimits () {
+        final AdaptiveStreamController controller = new AdaptiveStreamController(1, 8, 4096, 4096, 4096);
+        controller.addPretest(125000000L, SECOND);
+        assertEquals(4096, controller.getChunksize(4));
+        assertEquals(8, new AdaptiveStreamController(1, 8, 4096, 4096, 4096).getStreams(8));
+    }
+
+    @Test
+    public void testAddStreamWhileGrowing () {
+        final AdaptiveStreamController controller = new AdaptiveStreamController(1, 8, 4096, 4096, 4096);
+        final long end = 10 * SECOND;
+        long bytes = 0;
+        assertFalse(controller.addStream(2, 0, bytes, end));
+        bytes += 1000000;
+        assertFalse(controller.addStream(2, SECOND / 2, bytes, end));
+        // 50% more than in the previous window
+        bytes += 1500000;
+        assertTrue(controller.addStream(2, SECOND, bytes, end));
+        // the new connection gets a window to settle
+        bytes += 3000000;
+        assertFalse(controller.addStream(3, 3 * SECOND / 2, bytes, end));
+        // settled
+        bytes += 3100000;
+        assertFalse(controller.addStream(3, 2 * SECOND, bytes, end));
+        // too little time left
+        bytes += 9000000;
+        assertFalse(controller.addStream(3, 9 * SECOND, bytes, end));
+        // no connections left
+        assertFalse(controller.addStream(8, 3 * SECOND, bytes, end));
+    }
+}
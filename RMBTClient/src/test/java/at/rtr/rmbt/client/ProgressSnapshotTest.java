@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.client;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import at.rtr.rmbt.client.RMBTTest.CurrentSpeed;
+
+import static org.junit.Assert.*;
+
+public class ProgressSnapshotTest {
+
+    @Test
+    public void testSetAndGet () {
+        final ProgressSnapshot snapshot = new ProgressSnapshot();
+        assertEquals(0, snapshot.get(null).trans);
+
+        snapshot.set(1000, 20);
+        final CurrentSpeed speed = snapshot.get(new CurrentSpeed());
+        assertEquals(1000, speed.trans);
+        assertEquals(20, speed.time);
+        assertEquals(1, snapshot.getUpdates());
+    }
+
+    @Test
+    public void testWriterStoppedHalfway () throws Exception {
+        final ProgressSnapshot snapshot = new ProgressSnapshot();
+        snapshot.set(1000, 20);
+
+        // what a writer leaves behind when it stops after storing half of the first copy of 2000, 40
+        final Field field = ProgressSnapshot.class.getDeclaredField("slots");
+        field.setAccessible(true);
+        final AtomicLongArray slots = (AtomicLongArray) field.get(snapshot);
+        slots.set(8, 3);
+        slots.set(9, 2000);
+
+        final CurrentSpeed speed = snapshot.get(null);
+        assertEquals(1000, speed.trans);
+        assertEquals(20, speed.time);
+        assertEquals(1, snapshot.getUpdates());
+    }
+
+    @Test
+    public void testReadersNeverSeeTornPairs () throws Exception {
+        final ProgressSnapshot snapshot = new ProgressSnapshot();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 1; !stop.get(); i++) {
+                    snapshot.set(3 * i, i);
+                }
+            }
+        });
+        writer.start();
+        try {
+            final CurrentSpeed speed = new CurrentSpeed();
+            for (int i = 0; i < 200000; i++) {
+                snapshot.get(speed);
+                assertEquals(3 * speed.time, speed.trans);
+            }
+        }
+        finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+}
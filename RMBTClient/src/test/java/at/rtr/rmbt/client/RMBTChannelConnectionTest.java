@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class RMBTChannelConnectionTest {
+
+    private static final int CHUNKSIZE = 4096;
+
+    private ServerSocket serverSocket;
+
+    private RMBTChannelConnection connection;
+
+    @Before
+    public void init () throws Exception {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        connection = new RMBTChannelConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                serverSocket.getLocalPort()), 1000, null);
+        connection.setChunksize(CHUNKSIZE);
+    }
+
+    @After
+    public void shutdown () throws Exception {
+        connection.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testReadLinesAndChunks () throws Exception {
+        final byte[] chunks = new byte[3 * CHUNKSIZE];
+        chunks[chunks.length - 1] = (byte) 0xff;
+
+        final Socket socket = serverSocket.accept();
+        final OutputStream out = socket.getOutputStream();
+        out.write("ACCEPT GETCHUNKS\r\n".getBytes("US-ASCII"));
+        out.write(chunks);
+        out.write("TIME 123\n".getBytes("US-ASCII"));
+        out.flush();
+
+        assertEquals("ACCEPT GETCHUNKS", connection.readLine());
+
+        long totalRead = 0;
+        byte lastByte = 0;
+        while (totalRead < chunks.length) {
+            final int read = connection.readData();
+            assertTrue("connection closed unexpectedly", read > 0);
+            final int posLast = connection.getLastChunkEnd(totalRead, read);
+            if (posLast >= 0) {
+                lastByte = connection.getDataByte(posLast);
+            }
+            totalRead += read;
+        }
+
+        // data and trailing line may arrive in one block
+        assertEquals((byte) 0xff, lastByte);
+        assertTrue(totalRead >= chunks.length);
+        socket.close();
+    }
+
+    @Test
+    public void testLastChunkEnd () {
+        assertEquals(-1, connection.getLastChunkEnd(0, CHUNKSIZE - 1));
+        assertEquals(CHUNKSIZE - 1, connection.getLastChunkEnd(0, CHUNKSIZE));
+        assertEquals(3 * CHUNKSIZE - 1, connection.getLastChunkEnd(0, 3 * CHUNKSIZE + 10));
+        assertEquals(9, connection.getLastChunkEnd(CHUNKSIZE - 10, 20));
+    }
+
+    @Test
+    public void testWriteChunksAndCount () throws Exception {
+        final Socket socket = serverSocket.accept();
+
+        connection.write("PUT\n".getBytes("US-ASCII"));
+        connection.writeChunk(false);
+        connection.writeChunk(true);
+
+        final InputStream in = socket.getInputStream();
+        final byte[] received = new byte[4 + 2 * CHUNKSIZE];
+        int pos = 0;
+        while (pos < received.length) {
+            final int read = in.read(received, pos, received.length - pos);
+            assertTrue(read > 0);
+            pos += read;
+        }
+
+        assertEquals("PUT\n", new String(received, 0, 4, "US-ASCII"));
+        assertEquals((byte) 0x00, received[4 + CHUNKSIZE - 1]);
+        assertEquals((byte) 0xff, received[received.length - 1]);
+        assertEquals(received.length, connection.getWriteCount());
+        socket.close();
+    }
+
+    @Test
+    public void testNonBlockingWriteWaitsForChannel () throws Exception {
+        final Socket socket = serverSocket.accept();
+        connection.configureBlocking(false);
+
+        // far more than fits into the socket buffers; the server only starts reading after a while
+        final int chunks = 2048;
+        final AtomicLong received = new AtomicLong();
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(1000);
+                    final InputStream in = socket.getInputStream();
+                    final byte[] buf = new byte[CHUNKSIZE];
+                    int read;
+                    while ((read = in.read(buf)) > 0) {
+                        if (received.addAndGet(read) == (long) chunks * CHUNKSIZE)
+                            return;
+                    }
+                } catch (Exception e) {
+                    // fails on the byte count below
+                }
+            }
+        });
+        reader.start();
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long cpuStart = threads.getCurrentThreadCpuTime();
+        for (int i = 1; i <= chunks; i++) {
+            connection.writeChunk(i == chunks);
+        }
+        final long cpuMs = (threads.getCurrentThreadCpuTime() - cpuStart) / 1000000;
+        reader.join(5000);
+
+        assertEquals((long) chunks * CHUNKSIZE, received.get());
+        assertEquals((long) chunks * CHUNKSIZE, connection.getWriteCount());
+        // waiting for the blocked reader must not spin
+        assertTrue("writing used " + cpuMs + " ms cpu time", cpuMs < 300);
+        socket.close();
+    }
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import at.rtr.rmbt.client.RMBTResponseParser.Type;
+
+import static org.junit.Assert.*;
+
+public class RMBTResponseParserTest {
+
+    private RMBTResponseParser parser;
+
+    @Before
+    public void init () {
+        parser = new RMBTResponseParser();
+    }
+
+    private void parse (final String line) throws Exception {
+        final byte[] data = line.getBytes("US-ASCII");
+        assertEquals(data.length, parser.feed(data, 0, data.length));
+        assertTrue(parser.isComplete());
+    }
+
+    @Test
+    public void testTypes () throws Exception {
+        parse("ACCEPT GETCHUNKS GETTIME PUT PUTNORESULT PING QUIT\n");
+        assertEquals(Type.ACCEPT, parser.getType());
+
+        parse("OK\r\n");
+        assertEquals(Type.OK, parser.getType());
+
+        parse("PONG\n");
+        assertEquals(Type.PONG, parser.getType());
+
+        parse("ERR\n");
+        assertEquals(Type.ERR, parser.getType());
+
+        parse("RMBTv1.2.0\n");
+        assertEquals(Type.OTHER, parser.getType());
+        assertTrue(parser.contains("RMBTv"));
+        assertEquals("RMBTv1.2.0", parser.toString());
+
+        parse("OKAY\n");
+        assertEquals(Type.OTHER, parser.getType());
+    }
+
+    @Test
+    public void testNumbers () throws Exception {
+        parse("TIME 123456789\n");
+        assertEquals(Type.TIME, parser.getType());
+        assertEquals(123456789L, parser.getTime());
+
+        parse("TIME 7000000000 BYTES 98765432100\n");
+        assertEquals(Type.TIME_BYTES, parser.getType());
+        assertEquals(7000000000L, parser.getTime());
+        assertEquals(98765432100L, parser.getBytes());
+
+        parse("CHUNKSIZE 4096 4096 65536\n");
+        assertEquals(Type.CHUNKSIZE, parser.getType());
+        assertEquals(4096, parser.getChunksize());
+        assertEquals(4096, parser.getChunksizeMin());
+        assertEquals(65536, parser.getChunksizeMax());
+
+        parse("CHUNKSIZE 8192\n");
+        assertEquals(Type.CHUNKSIZE, parser.getType());
+        assertEquals(8192, parser.getChunksizeMin());
+        assertEquals(8192, parser.getChunksizeMax());
+
+        parse("TIME 12 BYTES\n");
+        assertEquals(Type.OTHER, parser.getType());
+
+        parse("TIME x\n");
+        assertEquals(Type.OTHER, parser.getType());
+
+        parse("CHUNKSIZE 99999999999\n");
+        assertEquals(Type.OTHER, parser.getType());
+    }
+
+    @Test
+    public void testSplitLines () throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap("TIME 1 BY".getBytes("US-ASCII"));
+        assertFalse(parser.feed(buffer));
+        assertFalse(parser.isComplete());
+        assertFalse(buffer.hasRemaining());
+
+        final ByteBuffer buffer2 = ByteBuffer.wrap("TES 2\nOK\n".getBytes("US-ASCII"));
+        assertTrue(parser.feed(buffer2));
+        assertEquals(Type.TIME_BYTES, parser.getType());
+        assertEquals(1, parser.getTime());
+        assertEquals(2, parser.getBytes());
+        assertEquals(6, buffer2.position());
+
+        assertTrue(parser.feed(buffer2));
+        assertEquals(Type.OK, parser.getType());
+    }
+}
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.client;
+
+import at.rtr.rmbt.client.helper.Config;
+import at.rtr.rmbt.client.helper.TestStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * runs the selector based test against a minimal RMBT server on the loopback interface
+ */
+public class RMBTSelectorTestTest {
+
+    private static final int CHUNKSIZE = 4096;
+    private static final int NUM_THREADS = 2;
+    private static final int NUM_PINGS = 3;
+
+    private ServerSocket serverSocket;
+
+    private Thread acceptThread;
+
+    /**
+     * commands received by the server, over all connections
+     */
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+
+    private final List<Throwable> serverErrors = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void init() throws Exception {
+        serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        final Socket socket = serverSocket.accept();
+                        final Thread connectionThread = new Thread(new ServerConnection(socket));
+                        connectionThread.setDaemon(true);
+                        connectionThread.start();
+                    }
+                } catch (IOException e) {
+                    // server socket closed
+                }
+            }
+        });
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    @After
+    public void shutdown() throws Exception {
+        serverSocket.close();
+        acceptThread.join(1000);
+    }
+
+    @Test
+    public void testAllPhases() throws Exception {
+        final RMBTTestParameter params = new RMBTTestParameter(InetAddress.getLoopbackAddress().getHostAddress(),
+                serverSocket.getLocalPort(), false, "bbd1ee96-0779-4619-b993-bb4bf7089754_1528136454_key",
+                1, NUM_THREADS, NUM_PINGS, 0, Config.SERVER_TYPE_RMBT, Config.TRANSPORT_SELECTOR);
+        final RMBTClient client = RMBTClient.getInstance(params);
+
+        final ThreadTestResult[] results = new RMBTSelectorTest(client, params, 100, 0).call();
+
+        assertTrue("server errors: " + serverErrors, serverErrors.isEmpty());
+        assertNotEquals(TestStatus.ERROR, client.getStatus());
+        assertEquals(NUM_THREADS, results.length);
+
+        // handshake
+        for (final ThreadTestResult result : results) {
+            assertNotNull(result);
+            assertEquals("1.2.3", result.client_version);
+            assertEquals(serverSocket.getLocalPort(), result.port_remote);
+        }
+
+        // only the first connection pings; the server reports 1, 2 and 3 ms
+        final ThreadTestResult first = results[0];
+        assertEquals(NUM_PINGS, first.pings.size());
+        assertEquals(2000000L, first.ping_median);
+        assertTrue(first.ping_shortest < Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, results[1].ping_median);
+        assertEquals(NUM_PINGS, Collections.frequency(commands, "PING"));
+
+        // download and upload
+        for (final ThreadTestResult result : results) {
+            assertTrue(ThreadTestResult.getLastEntry(result.down.bytes) > 0);
+            assertTrue(ThreadTestResult.getLastEntry(result.down.nsec) > 0);
+            assertTrue(ThreadTestResult.getLastEntry(result.up.bytes) > 0);
+            assertTrue(ThreadTestResult.getLastEntry(result.up.nsec) > 0);
+            assertTrue(result.totalDownBytes >= ThreadTestResult.getLastEntry(result.down.bytes));
+            assertTrue(result.totalUpBytes >= ThreadTestResult.getLastEntry(result.up.bytes));
+        }
+        assertEquals(NUM_THREADS, Collections.frequency(commands, "GETTIME 1"));
+        assertEquals(NUM_THREADS, Collections.frequency(commands, "PUT"));
+        assertTrue(commands.contains("GETCHUNKS 1"));
+        assertTrue(commands.contains("PUTNORESULT"));
+    }
+
+    @Test
+    public void testMedianPing() {
+        assertEquals(2, RMBTTest.getMedianPing(new long[] {3, 1, 2}));
+        assertEquals(5, RMBTTest.getMedianPing(new long[] {5}));
+        assertEquals(25, RMBTTest.getMedianPing(new long[] {40, 10, 30, 20}));
+    }
+
+    /**
+     * the server side of a single test connection
+     */
+    private class ServerConnection implements Runnable {
+
+        private final Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private int pings;
+
+        ServerConnection(final Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                in = new BufferedInputStream(socket.getInputStream());
+                out = socket.getOutputStream();
+
+                writeLine("RMBTv1.2.3");
+                writeLine("ACCEPT TOKEN QUIT");
+                final String token = readLine();
+                if (token == null || !token.startsWith("TOKEN "))
+                    throw new IOException("expected TOKEN, got " + token);
+                writeLine("OK");
+                writeLine(String.format(Locale.US, "CHUNKSIZE %d %d %d", CHUNKSIZE, CHUNKSIZE, 4 * CHUNKSIZE));
+
+                for (;;) {
+                    writeLine("ACCEPT GETCHUNKS GETTIME PUT PUTNORESULT PING QUIT");
+                    final String command = readLine();
+                    // the client closes the connection after the upload
+                    if (command == null || command.equals("QUIT"))
+                        return;
+                    commands.add(command);
+
+                    final String[] args = command.split(" ");
+                    if (args[0].equals("GETCHUNKS")) {
+                        final int chunks = Integer.parseInt(args[1]);
+                        for (int i = 1; i <= chunks; i++)
+                            writeChunk(i == chunks);
+                        finishCommand(1000);
+                    } else if (args[0].equals("GETTIME")) {
+                        final long end = System.nanoTime() + Integer.parseInt(args[1]) * 1000000000L;
+                        while (System.nanoTime() < end)
+                            writeChunk(false);
+                        writeChunk(true);
+                        // the client reconnects if the last chunk is still queued when the time is up
+                        final String ok = readLine();
+                        if (ok == null)
+                            return;
+                        if (!ok.equals("OK"))
+                            throw new IOException("expected OK, got " + ok);
+                        writeLine("TIME 1000");
+                    } else if (args[0].equals("PING")) {
+                        writeLine("PONG");
+                        finishCommand(++pings * 1000000L);
+                    } else if (args[0].equals("PUTNORESULT")) {
+                        writeLine("OK");
+                        while (!readChunk())
+                            ;
+                        writeLine("TIME 1000");
+                    } else if (args[0].equals("PUT")) {
+                        writeLine("OK");
+                        final long start = System.nanoTime();
+                        long bytes = 0;
+                        boolean last;
+                        do {
+                            last = readChunk();
+                            bytes += CHUNKSIZE;
+                            writeLine(String.format(Locale.US, "TIME %d BYTES %d", System.nanoTime() - start, bytes));
+                        } while (!last);
+                        writeLine(String.format(Locale.US, "TIME %d", System.nanoTime() - start));
+                    } else {
+                        throw new IOException("unexpected command " + command);
+                    }
+                }
+            } catch (IOException e) {
+                // the client closes the connections as soon as it has the result of the upload
+                if (!e.getMessage().contains("reset") && !e.getMessage().contains("Broken pipe"))
+                    serverErrors.add(e);
+            } catch (RuntimeException e) {
+                serverErrors.add(e);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    serverErrors.add(e);
+                }
+            }
+        }
+
+        private void finishCommand(final long nsec) throws IOException {
+            final String ok = readLine();
+            if (!"OK".equals(ok))
+                throw new IOException("expected OK, got " + ok);
+            writeLine("TIME " + nsec);
+        }
+
+        private void writeLine(final String line) throws IOException {
+            out.write((line + "\n").getBytes("US-ASCII"));
+            out.flush();
+        }
+
+        private void writeChunk(final boolean last) throws IOException {
+            final byte[] chunk = new byte[CHUNKSIZE];
+            chunk[CHUNKSIZE - 1] = last ? (byte) 0xff : 0x00;
+            out.write(chunk);
+        }
+
+        /**
+         * @return <code>true</code> if it is the last chunk
+         */
+        private boolean readChunk() throws IOException {
+            final byte[] chunk = new byte[CHUNKSIZE];
+            int pos = 0;
+            while (pos < CHUNKSIZE) {
+                final int read = in.read(chunk, pos, CHUNKSIZE - pos);
+                if (read < 0)
+                    throw new IOException("connection closed during upload");
+                pos += read;
+            }
+            return chunk[CHUNKSIZE - 1] == (byte) 0xff;
+        }
+
+        private String readLine() throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0)
+                    return null;
+                line.write(b);
+            }
+            return line.toString("US-ASCII");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpeedHistoryTest {
+
+    @Test
+    public void testRingKeepsLatestSamples () {
+        final SpeedHistory history = new SpeedHistory(2, 3);
+        for (int i = 1; i <= 10; i++) {
+            history.add(0, i * 100, i * 1000);
+        }
+        history.add(1, 50, 500);
+
+        assertEquals(3, history.size(0));
+        assertEquals(800, history.getTime(0, 0));
+        assertEquals(10000, history.getBytes(0, 2));
+        assertEquals(1, history.size(1));
+        assertEquals(500, history.getBytes(1, 0));
+
+        final long[] bytes = new long[3];
+        final long[] nsecs = new long[3];
+        assertEquals(3, history.copy(0, bytes, nsecs));
+        assertArrayEquals(new long[] {8000, 9000, 10000}, bytes);
+        assertArrayEquals(new long[] {800, 900, 1000}, nsecs);
+    }
+
+    @Test
+    public void testCounterStaysBounded () {
+        final SpeedHistory history = new SpeedHistory(1, 4);
+        for (int i = 0; i < 1000; i++) {
+            history.add(0, i, i);
+            assertEquals(Math.max(0, i - 3), history.getTime(0, 0));
+            assertEquals(i, history.getTime(0, history.size(0) - 1));
+        }
+    }
+
+    @Test
+    public void testReset () {
+        final SpeedHistory history = new SpeedHistory(1, 4);
+        history.add(0, 1, 1);
+        history.reset();
+        assertEquals(0, history.size(0));
+    }
+
+    @Test
+    public void testCalculateAndGet () {
+        final SpeedHistory history = new SpeedHistory(2, 20);
+        for (int i = 1; i <= 5; i++) {
+            history.add(0, i * 1000000000L, i * 1000);
+            history.add(1, i * 1000000000L, i * 3000);
+        }
+        final TotalTestResult result = TotalTestResult.calculateAndGet(history);
+        assertEquals(20000, result.bytes_download);
+        assertEquals(5000000000L, result.nsec_download);
+    }
+}
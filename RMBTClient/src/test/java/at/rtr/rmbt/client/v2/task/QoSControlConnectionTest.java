@@ -20,6 +20,7 @@ package at.rtr.rmbt.client.v2.task;
 import at.rtr.rmbt.client.RMBTClient;
 import at.rtr.rmbt.client.RMBTClientTestStub;
 import at.rtr.rmbt.client.RMBTTestParameter;
+import mockit.Delegate;
 import mockit.Expectations;
 import mockit.Mocked;
 import org.junit.Before;
@@ -33,7 +34,9 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -61,6 +64,8 @@ public class QoSControlConnectionTest {
 
     private String dnsCallbackRequest, dnsCallbackResponse;
 
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
     @Before
     public void init () {
         clientHolder = RMBTClientTestStub.getInstance(TaskDescriptionHelper.createTaskDescList("host", "80",
@@ -245,6 +250,76 @@ public class QoSControlConnectionTest {
 
     }
 
+    @Test
+    public void responsesAreHandledByTheWaitingTask (@Mocked final Socket socket, @Mocked final InetAddress inetAddress,
+                                                     @Mocked final BufferedReader bufferedReader,
+                                                     @Mocked final DnsTask dnsTask) throws Exception {
+
+        final CountDownLatch waiting = new CountDownLatch(1);
+
+        new Expectations() {{
+
+            InetAddress.getByName(anyString);
+            result = loopbackAddress;
+
+            bufferedReader.readLine();
+            returns(
+                    AbstractQoSTask.QOS_SERVER_PROTOCOL_VERSION,
+                    "ACCEPT ",
+                    "OK",
+                    " "
+            );
+            result = new Delegate() {
+                String delegateMethod() throws InterruptedException {
+                    // the response arrives only once the task is waiting for it
+                    waiting.await();
+                    return responses.poll(100, TimeUnit.MILLISECONDS);
+                }
+            };
+
+            socket.getOutputStream();
+            result = testOutputStream;
+
+            dnsTask.getId();
+            result = 1;
+
+        }};
+
+        controlConnection = new QoSControlConnection(clientHolder, testParameter);
+        controlConnection.connect();
+
+        final CountDownLatch latch = new CountDownLatch(1) {
+            @Override
+            public long getCount() {
+                // the task checks its latch once it is registered for its responses
+                waiting.countDown();
+                return super.getCount();
+            }
+        };
+        final Thread[] callbackThread = new Thread[1];
+        controlConnection.sendTaskCommand(dnsTask, "CMD DNS", new ControlConnectionResponseCallback() {
+            @Override
+            public void onResponse(String response, String request) {
+                dnsCallbackResponse = response;
+                callbackThread[0] = Thread.currentThread();
+                latch.countDown();
+            }
+        });
+
+        responses.add("DNS TASK +ID1");
+        final Thread reader = new Thread(controlConnection);
+        reader.start();
+
+        controlConnection.await(dnsTask, latch, 10, TimeUnit.SECONDS);
+
+        assertEquals("Callback not executed", 0, latch.getCount());
+        assertEquals("Wrong callback response", "DNS TASK +ID1", dnsCallbackResponse);
+        assertSame("Callback not executed by the waiting task", Thread.currentThread(), callbackThread[0]);
+
+        controlConnection.close();
+        reader.join(5000);
+    }
+
     @Test
     public void basicConnectionProtocolErrorTest (@Mocked final Socket socket, @Mocked final InetAddress inetAddress,
                                      @Mocked final BufferedReader bufferedReader) throws Exception {
@@ -31,8 +31,8 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
 import at.rtr.rmbt.db.DbConnection;
+import at.rtr.rmbt.qos.QoSCatalog;
 import at.rtr.rmbt.shared.GeoIPHelper;
-import at.rtr.rmbt.shared.Helperfunctions;
 import at.rtr.rmbt.shared.RevisionHelper;
 
 import com.google.common.net.InetAddresses;
@@ -44,6 +44,7 @@ public class ContextListener implements ServletContextListener
     public void contextDestroyed(ServletContextEvent sce)
     {
         scheduler.shutdownNow();
+        IpEnrichmentService.getInstance().shutdown();
     }
     
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
@@ -53,6 +54,16 @@ public class ContextListener implements ServletContextListener
     {
         System.out.println("RMBTControlServer - " + RevisionHelper.getVerboseRevision());
         
+        try (Connection conn = DbConnection.getConnection())
+        {
+            QoSCatalog.getInstance().load(conn);
+        }
+        catch (SQLException | NamingException e)
+        {
+            //the catalog is loaded with the first qos request
+            e.printStackTrace();
+        }
+        
         scheduler.scheduleWithFixedDelay(new Runnable()
         {
             @Override
@@ -96,63 +107,47 @@ public class ContextListener implements ServletContextListener
             @Override
             public void run() {
                 System.out.println("Looking up missing ASN infos");
-                //add AS to all tests of the last two days where lookup failed previously
-                try
+                //add AS, reverse DNS name and provider to all tests of the last 7 days the lookups or the background enrichment missed;
+                //public_ip_enriched_at is set once the lookups are done, so addresses without a reverse DNS name are not looked up again
+                try (Connection conn = DbConnection.getConnection();
+                        PreparedStatement ps = conn.prepareStatement("SELECT uid, client_public_ip FROM test "
+                                + "WHERE public_ip_enriched_at IS NULL AND (public_ip_asn IS NULL OR public_ip_rdns IS NULL) AND client_public_ip IS NOT NULL "
+                                + "AND time > current_date - interval '7 days' ORDER BY uid DESC LIMIT 10000"))
                 {
-                    Connection conn = DbConnection.getConnection();
-                    final PreparedStatement ps1 = conn.prepareStatement("SELECT uid, client_public_ip from test where public_ip_asn is null and client_public_ip is not null and time > current_date - interval '7 days' order by uid desc LIMIT 10000;");
-                    final PreparedStatement ps2 = conn.prepareStatement("UPDATE test SET public_ip_asn = ?, country_asn = ?, public_ip_as_name = ? WHERE uid = ?;");
-                    final PreparedStatement ps3 = conn.prepareStatement("SELECT rmbt_set_provider_from_as(uid) from test where  uid = ?;");
-
-
-                    final ResultSet rs1 = ps1.executeQuery();
-
-                    while (rs1.next())
+                    try (ResultSet rs = ps.executeQuery())
                     {
-                        final long uid = rs1.getLong(1);
-                        final String ip = rs1.getString(2);
-
-                        System.out.println("Setting AS for: " + uid);
-
-                        try {
-                            InetAddress ipp = InetAddress.getByName(ip);
-                            Helperfunctions.ASInformation asn;
-                            asn = Helperfunctions.getASInformation(ipp);
-                            if (asn != null) {
-                                final String asName = asn.getName();
-                                final String asCountry = asn.getCountry();
-                                ps2.setLong(1, asn.getNumber());
-                                ps2.setString(2, asCountry);
-                                ps2.setString(3, asName);
-                                ps2.setLong(4, uid);
-
-                                ps3.setLong(1, uid);
+                        while (rs.next())
+                        {
+                            final long uid = rs.getLong(1);
+                            final String ip = rs.getString(2);
 
-                                ps2.executeUpdate();
-                                ps3.execute();
+                            System.out.println("Setting AS for: " + uid);
 
-                                System.out.println("Setting AS: uid: " + uid + " asn:" + asn + " name:" + asName + " country:" + asCountry);
+                            try
+                            {
+                                IpEnrichmentService.getInstance().enrichTestNow(uid, InetAddress.getByName(ip));
                             }
-                        } catch (SQLException e)
-                        {
-                            e.printStackTrace();
-                        }
-                        finally {
-                            ps2.close();
-                            ps3.close();
+                            catch (SQLException | UnknownHostException e)
+                            {
+                                e.printStackTrace();
+                            }
+                            Thread.sleep(10);
                         }
-                        Thread.sleep(10);
                     }
-
-                    ps1.close();
-                    conn.close();
                     System.out.println("Looking up missing ASN infos completed");
                 }
-                catch (SQLException | InterruptedException | UnknownHostException | NamingException e)
+                catch (SQLException | InterruptedException | NamingException e)
                 {
                     e.printStackTrace();
                 }
             }
         }, 2, 24, TimeUnit.HOURS);
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println("IP enrichment: " + IpEnrichmentService.getInstance().getStatistics());
+            }
+        }, 1, 1, TimeUnit.HOURS);
     }
 }
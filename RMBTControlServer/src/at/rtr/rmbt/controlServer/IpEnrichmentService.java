@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.controlServer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import at.rtr.rmbt.db.DbConnection;
+import at.rtr.rmbt.shared.Helperfunctions;
+import at.rtr.rmbt.shared.Helperfunctions.ASInformation;
+
+/**
+ * Resolves the AS and the reverse DNS name of client addresses for the test table
+ * (<code>public_ip_asn</code>, <code>public_ip_as_name</code>, <code>country_asn</code>, <code>public_ip_rdns</code>).
+ * <p>
+ * Results are kept in size bounded caches: AS information per network prefix (/24 for IPv4, /48 for IPv6)
+ * and per AS number, reverse DNS names per address. The AS is needed by the registration itself (server selection, provider):
+ * on a cache miss, the request thread waits up to {@link #AS_LOOKUP_TIMEOUT_MS} for it. Whatever is still missing then
+ * (reverse DNS name, AS lookups timed out) is resolved by a small thread pool, which updates the test afterwards.
+ */
+public class IpEnrichmentService
+{
+    private static final Logger logger = Logger.getLogger(IpEnrichmentService.class.getName());
+
+    private static final int PREFIX_LENGTH_IPV4 = 24;
+    private static final int PREFIX_LENGTH_IPV6 = 48;
+
+    private static final int MAX_CACHED_PREFIXES = 100000;
+    private static final int MAX_CACHED_AS = 20000;
+    private static final int MAX_CACHED_ADDRESSES = 100000;
+    private static final long AS_CACHE_HOURS = 24;
+    private static final long REVERSE_DNS_CACHE_HOURS = 1;
+
+    private static final int THREADS = 4;
+    private static final int MAX_PENDING = 5000;
+
+    /**
+     * max. time a registration waits for the AS of an address not cached
+     */
+    static final long AS_LOOKUP_TIMEOUT_MS = 2000;
+
+    /**
+     * max. number of AS lookups registrations wait for at the same time, further registrations do not wait
+     */
+    private static final int MAX_INLINE_LOOKUPS = 16;
+
+    /**
+     * cached for addresses without a reverse DNS name
+     */
+    private static final String NO_REVERSE_DNS = "";
+
+    private static final IpEnrichmentService instance = new IpEnrichmentService(new Resolver()
+    {
+        @Override
+        public ASInformation getASInformation(final InetAddress address)
+        {
+            return Helperfunctions.getASInformation(address);
+        }
+
+        @Override
+        public Long getASN(final InetAddress address)
+        {
+            return Helperfunctions.getASN(address);
+        }
+
+        @Override
+        public ASInformation getASInformation(final long asn)
+        {
+            return new ASInformation(Helperfunctions.getASName(asn), Helperfunctions.getAScountry(asn), asn);
+        }
+
+        @Override
+        public String reverseDNSLookup(final InetAddress address)
+        {
+            return Helperfunctions.reverseDNSLookup(address);
+        }
+    }, AS_LOOKUP_TIMEOUT_MS);
+
+    public static IpEnrichmentService getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * The lookups of the AS (iptoasn, then the cymru DNS service) and of the reverse DNS name
+     */
+    interface Resolver
+    {
+        ASInformation getASInformation(InetAddress address);
+
+        Long getASN(InetAddress address);
+
+        ASInformation getASInformation(long asn);
+
+        String reverseDNSLookup(InetAddress address);
+    }
+
+    /**
+     * Information about a client address; fields not known (yet) are <code>null</code>
+     */
+    public static class IpInfo
+    {
+        private final ASInformation as;
+        private final String reverseDns;
+        private final boolean complete;
+
+        IpInfo(final ASInformation as, final String reverseDns, final boolean complete)
+        {
+            this.as = as;
+            this.reverseDns = reverseDns;
+            this.complete = complete;
+        }
+
+        public Long getAsn()
+        {
+            return as == null ? null : as.getNumber();
+        }
+
+        public String getAsName()
+        {
+            return as == null ? null : as.getName();
+        }
+
+        public String getAsCountry()
+        {
+            return as == null ? null : as.getCountry();
+        }
+
+        /**
+         * @return the reverse DNS name without the trailing dot, or <code>null</code>
+         */
+        public String getReverseDns()
+        {
+            return reverseDns;
+        }
+
+        /**
+         * @return <code>true</code> if both the AS and the reverse DNS name were looked up already
+         */
+        public boolean isComplete()
+        {
+            return complete;
+        }
+    }
+
+    private final Cache<String, ASInformation> asByPrefix = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_PREFIXES).expireAfterWrite(AS_CACHE_HOURS, TimeUnit.HOURS).build();
+
+    private final Cache<Long, ASInformation> asByNumber = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_AS).expireAfterWrite(AS_CACHE_HOURS, TimeUnit.HOURS).build();
+
+    private final Cache<InetAddress, String> reverseDnsByAddress = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_ADDRESSES).expireAfterWrite(REVERSE_DNS_CACHE_HOURS, TimeUnit.HOURS).build();
+
+    private final AtomicLong asHits = new AtomicLong();
+    private final AtomicLong asMisses = new AtomicLong();
+    private final AtomicLong reverseDnsHits = new AtomicLong();
+    private final AtomicLong reverseDnsMisses = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong failedLookups = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong inlineTimeouts = new AtomicLong();
+
+    private final Resolver resolver;
+    private final long asLookupTimeoutMs;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * runs the AS lookups registrations wait for, so the wait can be bounded
+     */
+    private final ThreadPoolExecutor inlineExecutor;
+
+    IpEnrichmentService(final Resolver resolver, final long asLookupTimeoutMs)
+    {
+        this.resolver = resolver;
+        this.asLookupTimeoutMs = asLookupTimeoutMs;
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING), new EnrichmentThreadFactory("IpEnrichment-"));
+        executor.allowCoreThreadTimeOut(true);
+        inlineExecutor = new ThreadPoolExecutor(0, MAX_INLINE_LOOKUPS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new EnrichmentThreadFactory("IpEnrichmentInline-"));
+    }
+
+    private static class EnrichmentThreadFactory implements ThreadFactory
+    {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        EnrichmentThreadFactory(final String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r)
+        {
+            final Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Returns what is known about the address. If the AS is not cached, it is looked up,
+     * waiting at most {@link #AS_LOOKUP_TIMEOUT_MS}; a lookup not finished by then still fills the cache.
+     * The reverse DNS name is only read from the cache.
+     * @param address
+     * @return
+     */
+    public IpInfo getInfo(final InetAddress address)
+    {
+        ASInformation as = asByPrefix.getIfPresent(getPrefix(address));
+        (as == null ? asMisses : asHits).incrementAndGet();
+        if (as == null)
+            as = resolveAsInline(address);
+
+        final String reverseDns = reverseDnsByAddress.getIfPresent(address);
+        (reverseDns == null ? reverseDnsMisses : reverseDnsHits).incrementAndGet();
+
+        return new IpInfo(as, NO_REVERSE_DNS.equals(reverseDns) ? null : reverseDns, as != null && reverseDns != null);
+    }
+
+    private ASInformation resolveAsInline(final InetAddress address)
+    {
+        final Future<ASInformation> future;
+        try
+        {
+            future = inlineExecutor.submit(new Callable<ASInformation>()
+            {
+                @Override
+                public ASInformation call() throws Exception
+                {
+                    return resolveAs(address);
+                }
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // too many registrations waiting already, the AS is looked up by the background enrichment
+            inlineTimeouts.incrementAndGet();
+            return null;
+        }
+
+        try
+        {
+            return future.get(asLookupTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (final TimeoutException e)
+        {
+            // keeps running and caches the result for the background enrichment of the test
+            inlineTimeouts.incrementAndGet();
+            return null;
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (final ExecutionException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Resolves the address in the background and stores the results in the given test.
+     * Values already stored in the test are kept if a lookup fails.
+     * @param testUid
+     * @param address
+     */
+    public void enrichTest(final long testUid, final InetAddress address)
+    {
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final ASInformation as = resolveAs(address);
+                    final String reverseDns = resolveReverseDns(address);
+                    try
+                    {
+                        updateTest(testUid, as, reverseDns);
+                    }
+                    catch (final SQLException | NamingException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // the test is enriched by the daily job in ContextListener
+            rejected.incrementAndGet();
+        }
+    }
+
+    /**
+     * Resolves the address and stores the results in the given test, on the calling thread
+     * (for tests the background enrichment has missed).
+     * Values already stored in the test are kept if a lookup fails.
+     * @param testUid
+     * @param address
+     * @throws SQLException
+     * @throws NamingException
+     */
+    public void enrichTestNow(final long testUid, final InetAddress address) throws SQLException, NamingException
+    {
+        updateTest(testUid, resolveAs(address), resolveReverseDns(address));
+    }
+
+    ASInformation resolveAs(final InetAddress address)
+    {
+        try
+        {
+            return asByPrefix.get(getPrefix(address), new Callable<ASInformation>()
+            {
+                @Override
+                public ASInformation call() throws Exception
+                {
+                    final ASInformation as = lookupAs(address);
+                    if (as == null)
+                        throw new UnknownHostException("no AS found for " + InetAddresses.toAddrString(address));
+                    return as;
+                }
+            });
+        }
+        catch (final ExecutionException | UncheckedExecutionException e)
+        {
+            // not cached, the next test from this prefix tries again
+            failedLookups.incrementAndGet();
+            return null;
+        }
+    }
+
+    private ASInformation lookupAs(final InetAddress address)
+    {
+        lookups.incrementAndGet();
+
+        //try AS resolution service 1
+        ASInformation as = resolver.getASInformation(address);
+        if (as != null)
+        {
+            asByNumber.put(as.getNumber(), as);
+            return as;
+        }
+
+        //if this fails, try AS resolution service 2
+        logger.info("AS resolution failed with service A");
+        final Long asn = resolver.getASN(address);
+        if (asn == null)
+            return null;
+
+        as = asByNumber.getIfPresent(asn);
+        if (as == null)
+        {
+            as = resolver.getASInformation(asn);
+            asByNumber.put(asn, as);
+        }
+        return as;
+    }
+
+    String resolveReverseDns(final InetAddress address)
+    {
+        String reverseDns = reverseDnsByAddress.getIfPresent(address);
+        if (reverseDns == null)
+        {
+            lookups.incrementAndGet();
+            reverseDns = resolver.reverseDNSLookup(address);
+            if (reverseDns == null || reverseDns.isEmpty())
+                reverseDns = NO_REVERSE_DNS;
+            else
+                reverseDns = reverseDns.replaceFirst("\\.$", ""); // cut off last dot (#332)
+            reverseDnsByAddress.put(address, reverseDns);
+        }
+        return NO_REVERSE_DNS.equals(reverseDns) ? null : reverseDns;
+    }
+
+    /**
+     * Stores the results of the lookups in the test. If the AS is known, the lookups are done
+     * (the address may have no reverse DNS name) and <code>public_ip_enriched_at</code> is set,
+     * otherwise the daily job in ContextListener tries again.
+     */
+    private static void updateTest(final long testUid, final ASInformation as, final String reverseDns) throws SQLException, NamingException
+    {
+        if (as == null && reverseDns == null)
+            return;
+
+        try (Connection conn = DbConnection.getConnection())
+        {
+            try (PreparedStatement ps = conn.prepareStatement("UPDATE test SET public_ip_asn = COALESCE(?, public_ip_asn), "
+                    + "public_ip_as_name = COALESCE(?, public_ip_as_name), country_asn = COALESCE(?, country_asn), "
+                    + "public_ip_rdns = COALESCE(?, public_ip_rdns), "
+                    + "public_ip_enriched_at = CASE WHEN ? THEN NOW() ELSE public_ip_enriched_at END WHERE uid = ?"))
+            {
+                int i = 1;
+                ps.setObject(i++, as == null ? null : as.getNumber(), Types.BIGINT);
+                ps.setObject(i++, as == null ? null : as.getName(), Types.VARCHAR);
+                ps.setObject(i++, as == null ? null : as.getCountry(), Types.VARCHAR);
+                ps.setObject(i++, reverseDns, Types.VARCHAR);
+                ps.setBoolean(i++, as != null);
+                ps.setLong(i++, testUid);
+                ps.executeUpdate();
+            }
+
+            if (as != null)
+            {
+                try (PreparedStatement ps = conn.prepareStatement("SELECT rmbt_set_provider_from_as(?)"))
+                {
+                    ps.setLong(1, testUid);
+                    ps.execute();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param address
+     * @return the network prefix of the address the AS information is cached for
+     */
+    static String getPrefix(final InetAddress address)
+    {
+        final byte[] bytes = address.getAddress();
+        final int prefixLength = bytes.length == 4 ? PREFIX_LENGTH_IPV4 : PREFIX_LENGTH_IPV6;
+        for (int i = 0; i < bytes.length; i++)
+        {
+            final int bits = prefixLength - i * 8;
+            if (bits <= 0)
+                bytes[i] = 0;
+            else if (bits < 8)
+                bytes[i] &= (byte) (0xff << (8 - bits));
+        }
+        try
+        {
+            return InetAddresses.toAddrString(InetAddress.getByAddress(bytes)) + "/" + prefixLength;
+        }
+        catch (final UnknownHostException e)
+        {
+            throw new IllegalStateException("address cannot be invalid");
+        }
+    }
+
+    /**
+     * @return cache hit rates and lookup counts, for logging
+     */
+    public String getStatistics()
+    {
+        return String.format(Locale.US, "AS cache: %d hits, %d misses (%.1f %% hits, %d prefixes), "
+                + "reverse DNS cache: %d hits, %d misses (%.1f %% hits, %d addresses), "
+                + "lookups: %d, failed: %d, inline timeouts: %d, pending: %d, rejected: %d",
+                asHits.get(), asMisses.get(), hitRate(asHits.get(), asMisses.get()), asByPrefix.size(),
+                reverseDnsHits.get(), reverseDnsMisses.get(), hitRate(reverseDnsHits.get(), reverseDnsMisses.get()),
+                reverseDnsByAddress.size(),
+                lookups.get(), failedLookups.get(), inlineTimeouts.get(), executor.getQueue().size(), rejected.get());
+    }
+
+    private static double hitRate(final long hits, final long misses)
+    {
+        final long total = hits + misses;
+        return total == 0 ? 0 : hits * 100d / total;
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+        inlineExecutor.shutdownNow();
+    }
+}
@@ -32,7 +32,7 @@ import org.restlet.resource.Get;
 import org.restlet.resource.Post;
 
 import at.rtr.rmbt.db.QoSTestObjective;
-import at.rtr.rmbt.db.dao.QoSTestObjectiveDao;
+import at.rtr.rmbt.qos.QoSCatalog;
 import at.rtr.rmbt.qos.testscript.TestScriptInterpreter;
 
 import com.google.common.net.InetAddresses;
@@ -67,9 +67,7 @@ public class QoSTestRequestResource extends ServerResource {
             {
                 request = new JSONObject(entity);                
                 
-                List<QoSTestObjective> listTestParams = new ArrayList<>();                
-                QoSTestObjectiveDao testObjectiveDao = new QoSTestObjectiveDao(conn);
-                listTestParams = testObjectiveDao.getByTestClass(1);
+                final List<QoSTestObjective> listTestParams = QoSCatalog.getInstance().getObjectives(conn, 1);
                 //listTestParams.add(testObjectiveDao.getById(1));
                 Map<String, List<JSONObject>> tests = new HashMap<>();
                 
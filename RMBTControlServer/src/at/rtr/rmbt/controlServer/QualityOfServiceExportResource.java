@@ -44,6 +44,7 @@ import at.rtr.rmbt.db.QoSTestDesc;
 import at.rtr.rmbt.db.QoSTestObjective;
 import at.rtr.rmbt.db.dao.QoSTestDescDao;
 import at.rtr.rmbt.db.dao.QoSTestObjectiveDao;
+import at.rtr.rmbt.qos.QoSCatalog;
 
 public class QualityOfServiceExportResource extends ServerResource
 {
@@ -57,6 +58,16 @@ public class QualityOfServiceExportResource extends ServerResource
     @Get
     public Representation request(final String entity)
     {
+        //the objectives or translations might have changed: reload the catalog used by the qos requests if its version has changed
+        try
+        {
+            QoSCatalog.getInstance().reloadIfChanged(conn);
+        }
+        catch (final SQLException e)
+        {
+            e.printStackTrace();
+        }
+        
         //Before doing anything => check if a cached file already exists and is new enough
         String property = System.getProperty("java.io.tmpdir");
         final File cachedFile = new File(property + File.separator + ((zip)?FILENAME_ZIP:FILENAME_HTML));
@@ -101,6 +112,8 @@ public class QualityOfServiceExportResource extends ServerResource
         {        	
         	Map<String, List<QoSTestObjective>> map = nnObjectiveDao.getAllToMap();
         	Iterator<String> keys = map.keySet().iterator();
+        	sb.append("<p>QoS catalog version: " + QoSCatalog.getInstance().getVersion() 
+        			+ ", loaded: " + new Date(QoSCatalog.getInstance().getLoadedTimestamp()) + "</p>");
         	sb.append("<h1>Contents:</h1>");
         	sb.append("<ol>");
         	sb.append("<li><a href=\"#table1\">qos_test_objective</a></li>");
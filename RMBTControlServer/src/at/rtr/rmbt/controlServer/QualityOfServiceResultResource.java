@@ -20,14 +20,11 @@ import com.vdurmont.semver4j.Requirement;
 import com.vdurmont.semver4j.Semver;
 import com.vdurmont.semver4j.SemverException;
 
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
@@ -39,13 +36,9 @@ import org.restlet.resource.Get;
 import org.restlet.resource.Post;
 
 import at.rtr.rmbt.db.QoSTestResult;
-import at.rtr.rmbt.db.QoSTestResult.TestType;
 import at.rtr.rmbt.db.Test;
 import at.rtr.rmbt.db.dao.QoSTestResultDao;
-import at.rtr.rmbt.qos.AbstractResult;
 import at.rtr.rmbt.qos.QoSUtil;
-import at.rtr.rmbt.qos.ResultDesc;
-import at.rtr.rmbt.qos.ResultOptions;
 import at.rtr.rmbt.shared.Helperfunctions;
 import at.rtr.rmbt.shared.ResourceManager;
 import at.rtr.rmbt.shared.hstoreparser.HstoreParseException;
@@ -90,8 +83,6 @@ public class QualityOfServiceResultResource extends ServerResource
                 
                 if (conn != null)
                 {
-                    ResultOptions resultOptions = new ResultOptions(new Locale(lang));
-                    
                     boolean oldAutoCommitState = conn.getAutoCommit();
                     conn.setAutoCommit(false);
                     
@@ -166,52 +157,8 @@ public class QualityOfServiceResultResource extends ServerResource
                                         	}
                                         }
 
-                                        QoSTestResultDao resultDao = new QoSTestResultDao(conn);
-                                        PreparedStatement updateCounterPs = resultDao.getUpdateCounterPreparedStatement();
-                                        List<QoSTestResult> testResultList = resultDao.getByTestUid(test.getUid());
-                                        //map that contains all test types and their result descriptions determined by the test result <-> test objectives comparison
-                                    	Map<TestType,TreeSet<ResultDesc>> resultKeys = new HashMap<>();
-
-                                    	//test description set:
-                                    	Set<String> testDescSet = new TreeSet<>();
-                                    	//test summary set:
-                                    	Set<String> testSummarySet = new TreeSet<>();
-
-                                        //iterate through all result entries
-                                        for (QoSTestResult testResult : testResultList) {
-
-                                        	//reset test counters
-                                        	testResult.setFailureCounter(0);
-                                        	testResult.setSuccessCounter(0);
-
-                                        	//get the correct class of the result;
-                                        	TestType testType = TestType.valueOf(testResult.getTestType().toUpperCase());
-                                        	Class<? extends AbstractResult<?>> clazz = testType.getClazz();
-                                        	//parse hstore data
-                                        	final JSONObject resultJson = new JSONObject(testResult.getResults());
-                                        	AbstractResult<?> result = QoSUtil.HSTORE_PARSER.fromJSON(resultJson, clazz);
-                                        	result.setResultJson(resultJson);
-
-                                        	if (result != null) {
-                                        		//add each test description key to the testDescSet (to fetch it later from the db)
-                                        		if (testResult.getTestDescription() != null) {
-                                            		testDescSet.add(testResult.getTestDescription());
-                                        		}
-                                        		if (testResult.getTestSummary() != null) {
-                                        			testSummarySet.add(testResult.getTestSummary());
-                                        		}
-                                        		testResult.setResult(result);
-
-                                        	}
-                                        	//compare test results with expected results
-                                        	QoSUtil.compareTestResults(testResult, result, resultKeys, testType, resultOptions);
-                                        	//resultList.put(testResult.toJson());
-
-                                            //update all test results after the success and failure counters have been set
-                                        	resultDao.updateCounter(testResult, updateCounterPs);
-                                        	//System.out.println("UPDATING: " + testResult.toString());
-                                        }
-                                        updateCounterPs.close();
+                                        //evaluate the results once: the counters are updated and the evaluation is stored for the result requests
+                                        QoSUtil.evaluateAndStore(settings, conn, test.getUid(), lang, errorList);
                                     }
                                     else
                                         errorList.addError("ERROR_CLIENT_VERSION");
@@ -27,7 +27,6 @@ import java.sql.Timestamp;
 import java.sql.Types;
 import java.text.MessageFormat;
 import java.util.*;
-import java.util.logging.Logger;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -86,39 +85,12 @@ public class RegistrationResource extends ServerResource
         System.out.println(MessageFormat.format(labels.getString("NEW_REQUEST"), clientIpRaw));
         
         final String geoIpCountry = GeoIPHelper.lookupCountry(clientAddress);
-        // public_ip_asn
-        Long asn;
-        // public_ip_as_name 
-        // country_asn (2 digit country code of AS, eg. AT or EU)
-        String asName;
-        String asCountry;
-
-        //try AS resolution service 1
-        try {
-            final Helperfunctions.ASInformation asInformation = Helperfunctions.getASInformation(clientAddress);
-            if (asInformation != null) {
-                asn = asInformation.getNumber();
-                asName = asInformation.getName();
-                asCountry = asInformation.getCountry();
-            } else {
-                //if this fails, try AS resolution service 2
-                Logger.getGlobal().info("AS resolution failed with service A");
-                asn = Helperfunctions.getASN(clientAddress);
-                if (asn == null) {
-                    asName = null;
-                    asCountry = null;
-                } else {
-                    asName = Helperfunctions.getASName(asn);
-                    asCountry = Helperfunctions.getAScountry(asn);
-                }
-            }
-        } catch (RuntimeException e) {
-            Logger.getGlobal().info("As resolution threw an error");
-            e.printStackTrace();
-            asn = null;
-            asName = null;
-            asCountry = null;
-        }
+        // public_ip_asn, public_ip_as_name, country_asn (2 digit country code of AS, eg. AT or EU), public_ip_rdns;
+        // the AS is looked up if not cached (bounded wait), anything still missing is looked up after the test has been stored
+        final IpEnrichmentService.IpInfo ipInfo = IpEnrichmentService.getInstance().getInfo(clientAddress);
+        final Long asn = ipInfo.getAsn();
+        final String asName = ipInfo.getAsName();
+        final String asCountry = ipInfo.getAsCountry();
         
         if (entity != null && !entity.isEmpty())
             // try parse the string to a JSON object       	
@@ -392,8 +364,8 @@ public class RegistrationResource extends ServerResource
                                     PreparedStatement st;
                                     st = conn
                                             .prepareStatement(
-                                                    "INSERT INTO test(time, uuid, open_test_uuid, client_id, client_name, client_version, client_software_version, client_language, client_public_ip, client_public_ip_anonymized, country_geoip, server_id, port, use_ssl, timezone, client_time, duration, num_threads_requested, status, software_revision, client_test_counter, client_previous_test_status, public_ip_asn, public_ip_as_name, country_asn, public_ip_rdns, run_ndt)"
-                                                            + "VALUES(NOW(), ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                                                    "INSERT INTO test(time, uuid, open_test_uuid, client_id, client_name, client_version, client_software_version, client_language, client_public_ip, client_public_ip_anonymized, country_geoip, server_id, port, use_ssl, timezone, client_time, duration, num_threads_requested, status, software_revision, client_test_counter, client_previous_test_status, public_ip_asn, public_ip_as_name, country_asn, public_ip_rdns, run_ndt, public_ip_enriched_at)"
+                                                            + "VALUES(NOW(), ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, CASE WHEN ? THEN NOW() END)",
                                                     Statement.RETURN_GENERATED_KEYS);
                                     
                                     int i = 1;
@@ -458,19 +430,17 @@ public class RegistrationResource extends ServerResource
                                     else
                                         st.setString(i++, asCountry);    
                                     //public_ip_rdns
-                                    String reverseDNS = Helperfunctions.reverseDNSLookup(clientAddress);
-                                    if (reverseDNS == null || reverseDNS.isEmpty())
+                                    if (ipInfo.getReverseDns() == null)
                                         st.setNull(i++, Types.VARCHAR);
                                     else
-                                    {
-                                        reverseDNS = reverseDNS.replaceFirst("\\.$", "");
-                                        st.setString(i++, reverseDNS); // cut off last dot (#332)
-                                    }
+                                        st.setString(i++, ipInfo.getReverseDns());
                                     // run_ndt
                                     if (request.has("ndt"))
                                         st.setBoolean(i++, request.getBoolean("ndt"));
                                     else
                                         st.setNull(i++, Types.BOOLEAN);
+                                    // public_ip_enriched_at: set if nothing is left for the background enrichment
+                                    st.setBoolean(i++, ipInfo.isComplete());
                                     
                                     final int affectedRows = st.executeUpdate();
                                     if (affectedRows == 0)
@@ -485,6 +455,9 @@ public class RegistrationResource extends ServerResource
                                             key = rs.getLong(1);
                                         rs.close();
                                         
+                                        if (!ipInfo.isComplete())
+                                            IpEnrichmentService.getInstance().enrichTest(key, clientAddress);
+                                        
                                         final PreparedStatement getProviderSt = conn
                                                 .prepareStatement("SELECT rmbt_set_provider_from_as(?)");
                                         getProviderSt.setLong(1, key);
@@ -25,8 +25,6 @@ import com.vdurmont.semver4j.Requirement;
 import com.vdurmont.semver4j.Semver;
 import com.vdurmont.semver4j.SemverException;
 
-import org.apache.commons.dbutils.QueryRunner;
-import org.apache.commons.dbutils.handlers.MapHandler;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -39,6 +37,7 @@ import java.net.UnknownHostException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.text.MessageFormat;
@@ -114,6 +113,7 @@ public class ResultResource extends ServerResource
                     conn.setAutoCommit(false);
 
                     final Test test = new Test(conn);
+                    final StoreTimings timings = new StoreTimings();
 
                     if (request.optString("test_token").length() > 0) {
 
@@ -251,17 +251,20 @@ public class ResultResource extends ServerResource
                                             }
                                             final String speedItemsJson = getGson(false).toJson(speedItems);
 
+                                            timings.start();
                                             final PreparedStatement psSpeed = conn.prepareStatement("INSERT INTO speed (open_test_uuid,items) VALUES (?,?::JSONB)");
                                             psSpeed.setObject(1, openTestUuid);
                                             psSpeed.setString(2, speedItemsJson);
                                             psSpeed.executeUpdate();
                                             psSpeed.close();
+                                            timings.stop("speed", 1);
 
                                         }
 
                                         final JSONArray pingData = request.optJSONArray("pings");
 
                                         if (pingData != null && !test.hasError()) {
+                                            timings.start();
                                             final PreparedStatement psPing = conn.prepareStatement("INSERT INTO ping (open_test_uuid,test_id, value, value_server, time_ns) " + "VALUES(?,?,?,?,?)");
                                             psPing.setObject(1, openTestUuid);
                                             psPing.setLong(2, test.getUid());
@@ -289,9 +292,11 @@ public class ResultResource extends ServerResource
                                                     psPing.setNull(5, Types.BIGINT);
 
 
-                                                psPing.executeUpdate();
+                                                psPing.addBatch();
                                             }
+                                            psPing.executeBatch();
                                             psPing.close();
+                                            timings.stop("ping", pingData.length());
                                         }
 
                                         final JSONArray geoData = request.optJSONArray("geoLocations");
@@ -302,6 +307,10 @@ public class ResultResource extends ServerResource
                                             float minAccuracy = Float.MAX_VALUE;
                                             final AtomicReference<JSONObject> firstAccuratePosition = new AtomicReference<>();
 
+                                            timings.start();
+                                            final PreparedStatement psGeoLocation = GeoLocation.prepareBatch(conn);
+                                            int geoLocationRows = 0;
+
                                             for (int i = 0; i < geoData.length(); i++) {
 
                                                 final JSONObject geoDataItem = geoData.getJSONObject(i);
@@ -327,7 +336,8 @@ public class ResultResource extends ServerResource
                                                     // ignore all timestamps older than 20s
                                                     if (timeNs > -20000000000L) {
 
-                                                        geoloc.storeLocation();
+                                                        geoloc.addToBatch(psGeoLocation);
+                                                        geoLocationRows++;
 
                                                         // Find reference location
                                                         if (geoloc.getAccuracy() != null && geoloc.getAccuracy() < minAccuracy) {
@@ -342,15 +352,14 @@ public class ResultResource extends ServerResource
                                                             geoRefUuid = geoloc.getGeoLocationUuid();
                                                             firstAccuratePosition.set(geoDataItem);
                                                         }
-
-                                                        if (geoloc.hasError()) {
-                                                            errorList.addError(geoloc.getError());
-                                                            break;
-                                                        }
                                                     }
                                                 }
                                             }
 
+                                            executeInsertBatch(psGeoLocation, errorList, "ERROR_DB_STORE_GEOLOCATION");
+                                            psGeoLocation.close();
+                                            timings.stop("geo_location", geoLocationRows);
+
                                             // Store reference location in test table
                                             if (firstAccuratePosition.get() != null) {
                                                 // set geo_location_uuid
@@ -389,7 +398,6 @@ public class ResultResource extends ServerResource
                                         if (request.has("radioInfo")) {
                                             //new radio info code
                                             om = new ObjectMapper();
-                                            QueryRunner qr = new QueryRunner();
                                             om.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
                                             try {
                                                 List<RadioCell> radioCells = Arrays.asList(om.readValue(request.getJSONObject("radioInfo").getJSONArray("cells").toString(), RadioCell[].class));
@@ -397,28 +405,28 @@ public class ResultResource extends ServerResource
                                                 Map<UUID, RadioCell> radioCellsByUuid = new HashMap<>();
                                                 //System.out.println(request.getJSONObject("radioInfo").toString(4));
 
+                                                timings.start();
+                                                final PreparedStatement psRadioCell = conn.prepareStatement("INSERT INTO radio_cell(uuid, open_test_uuid, mnc, mcc, location_id, area_code, primary_scrambling_code, technology, channel_number, registered, active)" +
+                                                        "        VALUES(?,?,?,?,?,?,?,?,?,?,?);");
+
                                                 //set open test uuid, write to db
                                                 for (RadioCell cell : radioCells) {
                                                     radioCellsByUuid.put(cell.getUuid(), cell);
                                                     //System.out.println(cell);
                                                     cell.setOpenTestUuid(openTestUuid);
-                                                    String sql = "INSERT INTO radio_cell(uuid, open_test_uuid, mnc, mcc, location_id, area_code, primary_scrambling_code, technology, channel_number, registered, active)" +
-                                                            "        VALUES(?,?,?,?,?,?,?,?,?,?,?);";
-
-                                                    //this will return some id
-                                                    MapHandler results = new MapHandler();
-                                                    Map<String, Object> insert = qr.insert(conn, sql, results,
-                                                            cell.getUuid(),
-                                                            cell.getOpenTestUuid(),
-                                                            cell.getMnc(),
-                                                            cell.getMcc(),
-                                                            cell.getLocationId(),
-                                                            cell.getAreaCode(),
-                                                            cell.getPrimaryScramblingCode(),
-                                                            cell.getTechnology().toString(),
-                                                            cell.getChannelNumber(),
-                                                            cell.isRegistered(),
-                                                            cell.isActive());
+
+                                                    psRadioCell.setObject(1, cell.getUuid(), Types.OTHER);
+                                                    psRadioCell.setObject(2, cell.getOpenTestUuid(), Types.OTHER);
+                                                    psRadioCell.setObject(3, cell.getMnc(), Types.INTEGER);
+                                                    psRadioCell.setObject(4, cell.getMcc(), Types.INTEGER);
+                                                    psRadioCell.setObject(5, cell.getLocationId(), Types.BIGINT);
+                                                    psRadioCell.setObject(6, cell.getAreaCode(), Types.INTEGER);
+                                                    psRadioCell.setObject(7, cell.getPrimaryScramblingCode(), Types.INTEGER);
+                                                    psRadioCell.setString(8, cell.getTechnology().toString());
+                                                    psRadioCell.setObject(9, cell.getChannelNumber(), Types.INTEGER);
+                                                    psRadioCell.setObject(10, cell.isRegistered(), Types.BOOLEAN);
+                                                    psRadioCell.setObject(11, cell.isActive(), Types.BOOLEAN);
+                                                    psRadioCell.addBatch();
 
                                                     if (channelNumber == null && Objects.equals(cell.isActive(), true)) {
                                                         channelNumber = cell.getChannelNumber();
@@ -478,6 +486,16 @@ public class ResultResource extends ServerResource
                                                     }
                                                 }
 
+                                                // cells have to be stored before the signals referencing them
+                                                psRadioCell.executeBatch();
+                                                psRadioCell.close();
+                                                timings.stop("radio_cell", radioCells.size());
+
+                                                timings.start();
+                                                final PreparedStatement psRadioSignal = conn.prepareStatement("INSERT INTO radio_signal(cell_uuid, open_test_uuid, network_type_id, bit_error_rate, wifi_link_speed, " +
+                                                        " lte_cqi, lte_rssnr, lte_rsrp, lte_rsrq, signal_strength, timing_advance, time, time_ns, time_ns_last) " +
+                                                        "VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?);");
+
                                                 for (RadioSignal signal : radioSignals) {
                                                     signal.setOpenTestUuid(openTestUuid);
 
@@ -488,26 +506,21 @@ public class ResultResource extends ServerResource
                                                     calendar.add(Calendar.MILLISECOND, (int) (signal.getTimeNs() / 1e6));
                                                     signal.setTime(calendar.getTime());
 
-                                                    String sql = "INSERT INTO radio_signal(cell_uuid, open_test_uuid, network_type_id, bit_error_rate, wifi_link_speed, " +
-                                                            " lte_cqi, lte_rssnr, lte_rsrp, lte_rsrq, signal_strength, timing_advance, time, time_ns, time_ns_last) " +
-                                                            "VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?);";
-                                                    MapHandler results = new MapHandler();
-
-                                                    qr.insert(conn, sql, results,
-                                                            signal.getCellUuid(),
-                                                            signal.getOpenTestUuid(),
-                                                            signal.getNetworkTypeId(),
-                                                            signal.getBitErrorRate(),
-                                                            signal.getWifiLinkSpeed(),
-                                                            signal.getLteCqi(),
-                                                            signal.getLteRssnr(),
-                                                            signal.getLteRsrp(),
-                                                            signal.getLteRsrq(),
-                                                            signal.getSignal(),
-                                                            signal.getTimingAdvance(),
-                                                            new Timestamp(signal.getTime().getTime()),
-                                                            signal.getTimeNs(),
-                                                            signal.getTimeNsLast());
+                                                    psRadioSignal.setObject(1, signal.getCellUuid(), Types.OTHER);
+                                                    psRadioSignal.setObject(2, signal.getOpenTestUuid(), Types.OTHER);
+                                                    psRadioSignal.setObject(3, signal.getNetworkTypeId(), Types.INTEGER);
+                                                    psRadioSignal.setObject(4, signal.getBitErrorRate(), Types.INTEGER);
+                                                    psRadioSignal.setObject(5, signal.getWifiLinkSpeed(), Types.INTEGER);
+                                                    psRadioSignal.setObject(6, signal.getLteCqi(), Types.INTEGER);
+                                                    psRadioSignal.setObject(7, signal.getLteRssnr(), Types.INTEGER);
+                                                    psRadioSignal.setObject(8, signal.getLteRsrp(), Types.INTEGER);
+                                                    psRadioSignal.setObject(9, signal.getLteRsrq(), Types.INTEGER);
+                                                    psRadioSignal.setObject(10, signal.getSignal(), Types.INTEGER);
+                                                    psRadioSignal.setObject(11, signal.getTimingAdvance(), Types.INTEGER);
+                                                    psRadioSignal.setTimestamp(12, new Timestamp(signal.getTime().getTime()));
+                                                    psRadioSignal.setObject(13, signal.getTimeNs(), Types.BIGINT);
+                                                    psRadioSignal.setObject(14, signal.getTimeNsLast(), Types.BIGINT);
+                                                    psRadioSignal.addBatch();
 
 
                                                     //use signal information, if this was a signal belonging
@@ -531,6 +544,10 @@ public class ResultResource extends ServerResource
                                                     }
 
                                                 }
+
+                                                psRadioSignal.executeBatch();
+                                                psRadioSignal.close();
+                                                timings.stop("radio_signal", radioSignals.size());
                                             }
                                             catch (InputCoercionException | JsonMappingException e) {
                                                 //errorList.addError("ERROR_REQUEST_JSON");
@@ -540,6 +557,9 @@ public class ResultResource extends ServerResource
                                         final JSONArray cellData = request.optJSONArray("cellLocations");
 
                                         if (cellData != null && !test.hasError()) {
+                                            timings.start();
+                                            final PreparedStatement psCellLocation = Cell_location.prepareBatch(conn);
+
                                             for (int i = 0; i < cellData.length(); i++) {
 
                                                 final JSONObject cellDataItem = cellData.getJSONObject(i);
@@ -563,14 +583,12 @@ public class ResultResource extends ServerResource
                                                 cellloc.setPrimary_scrambling_code(cellDataItem.optInt(
                                                         "primary_scrambling_code", 0));
 
-                                                cellloc.storeLocation();
-
-                                                if (cellloc.hasError()) {
-                                                    errorList.addError(cellloc.getError());
-                                                    break;
-                                                }
-
+                                                cellloc.addToBatch(psCellLocation);
                                             }
+
+                                            executeInsertBatch(psCellLocation, errorList, "ERROR_DB_STORE_CELLLOCATION");
+                                            psCellLocation.close();
+                                            timings.stop("cell_location", cellData.length());
                                         }
 
 
@@ -579,6 +597,8 @@ public class ResultResource extends ServerResource
                                         final JSONArray signalData = request.optJSONArray("signals");
 
                                         if (signalData != null && !test.hasError()) {
+                                            timings.start();
+                                            final PreparedStatement psSignal = Signal.prepareBatch(conn);
 
                                             for (int i = 0; i < signalData.length(); i++) {
 
@@ -623,7 +643,7 @@ public class ResultResource extends ServerResource
                                                 signal.setLte_cqi(lteCqi);
                                                 signal.setTime_ns(timeNs);
 
-                                                signal.storeSignal();
+                                                signal.addToBatch(psSignal);
 
                                                 if (networkType == 99) // wlan
                                                 {
@@ -640,14 +660,11 @@ public class ResultResource extends ServerResource
 
                                                 if (thisLinkSpeed != 0 && (minLinkSpeed == UNKNOWN || thisLinkSpeed < minLinkSpeed))
                                                     minLinkSpeed = thisLinkSpeed;
-
-                                                if (signal.hasError()) {
-                                                    errorList.addError(signal.getError());
-                                                    break;
-                                                }
-
                                             }
 
+                                            executeInsertBatch(psSignal, errorList, "ERROR_DB_STORE_SIGNAL");
+                                            psSignal.close();
+                                            timings.stop("signal", signalData.length());
                                         }
 
                                         // set rssi value (typically GSM,UMTS, but also old LTE-phones)
@@ -822,7 +839,9 @@ public class ResultResource extends ServerResource
                                             test.getField("status").setString("ERROR");
                                         }
 
+                                        timings.start();
                                         test.storeTestResults(false);
+                                        timings.stop("test", 1);
 
                                         if (test.hasError()) {
                                             errorList.addError(test.getError());
@@ -844,8 +863,15 @@ public class ResultResource extends ServerResource
                         errorList.addError("ERROR_TEST_TOKEN_MISSING");
                     }
 
+                    final boolean resultStored = !timings.isEmpty();
+                    timings.start();
                     conn.commit();
+                    timings.stop("commit", 0);
                     conn.setAutoCommit(oldAutoCommitState); // be nice and restore old state TODO: do it in finally
+
+                    if (resultStored) {
+                        Logger.getLogger(ResultResource.class.getName()).info("Stored result of test " + test.getUid() + " in " + timings);
+                    }
                 } else {
                     errorList.addError("ERROR_DB_CONNECTION");
                 }
@@ -884,4 +910,78 @@ public class ResultResource extends ServerResource
         return request(entity);
     }
     
+    /**
+     * Executes the inserts collected by the db classes and adds errorLabel
+     * (or errorLabel_SQL) to the error list, as their store methods do
+     * @param ps
+     * @param errorList
+     * @param errorLabel
+     */
+    private static void executeInsertBatch(final PreparedStatement ps, final ErrorList errorList, final String errorLabel)
+    {
+        try
+        {
+            for (final int count : ps.executeBatch())
+            {
+                if (count == 0 || count == Statement.EXECUTE_FAILED)
+                {
+                    errorList.addError(errorLabel);
+                    return;
+                }
+            }
+        }
+        catch (final SQLException e)
+        {
+            errorList.addError(errorLabel + "_SQL");
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Time spent storing the parts of one result, logged once per request
+     */
+    static class StoreTimings
+    {
+        private final StringBuilder parts = new StringBuilder();
+        private long start;
+        private long total;
+        
+        void start()
+        {
+            start = System.nanoTime();
+        }
+        
+        /**
+         * @param part the table or step
+         * @param rows number of rows written since {@link #start()}
+         */
+        void stop(final String part, final int rows)
+        {
+            final long duration = System.nanoTime() - start;
+            total += duration;
+            if (parts.length() > 0)
+                parts.append(", ");
+            parts.append(part).append(": ");
+            if (rows > 0)
+                parts.append(rows).append(rows == 1 ? " row " : " rows ");
+            parts.append(formatMillis(duration)).append(" ms");
+        }
+        
+        boolean isEmpty()
+        {
+            return parts.length() == 0;
+        }
+        
+        private static String formatMillis(final long nanos)
+        {
+            return String.format(Locale.US, "%.1f", nanos / 1e6);
+        }
+        
+        @Override
+        public String toString()
+        {
+            return formatMillis(total) + " ms (" + parts + ")";
+        }
+    }
+    
 }
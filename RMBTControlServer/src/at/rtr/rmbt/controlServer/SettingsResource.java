@@ -32,7 +32,7 @@ import org.restlet.resource.Post;
 
 import at.rtr.rmbt.db.Client;
 import at.rtr.rmbt.db.QoSTestTypeDesc;
-import at.rtr.rmbt.db.dao.QoSTestTypeDescDao;
+import at.rtr.rmbt.qos.QoSCatalog;
 import at.rtr.rmbt.shared.Helperfunctions;
 import at.rtr.rmbt.shared.ResourceManager;
 import at.rtr.rmbt.shared.RevisionHelper;
@@ -395,9 +395,8 @@ public class SettingsResource extends ServerResource
                         
                         try {
                             final Locale locale = new Locale(lang);
-                            final QoSTestTypeDescDao testTypeDao = new QoSTestTypeDescDao(conn, locale);
                             final JSONArray testTypeDescArray = new JSONArray();
-                            for (QoSTestTypeDesc desc : testTypeDao.getAll()) {
+                            for (QoSTestTypeDesc desc : QoSCatalog.getInstance().getTestTypeDescs(conn, locale)) {
                             	if (desc.getTestType()!=null) {
                             		//in case a qos module is not included but the entry hasn't beed removed from the db
 	                            	JSONObject json = new JSONObject();
@@ -14,7 +14,6 @@ import java.sql.*;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.UUID;
-import java.util.logging.Logger;
 
 public class SignalRegistrationResource extends ServerResource {
 
@@ -31,39 +30,12 @@ public class SignalRegistrationResource extends ServerResource {
 
         //code duplication from RegistrationResource
         final String geoIpCountry = GeoIPHelper.lookupCountry(clientAddress);
-        // public_ip_asn
-        Long asn;
-        // public_ip_as_name
-        // country_asn (2 digit country code of AS, eg. AT or EU)
-        String asName;
-        String asCountry;
-
-        //try AS resolution service 1
-        try {
-            final Helperfunctions.ASInformation asInformation = Helperfunctions.getASInformation(clientAddress);
-            if (asInformation != null) {
-                asn = asInformation.getNumber();
-                asName = asInformation.getName();
-                asCountry = asInformation.getCountry();
-            } else {
-                //if this fails, try AS resolution service 2
-                Logger.getGlobal().info("AS resolution failed with service A");
-                asn = Helperfunctions.getASN(clientAddress);
-                if (asn == null) {
-                    asName = null;
-                    asCountry = null;
-                } else {
-                    asName = Helperfunctions.getASName(asn);
-                    asCountry = Helperfunctions.getAScountry(asn);
-                }
-            }
-        } catch (RuntimeException e) {
-            Logger.getGlobal().info("As resolution threw an error");
-            e.printStackTrace();
-            asn = null;
-            asName = null;
-            asCountry = null;
-        }
+        // public_ip_asn, public_ip_as_name, country_asn (2 digit country code of AS, eg. AT or EU), public_ip_rdns;
+        // the AS is looked up if not cached (bounded wait), anything still missing is looked up after the test has been stored
+        final IpEnrichmentService.IpInfo ipInfo = IpEnrichmentService.getInstance().getInfo(clientAddress);
+        final Long asn = ipInfo.getAsn();
+        final String asName = ipInfo.getAsName();
+        final String asCountry = ipInfo.getAsCountry();
 
         if (entity != null && !entity.isEmpty()) {
             request = new JSONObject(entity);
@@ -108,8 +80,8 @@ public class SignalRegistrationResource extends ServerResource {
                 try {
                     PreparedStatement st = conn
                             .prepareStatement(
-                                    "INSERT INTO test(time, uuid, open_test_uuid, client_id, client_public_ip, client_public_ip_anonymized, timezone, client_time, public_ip_asn, public_ip_as_name, country_asn, public_ip_rdns, status, last_sequence_number)"
-                                            + "VALUES(NOW(), ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, -1)",
+                                    "INSERT INTO test(time, uuid, open_test_uuid, client_id, client_public_ip, client_public_ip_anonymized, timezone, client_time, public_ip_asn, public_ip_as_name, country_asn, public_ip_rdns, status, last_sequence_number, public_ip_enriched_at)"
+                                            + "VALUES(NOW(), ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, -1, CASE WHEN ? THEN NOW() END)",
                                     Statement.RETURN_GENERATED_KEYS);
                     int i = 1;
                     // uuid
@@ -141,16 +113,14 @@ public class SignalRegistrationResource extends ServerResource {
                     else
                         st.setString(i++, asCountry);
                     //public_ip_rdns
-                    String reverseDNS = Helperfunctions.reverseDNSLookup(clientAddress);
-                    if (reverseDNS == null || reverseDNS.isEmpty())
+                    if (ipInfo.getReverseDns() == null)
                         st.setNull(i++, Types.VARCHAR);
                     else
-                    {
-                        reverseDNS = reverseDNS.replaceFirst("\\.$", "");
-                        st.setString(i++, reverseDNS); // cut off last dot (#332)
-                    }
+                        st.setString(i++, ipInfo.getReverseDns());
                     //status
                     st.setString(i++, SignalResultResource.STATUS_SIGNAL_STARTED);
+                    //public_ip_enriched_at: set if nothing is left for the background enrichment
+                    st.setBoolean(i++, ipInfo.isComplete());
                     final int affectedRows = st.executeUpdate();
                     if (affectedRows == 0) {
                         errorList.addError("ERROR_DB_STORE_TEST");
@@ -164,6 +134,9 @@ public class SignalRegistrationResource extends ServerResource {
                             // key(s).
                             key = rs.getLong(1);
                         rs.close();
+                        
+                        if (!ipInfo.isComplete())
+                            IpEnrichmentService.getInstance().enrichTest(key, clientAddress);
 
                         //Get provider
                         final PreparedStatement getProviderSt = conn
@@ -22,6 +22,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.Calendar;
 import java.util.UUID;
 
@@ -29,6 +30,8 @@ import at.rtr.rmbt.shared.Helperfunctions;
 
 public class Cell_location
 {
+    private final static String SQL_INSERT = "INSERT INTO cell_location(open_test_uuid, test_id, time, location_id, area_code, primary_scrambling_code, time_ns) "
+            + "VALUES(?, ?, ?, ?, ?, ?,?)";
     
     private UUID open_test_uuid;
 	private long uid;
@@ -104,24 +107,14 @@ public class Cell_location
         PreparedStatement st;
         try
         {
-            st = conn.prepareStatement(
-                    "INSERT INTO cell_location(open_test_uuid, test_id, time, location_id, area_code, primary_scrambling_code, time_ns) "
-                            + "VALUES(?, ?, ?, ?, ?, ?,?)", Statement.RETURN_GENERATED_KEYS);
+            st = conn.prepareStatement(SQL_INSERT, Statement.RETURN_GENERATED_KEYS);
             
             /*
              * Timestamp geotstamp = java.sql.Timestamp.valueOf(new Timestamp(
              * this.time).toString());
              */
             
-            int i=1;
-            
-            st.setObject(i++,open_test_uuid);
-            st.setLong(i++, test_id);
-            st.setTimestamp(i++, time, timeZone);
-            st.setInt(i++, location_id);
-            st.setInt(i++, area_code);
-            st.setInt(i++, primary_scrambling_code);
-            st.setLong(i++, time_ns);
+            setParameters(st);
             
             //System.out.println(st.toString());
             
@@ -144,6 +137,43 @@ public class Cell_location
         }
     }
     
+    /**
+     * Prepares a statement to insert several cell locations with one round trip,
+     * see {@link #addToBatch(PreparedStatement)}
+     * @param conn
+     * @return
+     * @throws SQLException
+     */
+    public static PreparedStatement prepareBatch(final Connection conn) throws SQLException
+    {
+        return conn.prepareStatement(SQL_INSERT);
+    }
+    
+    /**
+     * Adds this cell location to a batch prepared by {@link #prepareBatch(Connection)};
+     * the uid is not available for batched cell locations
+     * @param st
+     * @throws SQLException
+     */
+    public void addToBatch(final PreparedStatement st) throws SQLException
+    {
+        setParameters(st);
+        st.addBatch();
+    }
+    
+    private void setParameters(final PreparedStatement st) throws SQLException
+    {
+        int i=1;
+        
+        st.setObject(i++, open_test_uuid, Types.OTHER);
+        st.setLong(i++, test_id);
+        st.setTimestamp(i++, time, timeZone);
+        st.setInt(i++, location_id);
+        st.setInt(i++, area_code);
+        st.setInt(i++, primary_scrambling_code);
+        st.setLong(i++, time_ns);
+    }
+    
     public boolean hasError()
     {
         return error;
@@ -18,16 +18,14 @@ package at.rtr.rmbt.db;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
-import org.apache.commons.dbutils.QueryRunner;
-import org.apache.commons.dbutils.handlers.MapListHandler;
-
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.Calendar;
-import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 
 import at.rtr.rmbt.shared.Helperfunctions;
@@ -35,6 +33,8 @@ import at.rtr.rmbt.shared.Helperfunctions;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class GeoLocation
 {
+    private final static String SQL_INSERT = "INSERT INTO geo_location(geo_location_uuid,open_test_uuid, test_id, time, accuracy, altitude, bearing, speed, provider, geo_lat, geo_long, location, time_ns, mock_location) "
+            + "VALUES(?,?,?,?,?,?,?,?,?,?,?, ST_TRANSFORM(ST_SetSRID(ST_Point(?, ?), 4326), 900913), ?,?)";
     
     private long uid;
     private UUID open_test_uuid;
@@ -101,41 +101,25 @@ public class GeoLocation
     
     public void storeLocation()
     {
-        PreparedStatement st;
         if (geo_location_uuid == null)
             geo_location_uuid = UUID.randomUUID();
 
-        try
+        try (PreparedStatement st = conn.prepareStatement(SQL_INSERT, Statement.RETURN_GENERATED_KEYS))
         {
-            QueryRunner qr = new QueryRunner();
-            String sql = "INSERT INTO geo_location(geo_location_uuid,open_test_uuid, test_id, time, accuracy, altitude, bearing, speed, provider, geo_lat, geo_long, location, time_ns, mock_location) "
-                    + "VALUES(?,?,?,?,?,?,?,?,?,?,?, ST_TRANSFORM(ST_SetSRID(ST_Point(?, ?), 4326), 900913), ?,?)";
-
-            //this will return some id
-            MapListHandler results = new MapListHandler();
-            List<Map<String, Object>> insert = qr.insert(conn, sql, results,
-                    geo_location_uuid,
-                    open_test_uuid,
-                    test_id,
-                    time,
-                    accuracy,
-                    altitude,
-                    bearing,
-                    speed,
-                    provider,
-                    geo_lat,
-                    geo_long,
-                    geo_long,
-                    geo_lat,
-                    time_ns,
-                    mock_location
-            );
-
-            if (insert.size() == 0)
+            setParameters(st);
+            
+            final int affectedRows = st.executeUpdate();
+            if (affectedRows == 0)
                 setError("ERROR_DB_STORE_GEOLOCATION");
             else
             {
-                uid = (Long) (insert.get(0).get("uid"));
+                try (ResultSet rs = st.getGeneratedKeys())
+                {
+                    if (rs.next())
+                        uid = rs.getLong("uid");
+                    else
+                        setError("ERROR_DB_STORE_GEOLOCATION");
+                }
             }
         }
         catch (final SQLException e)
@@ -145,6 +129,55 @@ public class GeoLocation
         }
     }
     
+    /**
+     * Prepares a statement to insert several locations with one round trip,
+     * see {@link #addToBatch(PreparedStatement)}
+     * @param conn
+     * @return
+     * @throws SQLException
+     */
+    public static PreparedStatement prepareBatch(final Connection conn) throws SQLException
+    {
+        return conn.prepareStatement(SQL_INSERT);
+    }
+    
+    /**
+     * Adds this location to a batch prepared by {@link #prepareBatch(Connection)};
+     * the uid is not available for batched locations
+     * @param st
+     * @throws SQLException
+     */
+    public void addToBatch(final PreparedStatement st) throws SQLException
+    {
+        if (geo_location_uuid == null)
+            geo_location_uuid = UUID.randomUUID();
+        
+        setParameters(st);
+        st.addBatch();
+    }
+    
+    private void setParameters(final PreparedStatement st) throws SQLException
+    {
+        int i = 1;
+        
+        st.setObject(i++, geo_location_uuid, Types.OTHER);
+        st.setObject(i++, open_test_uuid, Types.OTHER);
+        st.setLong(i++, test_id);
+        st.setObject(i++, time, Types.TIMESTAMP);
+        st.setObject(i++, accuracy, Types.REAL);
+        st.setObject(i++, altitude, Types.DOUBLE);
+        st.setObject(i++, bearing, Types.REAL);
+        st.setObject(i++, speed, Types.REAL);
+        st.setObject(i++, provider, Types.VARCHAR);
+        st.setObject(i++, geo_lat, Types.DOUBLE);
+        st.setObject(i++, geo_long, Types.DOUBLE);
+        // location: ST_Point takes x, y, i.e. longitude first
+        st.setObject(i++, geo_long, Types.DOUBLE);
+        st.setObject(i++, geo_lat, Types.DOUBLE);
+        st.setLong(i++, time_ns);
+        st.setObject(i++, mock_location, Types.BOOLEAN);
+    }
+    
     public boolean hasError()
     {
         return error;
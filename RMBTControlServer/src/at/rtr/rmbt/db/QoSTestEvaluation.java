@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.db;
+
+import java.io.Serializable;
+
+/**
+ * The stored evaluation of all qos results of a test in one language:
+ * the sums of the success and failure counters and the evaluated results with their descriptions (json),
+ * valid for the version of the qos catalog it has been evaluated with
+ * 
+ * @author lb
+ *
+ */
+public class QoSTestEvaluation implements Serializable {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+	
+	private long testUid;
+	private String lang;
+	private int successCounter;
+	private int failureCounter;
+	private String evaluation;
+	private long catalogVersion;
+	
+	public QoSTestEvaluation() {
+		
+	}
+
+	public long getTestUid() {
+		return testUid;
+	}
+
+	public void setTestUid(long testUid) {
+		this.testUid = testUid;
+	}
+
+	public String getLang() {
+		return lang;
+	}
+
+	public void setLang(String lang) {
+		this.lang = lang;
+	}
+
+	public int getSuccessCounter() {
+		return successCounter;
+	}
+
+	public void setSuccessCounter(int successCounter) {
+		this.successCounter = successCounter;
+	}
+
+	public int getFailureCounter() {
+		return failureCounter;
+	}
+
+	public void setFailureCounter(int failureCounter) {
+		this.failureCounter = failureCounter;
+	}
+
+	/**
+	 * 
+	 * @return the evaluation as json string, null if the test has not been evaluated (in this language) 
+	 */
+	public String getEvaluation() {
+		return evaluation;
+	}
+
+	public void setEvaluation(String evaluation) {
+		this.evaluation = evaluation;
+	}
+
+	/**
+	 * 
+	 * @return the version of the qos catalog (objectives and descriptions) used by the evaluation
+	 */
+	public long getCatalogVersion() {
+		return catalogVersion;
+	}
+
+	public void setCatalogVersion(long catalogVersion) {
+		this.catalogVersion = catalogVersion;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "QoSTestEvaluation [testUid=" + testUid + ", lang=" + lang
+				+ ", successCounter=" + successCounter + ", failureCounter=" + failureCounter 
+				+ ", catalogVersion=" + catalogVersion + ", evaluation=" + evaluation + "]";
+	}
+}
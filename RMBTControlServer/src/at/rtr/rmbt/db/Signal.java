@@ -32,6 +32,11 @@ public class Signal
 {
     final static int UNKNOWN = Integer.MIN_VALUE; 
     
+    private final static String SQL_INSERT = "INSERT INTO signal(" +
+            "open_test_uuid, test_id, time, network_type_id, signal_strength, gsm_bit_error_rate, wifi_link_speed, wifi_rssi, " +
+            "lte_rsrp, lte_rsrq, lte_rssnr, lte_cqi, time_ns) " +
+            "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    
     private UUID open_test_uuid;
     private long uid;
     private long test_id;
@@ -127,78 +132,9 @@ public class Signal
         PreparedStatement st;
         try
         {
-            st = conn.prepareStatement(
-                    "INSERT INTO signal(" +
-                    "open_test_uuid, test_id, time, network_type_id, signal_strength, gsm_bit_error_rate, wifi_link_speed, wifi_rssi, " +
-                    "lte_rsrp, lte_rsrq, lte_rssnr, lte_cqi, time_ns) " +
-                    "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+            st = conn.prepareStatement(SQL_INSERT, Statement.RETURN_GENERATED_KEYS);
           
-            int i = 1;
-            
-            // System.out.println(st2.toString());
-            st.setObject(i++,open_test_uuid);
-            
-            if (test_id == UNKNOWN)
-                st.setNull(i++, Types.BIGINT);
-            else
-                st.setLong(i++, test_id);
-            
-            if (time == null)
-                st.setNull(i++, Types.TIMESTAMP);
-            else
-                st.setTimestamp(i++, time, timeZone);
-            
-            if (network_type_id == UNKNOWN)
-                st.setNull(i++, Types.INTEGER);
-            else
-                st.setInt(i++, network_type_id);
-            
-            if (signal_strength == UNKNOWN ||
-                    (signal_strength >= 0 || signal_strength < -140))
-                st.setNull(i++, Types.INTEGER);
-            else
-                st.setInt(i++, signal_strength);
-            
-            if (gsm_bit_error_rate == UNKNOWN)
-                st.setNull(i++, Types.INTEGER);
-            else
-                st.setInt(i++, gsm_bit_error_rate);
-            
-            if (wifi_link_speed == UNKNOWN)
-                st.setNull(i++, Types.INTEGER);
-            else
-                st.setInt(i++, wifi_link_speed);
-            
-            if (wifi_rssi == UNKNOWN)
-                st.setNull(i++, Types.INTEGER);
-            else
-                st.setInt(i++, wifi_rssi);
-            
-            if (lte_rsrp == UNKNOWN ||
-                    (lte_rsrp >= 0 || lte_rsrp < -140 || (lte_rsrq != UNKNOWN && lte_rsrq == -1)))
-                st.setNull(i++, Types.INTEGER);
-            else
-                st.setInt(i++, lte_rsrp);
-            
-            if (lte_rsrq == UNKNOWN || (Math.abs(lte_rsrq) > 19.5 || Math.abs(lte_rsrq) < 3.0) || (lte_rsrq > 0))
-                st.setNull(i++, Types.INTEGER);
-            else
-                st.setInt(i++, lte_rsrq);
-            
-            if (lte_rssnr == UNKNOWN)
-                st.setNull(i++, Types.INTEGER);
-            else
-                st.setInt(i++, lte_rssnr);
-            
-            if (lte_cqi == UNKNOWN)
-                st.setNull(i++, Types.INTEGER);
-            else
-                st.setInt(i++, lte_cqi);
-            
-            if (time_ns == UNKNOWN)
-                st.setNull(i++, Types.BIGINT);
-            else
-                st.setLong(i++, time_ns);            
+            setParameters(st);
             
             // System.out.println(st2.toString());
             
@@ -221,6 +157,99 @@ public class Signal
         }
     }
     
+    /**
+     * Prepares a statement to insert several signals with one round trip,
+     * see {@link #addToBatch(PreparedStatement)}
+     * @param conn
+     * @return
+     * @throws SQLException
+     */
+    public static PreparedStatement prepareBatch(final Connection conn) throws SQLException
+    {
+        return conn.prepareStatement(SQL_INSERT);
+    }
+    
+    /**
+     * Adds this signal to a batch prepared by {@link #prepareBatch(Connection)};
+     * the uid is not available for batched signals
+     * @param st
+     * @throws SQLException
+     */
+    public void addToBatch(final PreparedStatement st) throws SQLException
+    {
+        setParameters(st);
+        st.addBatch();
+    }
+    
+    private void setParameters(final PreparedStatement st) throws SQLException
+    {
+        int i = 1;
+        
+        st.setObject(i++, open_test_uuid, Types.OTHER);
+        
+        if (test_id == UNKNOWN)
+            st.setNull(i++, Types.BIGINT);
+        else
+            st.setLong(i++, test_id);
+        
+        if (time == null)
+            st.setNull(i++, Types.TIMESTAMP);
+        else
+            st.setTimestamp(i++, time, timeZone);
+        
+        if (network_type_id == UNKNOWN)
+            st.setNull(i++, Types.INTEGER);
+        else
+            st.setInt(i++, network_type_id);
+        
+        if (signal_strength == UNKNOWN ||
+                (signal_strength >= 0 || signal_strength < -140))
+            st.setNull(i++, Types.INTEGER);
+        else
+            st.setInt(i++, signal_strength);
+        
+        if (gsm_bit_error_rate == UNKNOWN)
+            st.setNull(i++, Types.INTEGER);
+        else
+            st.setInt(i++, gsm_bit_error_rate);
+        
+        if (wifi_link_speed == UNKNOWN)
+            st.setNull(i++, Types.INTEGER);
+        else
+            st.setInt(i++, wifi_link_speed);
+        
+        if (wifi_rssi == UNKNOWN)
+            st.setNull(i++, Types.INTEGER);
+        else
+            st.setInt(i++, wifi_rssi);
+        
+        if (lte_rsrp == UNKNOWN ||
+                (lte_rsrp >= 0 || lte_rsrp < -140 || (lte_rsrq != UNKNOWN && lte_rsrq == -1)))
+            st.setNull(i++, Types.INTEGER);
+        else
+            st.setInt(i++, lte_rsrp);
+        
+        if (lte_rsrq == UNKNOWN || (Math.abs(lte_rsrq) > 19.5 || Math.abs(lte_rsrq) < 3.0) || (lte_rsrq > 0))
+            st.setNull(i++, Types.INTEGER);
+        else
+            st.setInt(i++, lte_rsrq);
+        
+        if (lte_rssnr == UNKNOWN)
+            st.setNull(i++, Types.INTEGER);
+        else
+            st.setInt(i++, lte_rssnr);
+        
+        if (lte_cqi == UNKNOWN)
+            st.setNull(i++, Types.INTEGER);
+        else
+            st.setInt(i++, lte_cqi);
+        
+        if (time_ns == UNKNOWN)
+            st.setNull(i++, Types.BIGINT);
+        else
+            st.setLong(i++, time_ns);
+    }
+    
     public boolean hasError()
     {
         return error;
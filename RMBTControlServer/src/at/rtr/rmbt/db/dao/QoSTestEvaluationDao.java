@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.db.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import at.rtr.rmbt.db.QoSTestEvaluation;
+import at.rtr.rmbt.qos.QoSUtil.TestUuid.UuidType;
+
+/**
+ * 
+ * @author lb
+ *
+ */
+public class QoSTestEvaluationDao {
+
+	private final Connection conn;
+	
+	/**
+	 * 
+	 * @param conn
+	 */
+	public QoSTestEvaluationDao(final Connection conn) {
+		this.conn = conn;
+	}
+	
+	/**
+	 * looks up a test and its stored evaluation with a single query
+	 * @param uuidType
+	 * @param uuid
+	 * @param lang
+	 * @param catalogVersion the version of the current qos catalog, evaluations of other versions are ignored
+	 * @return null if there is no such test; the evaluation of the returned item is null if the test has not been evaluated 
+	 * in this language and with this catalog version yet
+	 * @throws SQLException
+	 */
+	public QoSTestEvaluation getByTestUuid(final UuidType uuidType, final UUID uuid, final String lang, final long catalogVersion) throws SQLException {
+		final String uuidColumn = UuidType.OPEN_TEST_UUID.equals(uuidType) ? "open_test_uuid" : "uuid";
+		try (PreparedStatement ps = conn.prepareStatement("SELECT t.uid AS test_uid, e.lang, e.success_count, e.failure_count, e.evaluation, e.catalog_version FROM test t "
+				+ " JOIN client c ON c.uid = t.client_id "
+				+ " LEFT JOIN qos_test_evaluation e ON e.test_uid = t.uid AND e.lang = ? AND e.catalog_version = ? "
+				+ " WHERE t.deleted = false AND t.implausible = false AND t." + uuidColumn + " = ?"))
+		{
+			ps.setString(1, lang);
+			ps.setLong(2, catalogVersion);
+			ps.setObject(3, uuid);
+			
+			try (ResultSet rs = ps.executeQuery())
+			{
+				if (rs.next()) {
+					final QoSTestEvaluation evaluation = instantiateItem(rs);
+					evaluation.setLang(lang);
+					return evaluation;
+				}
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * inserts or replaces the evaluation of a test in a language; an evaluation of a newer catalog version is not replaced
+	 * @param evaluation
+	 * @return
+	 * @throws SQLException
+	 */
+	public int save(final QoSTestEvaluation evaluation) throws SQLException {
+		try (PreparedStatement ps = conn.prepareStatement("INSERT INTO qos_test_evaluation (test_uid, lang, success_count, failure_count, evaluation, catalog_version) VALUES (?,?,?,?,?::json,?)"
+				+ " ON CONFLICT (test_uid, lang) DO UPDATE SET success_count = EXCLUDED.success_count, failure_count = EXCLUDED.failure_count,"
+				+ " evaluation = EXCLUDED.evaluation, catalog_version = EXCLUDED.catalog_version, time = now()"
+				+ " WHERE qos_test_evaluation.catalog_version <= EXCLUDED.catalog_version"))
+		{
+			ps.setLong(1, evaluation.getTestUid());
+			ps.setString(2, evaluation.getLang());
+			ps.setInt(3, evaluation.getSuccessCounter());
+			ps.setInt(4, evaluation.getFailureCounter());
+			ps.setString(5, evaluation.getEvaluation());
+			ps.setLong(6, evaluation.getCatalogVersion());
+			return ps.executeUpdate();
+		}
+	}
+	
+	/**
+	 * 
+	 * @param rs
+	 * @return
+	 * @throws SQLException 
+	 */
+	private static QoSTestEvaluation instantiateItem(final ResultSet rs) throws SQLException {
+		final QoSTestEvaluation result = new QoSTestEvaluation();
+		
+		result.setTestUid(rs.getLong("test_uid"));
+		result.setLang(rs.getString("lang"));
+		result.setSuccessCounter(rs.getInt("success_count"));
+		result.setFailureCounter(rs.getInt("failure_count"));
+		result.setEvaluation(rs.getString("evaluation"));
+		result.setCatalogVersion(rs.getLong("catalog_version"));
+		
+		return result;
+	}
+}
@@ -0,0 +1,304 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.qos;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import at.rtr.rmbt.db.QoSTestDesc;
+import at.rtr.rmbt.db.QoSTestObjective;
+import at.rtr.rmbt.db.QoSTestTypeDesc;
+import at.rtr.rmbt.db.dao.QoSTestDescDao;
+import at.rtr.rmbt.db.dao.QoSTestObjectiveDao;
+import at.rtr.rmbt.db.dao.QoSTestTypeDescDao;
+
+/**
+ * In-memory catalog of the qos test objectives (<code>qos_test_objective</code>), the translations (<code>qos_test_desc</code>)
+ * and the test type descriptions (<code>qos_test_type_desc</code>), which only change on deployments.
+ * <p>
+ * The catalog is loaded on startup and reloaded when its version in the database (<code>qos_catalog_version_seq</code>,
+ * incremented by a trigger on every change of the tables) differs from the loaded one. The version is checked at most
+ * every {@link #VERSION_CHECK_INTERVAL_MS} and with the admin resource <code>/admin/qosObjectives</code>.
+ * Every load creates a new immutable catalog, so readers never see a partially loaded catalog.
+ * The stored qos evaluations are only valid for the catalog version they have been evaluated with.
+ * The test type descriptions are resolved per language on first use of a version.
+ *
+ * @author lb
+ *
+ */
+public class QoSCatalog {
+
+	private final static String DEFAULT_LANGUAGE = "en";
+
+	public final static long VERSION_CHECK_INTERVAL_MS = 60000;
+
+	private final static QoSCatalog instance = new QoSCatalog();
+
+	/**
+	 *
+	 * @author lb
+	 *
+	 */
+	private final static class Catalog {
+		private final long version;
+		private final long loadedTimestamp = System.currentTimeMillis();
+
+		/**
+		 * desc_key -> lang -> value
+		 */
+		private final Map<String, Map<String, String>> descriptions;
+
+		private final List<QoSTestObjective> objectives;
+
+		/**
+		 * lang -> test type descriptions
+		 */
+		private final ConcurrentMap<String, List<QoSTestTypeDesc>> testTypeDescs = new ConcurrentHashMap<>();
+
+		private Catalog(final long version, final Map<String, Map<String, String>> descriptions, final List<QoSTestObjective> objectives) {
+			this.version = version;
+			this.descriptions = descriptions;
+			this.objectives = objectives;
+		}
+	}
+
+	private volatile Catalog catalog;
+
+	private final AtomicLong lastVersionCheck = new AtomicLong();
+
+	public static QoSCatalog getInstance() {
+		return instance;
+	}
+
+	private QoSCatalog() {
+	}
+
+	/**
+	 * (re)loads the catalog from the database
+	 * @param conn
+	 * @return the version of the loaded catalog
+	 * @throws SQLException
+	 */
+	public synchronized long load(final Connection conn) throws SQLException {
+		//read the version first: a change during the load leads to another load with the next check
+		final long version = getDatabaseVersion(conn);
+		lastVersionCheck.set(System.currentTimeMillis());
+		
+		final Map<String, Map<String, String>> descriptions = new HashMap<>();
+		for (final Map.Entry<String, List<QoSTestDesc>> e : new QoSTestDescDao(conn, null).getAllToMapIgnoreLang().entrySet()) {
+			final Map<String, String> values = new HashMap<>();
+			for (final QoSTestDesc desc : e.getValue()) {
+				values.put(desc.getLang(), desc.getValue());
+			}
+			descriptions.put(e.getKey(), values);
+		}
+
+		final List<QoSTestObjective> objectives = new QoSTestObjectiveDao(conn).getAll();
+
+		final Catalog newCatalog = new Catalog(version, descriptions, Collections.unmodifiableList(objectives));
+		catalog = newCatalog;
+
+		System.out.println("QoS catalog version " + newCatalog.version + " loaded: " + objectives.size() + " objectives, "
+				+ descriptions.size() + " descriptions");
+
+		return newCatalog.version;
+	}
+
+	/**
+	 * reloads the catalog if its version in the database differs from the loaded one
+	 * @param conn
+	 * @return true if the catalog has been (re)loaded
+	 * @throws SQLException
+	 */
+	public synchronized boolean reloadIfChanged(final Connection conn) throws SQLException {
+		lastVersionCheck.set(System.currentTimeMillis());
+		final Catalog c = catalog;
+		if (c == null || c.version != getDatabaseVersion(conn)) {
+			load(conn);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param conn
+	 * @return the version in the database: 0 until the catalog is changed for the first time
+	 * (last_value of a sequence never called is its start value, the same as after the first change)
+	 * @throws SQLException
+	 */
+	private static long getDatabaseVersion(final Connection conn) throws SQLException {
+		try (PreparedStatement ps = conn.prepareStatement("SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM qos_catalog_version_seq");
+				ResultSet rs = ps.executeQuery()) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 *
+	 * @param conn used if the catalog has not been loaded yet or its version is due to be checked
+	 * @return
+	 * @throws SQLException
+	 */
+	private Catalog getCatalog(final Connection conn) throws SQLException {
+		Catalog c = catalog;
+		if (c == null) {
+			synchronized (this) {
+				if (catalog == null) {
+					load(conn);
+				}
+				c = catalog;
+			}
+		}
+		else {
+			//only one request checks the version per interval, the others use the current catalog meanwhile
+			final long lastCheck = lastVersionCheck.get();
+			final long now = System.currentTimeMillis();
+			if (now - lastCheck > VERSION_CHECK_INTERVAL_MS && lastVersionCheck.compareAndSet(lastCheck, now)) {
+				reloadIfChanged(conn);
+				c = catalog;
+			}
+		}
+		return c;
+	}
+
+	/**
+	 *
+	 * @return the version of the current catalog, 0 if it has not been loaded yet
+	 */
+	public long getVersion() {
+		final Catalog c = catalog;
+		return c != null ? c.version : 0;
+	}
+
+	/**
+	 * the version to store with an evaluation: read it before evaluating, so an evaluation with a catalog
+	 * replaced meanwhile is stored with the older version and evaluated again
+	 * @param conn used if the catalog has not been loaded yet or its version is due to be checked
+	 * @return the version of the current catalog
+	 * @throws SQLException
+	 */
+	public long getVersion(final Connection conn) throws SQLException {
+		return getCatalog(conn).version;
+	}
+
+	/**
+	 *
+	 * @return the time the current catalog has been loaded (ms), 0 if it has not been loaded yet
+	 */
+	public long getLoadedTimestamp() {
+		final Catalog c = catalog;
+		return c != null ? c.loadedTimestamp : 0;
+	}
+
+	/**
+	 * the translations of the given keys, in english if there is no translation to the requested language
+	 * (same as {@link QoSTestDescDao#getAllByKeyToMap(Collection)})
+	 * @param conn
+	 * @param locale
+	 * @param keys
+	 * @return desc_key -> value; keys without translation are missing
+	 * @throws SQLException
+	 */
+	public Map<String, String> getDescriptions(final Connection conn, final Locale locale, final Collection<String> keys) throws SQLException {
+		final Catalog c = getCatalog(conn);
+		final Map<String, String> resultMap = new HashMap<>();
+		for (final String key : keys) {
+			final String value = getDescription(c, locale, key);
+			if (value != null) {
+				resultMap.put(key, value);
+			}
+		}
+		return resultMap;
+	}
+
+	/**
+	 * sets the translated values of the result descriptions, descriptions without key are removed
+	 * (same as {@link QoSTestDescDao#loadToTestDesc(Collection)})
+	 * @param conn
+	 * @param locale
+	 * @param resultCollection
+	 * @throws SQLException
+	 */
+	public void loadToTestDesc(final Connection conn, final Locale locale, final Collection<ResultDesc> resultCollection) throws SQLException {
+		final Catalog c = getCatalog(conn);
+		final Iterator<ResultDesc> iterator = resultCollection.iterator();
+		while (iterator.hasNext()) {
+			final ResultDesc desc = iterator.next();
+			if (desc.getKey() != null) {
+				desc.setValue(getDescription(c, locale, desc.getKey()));
+			}
+			else {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static String getDescription(final Catalog c, final Locale locale, final String key) {
+		final Map<String, String> values = c.descriptions.get(key);
+		if (values == null) {
+			return null;
+		}
+		final String value = values.get(locale.getLanguage());
+		return value != null ? value : values.get(DEFAULT_LANGUAGE);
+	}
+
+	/**
+	 *
+	 * @param conn used to resolve the test type descriptions of a language once per catalog version
+	 * @param locale
+	 * @return the test type descriptions (same as {@link QoSTestTypeDescDao#getAll()}), must not be modified
+	 * @throws SQLException
+	 */
+	public List<QoSTestTypeDesc> getTestTypeDescs(final Connection conn, final Locale locale) throws SQLException {
+		final Catalog c = getCatalog(conn);
+		List<QoSTestTypeDesc> testTypeDescs = c.testTypeDescs.get(locale.getLanguage());
+		if (testTypeDescs == null) {
+			testTypeDescs = Collections.unmodifiableList(new QoSTestTypeDescDao(conn, locale).getAll());
+			c.testTypeDescs.putIfAbsent(locale.getLanguage(), testTypeDescs);
+		}
+		return testTypeDescs;
+	}
+
+	/**
+	 *
+	 * @param conn
+	 * @param testClass
+	 * @return the objectives of the test class (same as {@link QoSTestObjectiveDao#getByTestClass(Integer...)}), must not be modified
+	 * @throws SQLException
+	 */
+	public List<QoSTestObjective> getObjectives(final Connection conn, final int testClass) throws SQLException {
+		final List<QoSTestObjective> objectives = new ArrayList<>();
+		for (final QoSTestObjective objective : getCatalog(conn).objectives) {
+			if (objective.getTestClass() == testClass) {
+				objectives.add(objective);
+			}
+		}
+		return objectives;
+	}
+}
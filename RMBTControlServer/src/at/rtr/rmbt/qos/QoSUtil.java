@@ -17,7 +17,9 @@
 package at.rtr.rmbt.qos;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -34,14 +36,13 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import at.rtr.rmbt.controlServer.ErrorList;
-import at.rtr.rmbt.db.Client;
+import at.rtr.rmbt.db.QoSTestEvaluation;
 import at.rtr.rmbt.db.QoSTestResult;
 import at.rtr.rmbt.db.QoSTestResult.TestType;
 import at.rtr.rmbt.db.QoSTestTypeDesc;
-import at.rtr.rmbt.db.Test;
-import at.rtr.rmbt.db.dao.QoSTestDescDao;
+import at.rtr.rmbt.db.dao.QoSTestEvaluationDao;
 import at.rtr.rmbt.db.dao.QoSTestResultDao;
-import at.rtr.rmbt.db.dao.QoSTestTypeDescDao;
+import at.rtr.rmbt.qos.QoSUtil.TestUuid.UuidType;
 import at.rtr.rmbt.qos.testscript.TestScriptInterpreter;
 import at.rtr.rmbt.shared.hstoreparser.Hstore;
 import at.rtr.rmbt.shared.hstoreparser.HstoreParseException;
@@ -93,7 +94,8 @@ public class QoSUtil {
 	}
 	
 	/**
-	 * 
+	 * puts the evaluation of the qos results of a test to the answer; the evaluation is read from the store
+	 * or, if the test has not been evaluated in this language yet (or the objectives have changed since), evaluated and stored
 	 * @param settings
 	 * @param conn
 	 * @param answer
@@ -121,196 +123,45 @@ public class QoSUtil {
         
         if (conn != null)
         {
-        	
-            final Client client = new Client(conn);
-            final Test test = new Test(conn);
+            final long timeStampFullEval = System.currentTimeMillis();
             
-            boolean necessaryDataAvailable = false;
+            final QoSTestEvaluationDao evaluationDao = new QoSTestEvaluationDao(conn);
+            QoSTestEvaluation evaluation = null;
             
             if (uuid != null && uuid.getType() != null && uuid.getUuid() != null) {
-            	switch (uuid.getType()) {
-            	case OPEN_TEST_UUID:
-            		if (test.getTestByOpenTestUuid(UUID.fromString(uuid.getUuid())) > 0
-            				&& client.getClientByUid(test.getField("client_id").intValue())) {
-            			necessaryDataAvailable = true;
-            		}
-            		break;
-            	case TEST_UUID:
-            		if (test.getTestByUuid(UUID.fromString(uuid.getUuid())) > 0
-            				&& client.getClientByUid(test.getField("client_id").intValue())) {
-            			necessaryDataAvailable = true;
-            		}
-            		break;
-            	}
+            	evaluation = evaluationDao.getByTestUuid(uuid.getType(), UUID.fromString(uuid.getUuid()), lang, 
+            			QoSCatalog.getInstance().getVersion(conn));
             }
             
-            final long timeStampFullEval = System.currentTimeMillis();
-            
-            if (necessaryDataAvailable)
+            if (evaluation != null)
             {
-                                      
                 final Locale locale = new Locale(lang);
-                final ResultOptions resultOptions = new ResultOptions(locale);
-                final JSONArray resultList = new JSONArray();
+                long evalTime = 0;
                 
-                QoSTestResultDao resultDao = new QoSTestResultDao(conn);
-                List<QoSTestResult> testResultList = resultDao.getByTestUid(test.getUid());
-                if (testResultList == null || testResultList.isEmpty()) {
-                	throw new UnsupportedOperationException("test " + test + " has no result list");
-                }
-                //map that contains all test types and their result descriptions determined by the test result <-> test objectives comparison
-            	Map<TestType,TreeSet<ResultDesc>> resultKeys = new HashMap<>();
-            	
-            	//test description set:
-            	Set<String> testDescSet = new TreeSet<>();
-            	//test summary set:
-            	Set<String> testSummarySet = new TreeSet<>();
-
-            	
-            	//Staring timestamp for evaluation time measurement
-            	final long timeStampEval = System.currentTimeMillis();
-            	
-                //iterate through all result entries
-                for (final QoSTestResult testResult : testResultList) {
-                	
-                	//reset test counters
-                	testResult.setFailureCounter(0);
-                	testResult.setSuccessCounter(0);
+                if (evaluation.getEvaluation() == null) {
+                	final long timeStampEval = System.currentTimeMillis();
                 	
-                	//get the correct class of the result;
-                	TestType testType = null;
-                	try {
-                		testType = TestType.valueOf(testResult.getTestType().toUpperCase(Locale.US));
+                	final List<QoSTestResult> testResultList = new QoSTestResultDao(conn).getByTestUid(evaluation.getTestUid());
+                	evaluation = evaluateTest(conn, evaluation.getTestUid(), testResultList, lang, errorList);
+                	if (evaluation == null) {
+                		throw new UnsupportedOperationException("test " + uuid.getUuid() + " has no result list");
                 	}
-                	catch(IllegalArgumentException e) {
-                		final String errorMessage = "WARNING: QoS TestType '" + testResult.getTestType().toUpperCase(Locale.US) + "' not supported by ControlServer. Test with UID: " + testResult.getUid() + " skipped.";
-                		System.out.println(errorMessage);
-                		errorList.addErrorString(errorMessage);
-                		testType = null;
-                	}
-                	
-                	if (testType == null) {
-                		continue;
-                	}
-                	
-                	Class<? extends AbstractResult<?>> clazz = testType.getClazz();
-                	//parse hstore data
-                	if (testResult.getResults() != null) {
-	                	final JSONObject resultJson = new JSONObject(testResult.getResults());
-	                	AbstractResult<?> result = QoSUtil.HSTORE_PARSER.fromJSON(resultJson, clazz);
-	                	result.setResultJson(resultJson);
-	                	
-	                	if (result != null) {
-	                		//add each test description key to the testDescSet (to fetch it later from the db)
-	                		if (testResult.getTestDescription() != null) {
-	                    		testDescSet.add(testResult.getTestDescription());	
-	                		}
-	                		if (testResult.getTestSummary() != null) {
-	                			testSummarySet.add(testResult.getTestSummary());
-	                		}
-	                		testResult.setResult(result);
-	
-	                	}
-	
-	                	//compare test results
-	                	compareTestResults(testResult, result, resultKeys, testType, resultOptions);
-                	}
-
-                	//resultList.put(testResult.toJson());
                 	
-                    //save all test results after the success and failure counters have been set
-                	//resultDao.updateCounter(testResult);
-                }
-                
-            	//ending timestamp for evaluation time measurement
-            	final long timeStampEvalEnd = System.currentTimeMillis();
-                                       
-                //-------------------------------------------------------------
-                //fetch all result strings from the db
-                QoSTestDescDao descDao = new QoSTestDescDao(conn, locale);
-
-                //FIRST: get all test descriptions
-                Set<String> testDescToFetchSet = testDescSet;
-                testDescToFetchSet.addAll(testSummarySet);
-
-                Map<String, String> testDescMap = descDao.getAllByKeyToMap(testDescToFetchSet);
-                
-                for (QoSTestResult testResult : testResultList) {
+                	evalTime = System.currentTimeMillis() - timeStampEval;
                 	
-                    //and set the test results + put each one to the result list json array
-                	String preParsedDesc = testDescMap.get(testResult.getTestDescription());
-                	if (preParsedDesc != null) {
-                    	String description = String.valueOf(TestScriptInterpreter.interprete(testDescMap.get(testResult.getTestDescription()), 
-                    			QoSUtil.HSTORE_PARSER, testResult.getResult(), true, resultOptions));
-                    	testResult.setTestDescription(description);
+                	try {
+                		evaluationDao.save(evaluation);
                 	}
-
-                	//do the same for the test summary:
-                	String preParsedSummary = testDescMap.get(testResult.getTestSummary());
-                	if (preParsedSummary != null) {
-                    	String description = String.valueOf(TestScriptInterpreter.interprete(testDescMap.get(testResult.getTestSummary()), 
-                    			QoSUtil.HSTORE_PARSER, testResult.getResult(), true, resultOptions));
-                    	testResult.setTestSummary(description);
+                	catch (final SQLException e) {
+                		//the evaluation is stored with the next request
+                		e.printStackTrace();
                 	}
-
-               		final JSONObject resultJsonObject = testResult.toJson(uuid.getType());
-               		if (resultJsonObject != null) {
-               			resultList.put(resultJsonObject);
-               		}
-                }
-                
-                //finally put results to json
-                if (resultList != null && resultList.length() > 0) {
-                	answer.put("testresultdetail", resultList);
                 }
                 
-                JSONArray resultDescArray = new JSONArray();
-                
-                //SECOND: fetch all test result descriptions 
-                for (TestType testType : resultKeys.keySet()) {
-                	TreeSet<ResultDesc> descSet = resultKeys.get(testType);
-                	//fetch results to same object
-                    descDao.loadToTestDesc(descSet);
-
-                    //another tree set for duplicate entries:
-                    //TODO: there must be a better solution 
-                    //(the issue is: compareTo() method returns differnt values depending on the .value attribute (if it's set or not))
-                    TreeSet<ResultDesc> descSetNew = new TreeSet<>();
-                    //add fetched results to json
-                                        
-                    for (ResultDesc desc : descSet) {
-                    	if (!qosCapability.isSupportsInfo()) {
-                    		if (ResultDesc.STATUS_CODE_INFO.equals(desc.getStatusCode())) {
-                    			continue;
-                    		}
-                    	}
-                    	
-                    	if (!descSetNew.contains(desc)) {
-                        	descSetNew.add(desc);
-                    	}
-                    	else {
-                    		for (ResultDesc d : descSetNew) {
-                    			if (d.compareTo(desc) == 0) {
-                    				d.getTestResultUidList().addAll(desc.getTestResultUidList());
-                    			}
-                    		}
-                    	}
-                    }
-                    
-                    for (ResultDesc desc : descSetNew) {
-                    	if (desc.getValue() != null) {
-                            resultDescArray.put(desc.toJson());	
-                    	}	
-                    }
-                    
-                }
-                //System.out.println(resultDescArray);
-                //put result descriptions to json
-                answer.put("testresultdetail_desc", resultDescArray);
+                putEvaluation(answer, new JSONObject(evaluation.getEvaluation()), uuid.getType(), qosCapability);
 
-                QoSTestTypeDescDao testTypeDao = new QoSTestTypeDescDao(conn, locale);
                 JSONArray testTypeDescArray = new JSONArray();
-                for (QoSTestTypeDesc desc : testTypeDao.getAll()) {
+                for (QoSTestTypeDesc desc : QoSCatalog.getInstance().getTestTypeDescs(conn, locale)) {
                 	final JSONObject testTypeDesc = desc.toJson();
                 	if (testTypeDesc != null) {
                 		testTypeDescArray.put(testTypeDesc);
@@ -320,11 +171,9 @@ public class QoSUtil {
                 //put result descriptions to json
                 answer.put("testresultdetail_testdesc", testTypeDescArray);
                 JSONObject evalTimes = new JSONObject();
-                evalTimes.put("eval", (timeStampEvalEnd - timeStampEval));
+                evalTimes.put("eval", evalTime);
                 evalTimes.put("full", (System.currentTimeMillis() - timeStampFullEval));
                 answer.put("eval_times", evalTimes);
-
-                //System.out.println(answer);
             }
             else
                 errorList.addError("ERROR_REQUEST_TEST_RESULT_DETAIL_NO_UUID");
@@ -334,6 +183,265 @@ public class QoSUtil {
             errorList.addError("ERROR_DB_CONNECTION");
 	}
 	
+	/**
+	 * evaluates the qos results of a new test: the success and failure counters of the results are updated
+	 * and the evaluation is stored for each supported language, so reading it later does not need to evaluate the results again
+	 * @param settings
+	 * @param conn
+	 * @param testUid
+	 * @param lang the language of the client, evaluated first
+	 * @param errorList
+	 * @throws SQLException
+	 * @throws HstoreParseException
+	 * @throws JSONException
+	 * @throws IllegalArgumentException
+	 * @throws IllegalAccessException
+	 */
+	public static void evaluateAndStore(final ResourceBundle settings, final Connection conn, final long testUid, final String lang, 
+			final ErrorList errorList) throws SQLException, HstoreParseException, JSONException, IllegalArgumentException, IllegalAccessException {
+		final List<String> langs = new ArrayList<>(Arrays.asList(settings.getString("RMBT_SUPPORTED_LANGUAGES").split(",\\s*")));
+		if (langs.remove(lang)) {
+			langs.add(0, lang);
+		}
+		
+		final QoSTestResultDao resultDao = new QoSTestResultDao(conn);
+		final QoSTestEvaluationDao evaluationDao = new QoSTestEvaluationDao(conn);
+		boolean countersUpdated = false;
+		
+		for (final String evaluationLang : langs) {
+			//the results are changed by the evaluation (counters, descriptions)
+			final List<QoSTestResult> testResultList = resultDao.getByTestUid(testUid);
+			final QoSTestEvaluation evaluation = evaluateTest(conn, testUid, testResultList, evaluationLang, countersUpdated ? new ErrorList() : errorList);
+			if (evaluation == null) {
+				return;
+			}
+			
+			if (!countersUpdated) {
+                //update all test results after the success and failure counters have been set
+				try (PreparedStatement updateCounterPs = resultDao.getUpdateCounterPreparedStatement()) {
+					for (final QoSTestResult testResult : testResultList) {
+						resultDao.updateCounter(testResult, updateCounterPs);
+					}
+				}
+				countersUpdated = true;
+			}
+			
+			evaluationDao.save(evaluation);
+		}
+	}
+	
+	/**
+	 * evaluates the qos results of a test: compares the results with the test objectives and resolves all descriptions
+	 * @param conn
+	 * @param testUid
+	 * @param testResultList the results of the test, their counters are set by the evaluation
+	 * @param lang
+	 * @param errorList
+	 * @return the evaluation (with the results in the form of {@link UuidType#TEST_UUID} and including info descriptions), 
+	 * null if the test has no qos results
+	 * @throws SQLException
+	 * @throws HstoreParseException
+	 * @throws JSONException
+	 * @throws IllegalArgumentException
+	 * @throws IllegalAccessException
+	 */
+	public static QoSTestEvaluation evaluateTest(final Connection conn, final long testUid, final List<QoSTestResult> testResultList, 
+			final String lang, final ErrorList errorList) throws SQLException, HstoreParseException, JSONException, IllegalArgumentException, IllegalAccessException {
+        if (testResultList == null || testResultList.isEmpty()) {
+        	return null;
+        }
+        
+        final long catalogVersion = QoSCatalog.getInstance().getVersion(conn);
+        final Locale locale = new Locale(lang);
+        final ResultOptions resultOptions = new ResultOptions(locale);
+        final JSONArray resultList = new JSONArray();
+        final JSONObject evaluationJson = new JSONObject();
+        
+        //map that contains all test types and their result descriptions determined by the test result <-> test objectives comparison
+    	Map<TestType,TreeSet<ResultDesc>> resultKeys = new HashMap<>();
+    	
+    	//test description set:
+    	Set<String> testDescSet = new TreeSet<>();
+    	//test summary set:
+    	Set<String> testSummarySet = new TreeSet<>();
+
+    	int successCounter = 0;
+    	int failureCounter = 0;
+    	
+        //iterate through all result entries
+        for (final QoSTestResult testResult : testResultList) {
+        	
+        	//reset test counters
+        	testResult.setFailureCounter(0);
+        	testResult.setSuccessCounter(0);
+        	
+        	//get the correct class of the result;
+        	TestType testType = null;
+        	try {
+        		testType = TestType.valueOf(testResult.getTestType().toUpperCase(Locale.US));
+        	}
+        	catch(IllegalArgumentException e) {
+        		final String errorMessage = "WARNING: QoS TestType '" + testResult.getTestType().toUpperCase(Locale.US) + "' not supported by ControlServer. Test with UID: " + testResult.getUid() + " skipped.";
+        		System.out.println(errorMessage);
+        		errorList.addErrorString(errorMessage);
+        		testType = null;
+        	}
+        	
+        	if (testType == null) {
+        		continue;
+        	}
+        	
+        	Class<? extends AbstractResult<?>> clazz = testType.getClazz();
+        	//parse hstore data
+        	if (testResult.getResults() != null) {
+            	final JSONObject resultJson = new JSONObject(testResult.getResults());
+            	AbstractResult<?> result = QoSUtil.HSTORE_PARSER.fromJSON(resultJson, clazz);
+            	result.setResultJson(resultJson);
+            	
+            	if (result != null) {
+            		//add each test description key to the testDescSet (to fetch it later from the db)
+            		if (testResult.getTestDescription() != null) {
+                		testDescSet.add(testResult.getTestDescription());	
+            		}
+            		if (testResult.getTestSummary() != null) {
+            			testSummarySet.add(testResult.getTestSummary());
+            		}
+            		testResult.setResult(result);
+
+            	}
+
+            	//compare test results
+            	compareTestResults(testResult, result, resultKeys, testType, resultOptions);
+            	
+            	successCounter += testResult.getSuccessCounter();
+            	failureCounter += testResult.getFailureCounter();
+        	}
+        }
+        
+        //-------------------------------------------------------------
+        //fetch all result strings from the catalog
+        final QoSCatalog catalog = QoSCatalog.getInstance();
+
+        //FIRST: get all test descriptions
+        Set<String> testDescToFetchSet = testDescSet;
+        testDescToFetchSet.addAll(testSummarySet);
+
+        Map<String, String> testDescMap = catalog.getDescriptions(conn, locale, testDescToFetchSet);
+        
+        for (QoSTestResult testResult : testResultList) {
+        	
+            //and set the test results + put each one to the result list json array
+        	String preParsedDesc = testDescMap.get(testResult.getTestDescription());
+        	if (preParsedDesc != null) {
+            	String description = String.valueOf(TestScriptInterpreter.interprete(testDescMap.get(testResult.getTestDescription()), 
+            			QoSUtil.HSTORE_PARSER, testResult.getResult(), true, resultOptions));
+            	testResult.setTestDescription(description);
+        	}
+
+        	//do the same for the test summary:
+        	String preParsedSummary = testDescMap.get(testResult.getTestSummary());
+        	if (preParsedSummary != null) {
+            	String description = String.valueOf(TestScriptInterpreter.interprete(testDescMap.get(testResult.getTestSummary()), 
+            			QoSUtil.HSTORE_PARSER, testResult.getResult(), true, resultOptions));
+            	testResult.setTestSummary(description);
+        	}
+
+       		final JSONObject resultJsonObject = testResult.toJson(UuidType.TEST_UUID);
+       		if (resultJsonObject != null) {
+       			resultList.put(resultJsonObject);
+       		}
+        }
+        
+        //finally put results to json
+        if (resultList.length() > 0) {
+        	evaluationJson.put("testresultdetail", resultList);
+        }
+        
+        JSONArray resultDescArray = new JSONArray();
+        
+        //SECOND: fetch all test result descriptions 
+        for (TestType testType : resultKeys.keySet()) {
+        	TreeSet<ResultDesc> descSet = resultKeys.get(testType);
+        	//fetch results to same object
+            catalog.loadToTestDesc(conn, locale, descSet);
+
+            //another tree set for duplicate entries:
+            //TODO: there must be a better solution 
+            //(the issue is: compareTo() method returns differnt values depending on the .value attribute (if it's set or not))
+            TreeSet<ResultDesc> descSetNew = new TreeSet<>();
+            //add fetched results to json
+                                
+            for (ResultDesc desc : descSet) {
+            	if (!descSetNew.contains(desc)) {
+                	descSetNew.add(desc);
+            	}
+            	else {
+            		for (ResultDesc d : descSetNew) {
+            			if (d.compareTo(desc) == 0) {
+            				d.getTestResultUidList().addAll(desc.getTestResultUidList());
+            			}
+            		}
+            	}
+            }
+            
+            for (ResultDesc desc : descSetNew) {
+            	if (desc.getValue() != null) {
+                    resultDescArray.put(desc.toJson());	
+            	}	
+            }
+            
+        }
+        //put result descriptions to json
+        evaluationJson.put("testresultdetail_desc", resultDescArray);
+        
+        final QoSTestEvaluation evaluation = new QoSTestEvaluation();
+        evaluation.setTestUid(testUid);
+        evaluation.setLang(lang);
+        evaluation.setSuccessCounter(successCounter);
+        evaluation.setFailureCounter(failureCounter);
+        evaluation.setEvaluation(evaluationJson.toString());
+        evaluation.setCatalogVersion(catalogVersion);
+        return evaluation;
+	}
+	
+	/**
+	 * puts a stored evaluation to the answer in the form requested by the client
+	 * @param answer
+	 * @param evaluationJson
+	 * @param uuidType the results of tests requested by the open test uuid do not contain the internal ids 
+	 * @param qosCapability info descriptions are only returned to clients supporting them
+	 * @throws JSONException
+	 */
+	private static void putEvaluation(final JSONObject answer, final JSONObject evaluationJson, final UuidType uuidType, 
+			final QualityOfServiceCapability qosCapability) throws JSONException {
+		final JSONArray resultList = evaluationJson.optJSONArray("testresultdetail");
+		if (resultList != null && resultList.length() > 0) {
+			if (!UuidType.TEST_UUID.equals(uuidType)) {
+				for (int i = 0; i < resultList.length(); i++) {
+					final JSONObject resultJsonObject = resultList.getJSONObject(i);
+					resultJsonObject.remove("nn_test_uid");
+					resultJsonObject.remove("qos_test_uid");
+					resultJsonObject.remove("test_uid");
+				}
+			}
+			answer.put("testresultdetail", resultList);
+		}
+		
+		final JSONArray resultDescArray = new JSONArray();
+		final JSONArray descList = evaluationJson.optJSONArray("testresultdetail_desc");
+		if (descList != null) {
+			for (int i = 0; i < descList.length(); i++) {
+				final JSONObject desc = descList.getJSONObject(i);
+				if (!qosCapability.isSupportsInfo() && ResultDesc.STATUS_CODE_INFO.equals(desc.optString("status"))) {
+					continue;
+				}
+				resultDescArray.put(desc);
+			}
+		}
+		//put result descriptions to json
+		answer.put("testresultdetail_desc", resultDescArray);
+	}
+	
 	/**
 	 * compares test results with expected results and increases success/failure counter 
 	 * @param testResult the test result
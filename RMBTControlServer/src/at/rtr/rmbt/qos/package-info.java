@@ -192,6 +192,8 @@
  *  	<li><i>udp_result_out_num_packets</i> => the number of packets received by the test server</li>
  *  	<li><i>udp_result_out_packet_loss_rate</i> => outgoing packet loss rate</li>
  *  	<li><i>udp_result_out_response_num_packets</i> => responses to outgoing packets</li>
+ *  	<li><i>udp_result_out_send_jitter_avg_ns</i> => mean deviation of the client's send intervals from the delay (in ns)</li>
+ *  	<li><i>udp_result_out_send_jitter_max_ns</i> => maximum deviation of the client's send intervals from the delay (in ns)</li>
  *  	<li><i>udp_objective_in_port</i> => port number used for the incoming test</li>
  *  	<li><i>udp_objective_in_num_packets</i> => the number of packets to be sent by the test server</li>
  *  	<li><i>udp_result_in_num_packets</i> => the number of packets received by the client</li>
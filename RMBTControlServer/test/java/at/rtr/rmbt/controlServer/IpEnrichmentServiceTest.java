@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.controlServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.net.InetAddresses;
+
+import at.rtr.rmbt.shared.Helperfunctions.ASInformation;
+
+public class IpEnrichmentServiceTest
+{
+    private static final ASInformation AS = new ASInformation("TEST-AS", "AT", 65000L);
+
+    private static final InetAddress ADDRESS = InetAddresses.forString("192.0.2.10");
+    private static final InetAddress ADDRESS_SAME_PREFIX = InetAddresses.forString("192.0.2.200");
+
+    private final AtomicInteger asLookups = new AtomicInteger();
+
+    /**
+     * released to finish the AS lookups of {@link #resolver}
+     */
+    private final CountDownLatch releaseLookup = new CountDownLatch(1);
+
+    private volatile boolean blockLookups = false;
+    private volatile ASInformation lookupResult = AS;
+
+    private final IpEnrichmentService.Resolver resolver = new IpEnrichmentService.Resolver()
+    {
+        @Override
+        public ASInformation getASInformation(final InetAddress address)
+        {
+            asLookups.incrementAndGet();
+            if (blockLookups)
+            {
+                try
+                {
+                    releaseLookup.await();
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return lookupResult;
+        }
+
+        @Override
+        public Long getASN(final InetAddress address)
+        {
+            return null;
+        }
+
+        @Override
+        public ASInformation getASInformation(final long asn)
+        {
+            return null;
+        }
+
+        @Override
+        public String reverseDNSLookup(final InetAddress address)
+        {
+            return "host.example.com.";
+        }
+    };
+
+    private final IpEnrichmentService service = new IpEnrichmentService(resolver, 500);
+
+    @After
+    public void tearDown()
+    {
+        releaseLookup.countDown();
+        service.shutdown();
+    }
+
+    @Test
+    public void testCacheMissLooksUpAs()
+    {
+        final IpEnrichmentService.IpInfo info = service.getInfo(ADDRESS);
+        assertEquals(Long.valueOf(65000), info.getAsn());
+        assertEquals("TEST-AS", info.getAsName());
+        assertEquals("AT", info.getAsCountry());
+        // the reverse DNS name is only looked up in the background
+        assertNull(info.getReverseDns());
+        assertFalse(info.isComplete());
+        assertEquals(1, asLookups.get());
+
+        // cached per prefix
+        final IpEnrichmentService.IpInfo cached = service.getInfo(ADDRESS_SAME_PREFIX);
+        assertEquals(Long.valueOf(65000), cached.getAsn());
+        assertEquals(1, asLookups.get());
+    }
+
+    @Test
+    public void testCacheMissLookupTimesOut() throws Exception
+    {
+        blockLookups = true;
+
+        final long start = System.nanoTime();
+        final IpEnrichmentService.IpInfo info = service.getInfo(ADDRESS);
+        final long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertNull(info.getAsn());
+        assertNull(info.getAsCountry());
+        assertTrue("waited " + waitedMs + " ms", waitedMs < IpEnrichmentService.AS_LOOKUP_TIMEOUT_MS);
+
+        // the lookup keeps running and fills the cache for the background enrichment
+        releaseLookup.countDown();
+        assertEquals(Long.valueOf(65000), service.resolveAs(ADDRESS).getNumber());
+        assertEquals(Long.valueOf(65000), service.getInfo(ADDRESS).getAsn());
+        assertEquals(1, asLookups.get());
+    }
+
+    @Test
+    public void testFailedLookupIsNotCached()
+    {
+        lookupResult = null;
+        assertNull(service.getInfo(ADDRESS).getAsn());
+
+        lookupResult = AS;
+        assertEquals(Long.valueOf(65000), service.getInfo(ADDRESS).getAsn());
+        assertEquals(2, asLookups.get());
+    }
+
+    @Test
+    public void testCompleteAfterReverseDnsLookup()
+    {
+        assertEquals("host.example.com", service.resolveReverseDns(ADDRESS));
+        final IpEnrichmentService.IpInfo info = service.getInfo(ADDRESS);
+        assertEquals("host.example.com", info.getReverseDns());
+        assertTrue(info.isComplete());
+    }
+}
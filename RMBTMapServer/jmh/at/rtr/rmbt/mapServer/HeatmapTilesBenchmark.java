@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.mapServer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.rtr.rmbt.mapServer.MapServerOptions.MapOption;
+
+/**
+ * Rasterization and PNG encoding of heatmap tiles for every entry of {@link TileRestlet#TILE_SIZES},
+ * with random cells of the map option <code>mobile/download</code>.
+ * <p>
+ * Run with <code>gradle :RMBTMapServer:jmh</code>.
+ *
+ * @author lb
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeatmapTilesBenchmark
+{
+    /**
+     * index of {@link TileRestlet#TILE_SIZES}
+     */
+    @Param({ "0", "1", "2" })
+    public int tileSizeIdx;
+
+    @Param({ "5", "9", "14" })
+    public int zoom;
+
+    /**
+     * share of the cells with tests
+     */
+    @Param({ "0.1", "1" })
+    public double density;
+
+    private int tileSize;
+    private int partSizeFactor;
+    private int partsX;
+    private double[] values;
+    private int[] counts;
+    private MapOption mo;
+    private int[] pixels;
+    private final PngEncoder pngEncoder = new PngEncoder();
+    private BufferedImage image;
+
+    @Setup
+    public void setup()
+    {
+        tileSize = TileRestlet.TILE_SIZES[tileSizeIdx];
+        partSizeFactor = HeatmapTiles.getPartSizeFactor(zoom);
+        partsX = tileSize / (1 << partSizeFactor) + (HeatmapRasterizer.HORIZON_OFFSET + 2) * 2;
+        mo = MapServerOptions.getMapOptionMap().get("mobile/download");
+
+        final double[] intervals = mo.intervalsSorted;
+        final Random random = new Random(0);
+        values = new double[partsX * partsX];
+        counts = new int[partsX * partsX];
+        Arrays.fill(values, Double.NaN);
+        for (int i = 0; i < values.length; i++)
+            if (random.nextDouble() < density)
+            {
+                values[i] = intervals[0] + random.nextDouble() * (intervals[intervals.length - 1] - intervals[0]);
+                counts[i] = 1;
+            }
+
+        pixels = new int[tileSize * tileSize];
+        HeatmapRasterizer.rasterize(values, counts, partsX, partSizeFactor, tileSize, 0.6, mo.colorsSorted,
+                mo.intervalsSorted, pixels);
+        image = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, tileSize, tileSize, pixels, 0, tileSize);
+    }
+
+    @Benchmark
+    public int[] rasterize()
+    {
+        HeatmapRasterizer.rasterize(values, counts, partsX, partSizeFactor, tileSize, 0.6, mo.colorsSorted,
+                mo.intervalsSorted, pixels);
+        return pixels;
+    }
+
+    @Benchmark
+    public byte[] encodePng()
+    {
+        return pngEncoder.encode(pixels, tileSize, tileSize);
+    }
+
+    /**
+     * the encoding used before {@link PngEncoder}, for comparison
+     */
+    @Benchmark
+    public byte[] encodeImageIO() throws IOException
+    {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", baos);
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.mapServer;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+
+import at.rtr.rmbt.mapServer.MapServerOptions.MapFilter;
+import at.rtr.rmbt.mapServer.MapServerOptions.MapOption;
+import at.rtr.rmbt.shared.sketch.QuantileSketch;
+
+/**
+ * Pre-aggregated heatmap grid (<code>heatmap_grid</code>): the cells {@link HeatmapTiles} snaps the tests to,
+ * with a {@link QuantileSketch} of the values per map option and period, so a tile is rendered without reading the tests.
+ * <p>
+ * The grid of a tile depends on the zoom level, the tile size and the part size factor of the zoom level.
+ * Tiles of different zoom levels or sizes share a {@link Level} if their cells are the same,
+ * which keeps the number of levels low. The grid covers the zoom levels up to {@link #MAX_ZOOM} and the tile sizes 256 and 512;
+ * tiles with other filters than the period are rendered from the tests.
+ * <p>
+ * The grid is built and updated by the {@link HeatmapGridBuilder}.
+ *
+ * @author lb
+ *
+ */
+public class HeatmapGrid
+{
+    /**
+     * tiles of higher zoom levels cover few tests, which are queried fast enough
+     */
+    static final int MAX_ZOOM = 12;
+
+    /**
+     * periods the grid is built for, in days; 0: no period filter
+     */
+    static final int[] PERIODS = new int[] { 0, 30, 90, 180, 365 };
+
+    /**
+     * number of buckets of the sketches
+     */
+    static final int BUCKETS = 512;
+
+    private static final int BASE_TILE_SIZE = 256;
+    private static final int BASE_TILE_SIZE_BITS = 8;
+
+    /**
+     * grid of square cells, starting at the lower left corner of the map (shifted by half a cell if {@link #shifted})
+     *
+     * @author lb
+     *
+     */
+    static final class Level
+    {
+        /**
+         * the map has 2^bits cells per side
+         */
+        final int bits;
+
+        /**
+         * cells are shifted by half a cell
+         */
+        final boolean shifted;
+
+        Level(int bits, boolean shifted)
+        {
+            this.bits = bits;
+            this.shifted = shifted;
+        }
+
+        double getCellSize()
+        {
+            return GeoCalc.MAX_EXTENT * 2 / (1L << bits);
+        }
+
+        /**
+         *
+         * @param origin x or y of the center of a cell (in meters)
+         * @return the index of the cell
+         */
+        int getCellIndex(double origin)
+        {
+            final double cellSize = getCellSize();
+            return (int) Math.round((origin + GeoCalc.MAX_EXTENT + (shifted ? cellSize / 2 : 0)) / cellSize);
+        }
+
+        /**
+         *
+         * @return the value to add to the x or y of a location (in meters) before dividing it by the cell size
+         * and rounding it to get the index of the cell
+         */
+        double getIndexOffset()
+        {
+            return GeoCalc.MAX_EXTENT + (shifted ? getCellSize() / 2 : 0);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return bits * 2 + (shifted ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Level))
+                return false;
+            final Level other = (Level) obj;
+            return bits == other.bits && shifted == other.shifted;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Level [bits=" + bits + ", shifted=" + shifted + "]";
+        }
+    }
+
+    /**
+     *
+     * @param tileSize
+     * @param zoom
+     * @param partSizeFactor see {@link HeatmapTiles#getPartSizeFactor(int)}
+     * @return the level, null if the tile is not covered by the grid
+     */
+    static Level getLevel(int tileSize, int zoom, int partSizeFactor)
+    {
+        if (zoom > MAX_ZOOM)
+            return null;
+        final int tileSizeBits;
+        if (tileSize == BASE_TILE_SIZE)
+            tileSizeBits = BASE_TILE_SIZE_BITS;
+        else if (tileSize == BASE_TILE_SIZE * 2)
+            tileSizeBits = BASE_TILE_SIZE_BITS + 1;
+        else
+            return null;
+        // the cells of HeatmapTiles are shifted by partSizePixels / 2 pixels
+        return new Level(tileSizeBits + zoom - partSizeFactor, partSizeFactor > 0);
+    }
+
+    /**
+     *
+     * @return all levels of the grid
+     */
+    static Set<Level> getLevels()
+    {
+        final Set<Level> levels = new LinkedHashSet<>();
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++)
+        {
+            final int partSizeFactor = HeatmapTiles.getPartSizeFactor(zoom);
+            levels.add(getLevel(BASE_TILE_SIZE, zoom, partSizeFactor));
+            levels.add(getLevel(BASE_TILE_SIZE * 2, zoom, partSizeFactor));
+        }
+        return levels;
+    }
+
+    /**
+     *
+     * @param filterMap the filters of the tile
+     * @return the period of the filters (see {@link #PERIODS}), -1 if the filters are not covered by the grid
+     */
+    static int getPeriod(Map<String, String> filterMap)
+    {
+        int period = 0;
+        for (final Map.Entry<String, String> entry : filterMap.entrySet())
+        {
+            final MapFilter mapFilter = MapServerOptions.getMapFilterMap().get(entry.getKey());
+            if (mapFilter == null || mapFilter.getFilter(entry.getValue()) == null)
+                continue;
+            if (!"period".equals(entry.getKey()))
+                return -1;
+            // same as the period MapFilter
+            final int _period = Integer.parseInt(Strings.nullToEmpty(entry.getValue()));
+            period = (_period <= 0 || _period > 2922) ? 1 : _period;
+        }
+        for (final int p : PERIODS)
+            if (p == period)
+                return period;
+        return -1;
+    }
+
+    static double getLowerBound(MapOption mo)
+    {
+        final double[] intervals = mo.intervalsSorted;
+        return intervals[0] - (intervals[intervals.length - 1] - intervals[0]) / 2;
+    }
+
+    static double getUpperBound(MapOption mo)
+    {
+        final double[] intervals = mo.intervalsSorted;
+        return intervals[intervals.length - 1] + (intervals[intervals.length - 1] - intervals[0]) / 2;
+    }
+
+    /**
+     *
+     * @param lowerBound
+     * @param upperBound
+     * @param buckets
+     * @param periods
+     * @param mo
+     * @return true if the grid has been built for the current options
+     */
+    static boolean isUpToDate(double lowerBound, double upperBound, int buckets, Integer[] periods, MapOption mo)
+    {
+        if (lowerBound != getLowerBound(mo) || upperBound != getUpperBound(mo) || buckets != BUCKETS)
+            return false;
+        final List<Integer> builtPeriods = periods == null ? Collections.<Integer>emptyList() : Arrays.asList(periods);
+        for (final int period : PERIODS)
+            if (!builtPeriods.contains(period))
+                return false;
+        return true;
+    }
+
+    /**
+     * reads the cells of a tile
+     *
+     * @param con
+     * @param mapOption the key of the map option
+     * @param mo
+     * @param period
+     * @param level
+     * @param origX x of the center of the first cell (in meters)
+     * @param origY y of the center of the first cell (in meters)
+     * @param partsX number of cells in x direction
+     * @param partsY number of cells in y direction
+     * @param quantile
+     * @param values quantile per cell (index: x + partsX * (partsY - 1 - y)), NaN if the cell is empty
+     * @param counts number of tests per cell
+     * @return the number of non empty cells, -1 if the grid of the map option has not been built
+     * @throws SQLException
+     */
+    static int read(Connection con, String mapOption, MapOption mo, int period, Level level, double origX, double origY,
+            int partsX, int partsY, float quantile, double[] values, int[] counts) throws SQLException
+    {
+        final int cx0 = level.getCellIndex(origX);
+        final int cy0 = level.getCellIndex(origY);
+
+        final String sql = "SELECT s.lower_bound, s.upper_bound, s.buckets, s.periods, g.cx, g.cy, g.sketch"
+                + " FROM heatmap_grid_state s"
+                + " LEFT JOIN heatmap_grid g ON g.map_option = s.map_option AND g.period = ? AND g.level = ? AND g.shifted = ?"
+                + " AND g.cx BETWEEN ? AND ? AND g.cy BETWEEN ? AND ?"
+                + " WHERE s.map_option = ?";
+
+        try (PreparedStatement ps = con.prepareStatement(sql))
+        {
+            int p = 1;
+            ps.setInt(p++, period);
+            ps.setInt(p++, level.bits);
+            ps.setBoolean(p++, level.shifted);
+            ps.setInt(p++, cx0);
+            ps.setInt(p++, cx0 + partsX - 1);
+            ps.setInt(p++, cy0);
+            ps.setInt(p++, cy0 + partsY - 1);
+            ps.setString(p++, mapOption);
+
+            try (ResultSet rs = ps.executeQuery())
+            {
+                int cells = -1;
+                double bucketSize = 0;
+                double lowerBound = 0;
+                while (rs.next())
+                {
+                    if (cells == -1)
+                    {
+                        lowerBound = rs.getDouble("lower_bound");
+                        final Array periods = rs.getArray("periods");
+                        if (!isUpToDate(lowerBound, rs.getDouble("upper_bound"), rs.getInt("buckets"),
+                                periods == null ? null : (Integer[]) periods.getArray(), mo))
+                            return -1;
+                        bucketSize = (rs.getDouble("upper_bound") - lowerBound) / BUCKETS;
+                        cells = 0;
+                    }
+
+                    final byte[] data = rs.getBytes("sketch");
+                    if (data == null)
+                        continue;
+                    final QuantileSketch sketch = decodeSketch(data);
+                    final int mx = rs.getInt("cx") - cx0;
+                    final int my = rs.getInt("cy") - cy0;
+                    final int idx = mx + partsX * (partsY - 1 - my);
+                    values[idx] = lowerBound + sketch.getPosition(quantile) * bucketSize;
+                    counts[idx] = (int) Math.min(sketch.getCount(), Integer.MAX_VALUE);
+                    cells++;
+                }
+                return cells;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the positive periods in ascending order
+     */
+    static List<Integer> getAgePeriods()
+    {
+        final List<Integer> periods = new ArrayList<>();
+        for (final int period : PERIODS)
+            if (period > 0)
+                periods.add(period);
+        Collections.sort(periods);
+        return periods;
+    }
+
+    /**
+     *
+     * @param data <code>sketch</code> of a cell
+     * @return the sketch with buckets 0 to {@link #BUCKETS} - 1
+     * @throws IllegalArgumentException if the data is invalid
+     */
+    static QuantileSketch decodeSketch(byte[] data)
+    {
+        final QuantileSketch sketch = QuantileSketch.decode(data);
+        if (sketch.getCount() > 0 && (sketch.getMinBucket() < 0 || sketch.getMaxBucket() >= BUCKETS))
+            throw new IllegalArgumentException("bucket out of range");
+        return sketch;
+    }
+}
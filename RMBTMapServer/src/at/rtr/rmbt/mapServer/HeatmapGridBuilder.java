@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.mapServer;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import at.rtr.rmbt.mapServer.HeatmapGrid.Level;
+import at.rtr.rmbt.mapServer.MapServerOptions.MapOption;
+import at.rtr.rmbt.mapServer.MapServerOptions.SQLFilter;
+import at.rtr.rmbt.shared.sketch.QuantileSketch;
+
+/**
+ * Builds the {@link HeatmapGrid} of the map options from the tests and keeps it up to date:
+ * <ul>
+ * <li>{@link #update()} adds the tests since the last run (by test uid); map options that have not been built
+ * or whose scale has changed are rebuilt</li>
+ * <li>{@link #rebuild()} rebuilds all map options, which removes tests that are older than a period
+ * or have been marked deleted or implausible since they were added</li>
+ * </ul>
+ * Only tests started at least {@link #SETTLE_MINUTES} minutes ago are added: a test gets its uid at registration,
+ * but its results and location arrive when it has finished, so newer tests would be added before they are complete
+ * and never be added again by an update.
+ * Every map option is built in a transaction of its own, tiles are rendered from the previous grid until it is committed.
+ * Not thread safe; the builds must not run concurrently (see {@link HeatmapGridContextListener}).
+ *
+ * @author lb
+ *
+ */
+public class HeatmapGridBuilder
+{
+    private static final int FETCH_SIZE = 10000;
+    private static final int BATCH_SIZE = 1000;
+    static final int SETTLE_MINUTES = 60;
+
+    private final Connection conn;
+
+    public HeatmapGridBuilder(Connection conn)
+    {
+        this.conn = conn;
+    }
+
+    /**
+     * rebuilds the grid of all map options
+     * @throws SQLException
+     */
+    public void rebuild() throws SQLException
+    {
+        for (final Map.Entry<String, MapOption> entry : MapServerOptions.getMapOptionMap().entrySet())
+            build(entry.getKey(), entry.getValue(), true);
+    }
+
+    /**
+     * adds the new tests to the grid of all map options
+     * @throws SQLException
+     */
+    public void update() throws SQLException
+    {
+        for (final Map.Entry<String, MapOption> entry : MapServerOptions.getMapOptionMap().entrySet())
+            build(entry.getKey(), entry.getValue(), false);
+    }
+
+    private void build(String key, MapOption mo, boolean rebuild) throws SQLException
+    {
+        final boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try
+        {
+            final long start = System.currentTimeMillis();
+            final long maxUid = getSettledTestUid();
+
+            long fromUid = -1;
+            if (!rebuild)
+            {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "SELECT lower_bound, upper_bound, buckets, periods, max_test_uid FROM heatmap_grid_state WHERE map_option = ?"))
+                {
+                    ps.setString(1, key);
+                    try (ResultSet rs = ps.executeQuery())
+                    {
+                        if (rs.next())
+                        {
+                            final Array periods = rs.getArray("periods");
+                            if (HeatmapGrid.isUpToDate(rs.getDouble("lower_bound"), rs.getDouble("upper_bound"), rs.getInt("buckets"),
+                                    periods == null ? null : (Integer[]) periods.getArray(), mo))
+                                fromUid = rs.getLong("max_test_uid");
+                        }
+                    }
+                }
+                if (fromUid >= maxUid)
+                {
+                    conn.rollback();
+                    return;
+                }
+            }
+
+            final boolean merge = fromUid != -1;
+            if (!merge)
+            {
+                try (PreparedStatement ps = conn.prepareStatement("DELETE FROM heatmap_grid WHERE map_option = ?"))
+                {
+                    ps.setString(1, key);
+                    ps.executeUpdate();
+                }
+            }
+
+            long cells = 0;
+            for (final Level level : HeatmapGrid.getLevels())
+                cells += aggregate(key, mo, level, fromUid, maxUid, merge);
+
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO heatmap_grid_state (map_option, lower_bound, upper_bound, buckets, periods, max_test_uid, time)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, now())"
+                    + " ON CONFLICT (map_option) DO UPDATE SET lower_bound = EXCLUDED.lower_bound, upper_bound = EXCLUDED.upper_bound,"
+                    + " buckets = EXCLUDED.buckets, periods = EXCLUDED.periods, max_test_uid = EXCLUDED.max_test_uid, time = EXCLUDED.time"))
+            {
+                final Integer[] periods = new Integer[HeatmapGrid.PERIODS.length];
+                for (int i = 0; i < periods.length; i++)
+                    periods[i] = HeatmapGrid.PERIODS[i];
+                int p = 1;
+                ps.setString(p++, key);
+                ps.setDouble(p++, HeatmapGrid.getLowerBound(mo));
+                ps.setDouble(p++, HeatmapGrid.getUpperBound(mo));
+                ps.setInt(p++, HeatmapGrid.BUCKETS);
+                ps.setArray(p++, conn.createArrayOf("integer", periods));
+                ps.setLong(p++, maxUid);
+                ps.executeUpdate();
+            }
+
+            conn.commit();
+            System.out.println("heatmap grid " + (merge ? "updated" : "built") + " for " + key + ": " + cells + " cells in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        catch (final SQLException | RuntimeException e)
+        {
+            conn.rollback();
+            throw e;
+        }
+        finally
+        {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * @return the highest uid of the tests started at least {@link #SETTLE_MINUTES} minutes ago
+     */
+    private long getSettledTestUid() throws SQLException
+    {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT max(uid) FROM test WHERE time < now() - ? * interval '1 minute'"))
+        {
+            ps.setInt(1, SETTLE_MINUTES);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * adds the tests with fromUid &lt; uid &lt;= toUid to the cells of a level
+     * @return the number of cells written
+     */
+    private long aggregate(String key, MapOption mo, Level level, long fromUid, long toUid, boolean merge) throws SQLException
+    {
+        final List<SQLFilter> filters = new ArrayList<>(MapServerOptions.getDefaultMapFilters());
+        filters.add(MapServerOptions.getAccuracyMapFilter());
+
+        final StringBuilder whereSQL = new StringBuilder(mo.sqlFilter);
+        for (final SQLFilter sf : filters)
+            whereSQL.append(" AND ").append(sf.where);
+
+        // age class of a test: index of the shortest period containing it, number of periods if it is older
+        final List<Integer> agePeriods = HeatmapGrid.getAgePeriods();
+        final StringBuilder ageSQL = new StringBuilder("CASE");
+        for (int i = 0; i < agePeriods.size(); i++)
+            ageSQL.append(String.format(" WHEN t.time > NOW() - CAST('%d days' AS INTERVAL) THEN %d", agePeriods.get(i), i));
+        ageSQL.append(" ELSE ").append(agePeriods.size()).append(" END");
+
+        // same cells as ST_SnapToGrid in HeatmapTiles
+        final String sql = String.format("SELECT floor((ST_X(location) + ?) / ? + 0.5)::int cx,"
+                + " floor((ST_Y(location) + ?) / ? + 0.5)::int cy,"
+                + " least(greatest(width_bucket(\"%1$s\", ?, ?, ?), 1), ?) - 1 bucket,"
+                + " %3$s age,"
+                + " count(*)::int count"
+                + " FROM v_test2 t"
+                + " WHERE %2$s"
+                + " AND location IS NOT NULL AND \"%1$s\" IS NOT NULL"
+                + " AND t.uid > ? AND t.uid <= ?"
+                + " GROUP BY cx, cy, bucket, age"
+                + " ORDER BY cx, cy", mo.valueColumnLog, whereSQL, ageSQL);
+
+        final List<Cell> cells = new ArrayList<>();
+        long written = 0;
+
+        try (PreparedStatement ps = conn.prepareStatement(sql))
+        {
+            ps.setFetchSize(FETCH_SIZE);
+            int p = 1;
+            for (int j = 0; j < 2; j++)
+            {
+                ps.setDouble(p++, level.getIndexOffset());
+                ps.setDouble(p++, level.getCellSize());
+            }
+            ps.setDouble(p++, HeatmapGrid.getLowerBound(mo));
+            ps.setDouble(p++, HeatmapGrid.getUpperBound(mo));
+            ps.setInt(p++, HeatmapGrid.BUCKETS);
+            ps.setInt(p++, HeatmapGrid.BUCKETS);
+            for (final SQLFilter sf : filters)
+                p = sf.fillParams(p, ps);
+            ps.setLong(p++, fromUid);
+            ps.setLong(p++, toUid);
+
+            try (ResultSet rs = ps.executeQuery())
+            {
+                Cell cell = null;
+                while (rs.next())
+                {
+                    final int cx = rs.getInt("cx");
+                    final int cy = rs.getInt("cy");
+                    if (cell == null || cell.cx != cx || cell.cy != cy)
+                    {
+                        cell = new Cell(cx, cy, agePeriods.size() + 1);
+                        cells.add(cell);
+                    }
+                    cell.ages[rs.getInt("age")].add(rs.getInt("bucket"), rs.getInt("count"));
+
+                    if (!merge && cells.size() >= BATCH_SIZE)
+                    {
+                        written += write(key, level, cells.subList(0, cells.size() - 1), false);
+                        cells.subList(0, cells.size() - 1).clear();
+                    }
+                }
+            }
+        }
+
+        written += write(key, level, cells, merge);
+        return written;
+    }
+
+    /**
+     * tests of a cell per age class
+     */
+    static class Cell
+    {
+        private final int cx;
+        private final int cy;
+        final QuantileSketch[] ages;
+
+        Cell(int cx, int cy, int ageClasses)
+        {
+            this.cx = cx;
+            this.cy = cy;
+            ages = new QuantileSketch[ageClasses];
+            for (int i = 0; i < ageClasses; i++)
+                ages[i] = new QuantileSketch();
+        }
+
+        /**
+         *
+         * @param period
+         * @return the tests of the period
+         */
+        QuantileSketch getSketch(int period)
+        {
+            final List<Integer> agePeriods = HeatmapGrid.getAgePeriods();
+            final int ageClasses = period == 0 ? ages.length : agePeriods.indexOf(period) + 1;
+            final QuantileSketch sketch = new QuantileSketch();
+            for (int i = 0; i < ageClasses; i++)
+                sketch.addAll(ages[i]);
+            return sketch;
+        }
+    }
+
+    private long write(String key, Level level, List<Cell> cells, boolean merge) throws SQLException
+    {
+        long written = 0;
+        try (PreparedStatement select = merge ? conn.prepareStatement("SELECT sketch FROM heatmap_grid"
+                + " WHERE map_option = ? AND period = ? AND level = ? AND shifted = ? AND cx = ? AND cy = ?") : null;
+                PreparedStatement upsert = conn.prepareStatement("INSERT INTO heatmap_grid"
+                + " (map_option, period, level, shifted, cx, cy, sketch) VALUES (?, ?, ?, ?, ?, ?, ?)"
+                + " ON CONFLICT (map_option, period, level, shifted, cx, cy) DO UPDATE SET sketch = EXCLUDED.sketch"))
+        {
+            int batch = 0;
+            for (final Cell cell : cells)
+            {
+                for (final int period : HeatmapGrid.PERIODS)
+                {
+                    final QuantileSketch sketch = cell.getSketch(period);
+                    if (sketch.getCount() == 0)
+                        continue;
+
+                    if (merge)
+                    {
+                        int p = 1;
+                        select.setString(p++, key);
+                        select.setInt(p++, period);
+                        select.setInt(p++, level.bits);
+                        select.setBoolean(p++, level.shifted);
+                        select.setInt(p++, cell.cx);
+                        select.setInt(p++, cell.cy);
+                        try (ResultSet rs = select.executeQuery())
+                        {
+                            if (rs.next())
+                                sketch.addAll(HeatmapGrid.decodeSketch(rs.getBytes("sketch")));
+                        }
+                    }
+
+                    int p = 1;
+                    upsert.setString(p++, key);
+                    upsert.setInt(p++, period);
+                    upsert.setInt(p++, level.bits);
+                    upsert.setBoolean(p++, level.shifted);
+                    upsert.setInt(p++, cell.cx);
+                    upsert.setInt(p++, cell.cy);
+                    upsert.setBytes(p++, sketch.encode());
+                    upsert.addBatch();
+                    written++;
+                    if (++batch >= BATCH_SIZE)
+                    {
+                        upsert.executeBatch();
+                        batch = 0;
+                    }
+                }
+            }
+            if (batch > 0)
+                upsert.executeBatch();
+        }
+        return written;
+    }
+}
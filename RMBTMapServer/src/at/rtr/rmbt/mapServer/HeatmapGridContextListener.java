@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.mapServer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Calendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.sql.DataSource;
+
+/**
+ * Runs the {@link HeatmapGridBuilder}: an update every {@link #UPDATE_INTERVAL_MINUTES} minutes
+ * and a rebuild every night at {@link #REBUILD_HOUR}.
+ * <p>
+ * The map server reads the tests with a read only data source, so the builder is only started if the
+ * context parameter <code>RMBT_HEATMAP_GRID_DATASOURCE</code> names a data source that may write the grid (e.g. <code>jdbc/rmbt</code>).
+ * If several map servers run the builder, an advisory lock makes sure only one of them builds at a time.
+ *
+ * @author lb
+ *
+ */
+public class HeatmapGridContextListener implements ServletContextListener
+{
+    private static final int UPDATE_INTERVAL_MINUTES = 10;
+    private static final int REBUILD_HOUR = 3;
+
+    /**
+     * key of the advisory lock
+     */
+    private static final long LOCK_KEY = 0x686d6772L; // "hmgr"
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce)
+    {
+        final String dataSourceName = sce.getServletContext().getInitParameter("RMBT_HEATMAP_GRID_DATASOURCE");
+        if (dataSourceName == null || dataSourceName.isEmpty())
+        {
+            System.out.println("RMBT_HEATMAP_GRID_DATASOURCE not set, heatmap grid builder deactivated");
+            return;
+        }
+
+        final DataSource ds;
+        try
+        {
+            ds = (DataSource) new InitialContext().lookup("java:comp/env/" + dataSourceName);
+        }
+        catch (final NamingException e)
+        {
+            e.printStackTrace();
+            return;
+        }
+
+        System.out.println("starting heatmap grid builder with: " + dataSourceName);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                build(ds, false);
+            }
+        }, 1, UPDATE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+
+        final Calendar nextRebuild = Calendar.getInstance();
+        nextRebuild.set(Calendar.HOUR_OF_DAY, REBUILD_HOUR);
+        nextRebuild.set(Calendar.MINUTE, 0);
+        nextRebuild.set(Calendar.SECOND, 0);
+        if (nextRebuild.getTimeInMillis() <= System.currentTimeMillis())
+            nextRebuild.add(Calendar.DAY_OF_MONTH, 1);
+
+        scheduler.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                build(ds, true);
+            }
+        }, nextRebuild.getTimeInMillis() - System.currentTimeMillis(), TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+    }
+
+    private static void build(DataSource ds, boolean rebuild)
+    {
+        try (Connection conn = ds.getConnection())
+        {
+            if (!lock(conn, "SELECT pg_try_advisory_lock(?)"))
+            {
+                System.out.println("heatmap grid is built by another server");
+                return;
+            }
+            try
+            {
+                final HeatmapGridBuilder builder = new HeatmapGridBuilder(conn);
+                if (rebuild)
+                    builder.rebuild();
+                else
+                    builder.update();
+            }
+            finally
+            {
+                lock(conn, "SELECT pg_advisory_unlock(?)");
+            }
+        }
+        catch (final SQLException | RuntimeException e)
+        {
+            // must not be thrown, the scheduler would not run the task again
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean lock(Connection conn, String sql) throws SQLException
+    {
+        try (PreparedStatement ps = conn.prepareStatement(sql))
+        {
+            ps.setLong(1, LOCK_KEY);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce)
+    {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+}
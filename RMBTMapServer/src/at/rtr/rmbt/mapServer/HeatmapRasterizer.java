@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.mapServer;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Interpolates the cells of a heatmap tile to pixels.
+ * <p>
+ * Every pixel is interpolated from the {@link #HORIZON} x {@link #HORIZON} cells around it.
+ * All pixels of a cell (block of 2^partSizeFactor pixels per side) share these cells, so they are
+ * gathered once per block into primitive arrays (value, missing and count). The weights are separable,
+ * so the cells are reduced to one column per row of pixels of the block and a pixel only sums up {@link #HORIZON}
+ * weighted columns without any branches or index calculations.
+ * Blocks without any tests are left transparent without interpolation.
+ * <p>
+ * Tiles of at least {@link #PARALLEL_MIN_TILE_SIZE} pixels are split by rows of blocks across the common {@link ForkJoinPool}.
+ *
+ * @author lb
+ *
+ */
+final class HeatmapRasterizer
+{
+    static final int HORIZON_OFFSET = 1;
+    static final int HORIZON = HORIZON_OFFSET * 2 + 2;
+    static final int HORIZON_SIZE = HORIZON * HORIZON;
+
+    private static final double ALPHA_TOP = 0.5;
+
+    private static final boolean DEBUG_LINES = false;
+
+    private static final int PARALLEL_MIN_TILE_SIZE = 512;
+
+    /**
+     * minimum number of pixel rows of a task
+     */
+    private static final int PARALLEL_MIN_ROWS = 64;
+
+    /**
+     * weights per part size factor: {@link #HORIZON} weights per pixel of a block in x and in y direction;
+     * the weight of a cell is the product of its weights in x and y direction
+     */
+    private static final double[][] WEIGHTS_X = new double[8][]; // lookup table
+    private static final double[][] WEIGHTS_Y = new double[8][]; // for speedup
+    static
+    {
+        final double qPi = Math.PI / 4;
+        for (int f = 0; f < 8; f++)
+        {
+            final int partSize = 1 << f;
+            WEIGHTS_X[f] = new double[HORIZON * partSize];
+            WEIGHTS_Y[f] = new double[HORIZON * partSize];
+            for (int rel = 0; rel < partSize; rel++)
+            {
+                final double pos = qPi * rel / partSize;
+                for (int j = 0; j < HORIZON; j++)
+                {
+                    final double weight = Math.pow(Math.cos(pos + (1 - j) * qPi), 2.0);
+                    WEIGHTS_X[f][rel * HORIZON + j] = weight;
+                    WEIGHTS_Y[f][rel * HORIZON + j] = weight / 4;
+                }
+            }
+        }
+    }
+
+    private final double[] values;
+    private final int[] counts;
+    private final int partsX;
+    private final int partSizeFactor;
+    private final int partSizePixels;
+    private final int tileSize;
+    private final double transparency;
+    private final int[] colors;
+    private final double[] intervals;
+    private final int[] pixels;
+
+    private HeatmapRasterizer(double[] values, int[] counts, int partsX, int partSizeFactor, int tileSize,
+            double transparency, int[] colors, double[] intervals, int[] pixels)
+    {
+        this.values = values;
+        this.counts = counts;
+        this.partsX = partsX;
+        this.partSizeFactor = partSizeFactor;
+        this.partSizePixels = 1 << partSizeFactor;
+        this.tileSize = tileSize;
+        this.transparency = transparency;
+        this.colors = colors;
+        this.intervals = intervals;
+        this.pixels = pixels;
+    }
+
+    /**
+     * renders a tile
+     *
+     * @param values value per cell (index: x + partsX * y, y from top to bottom), NaN if the cell is empty;
+     * the cells start {@link #HORIZON_OFFSET} + 1 cells before the tile
+     * @param counts relative number of tests per cell (0 to 1)
+     * @param partsX number of cells per row
+     * @param partSizeFactor the cells have 2^partSizeFactor pixels per side
+     * @param tileSize
+     * @param transparency
+     * @param colors see {@link TileRestlet#valueToColor(int[], double[], double)}
+     * @param intervals see {@link TileRestlet#valueToColor(int[], double[], double)}
+     * @param pixels the ARGB pixels of the tile (at least tileSize * tileSize)
+     */
+    static void rasterize(double[] values, int[] counts, int partsX, int partSizeFactor, int tileSize,
+            double transparency, int[] colors, double[] intervals, int[] pixels)
+    {
+        final HeatmapRasterizer rasterizer = new HeatmapRasterizer(values, counts, partsX, partSizeFactor, tileSize,
+                transparency, colors, intervals, pixels);
+        final int blocks = rasterizer.getBlocks();
+        if (tileSize >= PARALLEL_MIN_TILE_SIZE && ForkJoinPool.getCommonPoolParallelism() > 1)
+            ForkJoinPool.commonPool().invoke(rasterizer.new RowsTask(0, blocks));
+        else
+            rasterizer.rasterizeRows(0, blocks);
+    }
+
+    /**
+     *
+     * @return number of blocks per side; the first and the last block are cut by the tile, as the pixels are centered
+     */
+    private int getBlocks()
+    {
+        if (partSizePixels == 1)
+            return tileSize;
+        return tileSize / partSizePixels + 1;
+    }
+
+    private final class RowsTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int fromBlock;
+        private final int toBlock;
+
+        RowsTask(int fromBlock, int toBlock)
+        {
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ((toBlock - fromBlock) * partSizePixels <= PARALLEL_MIN_ROWS || toBlock - fromBlock < 2)
+            {
+                rasterizeRows(fromBlock, toBlock);
+                return;
+            }
+            final int middle = (fromBlock + toBlock) >>> 1;
+            invokeAll(new RowsTask(fromBlock, middle), new RowsTask(middle, toBlock));
+        }
+    }
+
+    private void rasterizeRows(int fromBlock, int toBlock)
+    {
+        // cells around the current block
+        final double[] blockValues = new double[HORIZON_SIZE];
+        final double[] blockMissing = new double[HORIZON_SIZE];
+        final double[] blockCounts = new double[HORIZON_SIZE];
+
+        // cells of a pixel row of the block, weighted in y direction
+        final double[] columnValues = new double[HORIZON];
+        final double[] columnMissing = new double[HORIZON];
+        final double[] columnCounts = new double[HORIZON];
+
+        final int blocks = getBlocks();
+        final int halfPart = partSizePixels / 2;
+        final double[] weightsX = WEIGHTS_X[partSizeFactor];
+        final double[] weightsY = WEIGHTS_Y[partSizeFactor];
+
+        for (int by = fromBlock; by < toBlock; by++)
+        {
+            // pixels of the block: (block * partSizePixels - halfPart) + rel
+            final int blockY = by * partSizePixels - halfPart;
+            final int fromRelY = Math.max(0, -blockY);
+            final int toRelY = Math.min(partSizePixels, tileSize - blockY);
+
+            for (int bx = 0; bx < blocks; bx++)
+            {
+                final int blockX = bx * partSizePixels - halfPart;
+                final int fromRelX = Math.max(0, -blockX);
+                final int toRelX = Math.min(partSizePixels, tileSize - blockX);
+
+                final int startIdx = bx + 1 + partsX * (by + 1);
+                boolean hasCounts = false;
+                boolean hasMissing = false;
+                for (int i = 0; i < HORIZON_SIZE; i++)
+                {
+                    final int idx = startIdx + i % HORIZON + partsX * (i / HORIZON);
+                    final double value = values[idx];
+                    final boolean missing = Double.isNaN(value);
+                    blockValues[i] = missing ? 0 : value;
+                    blockMissing[i] = missing ? 1 : 0;
+                    blockCounts[i] = counts[idx];
+                    hasMissing |= missing;
+                    hasCounts |= counts[idx] != 0;
+                }
+
+                for (int relY = fromRelY; relY < toRelY; relY++)
+                {
+                    final int rowOffset = (blockY + relY) * tileSize + blockX;
+                    if (!hasCounts)
+                    {
+                        for (int relX = fromRelX; relX < toRelX; relX++)
+                            pixels[rowOffset + relX] = 0;
+                        continue;
+                    }
+
+                    final int offsetY = relY * HORIZON;
+                    for (int j = 0; j < HORIZON; j++)
+                    {
+                        double value = 0;
+                        double missing = 0;
+                        double count = 0;
+                        for (int k = 0; k < HORIZON; k++)
+                        {
+                            final double weight = weightsY[offsetY + k];
+                            value += weight * blockValues[j + k * HORIZON];
+                            missing += weight * blockMissing[j + k * HORIZON];
+                            count += weight * blockCounts[j + k * HORIZON];
+                        }
+                        columnValues[j] = value;
+                        columnMissing[j] = missing;
+                        columnCounts[j] = count;
+                    }
+
+                    for (int relX = fromRelX; relX < toRelX; relX++)
+                    {
+                        final int offsetX = relX * HORIZON;
+
+                        double alphaWeight = 0;
+                        double valueWeight = 0;
+                        double valueMissing = 0;
+                        for (int j = 0; j < HORIZON; j++)
+                        {
+                            final double weight = weightsX[offsetX + j];
+                            valueWeight += weight * columnValues[j];
+                            valueMissing += weight * columnMissing[j];
+                            alphaWeight += weight * columnCounts[j];
+                        }
+
+                        if (hasMissing && valueMissing > 0)
+                            valueWeight += valueWeight / (1 - valueMissing) * valueMissing;
+
+                        alphaWeight /= ALPHA_TOP;
+                        if (alphaWeight < 0)
+                            alphaWeight = 0;
+                        if (alphaWeight > 1)
+                            alphaWeight = 1;
+
+                        alphaWeight *= transparency;
+
+                        final int alpha = (int) (alphaWeight * 255) << 24;
+                        if (alpha == 0)
+                            pixels[rowOffset + relX] = 0;
+                        else
+                            pixels[rowOffset + relX] = TileRestlet.valueToColor(colors, intervals, valueWeight) | alpha;
+
+                        if (DEBUG_LINES)
+                            if (relX == halfPart || relY == halfPart)
+                                pixels[rowOffset + relX] = 0xff000000;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -16,15 +16,12 @@
  ******************************************************************************/
 package at.rtr.rmbt.mapServer;
 
-import java.io.ByteArrayOutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.Arrays;
 import java.util.List;
 
-import javax.imageio.ImageIO;
-
 import org.restlet.data.Form;
 
 import at.rtr.rmbt.mapServer.MapServerOptions.MapOption;
@@ -59,44 +56,8 @@ public class HeatmapTiles extends TileRestlet<HeatmapTileParameters>
             7, // 20
     };
     
-    private final static double ALPHA_TOP = 0.5;
     private final static int ALPHA_MAX = 1;
     
-    private final static boolean DEBUG_LINES = false;
-    
-    private final static int HORIZON_OFFSET = 1;
-    private final static int HORIZON = HORIZON_OFFSET * 2 + 2;
-    private final static int HORIZON_SIZE = HORIZON * HORIZON;
-    
-    private final static double[][] FACTORS = new double[8][]; // lookup table
-                                                               // for speedup
-    static
-    {
-        for (int f = 0; f < 8; f++)
-        {
-            final int partSize = 1 << f;
-            FACTORS[f] = new double[HORIZON_SIZE * partSize * partSize];
-            
-            for (int i = 0; i < FACTORS[f].length; i += HORIZON_SIZE)
-            {
-                final double qPi = Math.PI / 4;
-                
-                final double x = qPi * (i / HORIZON_SIZE % partSize) / partSize;
-                final double y = qPi * (i / HORIZON_SIZE / partSize) / partSize;
-                
-                // double sum = 0;
-                for (int j = 0; j < HORIZON; j++)
-                    for (int k = 0; k < HORIZON; k++)
-                    {
-                        final double value = Math.pow(Math.cos(x + (1 - j) * qPi), 2.0)
-                                * Math.pow(Math.cos(y + (1 - k) * qPi), 2.0) / 4;
-                        FACTORS[f][i + j + k * HORIZON] = value;
-                        // sum += value;
-                    }
-            }
-        }
-    }
-    
     @SuppressWarnings("unchecked")
     private final ThreadLocal<int[]>[] pixelBuffers = new ThreadLocal[TILE_SIZES.length];
     
@@ -116,6 +77,27 @@ public class HeatmapTiles extends TileRestlet<HeatmapTileParameters>
         }
     }
     
+    private final ThreadLocal<PngEncoder> pngEncoders = new ThreadLocal<PngEncoder>()
+    {
+        @Override
+        protected PngEncoder initialValue()
+        {
+            return new PngEncoder();
+        };
+    };
+    
+    /**
+     * 
+     * @param zoom
+     * @return the cells of the tile have 2^factor pixels per side
+     */
+    static int getPartSizeFactor(final int zoom)
+    {
+        if (zoom >= ZOOM_TO_PART_FACTOR.length)
+            return ZOOM_TO_PART_FACTOR[ZOOM_TO_PART_FACTOR.length - 1];
+        return ZOOM_TO_PART_FACTOR[zoom];
+    }
+    
     @Override
     protected HeatmapTileParameters getTileParameters(TileParameters.Path path, Form params)
     {
@@ -146,15 +128,11 @@ public class HeatmapTiles extends TileRestlet<HeatmapTileParameters>
                 + " AND location && ST_SetSRID(ST_MakeBox2D(ST_Point(?,?), ST_Point(?,?)), 900913)"
                 + " GROUP BY gx,gy", mo.valueColumnLog, whereSQL);
         
-        final int partSizeFactor;
-        if (zoom >= ZOOM_TO_PART_FACTOR.length)
-            partSizeFactor = ZOOM_TO_PART_FACTOR[ZOOM_TO_PART_FACTOR.length - 1];
-        else
-            partSizeFactor = ZOOM_TO_PART_FACTOR[zoom];
+        final int partSizeFactor = getPartSizeFactor(zoom);
         final int partSizePixels = 1 << partSizeFactor;
         
-        final int fetchPartsX = tileSize / partSizePixels + (HORIZON_OFFSET + 2) * 2;
-        final int fetchPartsY = tileSize / partSizePixels + (HORIZON_OFFSET + 2) * 2;
+        final int fetchPartsX = tileSize / partSizePixels + (HeatmapRasterizer.HORIZON_OFFSET + 2) * 2;
+        final int fetchPartsY = tileSize / partSizePixels + (HeatmapRasterizer.HORIZON_OFFSET + 2) * 2;
         
         final double[] values = new double[fetchPartsX * fetchPartsY];
         // final int[] countsReal = new int[fetchPartsX * fetchPartsY];
@@ -164,73 +142,94 @@ public class HeatmapTiles extends TileRestlet<HeatmapTileParameters>
     
         boolean _emptyTile = true;
         
+        final double partSize = box.res * partSizePixels;
+        final double origX = box.x1 - box.res * (partSizePixels / 2) - partSize * (HeatmapRasterizer.HORIZON_OFFSET + 1);
+        final double origY = box.y1 - box.res * (partSizePixels / 2) - partSize * (HeatmapRasterizer.HORIZON_OFFSET + 1);
+        
         try (Connection con = DbConnection.getConnection())
         {
-            try (PreparedStatement ps = con.prepareStatement(sql))
+            // pre-aggregated cells, if the grid covers the tile
+            int gridCells = -1;
+            final HeatmapGrid.Level level = HeatmapGrid.getLevel(tileSize, zoom, partSizeFactor);
+            final int period = HeatmapGrid.getPeriod(params.getFilterMap());
+            if (level != null && period >= 0)
             {
-                int p = 1;
-                ps.setFloat(p++, quantile);
+                gridCells = HeatmapGrid.read(con, params.getMapOption(), mo, period, level, origX, origY,
+                        fetchPartsX, fetchPartsY, quantile, values, countsRel);
+                if (gridCells > 0)
+                {
+                    _emptyTile = false;
+                    for (int i = 0; i < countsRel.length; i++)
+                        if (countsRel[i] > ALPHA_MAX)
+                            countsRel[i] = ALPHA_MAX;
+                }
+            }
+            
+            if (gridCells == -1)
+            {
+                try (PreparedStatement ps = con.prepareStatement(sql))
+                {
+                    int p = 1;
+                    ps.setFloat(p++, quantile);
                 
-                // int _partSizeFactor = (int)Math.round((8d/11d) * zoom -
-                // (48d/11d));
-                // if (_partSizeFactor < 0)
-                // _partSizeFactor = 0;
-                // if (_partSizeFactor > 7)
-                // _partSizeFactor = 7;
-                // final int partSizeFactor = _partSizeFactor;
+                    // int _partSizeFactor = (int)Math.round((8d/11d) * zoom -
+                    // (48d/11d));
+                    // if (_partSizeFactor < 0)
+                    // _partSizeFactor = 0;
+                    // if (_partSizeFactor > 7)
+                    // _partSizeFactor = 7;
+                    // final int partSizeFactor = _partSizeFactor;
                 
-                // System.out.println(partSizePixels);
+                    // System.out.println(partSizePixels);
                 
-                final double partSize = box.res * partSizePixels;
-                final double origX = box.x1 - box.res * (partSizePixels / 2) - partSize * (HORIZON_OFFSET + 1);
-                final double origY = box.y1 - box.res * (partSizePixels / 2) - partSize * (HORIZON_OFFSET + 1);
-                for (int j = 0; j < 2; j++)
-                {
-                    ps.setDouble(p++, origX);
-                    ps.setDouble(p++, origY);
-                    ps.setDouble(p++, partSize);
-                    ps.setDouble(p++, partSize);
-                }
+                    for (int j = 0; j < 2; j++)
+                    {
+                        ps.setDouble(p++, origX);
+                        ps.setDouble(p++, origY);
+                        ps.setDouble(p++, partSize);
+                        ps.setDouble(p++, partSize);
+                    }
                 
-                for (final SQLFilter sf : filters)
-                    p = sf.fillParams(p, ps);
+                    for (final SQLFilter sf : filters)
+                        p = sf.fillParams(p, ps);
                 
-                final double margin = partSize * (HORIZON_OFFSET + 1);
-                ps.setDouble(p++, box.x1 - margin);
-                ps.setDouble(p++, box.y1 - margin);
-                ps.setDouble(p++, box.x2 + margin);
-                ps.setDouble(p++, box.y2 + margin);
+                    final double margin = partSize * (HeatmapRasterizer.HORIZON_OFFSET + 1);
+                    ps.setDouble(p++, box.x1 - margin);
+                    ps.setDouble(p++, box.y1 - margin);
+                    ps.setDouble(p++, box.x2 + margin);
+                    ps.setDouble(p++, box.y2 + margin);
                 
-    //            System.out.println(ps);
+        //            System.out.println(ps);
                 
-                if (!ps.execute())
-                    throw new IllegalArgumentException(ps.getWarnings());
+                    if (!ps.execute())
+                        throw new IllegalArgumentException(ps.getWarnings());
                 
-                try (ResultSet rs = ps.getResultSet())
-                {
-                    
-                    while (rs.next())
+                    try (ResultSet rs = ps.getResultSet())
                     {
-                        _emptyTile = false;
-                        int count = rs.getInt(1);
-                        final double val = rs.getDouble(2);
-                        final double gx = rs.getDouble(3);
-                        final double gy = rs.getDouble(4);
+                    
+                        while (rs.next())
+                        {
+                            _emptyTile = false;
+                            int count = rs.getInt(1);
+                            final double val = rs.getDouble(2);
+                            final double gx = rs.getDouble(3);
+                            final double gy = rs.getDouble(4);
                         
-                        final int mx = (int) Math.round((gx - origX) / partSize);
-                        final int my = (int) Math.round((gy - origY) / partSize);
+                            final int mx = (int) Math.round((gx - origX) / partSize);
+                            final int my = (int) Math.round((gy - origY) / partSize);
                         
-                        // System.out.println(String.format("%f|%f %d|%d %d %f",gx, gy,
-                        // mx, my, count, val));
+                            // System.out.println(String.format("%f|%f %d|%d %d %f",gx, gy,
+                            // mx, my, count, val));
                         
-                        if (mx >= 0 && mx < fetchPartsX && my >= 0 && my < fetchPartsY)
-                        {
-                            final int idx = mx + fetchPartsX * (fetchPartsY - 1 - my);
-                            values[idx] = val;
-                            // countsReal[idx] = count;
-                            if (count > ALPHA_MAX)
-                                count = ALPHA_MAX;
-                            countsRel[idx] = count;
+                            if (mx >= 0 && mx < fetchPartsX && my >= 0 && my < fetchPartsY)
+                            {
+                                final int idx = mx + fetchPartsX * (fetchPartsY - 1 - my);
+                                values[idx] = val;
+                                // countsReal[idx] = count;
+                                if (count > ALPHA_MAX)
+                                    count = ALPHA_MAX;
+                                countsRel[idx] = count;
+                            }
                         }
                     }
                 }
@@ -239,63 +238,10 @@ public class HeatmapTiles extends TileRestlet<HeatmapTileParameters>
             if (_emptyTile)
                 return null;
             
-            final Image img = images[tileSizeIdx].get();
-            
             final int[] pixels = pixelBuffers[tileSizeIdx].get();
-            for (int y = 0; y < tileSize; y++)
-                for (int x = 0; x < tileSize; x++)
-                {
-                    final int mx = HORIZON_OFFSET + 1 + (x + partSizePixels / 2) / partSizePixels;
-                    final int my = HORIZON_OFFSET + 1 + (y + partSizePixels / 2) / partSizePixels;
-                    final int relX = (x + partSizePixels / 2) % partSizePixels;
-                    final int relY = (y + partSizePixels / 2) % partSizePixels;
-                    final int relOffset = (relY * partSizePixels + relX) * HORIZON_SIZE;
-                    
-                    double alphaWeigth = 0;
-                    double valueWeight = 0;
-                    double valueMissing = 0;
-                    final int startIdx = mx - HORIZON_OFFSET + fetchPartsX * (my - HORIZON_OFFSET);
-                    
-                    for (int i = 0; i < HORIZON_SIZE; i++)
-                    {
-                        final int idx = startIdx + i % HORIZON + fetchPartsX * (i / HORIZON);
-                        if (Double.isNaN(values[idx]))
-                            valueMissing += FACTORS[partSizeFactor][i + relOffset];
-                        else
-                            valueWeight += FACTORS[partSizeFactor][i + relOffset] * values[idx];
-                        alphaWeigth += FACTORS[partSizeFactor][i + relOffset] * countsRel[idx];
-                    }
-                    
-                    if (valueMissing > 0)
-                        valueWeight += valueWeight / (1 - valueMissing) * valueMissing;
-                    
-                    alphaWeigth /= ALPHA_TOP;
-                    if (alphaWeigth < 0)
-                        alphaWeigth = 0;
-                    if (alphaWeigth > 1)
-                        alphaWeigth = 1;
-                    
-                    alphaWeigth *= transparency;
-                    
-                    final int alpha = (int) (alphaWeigth * 255) << 24;
-                    assert alpha >= 0 || alpha <= 255 : alpha;
-                    if (alpha == 0)
-                        pixels[x + y * tileSize] = 0;
-                    else
-                        pixels[x + y * tileSize] = valueToColor(mo.colorsSorted, mo.intervalsSorted, valueWeight)
-                                | alpha;
-                    // pixels[x + y * WIDTH] = 255 << 24 | alpha >>> 8 |
-                    // alpha >>> 16 | alpha >>> 24;
-                    
-                    if (DEBUG_LINES)
-                        if (relX == partSizePixels / 2 || relY == partSizePixels / 2)
-                            pixels[x + y * tileSize] = 0xff000000;
-                }
-            img.bi.setRGB(0, 0, tileSize, tileSize, pixels, 0, tileSize);
-            
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(img.bi, "png", baos);
-            return baos.toByteArray();
+            HeatmapRasterizer.rasterize(values, countsRel, fetchPartsX, partSizeFactor, tileSize, transparency,
+                    mo.colorsSorted, mo.intervalsSorted, pixels);
+            return pngEncoders.get().encode(pixels, tileSize, tileSize);
         }
         catch (final Exception e)
         {
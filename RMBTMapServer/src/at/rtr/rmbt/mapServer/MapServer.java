@@ -42,6 +42,8 @@ public class MapServer extends Application
         router.attach("/tiles/shapes", shapeTiles);
         
         router.attach("/tiles/markers", MarkerResource.class);
+
+        router.attach("/tiles/cache", TileCacheResource.class);
         
         router.attach("/tiles/info", InfoResource.class);
         router.attach("/v2/tiles/info", at.rtr.rmbt.mapServer.v2.InfoResource.class);
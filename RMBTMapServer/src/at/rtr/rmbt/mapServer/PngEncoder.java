@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.mapServer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes ARGB pixels (not premultiplied, as in {@link java.awt.image.BufferedImage#TYPE_INT_ARGB}) as PNG.
+ * <p>
+ * Images with at most 256 colors are written with a palette (one byte per pixel), all others as RGBA with the
+ * "Sub" filter, which suits the smooth gradients of the tiles.
+ * An encoder keeps its buffers, so it should be reused, but it is not thread safe.
+ * The {@link Deflater} is shared by the encoders of a thread and reset for each image, so encoders do not hold
+ * native memory which is only released by {@link Deflater#end()}.
+ *
+ * @author lb
+ *
+ */
+final class PngEncoder
+{
+    private static final byte[] SIGNATURE = new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private static final int COLOR_TYPE_PALETTE = 3;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    /**
+     * size of the hash table of the palette (power of 2)
+     */
+    private static final int PALETTE_TABLE_BITS = 10;
+
+    private static final int COMPRESSION_LEVEL = 4;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>()
+    {
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater(COMPRESSION_LEVEL);
+        }
+    };
+
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private final int[] paletteKeys = new int[1 << PALETTE_TABLE_BITS];
+    private final int[] paletteIndexes = new int[1 << PALETTE_TABLE_BITS];
+    private final int[] palette = new int[MAX_PALETTE_SIZE];
+
+    /**
+     * filtered scanlines
+     */
+    private byte[] raw = new byte[0];
+    private byte[] compressed = new byte[0];
+    private final byte[] chunkHeader = new byte[8];
+
+    /**
+     *
+     * @param argb the pixels, row by row
+     * @param width
+     * @param height
+     * @return the PNG
+     */
+    byte[] encode(int[] argb, int width, int height)
+    {
+        final int paletteSize = toIndexed(argb, width, height);
+        final boolean indexed = paletteSize > 0;
+        final int rawLength;
+        if (indexed)
+            rawLength = height * (width + 1);
+        else
+            rawLength = toRGBA(argb, width, height);
+
+        out.reset();
+        out.write(SIGNATURE, 0, SIGNATURE.length);
+
+        final byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8; // bit depth
+        ihdr[9] = (byte) (indexed ? COLOR_TYPE_PALETTE : COLOR_TYPE_RGBA);
+        // compression, filter and interlace method: 0
+        writeChunk("IHDR", ihdr, ihdr.length);
+
+        if (indexed)
+        {
+            final byte[] plte = new byte[paletteSize * 3];
+            final byte[] trns = new byte[paletteSize];
+            for (int i = 0; i < paletteSize; i++)
+            {
+                final int c = palette[i];
+                plte[i * 3] = (byte) (c >>> 16);
+                plte[i * 3 + 1] = (byte) (c >>> 8);
+                plte[i * 3 + 2] = (byte) c;
+                trns[i] = (byte) (c >>> 24);
+            }
+            writeChunk("PLTE", plte, plte.length);
+            writeChunk("tRNS", trns, trns.length);
+        }
+
+        final int compressedLength = deflate(rawLength);
+        writeChunk("IDAT", compressed, compressedLength);
+        writeChunk("IEND", compressed, 0);
+        return out.toByteArray();
+    }
+
+    /**
+     * writes the pixels as palette indexes to {@link #raw}
+     *
+     * @return the size of the palette, 0 if the image has too many colors
+     */
+    private int toIndexed(int[] argb, int width, int height)
+    {
+        ensureRawCapacity(height * (width + 1));
+        Arrays.fill(paletteIndexes, -1);
+        final int mask = paletteKeys.length - 1;
+        int paletteSize = 0;
+        int pos = 0;
+        for (int y = 0; y < height; y++)
+        {
+            raw[pos++] = FILTER_NONE;
+            final int rowOffset = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                int c = argb[rowOffset + x];
+                if ((c & 0xff000000) == 0)
+                    c = 0; // all transparent pixels are the same
+                int slot = (c * 0x9e3779b9) >>> (32 - PALETTE_TABLE_BITS);
+                while (paletteIndexes[slot] != -1 && paletteKeys[slot] != c)
+                    slot = (slot + 1) & mask;
+                int index = paletteIndexes[slot];
+                if (index == -1)
+                {
+                    if (paletteSize == MAX_PALETTE_SIZE)
+                        return 0;
+                    index = paletteSize++;
+                    palette[index] = c;
+                    paletteKeys[slot] = c;
+                    paletteIndexes[slot] = index;
+                }
+                raw[pos++] = (byte) index;
+            }
+        }
+        return paletteSize;
+    }
+
+    /**
+     * writes the pixels as RGBA with the "Sub" filter to {@link #raw}
+     *
+     * @return the number of bytes
+     */
+    private int toRGBA(int[] argb, int width, int height)
+    {
+        final int length = height * (width * 4 + 1);
+        ensureRawCapacity(length);
+        int pos = 0;
+        for (int y = 0; y < height; y++)
+        {
+            raw[pos++] = FILTER_SUB;
+            final int rowOffset = y * width;
+            int previous = 0;
+            for (int x = 0; x < width; x++)
+            {
+                int c = argb[rowOffset + x];
+                if ((c & 0xff000000) == 0)
+                    c = 0;
+                raw[pos++] = (byte) ((c >>> 16) - (previous >>> 16));
+                raw[pos++] = (byte) ((c >>> 8) - (previous >>> 8));
+                raw[pos++] = (byte) (c - previous);
+                raw[pos++] = (byte) ((c >>> 24) - (previous >>> 24));
+                previous = c;
+            }
+        }
+        return length;
+    }
+
+    private void ensureRawCapacity(int length)
+    {
+        if (raw.length < length)
+            raw = new byte[length];
+    }
+
+    /**
+     * compresses {@link #raw} to {@link #compressed}
+     *
+     * @return the number of compressed bytes
+     */
+    private int deflate(int rawLength)
+    {
+        final Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        if (compressed.length < rawLength / 4 + 64)
+            compressed = new byte[rawLength / 4 + 64];
+        int length = 0;
+        while (!deflater.finished())
+        {
+            if (length == compressed.length)
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+
+    private void writeChunk(String type, byte[] data, int length)
+    {
+        putInt(chunkHeader, 0, length);
+        for (int i = 0; i < 4; i++)
+            chunkHeader[4 + i] = (byte) type.charAt(i);
+        out.write(chunkHeader, 0, 8);
+        out.write(data, 0, length);
+
+        crc.reset();
+        crc.update(chunkHeader, 4, 4);
+        crc.update(data, 0, length);
+        putInt(chunkHeader, 0, (int) crc.getValue());
+        out.write(chunkHeader, 0, 4);
+    }
+
+    private static void putInt(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
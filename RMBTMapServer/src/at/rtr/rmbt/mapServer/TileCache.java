@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.mapServer;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import at.rtr.rmbt.shared.cache.CacheHelper;
+import at.rtr.rmbt.shared.cache.CacheHelper.ObjectWithTimestamp;
+import at.rtr.rmbt.shared.cache.CacheHelper.RefreshPriority;
+
+/**
+ * Two tier tile cache: an in-process cache limited by the size of the tiles (least recently used tiles are evicted first)
+ * in front of memcached ({@link CacheHelper}).
+ * <p>
+ * Concurrent requests for a tile that is in neither tier wait for a single lookup in memcached and a single rendering.
+ * Stale tiles are delivered and refreshed once in the background (see {@link CacheHelper#getOrComputeWithTimestamp}).
+ * The tiles keep the timestamp of the rendering, so a tile from memcached gets stale locally at the same time as in memcached.
+ *
+ * @author lb
+ *
+ */
+public class TileCache
+{
+    /**
+     * byte budget of the in-process tier
+     */
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * approx. memory of an entry besides the tile data (key, entry and objects)
+     */
+    private static final int ENTRY_OVERHEAD = 200;
+
+    private static final TileCache instance = new TileCache(MAX_BYTES);
+
+    private final CacheHelper cacheHelper = CacheHelper.getInstance();
+
+    private final Cache<String, LocalTile> cache;
+
+    private final ConcurrentMap<String, Statistics> statistics = new ConcurrentHashMap<>();
+
+    public static TileCache getInstance()
+    {
+        return instance;
+    }
+
+    public interface TileRenderer
+    {
+        /**
+         *
+         * @return the tile, null if the tile is empty
+         */
+        byte[] render();
+    }
+
+    private static class LocalTile
+    {
+        private final byte[] data;
+        private final long ts;
+
+        private LocalTile(byte[] data, long ts)
+        {
+            this.data = data;
+            this.ts = ts;
+        }
+
+        private boolean isOlderThan(int seconds, long now)
+        {
+            return ts + seconds * 1000L <= now;
+        }
+    }
+
+    /**
+     * hit, miss and latency counters of a tile type
+     *
+     * @author lb
+     *
+     */
+    public static class Statistics
+    {
+        private final LongAdder localHits = new LongAdder();
+        private final LongAdder memcachedHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder staleHits = new LongAdder();
+        private final LongAdder refreshes = new LongAdder();
+        private final LongAdder requestTimeNs = new LongAdder();
+        private final AtomicLong maxRequestTimeNs = new AtomicLong();
+        private final LongAdder renderTimeNs = new LongAdder();
+        private final AtomicLong maxRenderTimeNs = new AtomicLong();
+
+        private static void updateMax(AtomicLong max, long value)
+        {
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value))
+                ;
+        }
+
+        private void addRequestTime(long ns)
+        {
+            requestTimeNs.add(ns);
+            updateMax(maxRequestTimeNs, ns);
+        }
+
+        private void addRenderTime(long ns)
+        {
+            renderTimeNs.add(ns);
+            updateMax(maxRenderTimeNs, ns);
+        }
+
+        /**
+         *
+         * @return requests served from the in-process tier (including requests that waited for a concurrent request of the same tile)
+         */
+        public long getLocalHits()
+        {
+            return localHits.sum();
+        }
+
+        public long getMemcachedHits()
+        {
+            return memcachedHits.sum();
+        }
+
+        /**
+         *
+         * @return requests that rendered the tile
+         */
+        public long getMisses()
+        {
+            return misses.sum();
+        }
+
+        public long getStaleHits()
+        {
+            return staleHits.sum();
+        }
+
+        /**
+         *
+         * @return background renderings of stale tiles
+         */
+        public long getRefreshes()
+        {
+            return refreshes.sum();
+        }
+
+        public long getRequests()
+        {
+            return getLocalHits() + getMemcachedHits() + getMisses();
+        }
+
+        public long getMeanRequestTimeNs()
+        {
+            final long requests = getRequests();
+            return requests == 0 ? 0 : requestTimeNs.sum() / requests;
+        }
+
+        public long getMaxRequestTimeNs()
+        {
+            return maxRequestTimeNs.get();
+        }
+
+        public long getMeanRenderTimeNs()
+        {
+            final long renderings = getMisses() + getRefreshes();
+            return renderings == 0 ? 0 : renderTimeNs.sum() / renderings;
+        }
+
+        public long getMaxRenderTimeNs()
+        {
+            return maxRenderTimeNs.get();
+        }
+    }
+
+    private enum Source
+    {
+        MEMCACHED,
+        RENDERED
+    }
+
+    TileCache(long maxBytes)
+    {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<String, LocalTile>()
+                {
+                    @Override
+                    public int weigh(String key, LocalTile tile)
+                    {
+                        return ENTRY_OVERHEAD + key.length() * 2 + tile.data.length;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     *
+     * @param type the tile type the counters are kept for
+     * @return
+     */
+    public Statistics getStatistics(String type)
+    {
+        Statistics s = statistics.get(type);
+        if (s == null)
+        {
+            final Statistics newStatistics = new Statistics();
+            s = statistics.putIfAbsent(type, newStatistics);
+            if (s == null)
+                s = newStatistics;
+        }
+        return s;
+    }
+
+    /**
+     *
+     * @return tile type -> statistics
+     */
+    public Map<String, Statistics> getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     *
+     * @return number of tiles in the in-process tier
+     */
+    public long getSize()
+    {
+        return cache.size();
+    }
+
+    /**
+     *
+     * @return bytes of the tiles in the in-process tier
+     */
+    public long getBytes()
+    {
+        long bytes = 0;
+        for (final LocalTile tile : cache.asMap().values())
+            bytes += tile.data.length;
+        return bytes;
+    }
+
+    /**
+     *
+     * @param type tile type for the statistics
+     * @param key see {@link CacheHelper#getHash(com.google.common.hash.Funnel)}
+     * @param staleSec seconds after which a tile is rendered again in the background
+     * @param expireSec seconds after which a tile is not delivered anymore
+     * @param emptyImage the tile that is delivered if the renderer returns null
+     * @param renderer
+     * @return the tile
+     */
+    public byte[] get(final String type, final String key, final int staleSec, final int expireSec,
+            final byte[] emptyImage, final TileRenderer renderer)
+    {
+        final long start = System.nanoTime();
+        final Statistics s = getStatistics(type);
+
+        LocalTile tile = cache.getIfPresent(key);
+        if (tile != null && tile.isOlderThan(expireSec, System.currentTimeMillis()))
+        {
+            cache.asMap().remove(key, tile);
+            tile = null;
+        }
+
+        Source source = null;
+        if (tile == null)
+        {
+            final TileLoader loader = new TileLoader(s, key, emptyImage, renderer);
+            final boolean[] loaded = new boolean[1];
+            try
+            {
+                tile = cache.get(key, new Callable<LocalTile>()
+                {
+                    @Override
+                    public LocalTile call()
+                    {
+                        loaded[0] = true;
+                        final ObjectWithTimestamp cacheObject = cacheHelper.getOrComputeWithTimestamp(key, staleSec, expireSec,
+                                loader, RefreshPriority.NORMAL);
+                        byte[] data = (byte[]) cacheObject.o;
+                        if (Arrays.equals(TileRestlet.EMPTY_MARKER, data))
+                            data = emptyImage;
+                        // if there is no ts, we assume stale
+                        return new LocalTile(data, cacheObject.ts != null ? cacheObject.ts : 0);
+                    }
+                });
+            }
+            catch (ExecutionException | UncheckedExecutionException | ExecutionError e)
+            {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw new IllegalStateException(e.getCause());
+            }
+            // requests waiting for the load of a concurrent request are local hits
+            if (loaded[0])
+                source = loader.rendered ? Source.RENDERED : Source.MEMCACHED;
+        }
+
+        if (source == Source.RENDERED)
+            s.misses.increment();
+        else
+        {
+            if (source == Source.MEMCACHED)
+                s.memcachedHits.increment();
+            else
+                s.localHits.increment();
+            if (tile.isOlderThan(staleSec, System.currentTimeMillis()))
+            {
+                s.staleHits.increment();
+                cacheHelper.refresh(key, expireSec, new TileLoader(s, key, emptyImage, renderer), RefreshPriority.NORMAL);
+            }
+        }
+
+        s.addRequestTime(System.nanoTime() - start);
+        return tile.data;
+    }
+
+    /**
+     * Renders a tile for memcached. If called by another thread than the one of the request
+     * (background refresh of a stale tile), the in-process tier is updated as well.
+     */
+    private class TileLoader implements CacheHelper.Loader<byte[]>
+    {
+        private final Thread requestThread = Thread.currentThread();
+        private final Statistics s;
+        private final String key;
+        private final byte[] emptyImage;
+        private final TileRenderer renderer;
+        private boolean rendered = false;
+
+        private TileLoader(Statistics s, String key, byte[] emptyImage, TileRenderer renderer)
+        {
+            this.s = s;
+            this.key = key;
+            this.emptyImage = emptyImage;
+            this.renderer = renderer;
+        }
+
+        @Override
+        public byte[] load()
+        {
+            final long start = System.nanoTime();
+            final byte[] data = renderer.render();
+            s.addRenderTime(System.nanoTime() - start);
+
+            if (Thread.currentThread() == requestThread)
+                rendered = true;
+            else
+            {
+                s.refreshes.increment();
+                cache.put(key, new LocalTile(data != null ? data : emptyImage, System.currentTimeMillis()));
+            }
+            return data != null ? data : TileRestlet.EMPTY_MARKER;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.mapServer;
+
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.resource.Get;
+
+import at.rtr.rmbt.mapServer.TileCache.Statistics;
+import at.rtr.rmbt.shared.cache.CacheHelper;
+import at.rtr.rmbt.shared.cache.CacheHelper.Metrics;
+
+/**
+ * hit, miss and latency counters of the tile cache per tile type and of the {@link CacheHelper}
+ */
+public class TileCacheResource extends ServerResource
+{
+    @Get("json")
+    public String request(final String entity)
+    {
+        try
+        {
+            final TileCache tileCache = TileCache.getInstance();
+            final JSONObject answer = new JSONObject();
+            answer.put("size", tileCache.getSize());
+            answer.put("bytes", tileCache.getBytes());
+
+            final JSONObject types = new JSONObject();
+            for (final Map.Entry<String, Statistics> entry : tileCache.getStatistics().entrySet())
+            {
+                final Statistics s = entry.getValue();
+                final JSONObject obj = new JSONObject();
+                obj.put("requests", s.getRequests());
+                obj.put("local_hits", s.getLocalHits());
+                obj.put("memcached_hits", s.getMemcachedHits());
+                obj.put("misses", s.getMisses());
+                obj.put("stale_hits", s.getStaleHits());
+                obj.put("refreshes", s.getRefreshes());
+                obj.put("mean_request_time_ns", s.getMeanRequestTimeNs());
+                obj.put("max_request_time_ns", s.getMaxRequestTimeNs());
+                obj.put("mean_render_time_ns", s.getMeanRenderTimeNs());
+                obj.put("max_render_time_ns", s.getMaxRenderTimeNs());
+                types.put(entry.getKey(), obj);
+            }
+            answer.put("types", types);
+
+            final Metrics m = CacheHelper.getInstance().getMetrics();
+            final JSONObject memcached = new JSONObject();
+            memcached.put("hits", m.getHits());
+            memcached.put("stale_hits", m.getStaleHits());
+            memcached.put("misses", m.getMisses());
+            memcached.put("coalesced", m.getCoalesced());
+            memcached.put("load_failures", m.getLoadFailures());
+            memcached.put("mean_load_time_ns", m.getMeanLoadTimeNs());
+            memcached.put("refreshes_queued", m.getRefreshesQueued());
+            memcached.put("refreshes_coalesced", m.getRefreshesCoalesced());
+            memcached.put("refreshes_dropped", m.getRefreshesDropped());
+            memcached.put("refreshes", m.getRefreshes());
+            answer.put("memcached", memcached);
+            return answer.toString();
+        }
+        catch (JSONException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -23,7 +23,6 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -40,7 +39,6 @@ import at.rtr.rmbt.mapServer.MapServerOptions.SQLFilter;
 import at.rtr.rmbt.mapServer.parameters.TileParameters;
 import at.rtr.rmbt.mapServer.parameters.TileParameters.Path;
 import at.rtr.rmbt.shared.cache.CacheHelper;
-import at.rtr.rmbt.shared.cache.CacheHelper.ObjectWithTimestamp;
 
 public abstract class TileRestlet<Params extends TileParameters> extends Restlet
 {
@@ -50,7 +48,7 @@ public abstract class TileRestlet<Params extends TileParameters> extends Restlet
     
     private static final int CACHE_STALE = 60*60;
     private static final int CACHE_EXPIRE = 24*60*60;
-    private final CacheHelper cache = CacheHelper.getInstance();
+    private final TileCache tileCache = TileCache.getInstance();
     
     static
     {
@@ -164,58 +162,24 @@ public abstract class TileRestlet<Params extends TileParameters> extends Restlet
     
     protected byte[] getTile(final Params p)
     {
-        boolean useCache = true;
-        if (p.isNoCache())
-            useCache = false;
-        
-        final String cacheKey;
-        
-        if (useCache)
-        {
-            cacheKey = CacheHelper.getHash((TileParameters)p);
-            final ObjectWithTimestamp cacheObject = cache.getWithTimestamp(cacheKey, CACHE_STALE);
-            if (cacheObject != null)
-            {
-                System.out.println("cache hit for: " + cacheKey + "; is stale: " + cacheObject.stale);
-                byte[] data = (byte[]) cacheObject.o;
-                if (Arrays.equals(EMPTY_MARKER, data))
-                    data = EMPTY_IMAGES[getTileSizeIdx(p)];
-                if (cacheObject.stale)
-                {
-                    final Runnable refreshCacheRunnable = new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            System.out.println("adding in background: " + cacheKey);
-                            final byte[] newData = generateTile(p, getTileSizeIdx(p));
-                            cache.set(cacheKey, CACHE_EXPIRE, newData != null ? newData : EMPTY_MARKER, true);
-                        }
-                    };
-                    cache.getExecutor().execute(refreshCacheRunnable);
-                }
-                return data;
-            }
-            else {
-                System.out.println("no cache hit for: " + cacheKey);
-            }
-        }
-        else
-            cacheKey = null;
-        
         final int tileSizeIdx = getTileSizeIdx(p);
-        byte[] data = generateTile(p, tileSizeIdx);
-//        if (data == null)
         
-        if (useCache)
+        if (p.isNoCache())
         {
-            System.out.println("adding to cache: " + cacheKey);
-            cache.set(cacheKey, CACHE_EXPIRE, data != null ? data : EMPTY_MARKER, true);
+            final byte[] data = generateTile(p, tileSizeIdx);
+            return data != null ? data : EMPTY_IMAGES[tileSizeIdx];
         }
         
-        if (data == null)
-            data = EMPTY_IMAGES[tileSizeIdx];
-        return data;
+        final String cacheKey = CacheHelper.getHash((TileParameters)p);
+        return tileCache.get(getClass().getSimpleName(), cacheKey, CACHE_STALE, CACHE_EXPIRE, EMPTY_IMAGES[tileSizeIdx],
+                new TileCache.TileRenderer()
+                {
+                    @Override
+                    public byte[] render()
+                    {
+                        return generateTile(p, tileSizeIdx);
+                    }
+                });
     }
 
     private int getTileSizeIdx(final Params p)
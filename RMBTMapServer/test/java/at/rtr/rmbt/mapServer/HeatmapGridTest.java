@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.mapServer;
+
+import at.rtr.rmbt.mapServer.HeatmapGrid.Level;
+import at.rtr.rmbt.mapServer.MapServerOptions.MapOption;
+import at.rtr.rmbt.shared.sketch.QuantileSketch;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class HeatmapGridTest {
+
+    private final MapOption mo = MapServerOptions.getMapOptionMap().get("mobile/download");
+
+    /**
+     * cell index of a coordinate like the query of {@link HeatmapGridBuilder}: floor((x + offset) / size + 0.5)
+     */
+    private static int getCellIndexSQL(Level level, double coordinate) {
+        return (int) Math.floor((coordinate + level.getIndexOffset()) / level.getCellSize() + 0.5);
+    }
+
+    /**
+     * bucket of a value like the query of {@link HeatmapGridBuilder}: least(greatest(width_bucket(...), 1), buckets) - 1
+     */
+    private int getBucket(double value) {
+        final double lower = HeatmapGrid.getLowerBound(mo);
+        final double upper = HeatmapGrid.getUpperBound(mo);
+        final int bucket = (int) Math.floor((value - lower) / (upper - lower) * HeatmapGrid.BUCKETS);
+        return Math.min(Math.max(bucket, 0), HeatmapGrid.BUCKETS - 1);
+    }
+
+    /**
+     * snaps random tests (x, y, value) to the cells of a level
+     */
+    private Map<List<Integer>, QuantileSketch> aggregate(Level level, double[][] tests) {
+        final Map<List<Integer>, QuantileSketch> cells = new HashMap<>();
+        for (final double[] test : tests) {
+            final List<Integer> key = Arrays.asList(getCellIndexSQL(level, test[0]), getCellIndexSQL(level, test[1]));
+            QuantileSketch sketch = cells.get(key);
+            if (sketch == null) {
+                sketch = new QuantileSketch();
+                cells.put(key, sketch);
+            }
+            sketch.add(getBucket(test[2]), 1);
+        }
+        return cells;
+    }
+
+    private double[][] createTests(int n, double extent, long seed) {
+        final double[] intervals = mo.intervalsSorted;
+        final Random random = new Random(seed);
+        final double[][] tests = new double[n][];
+        for (int i = 0; i < n; i++)
+            tests[i] = new double[] {(random.nextDouble() * 2 - 1) * extent, (random.nextDouble() * 2 - 1) * extent,
+                    intervals[0] + random.nextDouble() * (intervals[intervals.length - 1] - intervals[0])};
+        return tests;
+    }
+
+    @Test
+    public void testLevels() {
+        final Set<Level> levels = HeatmapGrid.getLevels();
+        for (int zoom = 0; zoom <= HeatmapGrid.MAX_ZOOM; zoom++)
+            for (final int tileSize : new int[] {256, 512}) {
+                final Level level = HeatmapGrid.getLevel(tileSize, zoom, HeatmapTiles.getPartSizeFactor(zoom));
+                assertTrue(levels.contains(level));
+            }
+        assertNull(HeatmapGrid.getLevel(256, HeatmapGrid.MAX_ZOOM + 1, HeatmapTiles.getPartSizeFactor(HeatmapGrid.MAX_ZOOM + 1)));
+        assertNull(HeatmapGrid.getLevel(768, 5, HeatmapTiles.getPartSizeFactor(5)));
+        // tiles of 512 pixels share the cells of tiles of 256 pixels one zoom level deeper
+        assertEquals(HeatmapGrid.getLevel(512, 9, 3), HeatmapGrid.getLevel(256, 10, 3));
+    }
+
+    /**
+     * the cells {@link HeatmapTiles} requests for a tile are cells of the level of the tile
+     */
+    @Test
+    public void testTileCells() {
+        final Random random = new Random(0);
+        for (int zoom = 0; zoom <= HeatmapGrid.MAX_ZOOM; zoom++)
+            for (final int tileSize : new int[] {256, 512}) {
+                final int partSizeFactor = HeatmapTiles.getPartSizeFactor(zoom);
+                final int partSizePixels = 1 << partSizeFactor;
+                final Level level = HeatmapGrid.getLevel(tileSize, zoom, partSizeFactor);
+                final int x = random.nextInt(1 << zoom);
+                final int y = random.nextInt(1 << zoom);
+                final TileRestlet.DBox box = GeoCalc.xyToMeters(tileSize, x, y, zoom);
+
+                // same as HeatmapTiles.generateTile
+                final double partSize = box.res * partSizePixels;
+                final double origX = box.x1 - box.res * (partSizePixels / 2) - partSize * (HeatmapRasterizer.HORIZON_OFFSET + 1);
+                final double origY = box.y1 - box.res * (partSizePixels / 2) - partSize * (HeatmapRasterizer.HORIZON_OFFSET + 1);
+
+                final String tile = "zoom " + zoom + ", tile size " + tileSize;
+                assertEquals(tile, level.getCellSize(), partSize, partSize * 1e-9);
+                for (final double orig : new double[] {origX, origY}) {
+                    // the center of the first cell is the center of a cell of the level
+                    final double index = (orig + level.getIndexOffset()) / level.getCellSize();
+                    assertEquals(tile, Math.rint(index), index, 1e-6);
+                    assertEquals(tile, (int) Math.rint(index), level.getCellIndex(orig));
+                }
+            }
+    }
+
+    @Test
+    public void testCellIndex() {
+        final Random random = new Random(1);
+        for (final Level level : HeatmapGrid.getLevels()) {
+            final double cellSize = level.getCellSize();
+            for (int i = 0; i < 100; i++) {
+                final int index = random.nextInt(1 << level.bits);
+                final double center = index * cellSize - level.getIndexOffset();
+                assertEquals(level.toString(), index, level.getCellIndex(center));
+                // a location anywhere within the cell
+                final double location = center + (random.nextDouble() - 0.5) * cellSize * 0.999;
+                assertEquals(level.toString(), index, getCellIndexSQL(level, location));
+                assertEquals(level.toString(), index, level.getCellIndex(location));
+            }
+        }
+    }
+
+    /**
+     * a cell is made of 2x2 cells of the shifted level with one more bit, so the sketch of a cell
+     * equals the merged sketches of these cells
+     */
+    @Test
+    public void testPyramid() {
+        final double[][] tests = createTests(20000, GeoCalc.MAX_EXTENT / 64, 2);
+        for (int bits = 10; bits <= 16; bits++)
+            for (final boolean shifted : new boolean[] {false, true}) {
+                final Level parent = new Level(bits, shifted);
+                final Level child = new Level(bits + 1, true);
+                final Map<List<Integer>, QuantileSketch> parentCells = aggregate(parent, tests);
+                final Map<List<Integer>, QuantileSketch> merged = new HashMap<>();
+                for (final Map.Entry<List<Integer>, QuantileSketch> entry : aggregate(child, tests).entrySet()) {
+                    // unshifted cell i spans the shifted cells 2i and 2i + 1, shifted cell i spans 2i - 1 and 2i
+                    final List<Integer> key = new ArrayList<>();
+                    for (final int index : entry.getKey())
+                        key.add(Math.floorDiv(index + (shifted ? 1 : 0), 2));
+                    QuantileSketch sketch = merged.get(key);
+                    if (sketch == null) {
+                        sketch = new QuantileSketch();
+                        merged.put(key, sketch);
+                    }
+                    sketch.addAll(entry.getValue());
+                }
+
+                assertEquals(parent.toString(), parentCells.keySet(), merged.keySet());
+                for (final Map.Entry<List<Integer>, QuantileSketch> entry : parentCells.entrySet())
+                    assertArrayEquals(parent + " " + entry.getKey(), entry.getValue().encode(), merged.get(entry.getKey()).encode());
+            }
+    }
+
+    /**
+     * the value of a cell as read by {@link HeatmapGrid#read}: percentile_cont of the tests within a bucket
+     */
+    @Test
+    public void testRoundTrip() {
+        final double lower = HeatmapGrid.getLowerBound(mo);
+        final double bucketSize = (HeatmapGrid.getUpperBound(mo) - lower) / HeatmapGrid.BUCKETS;
+        final double[][] tests = createTests(501, 1, 3);
+        final QuantileSketch sketch = new QuantileSketch();
+        final double[] values = new double[tests.length];
+        for (int i = 0; i < tests.length; i++) {
+            sketch.add(getBucket(tests[i][2]), 1);
+            values[i] = tests[i][2];
+        }
+        Arrays.sort(values);
+
+        final QuantileSketch decoded = HeatmapGrid.decodeSketch(sketch.encode());
+        assertEquals(tests.length, decoded.getCount());
+        for (final float quantile : new float[] {0.1f, 0.5f, 0.8f}) {
+            final double rank = quantile * (values.length - 1);
+            final int index = (int) rank;
+            final double expected = values[index] + (values[Math.min(index + 1, values.length - 1)] - values[index]) * (rank - index);
+            assertEquals(expected, lower + decoded.getPosition(quantile) * bucketSize, bucketSize);
+        }
+    }
+
+    @Test
+    public void testDecodeSketchRange() {
+        final QuantileSketch sketch = new QuantileSketch();
+        sketch.add(0, 1);
+        sketch.add(HeatmapGrid.BUCKETS - 1, 1);
+        assertEquals(2, HeatmapGrid.decodeSketch(sketch.encode()).getCount());
+        for (final int bucket : new int[] {-1, HeatmapGrid.BUCKETS}) {
+            final QuantileSketch invalid = new QuantileSketch();
+            invalid.add(bucket, 1);
+            try {
+                HeatmapGrid.decodeSketch(invalid.encode());
+                fail("bucket " + bucket);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(0, HeatmapGrid.decodeSketch(new QuantileSketch().encode()).getCount());
+    }
+
+    /**
+     * the sketch of a period is made of the age classes of the tests within the period
+     */
+    @Test
+    public void testCellPeriods() {
+        final List<Integer> agePeriods = HeatmapGrid.getAgePeriods();
+        assertEquals(Arrays.asList(30, 90, 180, 365), agePeriods);
+        final HeatmapGridBuilder.Cell cell = new HeatmapGridBuilder.Cell(0, 0, agePeriods.size() + 1);
+        for (int age = 0; age < cell.ages.length; age++)
+            cell.ages[age].add(age, age + 1);
+
+        assertEquals(1 + 2 + 3 + 4 + 5, cell.getSketch(0).getCount());
+        assertEquals(1, cell.getSketch(30).getCount());
+        assertEquals(1 + 2, cell.getSketch(90).getCount());
+        assertEquals(1 + 2 + 3 + 4, cell.getSketch(365).getCount());
+        assertEquals(0, cell.getSketch(30).getMaxBucket());
+        assertEquals(3, cell.getSketch(365).getMaxBucket());
+        // the age classes are not changed
+        assertEquals(1, cell.ages[0].getCount());
+    }
+
+    @Test
+    public void testPeriod() {
+        final Map<String, String> filters = new HashMap<>();
+        assertEquals(0, HeatmapGrid.getPeriod(filters));
+        filters.put("period", "90");
+        assertEquals(90, HeatmapGrid.getPeriod(filters));
+        filters.put("period", "7");
+        assertEquals(-1, HeatmapGrid.getPeriod(filters));
+    }
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.mapServer;
+
+import at.rtr.rmbt.mapServer.MapServerOptions.MapOption;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * compares the tiles of {@link HeatmapRasterizer} with the per pixel rasterization it replaced,
+ * after a round trip through {@link PngEncoder} and {@link ImageIO}
+ */
+public class HeatmapRasterizerTest {
+
+    private static final int HORIZON_OFFSET = HeatmapRasterizer.HORIZON_OFFSET;
+    private static final int HORIZON = HeatmapRasterizer.HORIZON;
+    private static final int HORIZON_SIZE = HeatmapRasterizer.HORIZON_SIZE;
+    private static final double ALPHA_TOP = 0.5;
+
+    private static final double TRANSPARENCY = 0.6;
+
+    private final MapOption mo = MapServerOptions.getMapOptionMap().get("mobile/download");
+
+    /**
+     * the per pixel rasterization of HeatmapTiles before {@link HeatmapRasterizer}
+     */
+    private static void rasterizeReference(double[] values, int[] counts, int partsX, int partSizeFactor, int tileSize,
+            double transparency, int[] colors, double[] intervals, int[] pixels) {
+        final int partSizePixels = 1 << partSizeFactor;
+        final double[] factors = new double[HORIZON_SIZE * partSizePixels * partSizePixels];
+        for (int i = 0; i < factors.length; i += HORIZON_SIZE) {
+            final double qPi = Math.PI / 4;
+            final double x = qPi * (i / HORIZON_SIZE % partSizePixels) / partSizePixels;
+            final double y = qPi * (i / HORIZON_SIZE / partSizePixels) / partSizePixels;
+            for (int j = 0; j < HORIZON; j++)
+                for (int k = 0; k < HORIZON; k++)
+                    factors[i + j + k * HORIZON] = Math.pow(Math.cos(x + (1 - j) * qPi), 2.0)
+                            * Math.pow(Math.cos(y + (1 - k) * qPi), 2.0) / 4;
+        }
+
+        for (int y = 0; y < tileSize; y++)
+            for (int x = 0; x < tileSize; x++) {
+                final int mx = HORIZON_OFFSET + 1 + (x + partSizePixels / 2) / partSizePixels;
+                final int my = HORIZON_OFFSET + 1 + (y + partSizePixels / 2) / partSizePixels;
+                final int relX = (x + partSizePixels / 2) % partSizePixels;
+                final int relY = (y + partSizePixels / 2) % partSizePixels;
+                final int relOffset = (relY * partSizePixels + relX) * HORIZON_SIZE;
+
+                double alphaWeigth = 0;
+                double valueWeight = 0;
+                double valueMissing = 0;
+                final int startIdx = mx - HORIZON_OFFSET + partsX * (my - HORIZON_OFFSET);
+                for (int i = 0; i < HORIZON_SIZE; i++) {
+                    final int idx = startIdx + i % HORIZON + partsX * (i / HORIZON);
+                    if (Double.isNaN(values[idx]))
+                        valueMissing += factors[i + relOffset];
+                    else
+                        valueWeight += factors[i + relOffset] * values[idx];
+                    alphaWeigth += factors[i + relOffset] * counts[idx];
+                }
+                if (valueMissing > 0)
+                    valueWeight += valueWeight / (1 - valueMissing) * valueMissing;
+
+                alphaWeigth /= ALPHA_TOP;
+                if (alphaWeigth < 0)
+                    alphaWeigth = 0;
+                if (alphaWeigth > 1)
+                    alphaWeigth = 1;
+                alphaWeigth *= transparency;
+
+                final int alpha = (int) (alphaWeigth * 255) << 24;
+                if (alpha == 0)
+                    pixels[x + y * tileSize] = 0;
+                else
+                    pixels[x + y * tileSize] = TileRestlet.valueToColor(colors, intervals, valueWeight) | alpha;
+            }
+    }
+
+    private static int[] decode(byte[] png, int width, int height) throws IOException {
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        final int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        // the color of transparent pixels is undefined
+        for (int i = 0; i < pixels.length; i++)
+            if ((pixels[i] & 0xff000000) == 0)
+                pixels[i] = 0;
+        return pixels;
+    }
+
+    private static int maxChannelDifference(int c1, int c2) {
+        int max = 0;
+        for (int shift = 0; shift < 32; shift += 8)
+            max = Math.max(max, Math.abs((c1 >>> shift & 0xff) - (c2 >>> shift & 0xff)));
+        return max;
+    }
+
+    private void assertTile(int tileSize, int zoom, double density, long seed) throws IOException {
+        final int partSizeFactor = HeatmapTiles.getPartSizeFactor(zoom);
+        final int partsX = tileSize / (1 << partSizeFactor) + (HORIZON_OFFSET + 2) * 2;
+        final double[] intervals = mo.intervalsSorted;
+        final Random random = new Random(seed);
+        final double[] values = new double[partsX * partsX];
+        final int[] counts = new int[partsX * partsX];
+        Arrays.fill(values, Double.NaN);
+        for (int i = 0; i < values.length; i++)
+            if (random.nextDouble() < density) {
+                values[i] = intervals[0] + random.nextDouble() * (intervals[intervals.length - 1] - intervals[0]);
+                counts[i] = 1;
+            }
+
+        final int[] pixels = new int[tileSize * tileSize];
+        HeatmapRasterizer.rasterize(values, counts, partsX, partSizeFactor, tileSize, TRANSPARENCY,
+                mo.colorsSorted, mo.intervalsSorted, pixels);
+        final int[] reference = new int[tileSize * tileSize];
+        rasterizeReference(values, counts, partsX, partSizeFactor, tileSize, TRANSPARENCY,
+                mo.colorsSorted, mo.intervalsSorted, reference);
+
+        final int[] decoded = decode(new PngEncoder().encode(pixels, tileSize, tileSize), tileSize, tileSize);
+        assertArrayEquals(pixels, decoded);
+
+        // the separated weights may round differently
+        int different = 0;
+        for (int i = 0; i < reference.length; i++)
+            if (decoded[i] != reference[i]) {
+                different++;
+                assertTrue(String.format("pixel %d: %08x instead of %08x", i, decoded[i], reference[i]),
+                        maxChannelDifference(decoded[i], reference[i]) <= 2);
+            }
+        assertTrue(different + " different pixels", different <= reference.length / 10000);
+    }
+
+    @Test
+    public void testTiles() throws IOException {
+        long seed = 0;
+        for (final int tileSize : TileRestlet.TILE_SIZES)
+            for (final int zoom : new int[] {5, 9, 14, 20})
+                for (final double density : new double[] {0.05, 0.5, 1})
+                    assertTile(tileSize, zoom, density, seed++);
+    }
+
+    @Test
+    public void testEmptyTile() throws IOException {
+        final int[] pixels = new int[256 * 256];
+        assertArrayEquals(pixels, decode(new PngEncoder().encode(pixels, 256, 256), 256, 256));
+    }
+
+    @Test
+    public void testPalette() throws IOException {
+        final int width = 37;
+        final int height = 11;
+        final int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = i % 5 == 0 ? 0 : 0x80000000 | (i % 255) * 0x010203;
+        final PngEncoder encoder = new PngEncoder();
+        assertArrayEquals(pixels, decode(encoder.encode(pixels, width, height), width, height));
+        // the encoder is reused with a different size
+        final int[] small = Arrays.copyOf(pixels, 3);
+        assertArrayEquals(small, decode(encoder.encode(small, 3, 1), 3, 1));
+    }
+
+    @Test
+    public void testRGBA() throws IOException {
+        final int width = 64;
+        final int height = 48;
+        final Random random = new Random(1);
+        final int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+            if ((pixels[i] & 0xff000000) == 0)
+                pixels[i] = 0;
+        }
+        assertArrayEquals(pixels, decode(new PngEncoder().encode(pixels, width, height), width, height));
+    }
+}
@@ -34,8 +34,8 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -99,6 +99,16 @@ public class ClientHandler implements Runnable {
 	 */
 	protected String clientProtocolVersion = QoSServiceProtocol.PROTOCOL_VERSION_1;
 	
+	/**
+	 * number of deferred responses not sent yet (see {@link #deferResponse(DeferredResponse, String, long)}); guarded by this
+	 */
+	private int pendingResponses = 0;
+	
+	/**
+	 * run once all deferred responses have been sent
+	 */
+	private volatile Runnable onResponsesSent;
+	
 	/**
 	 * 
 	 * @param serverSocket
@@ -114,6 +124,22 @@ public class ClientHandler implements Runnable {
 		this.name = "[ClientHandler " + socket.getInetAddress().toString() + "]";
 	}
 	
+	/**
+	 * creates a client handler for a non blocking connection: {@link #run()} must not be used, the lines sent by the client
+	 * are passed to {@link #acceptToken(String)} and {@link #handleCommand(String, ClientToken)} instead
+	 * @param serverSocket
+	 * @param socket
+	 * @param out
+	 */
+	public ClientHandler(ServerSocket serverSocket, Socket socket, FilterOutputStream out) {
+		this.serverSocket = serverSocket;
+		this.socket = socket;
+		this.in = null;
+		this.out = out;
+		this.reader = null;
+		this.name = "[ClientHandler " + socket.getInetAddress().toString() + "]";
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.lang.Runnable#run()
@@ -128,83 +154,18 @@ public class ClientHandler implements Runnable {
 		try {
 			socket.setSoTimeout(QoSServiceProtocol.TIMEOUT_CLIENTHANDLER_CONNECTION_MIN_VALUE);
 			
-			out.write(getBytesWithNewline(QoSServiceProtocol.RESPONSE_GREETING));
-			out.write(getBytesWithNewline(QoSServiceProtocol.RESPONSE_ACCEPT_TOKEN));
+			sendGreeting();
 			message = reader.readLine();
-			TestServerConsole.log("GOT: " + message, 1, TestServerServiceEnum.TEST_SERVER);
 			
-			ClientToken token = checkToken(message);
-			
-			TestServerConsole.log("TOKEN OK", 1, TestServerServiceEnum.TEST_SERVER);
-			
-			out.write(getBytesWithNewline(QoSServiceProtocol.RESPONSE_OK));
-			out.write(getBytesWithNewline(QoSServiceProtocol.RESPONSE_ACCEPT_COMMANDS));
+			ClientToken token = acceptToken(message);
 			
 			boolean quit = false;
 			
-			TestServer.getInstance().clientHandlerSet.add(this);
-			
 			while(!quit) {
 				try {
 					command = reader.readLine();
-					TestServerConsole.log("COMMAND: " + command + " from: " + socket.getInetAddress().toString(), 0, TestServerServiceEnum.TEST_SERVER);
-					if (command != null) {
-						if (command.startsWith(QoSServiceProtocol.CMD_NON_TRANSPARENT_PROXY_TEXT)) {
-							runNonTransparentProxyTest(command);
-						}
-						else if (command.startsWith(QoSServiceProtocol.CMD_TCP_TEST_IN)) {
-							runIncomingTcpTest(command, token);
-						}
-						else if (command.startsWith(QoSServiceProtocol.CMD_TCP_TEST_OUT)) {
-							runOutgoingTcpTest(command, token);
-						}
-						else if (command.startsWith(QoSServiceProtocol.CMD_UDP_TEST_OUT)) {
-							runOutgoingUdpTest(command, token);
-						}
-						else if (command.startsWith(QoSServiceProtocol.CMD_UDP_TEST_IN)) {
-							runIncomingUdpTest(command, token);
-						}
-						else if (command.startsWith(QoSServiceProtocol.CMD_VOIP_TEST)) {
-							runVoipTest(command, token);
-						}
-						else if (command.startsWith(QoSServiceProtocol.CMD_SIP_TEST)) {
-							runSipTest(command, token);
-						}
-						else if (command.startsWith(QoSServiceProtocol.REQUEST_UDP_PORT_RANGE)) {
-							sendCommand(TestServer.getInstance().serverPreferences.getUdpPortMin() +  " " + TestServer.getInstance().serverPreferences.getUdpPortMax(), command);
-						}
-						else if (command.startsWith(QoSServiceProtocol.REQUEST_UDP_PORT)) {
-							sendRandomUdpPort(command);
-						}
-						else if (command.startsWith(QoSServiceProtocol.REQUEST_UDP_RESULT_OUT)) {
-							runRcvCommand(command, token, false);
-						}
-						else if (command.startsWith(QoSServiceProtocol.REQUEST_UDP_RESULT_IN)) {
-							runRcvCommand(command, token, true);
-						}
-						else if (command.startsWith(QoSServiceProtocol.REQUEST_VOIP_RESULT)) {
-							runVoipResultCommand(command, token);
-						}
-						else if (command.startsWith(QoSServiceProtocol.REQUEST_QUIT)) {
-							quit = true;
-						}
-						else if (command.startsWith(QoSServiceProtocol.REQUEST_NEW_CONNECTION_TIMEOUT)) {
-							requestNewConnectionTimeout(command);
-						}
-						else if (command.startsWith(QoSServiceProtocol.REQUEST_PROTOCOL_VERSION)) {
-							
-						}
-						else if (command.startsWith(QoSServiceProtocol.REQUEST_PROTOCOL_KEEPALIVE)) {
-							
-						}
-						else {
-							sendCommand(QoSServiceProtocol.RESPONSE_ACCEPT_COMMANDS, command);
-							quit = true;
-						}
-					}
-					else {
-						quit = true;
-					}
+					quit = !handleCommand(command, token);
+					awaitPendingResponses();
 				}
 				catch (Exception e) {
 					TestServerConsole.error("ClientHandler: " + socket.getInetAddress().toString() 
@@ -230,6 +191,104 @@ public class ClientHandler implements Runnable {
 			}
 		}
 	}
+	
+	/**
+	 * sends the greeting and asks for the token
+	 * @throws IOException
+	 */
+	protected void sendGreeting() throws IOException {
+		out.write(getBytesWithNewline(QoSServiceProtocol.RESPONSE_GREETING));
+		out.write(getBytesWithNewline(QoSServiceProtocol.RESPONSE_ACCEPT_TOKEN));
+	}
+	
+	/**
+	 * checks the token sent by the client and asks for the first command
+	 * @param message
+	 * @return
+	 * @throws IOException if the token is invalid
+	 */
+	protected ClientToken acceptToken(String message) throws IOException {
+		TestServerConsole.log("GOT: " + message, 1, TestServerServiceEnum.TEST_SERVER);
+		
+		ClientToken token = checkToken(message);
+		
+		TestServerConsole.log("TOKEN OK", 1, TestServerServiceEnum.TEST_SERVER);
+		
+		out.write(getBytesWithNewline(QoSServiceProtocol.RESPONSE_OK));
+		out.write(getBytesWithNewline(QoSServiceProtocol.RESPONSE_ACCEPT_COMMANDS));
+		
+		TestServer.getInstance().clientHandlerSet.add(this);
+		return token;
+	}
+	
+	/**
+	 * runs a single command; sub-tests are only started here, they run on the common thread pool
+	 * @param command the line sent by the client, <code>null</code> if the client has closed the connection 
+	 * @param token
+	 * @return <code>false</code> if the session is over
+	 * @throws Exception
+	 */
+	protected boolean handleCommand(String command, ClientToken token) throws Exception {
+		TestServerConsole.log("COMMAND: " + command + " from: " + socket.getInetAddress().toString(), 0, TestServerServiceEnum.TEST_SERVER);
+		if (command == null) {
+			return false;
+		}
+		
+		if (command.startsWith(QoSServiceProtocol.CMD_NON_TRANSPARENT_PROXY_TEXT)) {
+			runNonTransparentProxyTest(command);
+		}
+		else if (command.startsWith(QoSServiceProtocol.CMD_TCP_TEST_IN)) {
+			runIncomingTcpTest(command, token);
+		}
+		else if (command.startsWith(QoSServiceProtocol.CMD_TCP_TEST_OUT)) {
+			runOutgoingTcpTest(command, token);
+		}
+		else if (command.startsWith(QoSServiceProtocol.CMD_UDP_TEST_OUT)) {
+			runOutgoingUdpTest(command, token);
+		}
+		else if (command.startsWith(QoSServiceProtocol.CMD_UDP_TEST_IN)) {
+			runIncomingUdpTest(command, token);
+		}
+		else if (command.startsWith(QoSServiceProtocol.CMD_VOIP_TEST)) {
+			runVoipTest(command, token);
+		}
+		else if (command.startsWith(QoSServiceProtocol.CMD_SIP_TEST)) {
+			runSipTest(command, token);
+		}
+		else if (command.startsWith(QoSServiceProtocol.REQUEST_UDP_PORT_RANGE)) {
+			sendCommand(TestServer.getInstance().serverPreferences.getUdpPortMin() +  " " + TestServer.getInstance().serverPreferences.getUdpPortMax(), command);
+		}
+		else if (command.startsWith(QoSServiceProtocol.REQUEST_UDP_PORT)) {
+			sendRandomUdpPort(command);
+		}
+		else if (command.startsWith(QoSServiceProtocol.REQUEST_UDP_RESULT_OUT)) {
+			runRcvCommand(command, token, false);
+		}
+		else if (command.startsWith(QoSServiceProtocol.REQUEST_UDP_RESULT_IN)) {
+			runRcvCommand(command, token, true);
+		}
+		else if (command.startsWith(QoSServiceProtocol.REQUEST_VOIP_RESULT)) {
+			runVoipResultCommand(command, token);
+		}
+		else if (command.startsWith(QoSServiceProtocol.REQUEST_QUIT)) {
+			return false;
+		}
+		else if (command.startsWith(QoSServiceProtocol.REQUEST_NEW_CONNECTION_TIMEOUT)) {
+			requestNewConnectionTimeout(command);
+		}
+		else if (command.startsWith(QoSServiceProtocol.REQUEST_PROTOCOL_VERSION)) {
+			
+		}
+		else if (command.startsWith(QoSServiceProtocol.REQUEST_PROTOCOL_KEEPALIVE)) {
+			
+		}
+		else {
+			sendCommand(QoSServiceProtocol.RESPONSE_ACCEPT_COMMANDS, command);
+			return false;
+		}
+		
+		return true;
+	}
 
 	/**
 	 * 
@@ -414,7 +473,7 @@ public class ClientHandler implements Runnable {
      * @throws IOException 
      * @throws InterruptedException 
      */
-    protected void runSipTest(String command, ClientToken token) throws Exception {
+    protected void runSipTest(final String command, ClientToken token) throws Exception {
     	int port;
     	
 		Pattern p = Pattern.compile(QoSServiceProtocol.CMD_SIP_TEST + " ([\\d]*)");
@@ -429,9 +488,14 @@ public class ClientHandler implements Runnable {
 		
 		try {
 			TestServer.getInstance().registerTcpCandidate(port, socket);
-					
-			Thread.sleep(100);
-			sendCommand(QoSServiceProtocol.RESPONSE_OK, command);
+			
+			deferResponse(new DeferredResponse() {
+				
+				@Override
+				public void send() throws IOException {
+					sendCommand(QoSServiceProtocol.RESPONSE_OK, command);
+				}
+			}, command, 100);
 		}
 		catch (Exception e) {
 			TestServerConsole.error(name + (command == null ? 
@@ -471,23 +535,125 @@ public class ClientHandler implements Runnable {
 		clientData.setNumPackets(numPackets);
 		final DatagramSocket sock = new DatagramSocket();
 		
-		final CountDownLatch latch = new CountDownLatch(1);
+		final Matcher idMatcher = ID_REGEX_PATTERN.matcher(command);
+		final Runnable onComplete = idMatcher.find() ? null : scheduleRcvResult(clientData, port, command, timeout);
+		
 		final Runnable sendUdpPacketsRunnable = new Runnable() {
 			
 			@Override
 			public void run() {
 				sendUdpPackets(socket.getInetAddress(), sock, port, 3000, numPackets, true, 100, token, clientData);
-				latch.countDown();
+				if (onComplete != null) {
+					onComplete.run();
+				}
 			}
 		};
 		
 		TestServer.getInstance().getCommonThreadPool().execute(sendUdpPacketsRunnable);
+    }
+    
+    /**
+     * sends the RCV result of a UDP test without the client having to ask for it: as soon as the returned
+     * runnable is run (= the test is complete) or the timeout is reached, whatever happens first.
+     * The calling thread does not wait for either, so no thread is blocked for the duration of the test.
+     * @param result
+     * @param port
+     * @param command
+     * @param timeout in ms
+     * @return
+     */
+    protected Runnable scheduleRcvResult(final UdpTestCandidate result, final int port, final String command, final long timeout) {
+    	return deferResponse(new DeferredResponse() {
+			
+			@Override
+			public void send() throws IOException {
+				sendRcvResult(result, port, command);
+			}
+		}, command, timeout);
+    }
+    
+    /**
+     * a response sent by another thread than the one running the command
+     */
+    protected interface DeferredResponse {
+    	
+    	void send() throws IOException;
+    }
+    
+    /**
+     * sends a response later without blocking the calling thread: as soon as the returned runnable is run
+     * or the timeout is reached, whatever happens first.<br>
+     * Until it has been sent the next command of the client is not run (see {@link #hasPendingResponses()}),
+     * so the responses are sent in the order of the commands.
+     * @param response
+     * @param command
+     * @param timeout in ms
+     * @return
+     */
+    protected Runnable deferResponse(final DeferredResponse response, final String command, final long timeout) {
+    	synchronized (this) {
+    		pendingResponses++;
+    	}
+    	
+    	final AtomicBoolean isSent = new AtomicBoolean(false);
+    	final Runnable sendResponseRunnable = new Runnable() {
+			
+			@Override
+			public void run() {
+				if (!isSent.getAndSet(true)) {
+					try {
+						response.send();
+					}
+					catch (IOException e) {
+						TestServerConsole.error(name + " [Command: " + command + "]", e, 1, TestServerServiceEnum.TEST_SERVER);
+					}
+					finally {
+						onResponseSent();
+					}
+				}
+			}
+		};
 		
-		final Matcher idMatcher = ID_REGEX_PATTERN.matcher(command);
-		if (!idMatcher.find()) {
-			latch.await(timeout, TimeUnit.MILLISECONDS);
-			sendRcvResult(clientData, port, command);
-		}
+		TestServer.getInstance().getScheduledThreadPool().schedule(sendResponseRunnable, timeout, TimeUnit.MILLISECONDS);
+		return sendResponseRunnable;
+    }
+    
+    private void onResponseSent() {
+    	final boolean isLast;
+    	synchronized (this) {
+    		isLast = --pendingResponses == 0;
+    		notifyAll();
+    	}
+    	final Runnable callback = onResponsesSent;
+    	if (isLast && callback != null) {
+    		callback.run();
+    	}
+    }
+    
+    /**
+     * 
+     * @return <code>true</code> if a deferred response has not been sent yet
+     */
+    public synchronized boolean hasPendingResponses() {
+    	return pendingResponses > 0;
+    }
+    
+    /**
+     * blocks until all deferred responses have been sent
+     * @throws InterruptedException
+     */
+    public synchronized void awaitPendingResponses() throws InterruptedException {
+    	while (pendingResponses > 0) {
+    		wait();
+    	}
+    }
+    
+    /**
+     * 
+     * @param onResponsesSent is run (by the thread that has sent the response) once all deferred responses have been sent
+     */
+    public void setOnResponsesSent(Runnable onResponsesSent) {
+    	this.onResponsesSent = onResponsesSent;
     }
 
     /**
@@ -709,7 +875,8 @@ public class ClientHandler implements Runnable {
 		//packet receive callback
 		udpData.setOnUdpPacketReceivedCallback(receiveCallback);
 		
-		final CountDownLatch latch = new CountDownLatch(1);
+		final Matcher idMatcher = ID_REGEX_PATTERN.matcher(command);
+		final Runnable onComplete = idMatcher.find() ? null : scheduleRcvResult(udpData, port, command, timeout);
 		
 		final UdpTestCompleteCallback finishCallback = new UdpTestCompleteCallback() {
 			
@@ -718,7 +885,9 @@ public class ClientHandler implements Runnable {
 				try {
 					TestServerConsole.log("UDP OUT TEST on port :" + port + " for " + socket.getInetAddress().toString() + ":" + socket.getPort() 
 							+ " finished successfully...", 1, TestServerServiceEnum.UDP_SERVICE);
-					latch.countDown();
+					if (onComplete != null) {
+						onComplete.run();
+					}
 					return true;
 				}
 				catch (Exception e) {
@@ -742,12 +911,6 @@ public class ClientHandler implements Runnable {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		
-		final Matcher idMatcher = ID_REGEX_PATTERN.matcher(command);
-		if (!idMatcher.find()) {
-			latch.await(timeout, TimeUnit.MILLISECONDS);
-			sendRcvResult(clientUdpOutDataMap.get(port), port, command);
-		}
     }
     
     /**
@@ -815,7 +978,7 @@ public class ClientHandler implements Runnable {
 				final VoipTestCandidate clientVoipData = (VoipTestCandidate) udpServer.getClientData(uuid);
 
 				try {
-					if (clientVoipData.getRtpControlDataList().size() == 0) {
+					if (clientVoipData.getRtpQoSCalculator().getReceivedPackets() == 0) {
 						final InetAddress targetAddr = dp.getAddress();
 						final int targetPort = dp.getPort();
 						
@@ -838,7 +1001,7 @@ public class ClientHandler implements Runnable {
 						TestServer.getInstance().getCommonThreadPool().execute(rtpStreamSendRunnable);
 					}
 					
-					RtpPacket rtpPacket = new RtpPacket(data);
+					RtpPacket rtpPacket = new RtpPacket(data, dp.getLength());
 					TestServerConsole.log(getName() + " RTP Packet received. Sequence Number: " 
 							+ rtpPacket.getSequnceNumber() + ", TS: " + timestampNs + ", SSRC: " + rtpPacket.getSsrc(), 1, TestServerServiceEnum.UDP_SERVICE);
 					clientVoipData.resetTtl(3000);
@@ -926,8 +1089,10 @@ public class ClientHandler implements Runnable {
 		final VoipTestCandidate voipTc = clientVoipDataMap.get(ssrc);
 		if (voipTc != null) {
 			try {
-				RtpQoSResult result = RtpUtil.calculateQoS(voipTc.getRtpControlDataList(), 
-						voipTc.getInitialSequenceNumber(), voipTc.getSampleRate(), voipTc.getBuffer());
+				final RtpQoSResult result = voipTc.getRtpQoSCalculator().getResult();
+				if (result == null) {
+					throw new IllegalStateException("No RTP packets received for SSRC " + ssrc);
+				}
 
 				final String voipResult = QoSServiceProtocol.RESPONSE_VOIP_RESULT + " " + result.getMaxJitter() + " " 
 						+ result.getMeanJitter() + " " + result.getMaxDelta() + " " + result.getSkew() + " "
@@ -0,0 +1,724 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.qos.testserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import at.rtr.rmbt.qos.testserver.ServerPreferences.TestServerServiceEnum;
+import at.rtr.rmbt.qos.testserver.entity.ClientToken;
+import at.rtr.rmbt.qos.testserver.util.TestServerConsole;
+
+/**
+ * Non blocking variant of {@link QoSService}: all control connections of a server socket are handled by a
+ * single selector thread.
+ * <p>
+ * The selector thread accepts the connections, does the TLS handshakes, collects the lines sent by the
+ * clients and writes the responses. Complete commands are handed over to the executor (its size is the
+ * concurrency limit, see {@link ServerPreferences#getControlConcurrency()}), where they are run by the
+ * {@link ClientHandler} of the connection one after another. An idle client does not occupy any thread.
+ * <p>
+ * Commands must not block their thread: responses that have to wait (e.g. the RCV result of a UDP test) are deferred
+ * by the {@link ClientHandler}. The next command of the connection is kept in its queue until the deferred responses
+ * have been sent, so the responses arrive in the order of the commands while the thread serves other connections.
+ *
+ * @author lb
+ *
+ */
+public class NioQoSService extends QoSService {
+
+	private final static Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * longer lines are not accepted (in bytes)
+	 */
+	private final static int MAX_LINE_LENGTH = 4096;
+
+	/**
+	 * max time between two checks of the connection timeouts (in ms)
+	 */
+	private final static long SELECT_TIMEOUT = 1000;
+
+	private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/**
+	 * max time {@link #stop()} waits for the selector thread (in ms)
+	 */
+	private final static long STOP_TIMEOUT = 5000;
+
+	private final ServerSocketChannel serverChannel;
+
+	private final Selector selector;
+
+	/**
+	 * connections with new responses to be sent, filled by the command threads
+	 */
+	private final ConcurrentLinkedQueue<Connection> flushQueue = new ConcurrentLinkedQueue<>();
+
+	private final String name;
+
+	/**
+	 * released once the selector thread has closed all channels
+	 */
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 *
+	 * @param executor runs the commands
+	 * @param serverChannel
+	 * @param sslContext <code>null</code> for plain connections
+	 * @throws IOException
+	 */
+	public NioQoSService(ExecutorService executor, ServerSocketChannel serverChannel, SSLContext sslContext) throws IOException {
+		super(executor, serverChannel.socket(), sslContext);
+		this.serverChannel = serverChannel;
+		this.selector = Selector.open();
+		this.name = "[NioQoSService " +  socket.getInetAddress() + ":" + socket.getLocalPort() +"]: ";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see at.rtr.rmbt.qos.testserver.QoSService#run()
+	 */
+	@Override
+	public void run() {
+		TestServerConsole.log("NioQoSService started on: " + socket + ". Awaiting connections...", -1, TestServerServiceEnum.TEST_SERVER);
+		try {
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+			while (isRunning() && serverChannel.isOpen()) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+
+				selector.select(SELECT_TIMEOUT);
+
+				final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					final SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isAcceptable()) {
+						accept();
+					}
+					else {
+						final Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						}
+						catch (Exception e) {
+							TestServerConsole.error(connection.handler.getName(), e, 0, TestServerServiceEnum.TEST_SERVER);
+							connection.close();
+						}
+					}
+				}
+
+				Connection connection;
+				while ((connection = flushQueue.poll()) != null) {
+					try {
+						connection.flush();
+					}
+					catch (Exception e) {
+						TestServerConsole.error(connection.handler.getName(), e, 0, TestServerServiceEnum.TEST_SERVER);
+						connection.close();
+					}
+				}
+
+				checkTimeouts();
+			}
+		}
+		catch (InterruptedException e) {
+			TestServerConsole.log(name +"Interrupted! Shutting down!", 0, TestServerServiceEnum.TEST_SERVER);
+		}
+		catch (ClosedSelectorException e) {
+			TestServerConsole.log(name +"Selector closed! Shutting down!", 0, TestServerServiceEnum.TEST_SERVER);
+		}
+		catch (Exception e) {
+			TestServerConsole.error(name +"Exception. Shutting down.", e, 0, TestServerServiceEnum.TEST_SERVER);
+		}
+		finally {
+			for (SelectionKey key : new ArrayList<>(selector.keys())) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				TestServerConsole.error(name, e, 0, TestServerServiceEnum.TEST_SERVER);
+			}
+			if (serverChannel.isOpen()) {
+				try {
+					serverChannel.close();
+				} catch (IOException e) {
+					TestServerConsole.error(name, e, 0, TestServerServiceEnum.TEST_SERVER);
+				}
+			}
+			stopped.countDown();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see at.rtr.rmbt.qos.testserver.QoSService#stop()
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		selector.wakeup();
+		//channels registered with a selector are only released by the selector thread: wait for it, so the port can be bound again
+		try {
+			stopped.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * accepts all pending connections
+	 * @throws IOException
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setSoTimeout(QoSServiceProtocol.TIMEOUT_CLIENTHANDLER_CONNECTION_MIN_VALUE);
+
+				SSLEngine engine = null;
+				if (sslContext != null) {
+					engine = sslContext.createSSLEngine();
+					engine.setUseClientMode(false);
+					engine.beginHandshake();
+				}
+
+				final Connection connection = new Connection(channel, engine);
+				TestServerConsole.log("New connection from: " + channel.socket().getInetAddress().toString(),
+						0, TestServerServiceEnum.TEST_SERVER);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				connection.handler.sendGreeting();
+				connection.flush();
+			}
+			catch (Exception e) {
+				TestServerConsole.error(name + "Could not accept connection.", e, 0, TestServerServiceEnum.TEST_SERVER);
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * closes all connections that did not send a command in time; a connection is not timed out while its
+	 * commands are being executed
+	 */
+	private void checkTimeouts() {
+		final long now = System.currentTimeMillis();
+		for (SelectionKey key : new ArrayList<>(selector.keys())) {
+			// cancelled keys of closed connections stay in the key set until the next select
+			if (key.isValid() && key.attachment() instanceof Connection) {
+				final Connection connection = (Connection) key.attachment();
+				if (connection.isTimedOut(now)) {
+					TestServerConsole.error(connection.handler.getName(),
+							new IOException("Read timed out"), 0, TestServerServiceEnum.TEST_SERVER);
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * state of a single control connection
+	 */
+	private final class Connection implements Runnable {
+
+		final SocketChannel channel;
+
+		/**
+		 * <code>null</code> for plain connections
+		 */
+		final SSLEngine engine;
+
+		final ClientHandler handler;
+
+		SelectionKey key;
+
+		/**
+		 * received (encrypted) data not consumed yet
+		 */
+		ByteBuffer netIn;
+
+		/**
+		 * received plain data not consumed yet; same as {@link #netIn} for plain connections
+		 */
+		ByteBuffer appIn;
+
+		/**
+		 * data to be written to the channel
+		 */
+		ByteBuffer netOut;
+
+		/**
+		 * responses not sent yet; guarded by this
+		 */
+		final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+		/**
+		 * complete lines not executed yet; guarded by this
+		 */
+		final ArrayDeque<String> commands = new ArrayDeque<>();
+
+		/**
+		 * a command thread is working on {@link #commands}; guarded by this
+		 */
+		boolean isExecuting;
+
+		/**
+		 * close once all responses are sent; guarded by this
+		 */
+		boolean isQuitting;
+
+		/**
+		 * <code>null</code> until a valid token has been received
+		 */
+		ClientToken token;
+
+		/**
+		 * time of the last command (or of the end of its execution) in ms
+		 */
+		volatile long lastActivity = System.currentTimeMillis();
+
+		Connection(SocketChannel channel, SSLEngine engine) {
+			this.channel = channel;
+			this.engine = engine;
+			if (engine != null) {
+				netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize() + MAX_LINE_LENGTH);
+				netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				netOut.flip();
+			}
+			else {
+				netIn = ByteBuffer.allocate(MAX_LINE_LENGTH);
+				appIn = netIn;
+				netOut = EMPTY;
+			}
+			handler = new ClientHandler(socket, channel.socket(), new ConnectionOutputStream(this));
+			handler.setOnResponsesSent(new Runnable() {
+				
+				@Override
+				public void run() {
+					resume();
+				}
+			});
+		}
+
+		/**
+		 * reads all available data and hands over complete lines
+		 * @throws IOException
+		 */
+		void read() throws IOException {
+			if (channel.read(netIn) < 0) {
+				close();
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+
+			if (engine == null) {
+				readLines();
+				return;
+			}
+
+			// lines are consumed between the passes so the decrypted data always fits
+			while (unwrap()) {
+				readLines();
+			}
+			readLines();
+			// the handshake may need to send data
+			flush();
+		}
+
+		/**
+		 * hands over all complete lines in {@link #appIn}
+		 * @throws IOException
+		 */
+		private void readLines() throws IOException {
+			appIn.flip();
+			int start = appIn.position();
+			for (int i = start; i < appIn.limit(); i++) {
+				if (appIn.get(i) == '\n') {
+					int end = i;
+					if (end > start && appIn.get(end - 1) == '\r') {
+						end--;
+					}
+					addCommand(new String(appIn.array(), start, end - start, ASCII));
+					start = i + 1;
+				}
+			}
+			appIn.position(start);
+			appIn.compact();
+
+			if (appIn.position() >= MAX_LINE_LENGTH) {
+				throw new IOException("Line too long");
+			}
+		}
+
+		/**
+		 * decrypts as much of {@link #netIn} as possible into {@link #appIn}
+		 * @return <code>true</code> if {@link #appIn} has to be emptied before going on
+		 * @throws IOException
+		 */
+		private boolean unwrap() throws IOException {
+			netIn.flip();
+			try {
+				while (netIn.hasRemaining()) {
+					final SSLEngineResult result = engine.unwrap(netIn, appIn);
+					runDelegatedTasks(result);
+					switch (result.getStatus()) {
+					case OK:
+						if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+							return false;
+						}
+						break;
+					case BUFFER_OVERFLOW:
+						return true;
+					case CLOSED:
+						synchronized (this) {
+							isQuitting = true;
+						}
+						return false;
+					default:
+						// underflow: wait for more data
+						return false;
+					}
+				}
+				return false;
+			}
+			finally {
+				netIn.compact();
+			}
+		}
+
+		/**
+		 * writes as much of the pending data as possible and updates the interest set
+		 * @throws IOException
+		 */
+		void flush() throws IOException {
+			if (!channel.isOpen()) {
+				return;
+			}
+
+			boolean isDone;
+			for (;;) {
+				if (netOut.hasRemaining()) {
+					channel.write(netOut);
+					if (netOut.hasRemaining()) {
+						isDone = false;
+						break;
+					}
+				}
+
+				if (!fill()) {
+					isDone = true;
+					break;
+				}
+			}
+
+			final boolean isClosing;
+			synchronized (this) {
+				isClosing = isDone && isQuitting && !isExecuting && pending.isEmpty() && !handler.hasPendingResponses();
+			}
+			if (isClosing) {
+				close();
+			}
+			else if (key.isValid()) {
+				key.interestOps(isDone ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		/**
+		 * prepares the next data to be written in {@link #netOut}
+		 * @return <code>false</code> if there is nothing to write
+		 * @throws SSLException
+		 */
+		private boolean fill() throws SSLException {
+			if (engine == null) {
+				synchronized (this) {
+					final ByteBuffer next = pending.poll();
+					if (next == null) {
+						return false;
+					}
+					netOut = next;
+					return true;
+				}
+			}
+
+			netOut.clear();
+			try {
+				final SSLEngineResult result;
+				synchronized (this) {
+					final HandshakeStatus status = engine.getHandshakeStatus();
+					// responses have to wait for the end of the handshake
+					if (status != HandshakeStatus.NEED_WRAP
+							&& (status != HandshakeStatus.NOT_HANDSHAKING || pending.isEmpty())) {
+						return false;
+					}
+					result = engine.wrap(pending.isEmpty() ? EMPTY : pending.peek(), netOut);
+					while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+						pending.poll();
+					}
+				}
+				runDelegatedTasks(result);
+				return result.bytesProduced() > 0;
+			}
+			finally {
+				netOut.flip();
+			}
+		}
+
+		private void runDelegatedTasks(SSLEngineResult result) {
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+			}
+		}
+
+		/**
+		 * queues a response; may be called by any thread
+		 * @param data
+		 */
+		void send(ByteBuffer data) {
+			synchronized (this) {
+				pending.add(data);
+			}
+			flushQueue.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * queues a command for execution
+		 * @param line
+		 */
+		void addCommand(String line) {
+			synchronized (this) {
+				if (isQuitting) {
+					return;
+				}
+				commands.add(line);
+				if (isExecuting || handler.hasPendingResponses()) {
+					return;
+				}
+				isExecuting = true;
+			}
+			execute();
+		}
+
+		/**
+		 * runs the queued commands once the deferred responses of the previous command have been sent
+		 */
+		void resume() {
+			final boolean isResuming;
+			synchronized (this) {
+				isResuming = !isExecuting && !commands.isEmpty() && channel.isOpen();
+				if (isResuming) {
+					isExecuting = true;
+				}
+			}
+			if (isResuming) {
+				try {
+					execute();
+				}
+				catch (RejectedExecutionException e) {
+					TestServerConsole.error(handler.getName(), e, 0, TestServerServiceEnum.TEST_SERVER);
+				}
+			}
+			// a quitting connection may be closed now
+			flushQueue.add(this);
+			selector.wakeup();
+		}
+
+		private void execute() {
+			try {
+				executor.execute(this);
+			}
+			catch (RejectedExecutionException e) {
+				synchronized (this) {
+					isExecuting = false;
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * runs the queued commands on a command thread
+		 */
+		@Override
+		public void run() {
+			for (;;) {
+				final String command;
+				synchronized (this) {
+					if (commands.isEmpty() || !channel.isOpen() || handler.hasPendingResponses()) {
+						isExecuting = false;
+						lastActivity = System.currentTimeMillis();
+						break;
+					}
+					command = commands.poll();
+				}
+
+				try {
+					final boolean isGoingOn;
+					if (token == null) {
+						token = handler.acceptToken(command);
+						isGoingOn = true;
+					}
+					else {
+						isGoingOn = handler.handleCommand(command, token);
+					}
+					if (!isGoingOn) {
+						synchronized (this) {
+							isQuitting = true;
+							commands.clear();
+						}
+					}
+				}
+				catch (Exception e) {
+					TestServerConsole.error("ClientHandler: " + channel.socket().getInetAddress() + " [Command: " + command + "]",
+							e, 0, TestServerServiceEnum.TEST_SERVER);
+					synchronized (this) {
+						isQuitting = true;
+						commands.clear();
+					}
+				}
+			}
+
+			// the selector thread closes the connection once everything has been sent
+			flushQueue.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 *
+		 * @param now in ms
+		 * @return
+		 */
+		boolean isTimedOut(long now) {
+			synchronized (this) {
+				if (isExecuting || handler.hasPendingResponses()) {
+					return false;
+				}
+			}
+			try {
+				final int timeout = channel.socket().getSoTimeout();
+				return timeout > 0 && now - lastActivity > timeout;
+			}
+			catch (IOException e) {
+				return true;
+			}
+		}
+
+		/**
+		 * must only be called by the selector thread
+		 */
+		void close() {
+			if (!channel.isOpen()) {
+				return;
+			}
+			TestServer.getInstance().clientHandlerSet.remove(handler);
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+				TestServerConsole.log(handler.getName() + " Connection closed!",
+						0, TestServerServiceEnum.TEST_SERVER);
+			} catch (IOException e) {
+				TestServerConsole.error(handler.getName() + " Could not close socket!", e, 0, TestServerServiceEnum.TEST_SERVER);
+			}
+		}
+	}
+
+	/**
+	 * passes everything written by the {@link ClientHandler} to the selector thread
+	 */
+	private static final class ConnectionOutputStream extends FilterOutputStream {
+
+		private final Connection connection;
+
+		ConnectionOutputStream(Connection connection) {
+			super(null);
+			this.connection = connection;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b) throws IOException {
+			write(b, 0, b.length);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!connection.channel.isOpen()) {
+				throw new IOException("Connection closed");
+			}
+			final byte[] copy = new byte[len];
+			System.arraycopy(b, off, copy, 0, len);
+			connection.send(ByteBuffer.wrap(copy));
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -104,6 +104,8 @@ public class ServerPreferences {
 	
 	public static final String PARAM_SERVER_PORT = "server.port";
 	public static final String PARAM_SERVER_THREADS = "server.threads";
+	public static final String PARAM_SERVER_CONTROL_NIO = "server.control.nio";
+	public static final String PARAM_SERVER_CONTROL_CONCURRENCY = "server.control.concurrency";
 	public static final String PARAM_SERVER_SECRET_KEY = "server.secret";
 	public static final String PARAM_SERVER_USE_SSL = "server.ssl";
 	public static final String PARAM_SERVER_VERBOSE = "server.verbose";
@@ -141,6 +143,14 @@ public class ServerPreferences {
 	private final Map<Integer, TcpCompetence> tcpCompetenceMap = new HashMap<>();
 	
 	private int maxThreads = 100;
+	/**
+	 * handle all control connections with one selector thread (see {@link NioQoSService}) instead of one thread per client
+	 */
+	private boolean isNioControl = true;
+	/**
+	 * max number of control commands executed at the same time if {@link #isNioControl} is set
+	 */
+	private int controlConcurrency = 32;
 	private boolean useSsl = false;
 	private int verboseLevel = 0;
 	private String secretKey = null;
@@ -324,6 +334,16 @@ public class ServerPreferences {
 		   		maxThreads = Integer.parseInt(param.trim());	   			
 	   		}
 	   		
+	   		param = prop.getProperty(PARAM_SERVER_CONTROL_NIO);
+	   		if (param!=null) {
+	   			isNioControl = Boolean.parseBoolean(param.trim());
+	   		}
+
+	   		param = prop.getProperty(PARAM_SERVER_CONTROL_CONCURRENCY);
+	   		if (param!=null) {
+	   			controlConcurrency = Integer.parseInt(param.trim());
+	   		}
+	   		
 	   		param = prop.getProperty(PARAM_SERVER_UDP_MIN_PORT);
 	   		if (param!=null) {
 		   		udpPortMin = Integer.parseInt(param.trim()); 			
@@ -462,6 +482,9 @@ public class ServerPreferences {
 		if (maxThreads < 5) {
 			throw new TestServerException("NUMBER OF THREADS TOO LOW (" + maxThreads + ")", null);
 		}
+		if (controlConcurrency < 1) {
+			throw new TestServerException("CONTROL CONCURRENCY TOO LOW (" + controlConcurrency + ")", null);
+		}
 
 		//create log paths:
 		for (String fileName : logFileMap.values()) {
@@ -530,6 +553,38 @@ public class ServerPreferences {
 		this.maxThreads = maxThreads;
 	}
 
+	/**
+	 * 
+	 * @return
+	 */
+	public boolean isNioControl() {
+		return isNioControl;
+	}
+
+	/**
+	 * 
+	 * @param isNioControl
+	 */
+	public void setNioControl(boolean isNioControl) {
+		this.isNioControl = isNioControl;
+	}
+
+	/**
+	 * 
+	 * @return max number of control commands executed at the same time (non blocking control connections only)
+	 */
+	public int getControlConcurrency() {
+		return controlConcurrency;
+	}
+
+	/**
+	 * 
+	 * @param controlConcurrency
+	 */
+	public void setControlConcurrency(int controlConcurrency) {
+		this.controlConcurrency = controlConcurrency;
+	}
+
 	/**
 	 * 
 	 * @return
@@ -751,7 +806,8 @@ public class ServerPreferences {
 	public String toString() {
 		return "ServerPreferences [serverPort=" + serverPort + ", udpPortMin="
 				+ udpPortMin + ", udpPortMax=" + udpPortMax + ", udpPortSet="
-				+ udpPortSet + ", maxThreads=" + maxThreads + ", useSsl="
+				+ udpPortSet + ", maxThreads=" + maxThreads + ", isNioControl="
+				+ isNioControl + ", controlConcurrency=" + controlConcurrency + ", useSsl="
 				+ useSsl + ", verboseLevel=" + verboseLevel + ", secretKey="
 				+ secretKey + ", isIpCheck=" + isIpCheck
 				+ ", isLoggingEnabled=" + isLoggingEnabled
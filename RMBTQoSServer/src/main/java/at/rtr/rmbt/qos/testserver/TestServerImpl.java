@@ -28,6 +28,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.ArrayList;
@@ -40,6 +41,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -94,7 +96,7 @@ public class TestServerImpl {
 	public final Randomizer randomizer = new Randomizer(8000, 12000, 3);
 	
 	/**
-	 * is used for all control connection threads
+	 * is used for all control connection threads (or for the control commands if {@link ServerPreferences#isNioControl()} is set)
 	 */
     private ExecutorService mainServerPool;
     
@@ -103,6 +105,11 @@ public class TestServerImpl {
      */
     private final ExecutorService COMMON_THREAD_POOL = Executors.newCachedThreadPool();
     
+    /**
+     * is used for timeouts, e.g. of tests that are awaited without blocking a thread
+     */
+    private final ScheduledExecutorService SCHEDULED_THREAD_POOL = Executors.newSingleThreadScheduledExecutor();
+    
     /**
      * 
      */
@@ -218,7 +225,12 @@ public class TestServerImpl {
 	    
 		console.start();
 	    
-	    if (!TestServer.USE_FIXED_THREAD_POOL) {
+	    if (serverPreferences.isNioControl()) {
+	    	//the selector threads only hand over complete commands; this is the max number of commands running at the same time
+	    	//(commands do not wait for the tests they start, see ClientHandler.deferResponse)
+	    	mainServerPool = Executors.newFixedThreadPool(serverPreferences.getControlConcurrency());
+	    }
+	    else if (!TestServer.USE_FIXED_THREAD_POOL) {
 	    	mainServerPool = Executors.newCachedThreadPool();
 	    } 
 	    else {
@@ -226,6 +238,7 @@ public class TestServerImpl {
 	    }
 	    
 	    try {
+	    	SSLContext sslContext = null;
 	    	
 		    if (serverPreferences.useSsl()) {
 			    /*******************************
@@ -240,7 +253,7 @@ public class TestServerImpl {
 	            ks.load(fis, TestServer.QOS_KEY_PASSWORD.toCharArray());
 	            fis.close();
 	            kmf.init(ks, TestServer.QOS_KEY_PASSWORD.toCharArray());
-			    final SSLContext sslContext = SSLContext.getInstance("TLS");
+			    sslContext = SSLContext.getInstance("TLS");
 	            // Initialize the SSL context
 	            sslContext.init(kmf.getKeyManagers(), new TrustManager[] {TestServer.getTrustingManager()}, new SecureRandom());
 	            
@@ -248,6 +261,18 @@ public class TestServerImpl {
 		    }
 		    
 			for (InetAddress addr : serverPreferences.getInetAddrBindToSet()) {
+				if (serverPreferences.isNioControl()) {
+					final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+					serverChannel.socket().setReuseAddress(true);
+					serverChannel.bind(new InetSocketAddress(addr, serverPreferences.getServerPort()));
+					serverSocketList.add(serverChannel.socket());
+					
+					this.qosService = new NioQoSService(mainServerPool, serverChannel, sslContext);
+					Thread mainThread = new Thread(this.qosService);
+				    mainThread.start();
+				    continue;
+				}
+				
 				ServerSocket serverSocket;
 				if (serverPreferences.useSsl()) {
 			    	serverSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket();
@@ -363,6 +388,7 @@ public class TestServerImpl {
 		}
 		
 		mainServerPool.shutdownNow(); 
+		SCHEDULED_THREAD_POOL.shutdownNow();
 		try {
 			mainServerPool.awaitTermination(4L, TimeUnit.SECONDS);
 		} 
@@ -525,6 +551,14 @@ public class TestServerImpl {
 		return COMMON_THREAD_POOL;
 	}
 	
+	/**
+	 * 
+	 * @return
+	 */
+	public ScheduledExecutorService getScheduledThreadPool() {
+		return SCHEDULED_THREAD_POOL;
+	}
+	
 	public synchronized void setShutdownHookEnabled(boolean enabled) {
 		this.isShutdownHookEnabled.set(enabled);
 	}
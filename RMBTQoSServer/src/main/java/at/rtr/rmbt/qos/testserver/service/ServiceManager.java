@@ -132,9 +132,8 @@ public class ServiceManager {
 				if (e.getValue().getFuture() != null) {
 					if (!e.getValue().getFuture().isDone()) {
 						e.getValue().getService().stop();
-						if (mayInterruptIfRunning) {
-							e.getValue().getService().interrupt();
-						}
+						//interrupts the thread running the service (and not the calling one)
+						e.getValue().getFuture().cancel(mayInterruptIfRunning);
 					}
 				}
 				else {
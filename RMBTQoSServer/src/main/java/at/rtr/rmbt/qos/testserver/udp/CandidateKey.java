@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.qos.testserver.udp;
+
+import java.nio.charset.Charset;
+
+/**
+ * Binary key of a UDP test candidate, decoded in place from a received packet: the UUID of a UDP test packet
+ * (as two longs) or the SSRC of a RTP packet.<br>
+ * A UUID is only decoded in its canonical form (lower case hex digits, as sent by the clients); any other
+ * identifier is kept as text, so the candidate id matches the one sent by the client exactly.
+ * <p>
+ * Instances are mutable so the receiving thread can reuse one for lookups; use {@link #copy()} for map keys.
+ *
+ * @author lb
+ *
+ */
+final class CandidateKey {
+
+	private final static Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * length of a UUID in its text form
+	 */
+	final static int UUID_LENGTH = 36;
+
+	private final static int TYPE_UUID = 1;
+
+	private final static int TYPE_SSRC = 2;
+
+	private final static int TYPE_TEXT = 3;
+
+	private int type;
+
+	private long high;
+
+	private long low;
+
+	private String text;
+
+	/**
+	 * sets the key from the text form of a UUID
+	 * @param data
+	 * @param offset position of the UUID, {@link #UUID_LENGTH} bytes are read
+	 */
+	void setUuid(byte[] data, int offset) {
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < UUID_LENGTH; i++) {
+			final byte b = data[offset + i];
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (b != '-') {
+					setText(data, offset);
+					return;
+				}
+				continue;
+			}
+
+			final int digit;
+			if (b >= '0' && b <= '9') {
+				digit = b - '0';
+			}
+			else if (b >= 'a' && b <= 'f') {
+				digit = b - 'a' + 10;
+			}
+			else {
+				setText(data, offset);
+				return;
+			}
+
+			if (i < 18) {
+				high = (high << 4) | digit;
+			}
+			else {
+				low = (low << 4) | digit;
+			}
+		}
+
+		this.type = TYPE_UUID;
+		this.high = high;
+		this.low = low;
+		this.text = null;
+	}
+
+	private void setText(byte[] data, int offset) {
+		this.type = TYPE_TEXT;
+		this.high = 0;
+		this.low = 0;
+		this.text = new String(data, offset, UUID_LENGTH, ASCII);
+	}
+
+	/**
+	 *
+	 * @param ssrc
+	 */
+	void setSsrc(long ssrc) {
+		this.type = TYPE_SSRC;
+		this.high = 0;
+		this.low = ssrc;
+		this.text = null;
+	}
+
+	/**
+	 *
+	 * @return an immutable copy that can be used as map key
+	 */
+	CandidateKey copy() {
+		final CandidateKey key = new CandidateKey();
+		key.type = type;
+		key.high = high;
+		key.low = low;
+		key.text = text;
+		return key;
+	}
+
+	/**
+	 *
+	 * @return the id the candidate is registered with (see {@link at.rtr.rmbt.qos.testserver.servers.AbstractUdpServer#getIncomingMap()})
+	 */
+	String getCandidateId() {
+		switch (type) {
+		case TYPE_UUID:
+			final StringBuilder sb = new StringBuilder(UUID_LENGTH);
+			appendHex(sb, high >>> 32, 8).append('-');
+			appendHex(sb, high >>> 16, 4).append('-');
+			appendHex(sb, high, 4).append('-');
+			appendHex(sb, low >>> 48, 4).append('-');
+			appendHex(sb, low, 12);
+			return sb.toString();
+		case TYPE_SSRC:
+			return "VOIP_" + low;
+		default:
+			return text;
+		}
+	}
+
+	private static StringBuilder appendHex(StringBuilder sb, long value, int digits) {
+		for (int i = digits - 1; i >= 0; i--) {
+			sb.append(Character.forDigit((int) (value >>> (i * 4)) & 0xf, 16));
+		}
+		return sb;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		if (type == TYPE_TEXT) {
+			return text.hashCode();
+		}
+		final long h = high * 31 + low;
+		return (int) (h ^ (h >>> 32)) * 31 + type;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CandidateKey)) {
+			return false;
+		}
+		final CandidateKey other = (CandidateKey) obj;
+		return type == other.type && high == other.high && low == other.low
+				&& (text == null ? other.text == null : text.equals(other.text));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CandidateKey [" + getCandidateId() + "]";
+	}
+}
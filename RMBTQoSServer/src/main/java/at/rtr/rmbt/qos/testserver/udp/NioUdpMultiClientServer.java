@@ -22,14 +22,15 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.text.DateFormat;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import at.rtr.rmbt.qos.testserver.servers.AbstractUdpServer;
@@ -51,6 +52,41 @@ public class NioUdpMultiClientServer extends AbstractUdpServer<DatagramChannel>
 	private final AtomicBoolean isRunning;
 	
 	public final static int BUFFER_LENGTH = 1024;
+	
+	/**
+	 * max number of idle receive buffers kept for reuse
+	 */
+	private final static int PACKET_POOL_SIZE = 256;
+	
+	/**
+	 * interval of the removal of idle candidate handlers (in ms)
+	 */
+	private final static long CLEANUP_INTERVAL = 10000;
+	
+	/**
+	 * position of the UUID in a UDP test packet (after the type and the packet number)
+	 */
+	private final static int UUID_OFFSET = 2;
+	
+	/**
+	 * position of the timestamp in a UDP test packet
+	 */
+	private final static int TIMESTAMP_OFFSET = UUID_OFFSET + CandidateKey.UUID_LENGTH;
+	
+	/**
+	 * receive buffers returned by the candidate handlers
+	 */
+	private final ArrayBlockingQueue<ReceivedPacket> packetPool = new ArrayBlockingQueue<>(PACKET_POOL_SIZE);
+	
+	/**
+	 * handlers of all candidates that recently sent packets; only accessed by the receiving thread
+	 */
+	private final HashMap<CandidateKey, CandidateHandler> handlerMap = new HashMap<>();
+	
+	/**
+	 * reused for the handler lookups; only accessed by the receiving thread
+	 */
+	private final CandidateKey lookupKey = new CandidateKey();
 
 	final DatagramChannel channel;
 	
@@ -95,114 +131,30 @@ public class NioUdpMultiClientServer extends AbstractUdpServer<DatagramChannel>
 			final Selector selector = Selector.open();  
 			channel.register(selector, SelectionKey.OP_READ);
 			
-			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_LENGTH);
+			ReceivedPacket packet = acquirePacket();
+			long lastCleanup = System.currentTimeMillis();
 
 			while (isRunning.get()) {				
 				
 		    	selector.select(5000);
-		    	Set<SelectionKey> readyKeys = selector.selectedKeys();
+		    	selector.selectedKeys().clear();
 		    	
-		    	if (!readyKeys.isEmpty()) {
-			    	Iterator<SelectionKey> iterator = readyKeys.iterator();
-			    	while (iterator.hasNext()) {
-//						not sure if try does make sense: 			    		
-//			    		try {			    		
-				    		SelectionKey key = (SelectionKey) iterator.next();
-							iterator.remove();
-							if (key.isReadable() && key.isValid()) {
-								buffer.clear();
-								SocketAddress senderAddr = channel.receive(buffer);
-								buffer.flip();
-								final byte[] data = new byte[buffer.remaining()];
-								buffer.get(data);
-								if (data == null || data.length == 0 || data.length == 1) {
-									continue;
-								}
-								final DatagramPacket dp = new DatagramPacket(data, data.length, senderAddr);
-								final RtpVersion rtpVersion = RtpUtil.getVersion(data[0]);
-								String clientUuid = null;
-								
-								//set last client timestamp
-								lastClientTime = System.currentTimeMillis();
-								
-								if (!RtpVersion.VER2.equals(rtpVersion)) {
-									//Non RTP packet:
-									final int packetNumber = data[1];
-									
-									Long timeStamp = null;
-									
-									try {
-										char[] uuid = new char[36];
-										
-										for (int i = 2; i < 38; i++) {
-											uuid[i - 2] = (char) data[i];
-										}
-										clientUuid = String.valueOf(uuid);
-
-										// timestamp
-										ByteBuffer byteBuffer = ByteBuffer.allocateDirect(dp.getLength() - 38);
-									    byteBuffer.order(ByteOrder.BIG_ENDIAN);
-										
-										for (int i = 38; i < dp.getLength(); i++) {
-											byteBuffer.put(data[i]);
-										}
-										
-										byteBuffer.flip();
-									    timeStamp = byteBuffer.getLong();
-					
-									}
-									catch (Exception e) {
-										TestServerConsole.error(getName(), e, 1, TestServerServiceEnum.UDP_SERVICE);
-									}
-									
-									TestServerConsole.log("received UDP from: " + dp.getAddress().toString() + ":" + dp.getPort() 
-											+ " (on local port :" + ((InetSocketAddress) channel.getLocalAddress()).getPort() + ") , #" + packetNumber + " TimeStamp: " + timeStamp + ", containing: " + clientUuid, 1, TestServerServiceEnum.UDP_SERVICE);
-									
-								}
-								else {
-									//RtpPacket received:
-									clientUuid = "VOIP_" + RtpUtil.getSsrc(data);
-								}
-								
-								if (clientUuid != null) {
-									synchronized (incomingMap) {
-										final UdpTestCandidate clientData;
-										final String uuid = clientUuid;
-										if (!incomingMap.containsKey(clientUuid)) {
-											clientData = new UdpTestCandidate();
-											clientData.setNumPackets(Integer.MAX_VALUE);
-											clientData.setRemotePort(dp.getPort());
-											incomingMap.put(clientUuid, clientData);
-										}
-										else {
-											clientData = (UdpTestCandidate) incomingMap.get(clientUuid);
-											if (clientData.isError()) {
-												continue;
-											}
-										}
-										
-										//if a callback has been provided by the clienthandler run it in the background:
-										if (clientData.getOnUdpPacketReceivedCallback() != null) {
-											Runnable onReceiveRunnable = new Runnable() {
-												
-												@Override
-												public void run() {
-													clientData.getOnUdpPacketReceivedCallback().onReceive(dp, uuid, NioUdpMultiClientServer.this);									
-												}
-											};
-											
-											TestServer.getInstance().getCommonThreadPool().submit(onReceiveRunnable);
-										}						
-									}
-								}
-							}
-//				    	} catch (final Exception e) {
-//				    		TestServerConsole.error(getName(), e, 2, TestServerServiceEnum.UDP_SERVICE);
-//				    	}
-			    	}
+		    	//read all pending datagrams
+		    	SocketAddress senderAddr;
+		    	while ((senderAddr = channel.receive(packet.buffer)) != null) {
+		    		if (onReceive(packet, senderAddr)) {
+		    			packet = acquirePacket();
+		    		}
+		    		else {
+		    			packet.buffer.clear();
+		    		}
+		    	}
+		    	
+		    	final long now = System.currentTimeMillis();
+		    	if (now - lastCleanup > CLEANUP_INTERVAL) {
+		    		removeIdleHandlers(now);
+		    		lastCleanup = now;
 		    	}
-				
-
 			}		
 		} 
 		catch (Exception e) {
@@ -221,6 +173,185 @@ public class NioUdpMultiClientServer extends AbstractUdpServer<DatagramChannel>
 		TestServerConsole.log("NioUdpMultiServer shutdown on address: " + address, 1, TestServerServiceEnum.UDP_SERVICE);
 	}
 	
+	/**
+	 * decodes the header of a received datagram in place and hands it over to the handler of its candidate
+	 * @param packet
+	 * @param senderAddr
+	 * @return <code>true</code> if the packet has been handed over, <code>false</code> if it can be reused
+	 */
+	private boolean onReceive(final ReceivedPacket packet, final SocketAddress senderAddr) {
+		final ByteBuffer buffer = packet.buffer;
+		final byte[] data = packet.data;
+		final int length = buffer.position();
+		if (length <= 1) {
+			return false;
+		}
+		
+		//set last client timestamp
+		lastClientTime = System.currentTimeMillis();
+		
+		if (!RtpVersion.VER2.equals(RtpUtil.getVersion(data[0]))) {
+			//Non RTP packet: [type][packet number][uuid][timestamp]
+			if (length < UUID_OFFSET + CandidateKey.UUID_LENGTH) {
+				return false;
+			}
+			lookupKey.setUuid(data, UUID_OFFSET);
+			
+			if (TestServerConsole.isLogging(1, TestServerServiceEnum.UDP_SERVICE)) {
+				final Long timeStamp = length >= TIMESTAMP_OFFSET + 8 ? buffer.getLong(TIMESTAMP_OFFSET) : null;
+				TestServerConsole.log("received UDP from: " + senderAddr + " (on local port :" + port + ") , #" + data[1] 
+						+ " TimeStamp: " + timeStamp + ", containing: " + lookupKey.getCandidateId(), 1, TestServerServiceEnum.UDP_SERVICE);
+			}
+		}
+		else {
+			//RtpPacket received:
+			//the SSRC is in bytes 8 to 11 of the 12 byte RTP header; the buffer holds data of earlier packets beyond length
+			lookupKey.setSsrc(length >= 12 ? RtpUtil.getSsrc(data) : -1);
+		}
+		
+		CandidateHandler handler = handlerMap.get(lookupKey);
+		if (handler == null) {
+			final CandidateKey key = lookupKey.copy();
+			handler = new CandidateHandler(key.getCandidateId());
+			handlerMap.put(key, handler);
+		}
+		handler.lastReceived = lastClientTime;
+		
+		UdpTestCandidate clientData = incomingMap.get(handler.uuid);
+		if (clientData == null) {
+			final UdpTestCandidate newClientData = new UdpTestCandidate();
+			newClientData.setNumPackets(Integer.MAX_VALUE);
+			newClientData.setRemotePort(((InetSocketAddress) senderAddr).getPort());
+			clientData = incomingMap.putIfAbsent(handler.uuid, newClientData);
+			if (clientData == null) {
+				clientData = newClientData;
+			}
+		}
+		else if (clientData.isError()) {
+			return false;
+		}
+		
+		//if a callback has been provided by the clienthandler run it in the background:
+		final UdpPacketReceivedCallback callback = clientData.getOnUdpPacketReceivedCallback();
+		if (callback == null) {
+			return false;
+		}
+		
+		packet.callback = callback;
+		packet.datagram.setLength(length);
+		packet.datagram.setSocketAddress(senderAddr);
+		handler.add(packet);
+		return true;
+	}
+	
+	/**
+	 * removes the handlers of candidates that did not send anything for {@link UdpTestCandidate#TTL}
+	 * @param now
+	 */
+	private void removeIdleHandlers(final long now) {
+		final Iterator<CandidateHandler> it = handlerMap.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().lastReceived > UdpTestCandidate.TTL) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @return a receive buffer from the pool or a new one if the pool is empty
+	 */
+	private ReceivedPacket acquirePacket() {
+		final ReceivedPacket packet = packetPool.poll();
+		return packet != null ? packet : new ReceivedPacket();
+	}
+	
+	/**
+	 * returns a receive buffer to the pool (if the pool is full it is left to the garbage collector)
+	 * @param packet
+	 */
+	private void releasePacket(final ReceivedPacket packet) {
+		packet.buffer.clear();
+		packet.callback = null;
+		packetPool.offer(packet);
+	}
+	
+	/**
+	 * a receive buffer together with the datagram passed to the callbacks
+	 */
+	private final static class ReceivedPacket {
+		final byte[] data = new byte[BUFFER_LENGTH];
+		
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		
+		final DatagramPacket datagram = new DatagramPacket(data, BUFFER_LENGTH);
+		
+		UdpPacketReceivedCallback callback;
+	}
+	
+	/**
+	 * runs the callbacks of a single candidate one after another on the common thread pool; 
+	 * a task is only submitted if the handler is not already running
+	 */
+	private final class CandidateHandler implements Runnable {
+		
+		final String uuid;
+		
+		/**
+		 * only accessed by the receiving thread
+		 */
+		long lastReceived;
+		
+		/**
+		 * guarded by this
+		 */
+		private final ArrayDeque<ReceivedPacket> queue = new ArrayDeque<>();
+		
+		/**
+		 * guarded by this
+		 */
+		private boolean isScheduled = false;
+		
+		CandidateHandler(final String uuid) {
+			this.uuid = uuid;
+		}
+		
+		void add(final ReceivedPacket packet) {
+			synchronized (this) {
+				queue.add(packet);
+				if (isScheduled) {
+					return;
+				}
+				isScheduled = true;
+			}
+			TestServer.getInstance().getCommonThreadPool().execute(this);
+		}
+		
+		@Override
+		public void run() {
+			for (;;) {
+				final ReceivedPacket packet;
+				synchronized (this) {
+					packet = queue.poll();
+					if (packet == null) {
+						isScheduled = false;
+						return;
+					}
+				}
+				
+				try {
+					packet.callback.onReceive(packet.datagram, uuid, NioUdpMultiClientServer.this);
+				}
+				catch (Exception e) {
+					TestServerConsole.error(getName() + " [" + uuid + "]", e, 1, TestServerServiceEnum.UDP_SERVICE);
+				}
+				finally {
+					releasePacket(packet);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * 
 	 * @return
@@ -297,13 +428,11 @@ public class NioUdpMultiClientServer extends AbstractUdpServer<DatagramChannel>
 	 */
 	@Override
 	public void send(DatagramPacket dp) throws IOException {
-		byte[] data = dp.getData();
-		final ByteBuffer writeBuffer = ByteBuffer.allocate(data.length);
-		writeBuffer.clear();
-		writeBuffer.put(dp.getData());
-		writeBuffer.flip();
-		TestServerConsole.log(getName() + " sending datagram: length = " 
-					+ writeBuffer.array().length + ", to: " + dp.getSocketAddress(), 2, TestServerServiceEnum.UDP_SERVICE);
+		final ByteBuffer writeBuffer = ByteBuffer.wrap(dp.getData(), dp.getOffset(), dp.getLength());
+		if (TestServerConsole.isLogging(2, TestServerServiceEnum.UDP_SERVICE)) {
+			TestServerConsole.log(getName() + " sending datagram: length = " 
+					+ dp.getLength() + ", to: " + dp.getSocketAddress(), 2, TestServerServiceEnum.UDP_SERVICE);
+		}
 		channel.send(writeBuffer, dp.getSocketAddress());
 	}
 
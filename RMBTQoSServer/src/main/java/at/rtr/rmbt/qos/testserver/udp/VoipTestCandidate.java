@@ -16,11 +16,8 @@
  *******************************************************************************/
 package at.rtr.rmbt.qos.testserver.udp;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 import at.rtr.rmbt.util.net.rtp.RtpPacket;
-import at.rtr.rmbt.util.net.rtp.RtpUtil.RtpControlData;
+import at.rtr.rmbt.util.net.rtp.RtpQoSCalculator;
 
 /**
  * 
@@ -29,24 +26,28 @@ import at.rtr.rmbt.util.net.rtp.RtpUtil.RtpControlData;
  */
 public class VoipTestCandidate extends UdpTestCandidate {
 
-	private final Map<Integer, RtpControlData> rtpControlDataList = new ConcurrentHashMap<>();
-	
 	private final long initialSequenceNumber;
 	private final int sampleRate;
 	private final long buffer;
 	
+	/**
+	 * updated with every packet received, the result is available as soon as the stream ends
+	 */
+	private final RtpQoSCalculator rtpQoSCalculator;
+	
 	public VoipTestCandidate(long initialSequenceNumber, int sampleRate, long buffer) {
 		this.sampleRate = sampleRate;
 		this.initialSequenceNumber = initialSequenceNumber;
 		this.buffer = buffer;
+		this.rtpQoSCalculator = new RtpQoSCalculator(initialSequenceNumber, sampleRate, buffer);
 	}
 	
 	public void addRtpControlData(RtpPacket rtpPacket, long recTimestampNs) {
-		rtpControlDataList.put(rtpPacket.getSequnceNumber(), new RtpControlData(rtpPacket, recTimestampNs));
+		rtpQoSCalculator.add(rtpPacket, recTimestampNs);
 	}
 	
-	public Map<Integer, RtpControlData> getRtpControlDataList() {
-		return rtpControlDataList;
+	public RtpQoSCalculator getRtpQoSCalculator() {
+		return rtpQoSCalculator;
 	}
 
 	public long getInitialSequenceNumber() {
@@ -63,7 +64,7 @@ public class VoipTestCandidate extends UdpTestCandidate {
 
 	@Override
 	public String toString() {
-		return "VoipTestCandidate [rtpControlDataList.size()=" + rtpControlDataList.size()
+		return "VoipTestCandidate [receivedPackets=" + rtpQoSCalculator.getReceivedPackets()
 				+ ", initialSequenceNumber=" + initialSequenceNumber
 				+ ", sampleRate=" + sampleRate + ", toString()="
 				+ super.toString() + "]";
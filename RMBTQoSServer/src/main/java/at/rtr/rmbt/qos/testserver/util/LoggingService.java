@@ -159,6 +159,15 @@ public class LoggingService {
 		}
 	}
 	
+	/**
+	 * 
+	 * @param service
+	 * @return <code>true</code> if info level messages of this service are logged
+	 */
+	public static boolean isInfoEnabled(TestServerServiceEnum service) {
+		return IS_LOGGING_AVAILABLE && LOGGER_MAP.get(service).isInfoEnabled();
+	}
+	
 	/**
 	 * debug level logging
 	 * @param message
@@ -35,6 +35,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import at.rtr.rmbt.qos.testserver.ClientHandler;
+import at.rtr.rmbt.qos.testserver.ServerPreferences;
 import at.rtr.rmbt.qos.testserver.ServerPreferences.TestServerServiceEnum;
 import at.rtr.rmbt.qos.testserver.TestServer;
 import at.rtr.rmbt.qos.testserver.TestServerImpl;
@@ -419,6 +420,18 @@ public class TestServerConsole extends PrintStream {
 	public static void log(String msg, int verboseLevelNeeded, TestServerServiceEnum service) {
 		LoggingService.info(msg, service);
 	}
+	
+	/**
+	 * lets hot paths (e.g. per packet logging) skip building messages that would not be logged 
+	 * @param verboseLevelNeeded
+	 * @param service
+	 * @return <code>true</code> if the verbose level is at least <code>verboseLevelNeeded</code> and the service logs messages
+	 */
+	public static boolean isLogging(int verboseLevelNeeded, TestServerServiceEnum service) {
+		final ServerPreferences serverPreferences = TestServer.getInstance().serverPreferences;
+		return serverPreferences != null && serverPreferences.getVerboseLevel() >= verboseLevelNeeded 
+				&& LoggingService.isInfoEnabled(service);
+	}
 		
 	/**
 	 * 
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.qos.testserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import at.rtr.rmbt.qos.testserver.util.TestServerConsole;
+import mockit.Mocked;
+
+/**
+ * runs the control server on real sockets, with the non blocking and with the blocking service
+ *
+ * @author lb
+ *
+ */
+@RunWith(Parameterized.class)
+public class QoSServiceIntegrationTest {
+
+	private final static String TOKEN = "TOKEN bbd1ee96-0779-4619-b993-bb4bf7089754_1528136454_3gr2gw9lVhtVONV0XO62Vamu/uw=";
+
+	@Parameters(name = "nio={0}")
+	public static Collection<Object[]> data() {
+		return Arrays.asList(new Object[][] {{true}, {false}});
+	}
+
+	@Parameter
+	public boolean isNioControl;
+
+	@Mocked
+	TestServerConsole console;
+
+	TestServerImpl ts;
+
+	ServerPreferences preferences;
+
+	@Before
+	public void init() throws Exception {
+		ts = TestServer.getInstance();
+		ts.setShutdownHookEnabled(false);
+
+		preferences = new ServerPreferences(getClass().getResourceAsStream("config.properties"));
+		preferences.setNioControl(isNioControl);
+		//a single command thread: idle connections must not block it
+		preferences.setControlConcurrency(1);
+		ts.run(preferences);
+	}
+
+	@After
+	public void teardown() {
+		ts.shutdown();
+		TestServer.newInstance();
+	}
+
+	private Socket connect() throws IOException {
+		final Socket socket = new Socket(preferences.getInetAddrBindToSet().iterator().next(), preferences.getServerPort());
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private void assertSessionStarted(BufferedReader reader, OutputStream out) throws IOException {
+		assertEquals(QoSServiceProtocol.RESPONSE_GREETING, reader.readLine());
+		assertEquals(QoSServiceProtocol.RESPONSE_ACCEPT_TOKEN, reader.readLine());
+		out.write((TOKEN + "\n").getBytes());
+		assertEquals(QoSServiceProtocol.RESPONSE_OK, reader.readLine());
+		assertEquals(QoSServiceProtocol.RESPONSE_ACCEPT_COMMANDS, reader.readLine());
+	}
+
+	@Test
+	public void testIdleClientDoesNotBlockOtherClients() throws Exception {
+		assertEquals(isNioControl, ts.getQoSService() instanceof NioQoSService);
+
+		try (Socket idle = connect(); Socket active = connect()) {
+			final BufferedReader idleReader = new BufferedReader(new InputStreamReader(idle.getInputStream()));
+			assertSessionStarted(idleReader, idle.getOutputStream());
+
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(active.getInputStream()));
+			assertSessionStarted(reader, active.getOutputStream());
+
+			//commands split across several packets and sent together with QUIT
+			final OutputStream out = active.getOutputStream();
+			out.write("GET UDP".getBytes());
+			out.flush();
+			Thread.sleep(50);
+			out.write(("PORTS\r\n" + QoSServiceProtocol.REQUEST_QUIT + "\n").getBytes());
+			assertEquals(preferences.getUdpPortMin() + " " + preferences.getUdpPortMax(), reader.readLine());
+			assertNull("connection not closed after QUIT", reader.readLine());
+		}
+	}
+
+	@Test
+	public void testUnknownCommandClosesConnection() throws Exception {
+		try (Socket socket = connect()) {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			assertSessionStarted(reader, socket.getOutputStream());
+			socket.getOutputStream().write("FOO\n".getBytes());
+			assertEquals(QoSServiceProtocol.RESPONSE_ACCEPT_COMMANDS, reader.readLine());
+			assertNull("connection not closed after unknown command", reader.readLine());
+		}
+	}
+
+	@Test
+	public void testRcvResultIsSentBeforeResponsesToLaterCommands() throws Exception {
+		try (Socket socket = connect(); DatagramSocket udp = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"))) {
+			udp.setSoTimeout(5000);
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			assertSessionStarted(reader, socket.getOutputStream());
+
+			//without an id the server sends the RCV result on its own once the test is complete;
+			//the next command is sent right away and must not be answered first
+			socket.getOutputStream().write((QoSServiceProtocol.CMD_UDP_TEST_IN + " " + udp.getLocalPort() + " 1\n"
+					+ QoSServiceProtocol.REQUEST_UDP_PORT_RANGE + "\n"
+					+ QoSServiceProtocol.REQUEST_QUIT + "\n").getBytes());
+
+			//answer the udp packet so the test completes
+			final DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+			udp.receive(packet);
+			packet.getData()[0] = QoSServiceProtocol.UDP_TEST_RESPONSE;
+			udp.send(new DatagramPacket(packet.getData(), packet.getLength(), packet.getSocketAddress()));
+
+			final String rcv = reader.readLine();
+			assertTrue("RCV result expected, got: " + rcv, rcv.startsWith(QoSServiceProtocol.RESPONSE_UDP_NUM_PACKETS_RECEIVED + " 1 0"));
+			assertEquals(preferences.getUdpPortMin() + " " + preferences.getUdpPortMax(), reader.readLine());
+			assertNull("connection not closed after QUIT", reader.readLine());
+		}
+	}
+
+	@Test
+	public void testWaitingForRcvResultDoesNotBlockOtherClients() throws Exception {
+		try (Socket waiting = connect(); Socket active = connect();
+				DatagramSocket udp = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"))) {
+			final BufferedReader waitingReader = new BufferedReader(new InputStreamReader(waiting.getInputStream()));
+			assertSessionStarted(waitingReader, waiting.getOutputStream());
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(active.getInputStream()));
+			assertSessionStarted(reader, active.getOutputStream());
+
+			//the udp packet is never answered: the RCV result is only sent on timeout
+			waiting.getOutputStream().write((QoSServiceProtocol.CMD_UDP_TEST_IN + " " + udp.getLocalPort() + " 1\n"
+					+ QoSServiceProtocol.REQUEST_UDP_PORT_RANGE + "\n").getBytes());
+
+			final long start = System.nanoTime();
+			active.getOutputStream().write((QoSServiceProtocol.REQUEST_UDP_PORT_RANGE + "\n").getBytes());
+			assertEquals(preferences.getUdpPortMin() + " " + preferences.getUdpPortMax(), reader.readLine());
+			assertTrue("other client blocked", System.nanoTime() - start < 1000000000L);
+			assertFalse(waitingReader.ready());
+		}
+	}
+}
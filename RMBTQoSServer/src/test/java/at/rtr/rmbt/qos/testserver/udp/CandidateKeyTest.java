@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.qos.testserver.udp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author lb
+ *
+ */
+public class CandidateKeyTest {
+
+	private static byte[] packet(String uuid) {
+		final byte[] data = new byte[64];
+		data[0] = 1;
+		data[1] = 7;
+		System.arraycopy(uuid.getBytes(), 0, data, 2, uuid.length());
+		return data;
+	}
+
+	@Test
+	public void testUuidIsDecodedInPlace() {
+		final String uuid = "bbd1ee96-0779-4619-b993-bb4bf7089754";
+		final CandidateKey key = new CandidateKey();
+		key.setUuid(packet(uuid), 2);
+
+		assertEquals(uuid, key.getCandidateId());
+		final UUID expected = UUID.fromString(uuid);
+		final CandidateKey other = new CandidateKey();
+		other.setUuid(packet(expected.toString()), 2);
+		assertEquals(key, other);
+		assertEquals(key.hashCode(), other.hashCode());
+	}
+
+	@Test
+	public void testLookupKeyCanBeReused() {
+		final CandidateKey lookupKey = new CandidateKey();
+		lookupKey.setUuid(packet("00000000-0000-0000-0000-000000000001"), 2);
+		final CandidateKey first = lookupKey.copy();
+
+		lookupKey.setUuid(packet("00000000-0000-0000-0000-000000000002"), 2);
+		assertNotEquals(first, lookupKey);
+		assertEquals("00000000-0000-0000-0000-000000000001", first.getCandidateId());
+	}
+
+	@Test
+	public void testNonCanonicalIdsAreKeptAsText() {
+		final String upperCase = "BBD1EE96-0779-4619-B993-BB4BF7089754";
+		final CandidateKey key = new CandidateKey();
+		key.setUuid(packet(upperCase), 2);
+		assertEquals(upperCase, key.getCandidateId());
+
+		final CandidateKey lowerCase = new CandidateKey();
+		lowerCase.setUuid(packet(upperCase.toLowerCase()), 2);
+		assertNotEquals(key, lowerCase);
+
+		final String noUuid = "client-without-a-uuid-0123456789abc";
+		final CandidateKey text = new CandidateKey();
+		text.setUuid(packet(noUuid + "x"), 2);
+		assertEquals(noUuid + "x", text.getCandidateId());
+	}
+
+	@Test
+	public void testSsrc() {
+		final CandidateKey key = new CandidateKey();
+		key.setSsrc(123456789L);
+		assertEquals("VOIP_123456789", key.getCandidateId());
+
+		final CandidateKey uuid = new CandidateKey();
+		uuid.setUuid(packet("00000000-0000-0000-0000-0000075bcd15"), 2);
+		assertNotEquals(key, uuid);
+	}
+}
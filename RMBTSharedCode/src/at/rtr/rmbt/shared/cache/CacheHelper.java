@@ -19,12 +19,18 @@ package at.rtr.rmbt.shared.cache;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.BinaryConnectionFactory;
@@ -33,6 +39,7 @@ import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.internal.BulkFuture;
 import net.spy.memcached.internal.GetFuture;
 
+import com.google.common.base.Throwables;
 import com.google.common.hash.Funnel;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -46,13 +53,31 @@ public class CacheHelper implements ConnectionObserver
 
     private static final long TIMEOUT = 500; // 0.5 seconds
     
+    static final int REFRESH_THREADS = 4;
+    static final int REFRESH_QUEUE_SIZE = 100;
+    
     private static HashFunction keyHash = Hashing.murmur3_128();
     private static BaseEncoding keyEncoding = BaseEncoding.base64();
     
     private final AtomicReference<MemcachedClient> memcachedClient = new AtomicReference<>();
     private final AtomicBoolean memcachedActive = new AtomicBoolean(false);
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    /**
+     * key -> running load of a missing value (single flight per key)
+     */
+    private final ConcurrentMap<String, CompletableFuture<ObjectWithTimestamp>> loading = new ConcurrentHashMap<>();
+    
+    /**
+     * key -> queued or running refresh of a stale value (one refresh per key)
+     */
+    private final ConcurrentMap<String, RefreshTask> refreshing = new ConcurrentHashMap<>();
+    
+    private final PriorityBlockingQueue<Runnable> refreshQueue = new PriorityBlockingQueue<>();
+    private final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS,
+            0L, TimeUnit.MILLISECONDS, refreshQueue);
+    private final AtomicLong refreshSequence = new AtomicLong();
+    
+    private final Metrics metrics = new Metrics();
     
     public static CacheHelper getInstance()
     {
@@ -77,9 +102,175 @@ public class CacheHelper implements ConnectionObserver
         }
     }
     
-    public ExecutorService getExecutor()
+    /**
+     * priority of the background refresh of a stale value; if the refresh queue is full,
+     * the refresh with the lowest priority (the newest one among equal priorities) is dropped
+     * and the stale value is delivered until a later request queues the refresh again
+     */
+    public enum RefreshPriority
+    {
+        LOW,
+        NORMAL,
+        HIGH
+    }
+    
+    public interface Loader<T>
     {
-        return executor;
+        /**
+         * 
+         * @return the value, null if nothing should be cached
+         */
+        T load();
+    }
+    
+    public static class Metrics
+    {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder staleHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        private final LongAdder loadFailures = new LongAdder();
+        private final LongAdder loadTimeNs = new LongAdder();
+        private final LongAdder refreshesQueued = new LongAdder();
+        private final LongAdder refreshesCoalesced = new LongAdder();
+        private final LongAdder refreshesDropped = new LongAdder();
+        private final LongAdder refreshes = new LongAdder();
+        
+        public long getHits()
+        {
+            return hits.sum();
+        }
+        
+        public long getStaleHits()
+        {
+            return staleHits.sum();
+        }
+        
+        /**
+         * 
+         * @return requests that loaded the value
+         */
+        public long getMisses()
+        {
+            return misses.sum();
+        }
+        
+        /**
+         * 
+         * @return requests that waited for the load of a concurrent request
+         */
+        public long getCoalesced()
+        {
+            return coalesced.sum();
+        }
+        
+        public long getLoadFailures()
+        {
+            return loadFailures.sum();
+        }
+        
+        /**
+         * 
+         * @return mean time of the loads and refreshes
+         */
+        public long getMeanLoadTimeNs()
+        {
+            final long loads = getMisses() + getRefreshes();
+            return loads == 0 ? 0 : loadTimeNs.sum() / loads;
+        }
+        
+        public long getRefreshesQueued()
+        {
+            return refreshesQueued.sum();
+        }
+        
+        /**
+         * 
+         * @return stale hits whose refresh was already queued or running
+         */
+        public long getRefreshesCoalesced()
+        {
+            return refreshesCoalesced.sum();
+        }
+        
+        public long getRefreshesDropped()
+        {
+            return refreshesDropped.sum();
+        }
+        
+        /**
+         * 
+         * @return refreshes done
+         */
+        public long getRefreshes()
+        {
+            return refreshes.sum();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Metrics [hits=" + getHits() + ", staleHits=" + getStaleHits() + ", misses=" + getMisses()
+                    + ", coalesced=" + getCoalesced() + ", loadFailures=" + getLoadFailures()
+                    + ", meanLoadTimeNs=" + getMeanLoadTimeNs() + ", refreshesQueued=" + getRefreshesQueued()
+                    + ", refreshesCoalesced=" + getRefreshesCoalesced() + ", refreshesDropped=" + getRefreshesDropped()
+                    + ", refreshes=" + getRefreshes() + "]";
+        }
+    }
+    
+    private class RefreshTask implements Runnable, Comparable<RefreshTask>
+    {
+        private final String key;
+        private final int expireSec;
+        private final Loader<?> loader;
+        private final RefreshPriority priority;
+        private final long sequence = refreshSequence.incrementAndGet();
+        
+        private RefreshTask(String key, int expireSec, Loader<?> loader, RefreshPriority priority)
+        {
+            this.key = key;
+            this.expireSec = expireSec;
+            this.loader = loader;
+            this.priority = priority;
+        }
+        
+        @Override
+        public void run()
+        {
+            try
+            {
+                final long start = System.nanoTime();
+                final Object value = loader.load();
+                metrics.loadTimeNs.add(System.nanoTime() - start);
+                metrics.refreshes.increment();
+                if (value != null)
+                    set(key, expireSec, value, true);
+            }
+            catch (RuntimeException e)
+            {
+                metrics.loadFailures.increment();
+                e.printStackTrace();
+            }
+            finally
+            {
+                refreshing.remove(key, this);
+            }
+        }
+        
+        /**
+         * higher priority first, then first come first served
+         */
+        @Override
+        public int compareTo(RefreshTask o)
+        {
+            final int c = o.priority.compareTo(priority);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+    
+    public Metrics getMetrics()
+    {
+        return metrics;
     }
     
     public static class ObjectWithTimestamp
@@ -150,6 +341,145 @@ public class CacheHelper implements ConnectionObserver
         }
     }
     
+    /**
+     * see {@link #getOrComputeWithTimestamp(String, int, int, Loader, RefreshPriority)}
+     */
+    public <T> T getOrCompute(String key, int staleSec, int expireSec, Loader<T> loader)
+    {
+        return getOrCompute(key, staleSec, expireSec, loader, RefreshPriority.NORMAL);
+    }
+    
+    /**
+     * see {@link #getOrComputeWithTimestamp(String, int, int, Loader, RefreshPriority)}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getOrCompute(String key, int staleSec, int expireSec, Loader<T> loader, RefreshPriority priority)
+    {
+        final ObjectWithTimestamp cacheObject = getOrComputeWithTimestamp(key, staleSec, expireSec, loader, priority);
+        return cacheObject == null ? null : (T) cacheObject.o;
+    }
+    
+    /**
+     * Gets a value from the cache or loads it if it is missing. Concurrent requests for a missing key wait for
+     * a single load (per node). Stale values are delivered and refreshed once in the background.
+     * Without memcached every request is a miss, but concurrent requests are still coalesced.
+     * 
+     * @param key
+     * @param staleSec seconds after which a value is refreshed in the background; no refresh if not lower than <code>expireSec</code>
+     * (e.g. if the loader depends on the request)
+     * @param expireSec seconds after which a value expires
+     * @param loader
+     * @param priority of the background refresh
+     * @return the value with the timestamp it has been loaded, null if the loader returned null
+     */
+    public ObjectWithTimestamp getOrComputeWithTimestamp(String key, int staleSec, int expireSec, Loader<?> loader, RefreshPriority priority)
+    {
+        final ObjectWithTimestamp cacheObject = getWithTimestamp(key, staleSec);
+        if (cacheObject != null)
+        {
+            if (cacheObject.stale)
+            {
+                metrics.staleHits.increment();
+                if (staleSec < expireSec)
+                    refresh(key, expireSec, loader, priority);
+            }
+            else
+                metrics.hits.increment();
+            return cacheObject;
+        }
+        
+        final CompletableFuture<ObjectWithTimestamp> future = new CompletableFuture<>();
+        final CompletableFuture<ObjectWithTimestamp> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null)
+        {
+            metrics.coalesced.increment();
+            try
+            {
+                return inFlight.join();
+            }
+            catch (CompletionException e)
+            {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw e;
+            }
+        }
+        
+        metrics.misses.increment();
+        try
+        {
+            final long start = System.nanoTime();
+            final Object value = loader.load();
+            metrics.loadTimeNs.add(System.nanoTime() - start);
+            ObjectWithTimestamp result = null;
+            if (value != null)
+            {
+                result = new ObjectWithTimestamp(value, System.currentTimeMillis(), false);
+                set(key, expireSec, value, true);
+            }
+            future.complete(result);
+            return result;
+        }
+        catch (RuntimeException | Error e)
+        {
+            metrics.loadFailures.increment();
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            loading.remove(key, future);
+        }
+    }
+    
+    /**
+     * queues a background refresh of a value, unless a refresh of the key is already queued or running
+     * 
+     * @param key
+     * @param expireSec
+     * @param loader the value is not updated if the loader returns null
+     * @param priority
+     * @return true if the refresh has been queued
+     */
+    public boolean refresh(String key, int expireSec, Loader<?> loader, RefreshPriority priority)
+    {
+        final RefreshTask task = new RefreshTask(key, expireSec, loader, priority);
+        if (refreshing.putIfAbsent(key, task) != null)
+        {
+            metrics.refreshesCoalesced.increment();
+            return false;
+        }
+        
+        synchronized (refreshQueue)
+        {
+            // tasks are only added while holding the lock, so the queue can only shrink meanwhile
+            while (refreshQueue.size() >= REFRESH_QUEUE_SIZE)
+            {
+                RefreshTask dropped = task;
+                for (final Runnable r : refreshQueue)
+                {
+                    final RefreshTask t = (RefreshTask) r;
+                    if (t.compareTo(dropped) > 0)
+                        dropped = t;
+                }
+                if (dropped == task)
+                {
+                    metrics.refreshesDropped.increment();
+                    refreshing.remove(key, task);
+                    return false;
+                }
+                // fails if a worker has just taken the task, then there is room for the new one
+                if (refreshQueue.remove(dropped))
+                {
+                    metrics.refreshesDropped.increment();
+                    refreshing.remove(dropped.key, dropped);
+                }
+            }
+            refreshExecutor.execute(task);
+        }
+        metrics.refreshesQueued.increment();
+        return true;
+    }
+    
 //    public MemcachedClient getMemcachedClient()
 //    {
 //        return memcachedClient;
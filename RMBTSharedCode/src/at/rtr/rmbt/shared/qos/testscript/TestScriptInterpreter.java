@@ -23,6 +23,9 @@ import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -99,106 +102,209 @@ public class TestScriptInterpreter {
 
 	public final static Pattern PATTERN_RECURSIVE_COMMAND = Pattern.compile("([%%])(?:(?=(\\\\?))\\2.)*?\\1");
 
-	private static ScriptEngine jsEngine;
+	/**
+	 * maximum number of compiled commands and expressions kept; the caches are cleared when exceeded
+	 */
+	private final static int MAX_CACHED_SCRIPTS = 10000;
 
-	private static Method jsEngineNativeObjectGetter;
+	private final static ConcurrentMap<String, CompiledCommand> COMMAND_CACHE = new ConcurrentHashMap<>();
 
-	private static boolean alredayLookedForGetter = false;
+	private final static ConcurrentMap<String, CompiledExpression> EXPRESSION_CACHE = new ConcurrentHashMap<>();
 
-	/**
-	 *
-	 * @param command
-	 * @return
-	 */
-	public static Object interpret(String command, ResultOptions resultOptions) {
-		return interpret(command, null, null, false, resultOptions);
-	}
+	private static volatile Method jsEngineNativeObjectGetter;
+
+	private static volatile boolean alredayLookedForGetter = false;
 
 	/**
-	 *
-	 * @param command
-	 * @return
+	 * the js engine is created on first use; it is shared by all threads, every evaluation gets its own bindings
 	 */
-	public synchronized static Object interpret(String command, Map<String, Field> fieldNameToFieldMap, AbstractResult object, boolean useRecursion, ResultOptions resultOptions) {
-
-		if (jsEngine == null) {
-			ScriptEngineManager sem = new ScriptEngineManager();
-			jsEngine = sem.getEngineByName("JavaScript");
+	private final static class JsEngineHolder {
+		private final static ScriptEngine JS_ENGINE = createJsEngine();
+
+		private static ScriptEngine createJsEngine() {
+			final ScriptEngineManager sem = new ScriptEngineManager();
+			final ScriptEngine jsEngine = sem.getEngineByName("JavaScript");
+			if (jsEngine == null) {
+				System.out.println("JS Engine: not available");
+				return null;
+			}
 			System.out.println("JS Engine: " + jsEngine.getClass().getCanonicalName());
-			Bindings b = jsEngine.createBindings();
+			final Bindings b = jsEngine.createBindings();
 			b.put("nn", new SystemApi());
 			jsEngine.setBindings(b, ScriptContext.GLOBAL_SCOPE);
+			return jsEngine;
 		}
+	}
 
-		command = command.replace("\\%", "{PERCENT}");
+	/**
+	 * A command parsed once: the control blocks (%$IF ...%, %$SWITCH ...%) and, if there are none,
+	 * the script command or the commands found for recursion.
+	 */
+	private final static class CompiledCommand {
+		private final String command;
+		private final ControlBlock[] controlBlocks;
+		private final ParsedCommand parsedCommand;
 
-		try {
-			final Matcher mc = PATTERN_CONTROL.matcher(command);
+		private CompiledCommand(final String command) {
+			this.command = command.replace("\\%", "{PERCENT}");
+
+			final List<ControlBlock> controlBlockList = new ArrayList<>();
+			final Matcher mc = PATTERN_CONTROL.matcher(this.command);
 			while (mc.find()) {
-				String toReplace = "";
+				controlBlockList.add(new ControlBlock(mc.group(0), mc.group(1), mc.group(2), mc.group(3)));
+			}
+			this.controlBlocks = controlBlockList.toArray(new ControlBlock[controlBlockList.size()]);
+			//the commands of a script with control blocks depend on the result of the controls
+			this.parsedCommand = controlBlocks.length == 0 ? new ParsedCommand(this.command) : null;
+		}
+	}
 
-				final String controlCommand = mc.group(1);
-				//System.out.println("found control command: " + controlCommand + ", clause: " + mc.group(2));
-				if ("IF".equals(controlCommand)) {
-					if (controlIf(mc.group(2), object)) {
-						toReplace = String.valueOf(interpret(mc.group(3), fieldNameToFieldMap, object, true, resultOptions));
-					}
+	private final static class ControlBlock {
+		private final String block;
+		private final String controlCommand;
+		private final String clause;
+		private final String body;
+		private final SwitchCase[] switchCases;
+
+		private ControlBlock(final String block, final String controlCommand, final String clause, final String body) {
+			this.block = block;
+			this.controlCommand = controlCommand;
+			this.clause = clause;
+			this.body = body;
+			this.switchCases = "SWITCH".equals(controlCommand) ? parseSwitchCases(body) : null;
+		}
+	}
+
+	private final static class SwitchCase {
+		private final boolean isDefault;
+		private final String option;
+		private final String body;
+
+		private SwitchCase(final String type, final String option, final String body) {
+			this.isDefault = "DEFAULT".equals(type);
+			this.option = option;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * a command without control blocks
+	 */
+	private final static class ParsedCommand {
+		/**
+		 * the command with escaped percent signs
+		 */
+		private final String command;
+		private final String[] recursiveCommands;
+		private final String scriptCommand;
+		private final String[] args;
+
+		private ParsedCommand(final String command) {
+			this.command = command;
+
+			final List<String> recursiveCommandList = new ArrayList<>();
+			final Matcher mr = PATTERN_RECURSIVE_COMMAND.matcher(command);
+			while (mr.find()) {
+				recursiveCommandList.add(mr.group(0));
+			}
+			this.recursiveCommands = recursiveCommandList.toArray(new String[recursiveCommandList.size()]);
+
+			final Matcher m = PATTERN_COMMAND.matcher(command);
+			if (m.find()) {
+				this.scriptCommand = m.group(1);
+				if (!COMMAND_EVAL.equals(scriptCommand)) {
+					this.args = m.group(2).trim().split("\\s");
 				}
-				else if ("SWITCH".equals(controlCommand)) {
-					toReplace = String.valueOf(interpret(controlSwitch(mc.group(2), object, mc.group(3)), fieldNameToFieldMap, object, true, resultOptions));
+				else {
+					this.args = new String[] {m.group(2).trim()};
 				}
-
-				command = command.replace(mc.group(0), (toReplace != null ? toReplace.trim() : ""));
+			}
+			else {
+				this.scriptCommand = null;
+				this.args = null;
 			}
 		}
-		catch (final ScriptException e) {
-			e.printStackTrace();
-			return null;
+	}
+
+	/**
+	 * A js expression compiled once; the compiled script is shared, the bindings are passed on every evaluation
+	 */
+	private final static class CompiledExpression {
+		private final String source;
+		private final CompiledScript compiledScript;
+
+		private CompiledExpression(final ScriptEngine jsEngine, final String source) throws javax.script.ScriptException {
+			this.source = source;
+			this.compiledScript = jsEngine instanceof Compilable ? ((Compilable) jsEngine).compile(source) : null;
 		}
 
-		Pattern p;
-		if (!useRecursion) {
-			p = PATTERN_COMMAND;
+		private Object eval(final Bindings bindings) throws javax.script.ScriptException {
+			return compiledScript != null ? compiledScript.eval(bindings) : getJsEngine().eval(source, bindings);
 		}
-		else {
-			p = PATTERN_RECURSIVE_COMMAND;
+	}
 
-			Matcher m = p.matcher(command);
-			while (m.find()) {
-				String replace = m.group(0);
-				//System.out.println("found: " + replace);
-				String toReplace = String.valueOf(interpret(replace, fieldNameToFieldMap, object, false, resultOptions));
-				//System.out.println("replacing: " + m.group(0) + " -> " + toReplace);
-				command = command.replace(m.group(0), toReplace);
-			}
+	/**
+	 *
+	 * @param command
+	 * @return
+	 */
+	public static Object interpret(String command, ResultOptions resultOptions) {
+		return interpret(command, null, null, false, resultOptions);
+	}
 
-			command = command.replace("{PERCENT}", "%");
+	/**
+	 * Interprets a command; the command is parsed once and cached, so this method can be called concurrently
+	 * @param command
+	 * @return
+	 */
+	public static Object interpret(String command, Map<String, Field> fieldNameToFieldMap, AbstractResult object, boolean useRecursion, ResultOptions resultOptions) {
+		if (command.indexOf('%') < 0 && !command.contains("{PERCENT}")) {
+			//nothing to interpret (the common case of plain values)
 			return command;
 		}
 
-		Matcher m = p.matcher(command);
-		command = command.replace("{PERCENT}", "%");
+		final CompiledCommand compiledCommand = getCompiledCommand(command);
+		ParsedCommand parsedCommand = compiledCommand.parsedCommand;
 
-		String scriptCommand;
-		String[] args;
+		if (parsedCommand == null) {
+			command = compiledCommand.command;
+			try {
+				for (final ControlBlock controlBlock : compiledCommand.controlBlocks) {
+					String toReplace = "";
 
-		if (m.find()) {
-			if (m.groupCount() != 2) {
-				return command;
-			}
-			scriptCommand = m.group(1);
+					if ("IF".equals(controlBlock.controlCommand)) {
+						if (controlIf(controlBlock.clause, object)) {
+							toReplace = String.valueOf(interpret(controlBlock.body, fieldNameToFieldMap, object, true, resultOptions));
+						}
+					}
+					else if ("SWITCH".equals(controlBlock.controlCommand)) {
+						toReplace = String.valueOf(interpret(controlSwitch(controlBlock.clause, object, controlBlock.switchCases), fieldNameToFieldMap, object, true, resultOptions));
+					}
 
-			if (!COMMAND_EVAL.equals(scriptCommand)) {
-				args = m.group(2).trim().split("\\s");
+					command = command.replace(controlBlock.block, (toReplace != null ? toReplace.trim() : ""));
+				}
 			}
-			else {
-				args = new String[] {m.group(2).trim()};
+			catch (final ScriptException e) {
+				e.printStackTrace();
+				return null;
 			}
+
+			parsedCommand = new ParsedCommand(command);
 		}
-		else {
-			return command;
+
+		if (useRecursion) {
+			command = parsedCommand.command;
+			for (final String recursiveCommand : parsedCommand.recursiveCommands) {
+				final String toReplace = String.valueOf(interpret(recursiveCommand, fieldNameToFieldMap, object, false, resultOptions));
+				command = command.replace(recursiveCommand, toReplace);
+			}
+
+			return command.replace("{PERCENT}", "%");
 		}
 
+		final String scriptCommand = parsedCommand.scriptCommand;
+		final String[] args = parsedCommand.args;
+
 		try {
 			if (COMMAND_RANDOM.equals(scriptCommand)) {
 				return random(args);
@@ -213,7 +319,7 @@ public class TestScriptInterpreter {
 				return randomUrl(args);
 			}
 			else {
-				return command;
+				return parsedCommand.command.replace("{PERCENT}", "%");
 			}
 		}
 		catch (ScriptException e) {
@@ -222,6 +328,51 @@ public class TestScriptInterpreter {
 		}
 	}
 
+	private static CompiledCommand getCompiledCommand(final String command) {
+		CompiledCommand compiledCommand = COMMAND_CACHE.get(command);
+		if (compiledCommand == null) {
+			compiledCommand = putIfAbsent(COMMAND_CACHE, command, new CompiledCommand(command));
+		}
+		return compiledCommand;
+	}
+
+	private static CompiledExpression getCompiledExpression(final String source) throws javax.script.ScriptException {
+		CompiledExpression compiledExpression = EXPRESSION_CACHE.get(source);
+		if (compiledExpression == null) {
+			compiledExpression = putIfAbsent(EXPRESSION_CACHE, source, new CompiledExpression(getJsEngine(), source));
+		}
+		return compiledExpression;
+	}
+
+	private static <V> V putIfAbsent(final ConcurrentMap<String, V> cache, final String key, final V value) {
+		if (cache.size() >= MAX_CACHED_SCRIPTS) {
+			//the scripts come from the test objectives, so this only happens if values are interpreted that are no scripts
+			cache.clear();
+		}
+		final V cachedValue = cache.putIfAbsent(key, value);
+		return cachedValue != null ? cachedValue : value;
+	}
+
+	private static ScriptEngine getJsEngine() throws javax.script.ScriptException {
+		final ScriptEngine jsEngine = JsEngineHolder.JS_ENGINE;
+		if (jsEngine == null) {
+			throw new javax.script.ScriptException("No JavaScript engine available");
+		}
+		return jsEngine;
+	}
+
+	/**
+	 * new bindings (and thus a new js global scope) containing the result map
+	 * @param object
+	 * @return
+	 * @throws javax.script.ScriptException
+	 */
+	private static Bindings createBindings(final AbstractResult object) throws javax.script.ScriptException {
+		final Bindings bindings = getJsEngine().createBindings();
+		bindings.putAll(object.getResultMap());
+		return bindings;
+	}
+
 	/**
 	 *
 	 * @param args
@@ -229,7 +380,7 @@ public class TestScriptInterpreter {
 	 * @throws ScriptException
 	 */
 	private static int random(String[] args) throws ScriptException {
-		Random rand = new Random();
+		final Random rand = ThreadLocalRandom.current();
 		if (args.length > 2 || args.length < 1) {
 			throw new ScriptException(ScriptException.ERROR_INVALID_ARGUMENT_COUNT + " RANDOM: " + args.length);
 		}
@@ -284,12 +435,9 @@ public class TestScriptInterpreter {
 		try {
 			boolean isJsObject = false;
 
-			final Bindings bindings = jsEngine.createBindings();
-			bindings.putAll(object.getResultMap());
-			//final Bindings bindings = new SimpleBindings(object.getResultMap());
-
-			//System.out.println(object.getResultMap().toString());
-			jsEngine.eval("var result=null; " + args[0], bindings);
+			final ScriptEngine jsEngine = getJsEngine();
+			final Bindings bindings = createBindings(object);
+			getCompiledExpression("var result=null; " + args[0]).eval(bindings);
 
 			EvalResult evalResult = null;
 			final Object result = bindings.get("result");
@@ -310,7 +458,6 @@ public class TestScriptInterpreter {
 
 			if (isJsObject) {
 				if (!alredayLookedForGetter && jsEngineNativeObjectGetter == null) {
-					alredayLookedForGetter = true;
 					System.out.println("js getter is null, trying to get methody with reflections...");
 					try {
 						jsEngineNativeObjectGetter = result.getClass().getMethod("get", Object.class);
@@ -319,11 +466,13 @@ public class TestScriptInterpreter {
 					catch (Exception e) {
 						System.out.println("method not found: " + e.getMessage());
 					}
+					alredayLookedForGetter = true;
 				}
 
-				if (jsEngineNativeObjectGetter != null) {
-					final String type = (String) jsEngineNativeObjectGetter.invoke(result, "type");
-					final String key = (String) jsEngineNativeObjectGetter.invoke(result, "key");
+				final Method getter = jsEngineNativeObjectGetter;
+				if (getter != null) {
+					final String type = (String) getter.invoke(result, "type");
+					final String key = (String) getter.invoke(result, "key");
 
 					//System.out.println(type + " " + key);
 
@@ -431,9 +580,8 @@ public class TestScriptInterpreter {
 	}
 
 	public static boolean controlIf(String clause, AbstractResult object) throws ScriptException {
-		final Bindings bindings = new SimpleBindings(object.getResultMap());
 		try {
-			final Object result = jsEngine.eval(clause, bindings);
+			final Object result = getCompiledExpression(clause).eval(createBindings(object));
 			return Boolean.parseBoolean(result.toString());
 
 		} catch (javax.script.ScriptException e) {
@@ -442,10 +590,15 @@ public class TestScriptInterpreter {
 	}
 
 	public static String controlSwitch(String clause, AbstractResult object, String switchBody) throws ScriptException {
-		final Bindings bindings = new SimpleBindings(object.getResultMap());
+		return controlSwitch(clause, object, parseSwitchCases(switchBody));
+	}
+
+	private static String controlSwitch(String clause, AbstractResult object, SwitchCase[] switchCases) throws ScriptException {
+		final Bindings bindings;
 		Object result = null;
 		try {
-			result = jsEngine.eval(clause, bindings);
+			bindings = createBindings(object);
+			result = getCompiledExpression(clause).eval(bindings);
 		} catch (javax.script.ScriptException e) {
 			throw new ScriptException(ScriptException.ERROR_UNKNOWN + " SWITCH: " + e.getMessage());
 		}
@@ -453,11 +606,10 @@ public class TestScriptInterpreter {
 		try {
 			if (result != null) {
 				final String switchCase = result.toString();
-				final Matcher m = PATTERN_CONTROL_SWITCH.matcher(switchBody);
-				while (m.find()) {
-					final String caseOption = jsEngine.eval(m.group(2), bindings).toString();
-					if ((m.group(1).equals("CASE") && switchCase.equals(caseOption)) || m.group(1).equals("DEFAULT")) {
-						return m.group(3);
+				for (final SwitchCase c : switchCases) {
+					final String caseOption = getCompiledExpression(c.option).eval(bindings).toString();
+					if ((!c.isDefault && switchCase.equals(caseOption)) || c.isDefault) {
+						return c.body;
 					}
 				}
 			}
@@ -468,6 +620,15 @@ public class TestScriptInterpreter {
 		return "";
 	}
 
+	private static SwitchCase[] parseSwitchCases(final String switchBody) {
+		final List<SwitchCase> switchCases = new ArrayList<>();
+		final Matcher m = PATTERN_CONTROL_SWITCH.matcher(switchBody);
+		while (m.find()) {
+			switchCases.add(new SwitchCase(m.group(1), m.group(2), m.group(3)));
+		}
+		return switchCases.toArray(new SwitchCase[switchCases.size()]);
+	}
+
 	public static Map<String, Object> jsonToMap(final JSONObject json) {
 		final Iterator<String> jsonKeys = json.keys();
 		final Map<String, Object> map = new HashMap<>();
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.shared.sketch;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Histogram of integer buckets which estimates quantiles; sketches can be merged.
+ * What a bucket stands for is up to the user of the sketch: an interval of a linear scale (heatmap grid of the map server)
+ * or of a logarithmic scale (statistic rollups).
+ * <p>
+ * The counts are kept in a dense array over the range of buckets in use, which may span at most {@link #MAX_RANGE} buckets.
+ * They are encoded sparse: the number of non empty buckets, then per bucket the distance to the previous bucket
+ * (the first one to bucket 0) and the count, as {@link Varint}s.
+ * <p>
+ * Not thread safe.
+ */
+public final class QuantileSketch
+{
+    /**
+     * the values must be mapped to a limited range of buckets, so implausible values cannot allocate huge arrays
+     */
+    public static final int MAX_RANGE = 1 << 16;
+
+    /**
+     * counts of the buckets offset to offset + counts.length - 1
+     */
+    private long[] counts = new long[0];
+    private int offset = 0;
+    private long count = 0;
+
+    /**
+     *
+     * @param bucket
+     * @param n number of values to add to the bucket
+     * @throws IllegalArgumentException if n is negative or the sketch would span more than {@link #MAX_RANGE} buckets
+     */
+    public void add(int bucket, long n)
+    {
+        if (n < 0)
+            throw new IllegalArgumentException("negative count: " + n);
+        if (counts.length == 0)
+        {
+            counts = new long[8];
+            offset = bucket;
+        }
+        else if (bucket < offset)
+        {
+            final long range = (long) offset + counts.length - bucket;
+            if (range > MAX_RANGE)
+                throw new IllegalArgumentException("bucket out of range: " + bucket);
+            final int grow = (int) Math.min(Math.min(Math.max(offset - bucket, counts.length / 2), MAX_RANGE - counts.length),
+                    (long) offset - Integer.MIN_VALUE);
+            final long[] _counts = new long[counts.length + grow];
+            System.arraycopy(counts, 0, _counts, grow, counts.length);
+            counts = _counts;
+            offset -= grow;
+        }
+        else if ((long) bucket - offset >= counts.length)
+        {
+            final long range = (long) bucket - offset + 1;
+            if (range > MAX_RANGE)
+                throw new IllegalArgumentException("bucket out of range: " + bucket);
+            counts = Arrays.copyOf(counts, (int) Math.min(Math.max(range, counts.length + counts.length / 2), MAX_RANGE));
+        }
+        counts[bucket - offset] += n;
+        count += n;
+    }
+
+    public void addAll(QuantileSketch other)
+    {
+        for (int i = 0; i < other.counts.length; i++)
+            if (other.counts[i] != 0)
+                add(other.offset + i, other.counts[i]);
+    }
+
+    /**
+     *
+     * @return the number of values
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     *
+     * @param bucket
+     * @return the number of values in the bucket
+     */
+    public long getCount(int bucket)
+    {
+        final long i = (long) bucket - offset;
+        return i < 0 || i >= counts.length ? 0 : counts[(int) i];
+    }
+
+    /**
+     * same rank as the <code>quantile</code> aggregate: the value at position ceil(count * quantile) in ascending order
+     *
+     * @param quantile
+     * @return the bucket of the value
+     * @throws IllegalStateException if the sketch is empty
+     */
+    public int getBucket(double quantile)
+    {
+        if (count == 0)
+            throw new IllegalStateException("empty sketch");
+        final long index = Math.max(0, (long) Math.ceil(count * quantile) - 1);
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            cumulated += counts[i];
+            if (cumulated > index)
+                return offset + i;
+        }
+        return offset + counts.length - 1;
+    }
+
+    /**
+     * same interpolation as <code>percentile_cont</code>, with the values of a bucket evenly distributed within the bucket
+     *
+     * @param quantile
+     * @return the position of the quantile in buckets (bucket b spans b to b + 1), NaN if the sketch is empty
+     */
+    public double getPosition(double quantile)
+    {
+        if (count == 0)
+            return Double.NaN;
+        final double rank = quantile * (count - 1);
+        final long lower = (long) Math.floor(rank);
+        final double lowerPosition = getPosition(lower);
+        if (lower + 1 >= count)
+            return lowerPosition;
+        return lowerPosition + (getPosition(lower + 1) - lowerPosition) * (rank - lower);
+    }
+
+    /**
+     *
+     * @param index of a value in ascending order
+     * @return the estimated position of the value in buckets
+     */
+    private double getPosition(long index)
+    {
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            if (cumulated + counts[i] > index)
+                return offset + i + (index - cumulated + 0.5) / counts[i];
+            cumulated += counts[i];
+        }
+        return offset + counts.length;
+    }
+
+    /**
+     *
+     * @return the lowest non empty bucket
+     * @throws IllegalStateException if the sketch is empty
+     */
+    public int getMinBucket()
+    {
+        for (int i = 0; i < counts.length; i++)
+            if (counts[i] != 0)
+                return offset + i;
+        throw new IllegalStateException("empty sketch");
+    }
+
+    /**
+     *
+     * @return the highest non empty bucket
+     * @throws IllegalStateException if the sketch is empty
+     */
+    public int getMaxBucket()
+    {
+        for (int i = counts.length - 1; i >= 0; i--)
+            if (counts[i] != 0)
+                return offset + i;
+        throw new IllegalStateException("empty sketch");
+    }
+
+    public void encode(ByteArrayOutputStream out)
+    {
+        int buckets = 0;
+        for (final long c : counts)
+            if (c != 0)
+                buckets++;
+        Varint.write(out, buckets);
+        long last = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            if (counts[i] == 0)
+                continue;
+            final long bucket = offset + i;
+            Varint.write(out, Varint.zigzag(bucket - last));
+            Varint.write(out, counts[i]);
+            last = bucket;
+        }
+    }
+
+    public byte[] encode()
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * reads a sketch written by {@link #encode(ByteArrayOutputStream)}
+     *
+     * @throws IllegalArgumentException if the data is invalid
+     */
+    public static QuantileSketch decode(ByteBuffer in)
+    {
+        final QuantileSketch sketch = new QuantileSketch();
+        final long buckets = Varint.read(in);
+        long bucket = 0;
+        for (long i = 0; i < buckets; i++)
+        {
+            bucket += Varint.unzigzag(Varint.read(in));
+            if (bucket < Integer.MIN_VALUE || bucket > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("bucket out of range: " + bucket);
+            sketch.add((int) bucket, Varint.read(in));
+        }
+        return sketch;
+    }
+
+    /**
+     *
+     * @throws IllegalArgumentException if the data is invalid or not a single sketch
+     */
+    public static QuantileSketch decode(byte[] data)
+    {
+        final ByteBuffer in = ByteBuffer.wrap(data);
+        final QuantileSketch sketch = decode(in);
+        if (in.hasRemaining())
+            throw new IllegalArgumentException("trailing data after sketch");
+        return sketch;
+    }
+}
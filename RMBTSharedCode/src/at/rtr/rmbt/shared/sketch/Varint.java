@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.shared.sketch;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length encoding of unsigned longs: 7 bits per byte, least significant group first,
+ * the high bit is set if another byte follows. Signed values are mapped with {@link #zigzag(long)} first.
+ */
+public final class Varint
+{
+    private Varint()
+    {
+    }
+
+    public static void write(ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     *
+     * @throws IllegalArgumentException if the data ends within the value or the value has more than 64 bits
+     */
+    public static long read(ByteBuffer in)
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            if (!in.hasRemaining() || shift > 63)
+                throw new IllegalArgumentException("invalid varint");
+            b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     *
+     * @return the value with small absolute values mapped to small unsigned values (0, -1, 1, -2, ... to 0, 1, 2, 3, ...)
+     */
+    public static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
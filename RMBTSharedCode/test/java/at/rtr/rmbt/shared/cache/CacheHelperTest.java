@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.shared.cache;
+
+import at.rtr.rmbt.shared.cache.CacheHelper.Loader;
+import at.rtr.rmbt.shared.cache.CacheHelper.RefreshPriority;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * without memcached: every request is a miss, but loads and refreshes are still coalesced
+ */
+public class CacheHelperTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private final CacheHelper cache = new CacheHelper();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * counts its loads and blocks until {@link #release} is counted down
+     */
+    private class BlockingLoader implements Loader<String> {
+        private final String value;
+        private final CountDownLatch started;
+        private final List<String> loaded;
+        private final AtomicInteger loads = new AtomicInteger();
+
+        BlockingLoader(String value, CountDownLatch started, List<String> loaded) {
+            this.value = value;
+            this.started = started;
+            this.loaded = loaded;
+        }
+
+        @Override
+        public String load() {
+            loads.incrementAndGet();
+            started.countDown();
+            try {
+                assertTrue(release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (loaded != null)
+                loaded.add(value);
+            if (value == null)
+                throw new IllegalStateException("load failed");
+            return value;
+        }
+    }
+
+    @After
+    public void shutdown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    private static void awaitCondition(Callable<Boolean> condition) throws Exception {
+        final long end = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.call()) {
+            assertTrue("timeout", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    private List<Future<String>> getOrComputeConcurrently(final int requests, final BlockingLoader loader, CountDownLatch started)
+            throws Exception {
+        final List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return cache.getOrCompute("key", 60, 120, loader);
+                }
+            }));
+            if (i == 0)
+                assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+        // all other requests wait for the first one
+        awaitCondition(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return cache.getMetrics().getCoalesced() == requests - 1;
+            }
+        });
+        release.countDown();
+        return results;
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final BlockingLoader loader = new BlockingLoader("value", started, null);
+        final List<Future<String>> results = getOrComputeConcurrently(10, loader, started);
+        for (final Future<String> result : results)
+            assertEquals("value", result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, loader.loads.get());
+        final CacheHelper.Metrics metrics = cache.getMetrics();
+        assertEquals(1, metrics.getMisses());
+        assertEquals(9, metrics.getCoalesced());
+        assertEquals(0, metrics.getHits());
+        assertEquals(0, metrics.getLoadFailures());
+
+        // the next request loads again, as nothing is cached
+        assertEquals("value", cache.getOrCompute("key", 60, 120, loader));
+        assertEquals(2, loader.loads.get());
+        assertEquals(2, metrics.getMisses());
+    }
+
+    @Test
+    public void testSingleFlightFailure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final BlockingLoader loader = new BlockingLoader(null, started, null);
+        final List<Future<String>> results = getOrComputeConcurrently(5, loader, started);
+        for (final Future<String> result : results) {
+            try {
+                result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals(IllegalStateException.class, e.getCause().getClass());
+                assertEquals("load failed", e.getCause().getMessage());
+            }
+        }
+        assertEquals(1, loader.loads.get());
+        assertEquals(1, cache.getMetrics().getLoadFailures());
+    }
+
+    @Test
+    public void testRefreshPriority() throws Exception {
+        final CacheHelper.Metrics metrics = cache.getMetrics();
+        final List<String> loaded = new CopyOnWriteArrayList<>();
+
+        // occupy the refresh threads
+        final CountDownLatch running = new CountDownLatch(CacheHelper.REFRESH_THREADS);
+        for (int i = 0; i < CacheHelper.REFRESH_THREADS; i++)
+            assertTrue(cache.refresh("running" + i, 120, new BlockingLoader("running" + i, running, loaded), RefreshPriority.HIGH));
+        assertTrue(running.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // fill the queue
+        final CountDownLatch ignored = new CountDownLatch(0);
+        for (int i = 0; i < CacheHelper.REFRESH_QUEUE_SIZE; i++)
+            assertTrue(cache.refresh("normal" + i, 120, new BlockingLoader("normal" + i, ignored, loaded), RefreshPriority.NORMAL));
+        assertEquals(0, metrics.getRefreshesDropped());
+
+        // a refresh with a lower priority is dropped
+        assertFalse(cache.refresh("low", 120, new BlockingLoader("low", ignored, loaded), RefreshPriority.LOW));
+        assertEquals(1, metrics.getRefreshesDropped());
+
+        // a refresh with a higher priority drops the newest refresh with the lowest priority
+        final String newest = "normal" + (CacheHelper.REFRESH_QUEUE_SIZE - 1);
+        assertTrue(cache.refresh("high", 120, new BlockingLoader("high", ignored, loaded), RefreshPriority.HIGH));
+        assertEquals(2, metrics.getRefreshesDropped());
+
+        // the dropped refresh can be queued again, but it is the newest with the lowest priority
+        assertFalse(cache.refresh(newest, 120, new BlockingLoader(newest, ignored, loaded), RefreshPriority.NORMAL));
+        assertEquals(3, metrics.getRefreshesDropped());
+
+        // a refresh of a queued key is coalesced, not dropped
+        assertFalse(cache.refresh("normal0", 120, new BlockingLoader("normal0", ignored, loaded), RefreshPriority.NORMAL));
+        assertEquals(1, metrics.getRefreshesCoalesced());
+        assertEquals(3, metrics.getRefreshesDropped());
+        assertEquals(CacheHelper.REFRESH_THREADS + CacheHelper.REFRESH_QUEUE_SIZE + 1, metrics.getRefreshesQueued());
+
+        release.countDown();
+        final int expected = CacheHelper.REFRESH_THREADS + CacheHelper.REFRESH_QUEUE_SIZE;
+        awaitCondition(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return metrics.getRefreshes() == expected;
+            }
+        });
+        assertEquals(expected, loaded.size());
+        assertTrue(loaded.contains("high"));
+        assertTrue(loaded.contains("normal0"));
+        assertFalse(loaded.contains("low"));
+        assertFalse(loaded.contains(newest));
+        // the high priority refresh runs before the queued normal ones
+        assertTrue(loaded.indexOf("high") < CacheHelper.REFRESH_THREADS * 2);
+        assertEquals(0, metrics.getLoadFailures());
+    }
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.shared.qos.testscript;
+
+import at.rtr.rmbt.shared.qos.AbstractResult;
+import at.rtr.rmbt.shared.qos.ResultOptions;
+import at.rtr.rmbt.shared.qos.TracerouteResult;
+import at.rtr.rmbt.shared.qos.VoipResult;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.script.ScriptEngineManager;
+
+import static org.junit.Assert.*;
+
+/**
+ * compares the interpreter with cached commands and compiled expressions to the interpreter that parses
+ * and evaluates every command on its own ({@link TestScriptInterpreterReference}), for the scripts of the
+ * QoS test descriptions and objectives (see install/postgresql/rmbt_init.sql)
+ */
+public class TestScriptInterpreterTest {
+
+    private static final ResultOptions OPTIONS = new ResultOptions(Locale.US);
+
+    private static final String VOIP_TESTINFO = "%$IF voip_result_status!='OK'%\n" +
+            "There has been an error during the VoIP test. No results available.\n" +
+            "%$ENDIF voip_result_status!='OK'%\n" +
+            "%$IF voip_result_status=='OK'%\n" +
+            "TEST PARAMETERS\n" +
+            "Sample rate: %PARAM voip_objective_sample_rate%, bits per sample: %PARAM voip_objective_bits_per_sample%\n" +
+            "Call duration: %PARAM voip_objective_call_duration 1000000 1 f% ms\n" +
+            "Packet interval: %PARAM voip_objective_delay 1000000 1 f% ms\n" +
+            "Payload type: %EVAL result=String(nn.getPayloadType(voip_objective_payload))%\n" +
+            "Target port: %PARAM voip_objective_out_port%\n" +
+            "\n" +
+            "Incoming voice stream:\n" +
+            "mean jitter: %PARAM voip_result_in_mean_jitter 1000000 2 f% ms\n" +
+            "packets sent: %EVAL result=String(parseInt(voip_objective_call_duration/voip_objective_delay));%\n" +
+            "packets received: %PARAM voip_result_in_num_packets%\n" +
+            "packet lost percentage: %EVAL var _sent= parseInt(voip_objective_call_duration/voip_objective_delay); result=(100 * ((_sent - voip_result_in_num_packets) / _sent)); %\\%\n" +
+            "\n" +
+            "Outgoing voice stream:\n" +
+            "mean jitter: %PARAM voip_result_out_mean_jitter 1000000 2 f% ms\n" +
+            "packets received: %PARAM voip_result_out_num_packets%\n" +
+            "packet lost percentage: %EVAL var _sent= parseInt(voip_objective_call_duration/voip_objective_delay); result=(100 * ((_sent - voip_result_out_num_packets) / _sent)); %\\%\n" +
+            "%$ENDIF voip_result_status=='OK'%";
+
+    private static final String[] VOIP_SCRIPTS = {
+            VOIP_TESTINFO,
+            "Simulated VoIP call with a duration of %PARAM voip_objective_call_duration 1000000 1 f% ms.",
+            "It is possible to send voice packets to port %PARAM voip_objective_out_port%.",
+            "The incoming packet loss rate is lower than 5%!",
+            "%PARAM voip_objective_call_duration 1000000 1 f%",
+            "%PARAM voip_result_in_num_packets%",
+            "%EVAL if (nn.coalesce(voip_result_in_mean_jitter, 50000000) < 50000000) result=true; else result=false;%",
+            "%EVAL if (nn.coalesce(voip_result_out_mean_jitter, 50000000) < 50000000) result=true; else result=false;%",
+            "%EVAL if (nn.coalesce(voip_result_in_num_packets, 0) > 0) result=true; else result=false;%",
+            "%EVAL if (nn.coalesce(voip_result_out_num_packets, 0) > 0) result=true; else result=false;%",
+            "%EVAL if(voip_result_status=='TIMEOUT') result={type: 'failure', key: 'voip.timeout'}%",
+            "%EVAL result=String(nn.getPayloadType(voip_objective_payload))%",
+            "%EVAL result=String(parseInt(voip_objective_call_duration/voip_objective_delay));%",
+            "%EVAL var _sent= parseInt(voip_objective_call_duration/voip_objective_delay); var _plr=parseInt(100 * ((_sent - voip_result_in_num_packets) / _sent)); if (_plr > 5) result=false; else result=true;%",
+            "%EVAL var _sent= parseInt(voip_objective_call_duration/voip_objective_delay); var _plr=parseInt(100 * ((_sent - voip_result_out_num_packets) / _sent)); if (_plr > 5) result=false; else result=true;%",
+            "%$SWITCH voip_result_status%\n" +
+                    "%$CASE 'OK'%call completed%$ENDCASE 'OK'%\n" +
+                    "%$CASE 'TIMEOUT'%call timed out after %PARAM voip_objective_timeout 1000000 0 f% ms%$ENDCASE 'TIMEOUT'%\n" +
+                    "%$ENDSWITCH voip_result_status%"
+    };
+
+    private static final String[] TRACEROUTE_SCRIPTS = {
+            "%PARAM traceroute_result_hops%",
+            "%EVAL result=String(nn.parseTraceroute(traceroute_result_details))%",
+            "Hops: %PARAM traceroute_result_hops% of %PARAM traceroute_objective_max_hops%\n%EVAL result=String(nn.parseTraceroute(traceroute_result_details))%"
+    };
+
+    @Before
+    public void checkJsEngine() {
+        // the scripts need a js engine, which the jre only has up to java 14
+        Assume.assumeNotNull(new ScriptEngineManager().getEngineByName("JavaScript"));
+    }
+
+    private static JSONObject voip(String status, Object inMeanJitter) {
+        return new JSONObject()
+                .put("voip_objective_call_duration", 2000000000L)
+                .put("voip_objective_delay", 20000000L)
+                .put("voip_objective_timeout", 3000000000L)
+                .put("voip_objective_payload", 8)
+                .put("voip_objective_sample_rate", 8000)
+                .put("voip_objective_bits_per_sample", 8)
+                .put("voip_objective_out_port", 5060)
+                .put("voip_result_in_num_packets", 97)
+                .put("voip_result_out_num_packets", 100)
+                .put("voip_result_in_mean_jitter", inMeanJitter)
+                .put("voip_result_out_mean_jitter", 60000000L)
+                .put("voip_result_status", status);
+    }
+
+    private static JSONObject traceroute() {
+        return new JSONObject()
+                .put("traceroute_objective_max_hops", 30)
+                .put("traceroute_result_hops", 2)
+                .put("traceroute_result_details", "[{\"host\":\"192.168.1.1\",\"time\":1500000},{\"host\":\"10.20.30.40\",\"time\":12000000}]");
+    }
+
+    /**
+     * a result as read from the database: the fields are set from the json and the json is available to the scripts
+     */
+    private static AbstractResult createResult(Class<? extends AbstractResult> clazz, JSONObject json, Map<String, Field> fieldNameToFieldMap) throws Exception {
+        final AbstractResult result = clazz.newInstance();
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (final Field field : c.getDeclaredFields()) {
+                final JsonProperty property = field.getAnnotation(JsonProperty.class);
+                if (property != null) {
+                    fieldNameToFieldMap.put(property.value(), field);
+                    Object value = json.opt(property.value());
+                    if (value instanceof Number && field.getType() == Long.class)
+                        value = ((Number) value).longValue();
+                    if (field.getType().isInstance(value)) {
+                        field.setAccessible(true);
+                        field.set(result, value);
+                    }
+                }
+            }
+        }
+        result.setResultJson(json);
+        return result;
+    }
+
+    /**
+     * @return the results of the scripts for the result: interpreted as a description (recursive) and as a single command
+     */
+    private static List<String> interpret(boolean reference, String[] scripts, Class<? extends AbstractResult> clazz, JSONObject json) throws Exception {
+        final Map<String, Field> fieldNameToFieldMap = new HashMap<>();
+        final AbstractResult result = createResult(clazz, json, fieldNameToFieldMap);
+        final List<String> values = new ArrayList<>();
+        for (final String script : scripts) {
+            for (final boolean useRecursion : new boolean[] {true, false}) {
+                final Object value = reference ?
+                        TestScriptInterpreterReference.interpret(script, fieldNameToFieldMap, result, useRecursion, OPTIONS) :
+                        TestScriptInterpreter.interpret(script, fieldNameToFieldMap, result, useRecursion, OPTIONS);
+                values.add(script + " -> " + value);
+            }
+        }
+        return values;
+    }
+
+    private static void assertSameResults(String[] scripts, Class<? extends AbstractResult> clazz, JSONObject json) throws Exception {
+        final List<String> expected = interpret(true, scripts, clazz, json);
+        // the first call parses and compiles, the second one uses the cache
+        assertEquals(expected, interpret(false, scripts, clazz, json));
+        assertEquals(expected, interpret(false, scripts, clazz, json));
+    }
+
+    @Test
+    public void testVoip() throws Exception {
+        assertSameResults(VOIP_SCRIPTS, VoipResult.class, voip("OK", 1234567L));
+        assertSameResults(VOIP_SCRIPTS, VoipResult.class, voip("TIMEOUT", 1234567L));
+        assertSameResults(VOIP_SCRIPTS, VoipResult.class, voip("ERROR", JSONObject.NULL));
+    }
+
+    @Test
+    public void testTraceroute() throws Exception {
+        assertSameResults(TRACEROUTE_SCRIPTS, TracerouteResult.class, traceroute());
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        final Map<String, Field> fieldNameToFieldMap = new HashMap<>();
+        final AbstractResult ok = createResult(VoipResult.class, voip("OK", 1234567L), fieldNameToFieldMap);
+        final String testInfo = String.valueOf(TestScriptInterpreter.interpret(VOIP_TESTINFO, fieldNameToFieldMap, ok, true, OPTIONS));
+        assertFalse(testInfo, testInfo.contains("There has been an error"));
+        assertTrue(testInfo, testInfo.contains("Call duration: 2000 ms\nPacket interval: 20 ms\n"));
+        assertTrue(testInfo, testInfo.contains("mean jitter: 1.23 ms\npackets sent: 100\npackets received: 97\npacket lost percentage: 3.0%\n"));
+        assertEquals(false, TestScriptInterpreter.interpret(VOIP_SCRIPTS[7], fieldNameToFieldMap, ok, false, OPTIONS));
+        assertEquals("call completed", TestScriptInterpreter.interpret(VOIP_SCRIPTS[15], fieldNameToFieldMap, ok, true, OPTIONS));
+
+        final AbstractResult timeout = createResult(VoipResult.class, voip("TIMEOUT", 1234567L), fieldNameToFieldMap);
+        assertEquals("There has been an error during the VoIP test. No results available.\n",
+                TestScriptInterpreter.interpret(VOIP_TESTINFO, fieldNameToFieldMap, timeout, true, OPTIONS));
+        final Object evalResult = TestScriptInterpreter.interpret(VOIP_SCRIPTS[10], fieldNameToFieldMap, timeout, false, OPTIONS);
+        assertEquals(TestScriptInterpreter.EvalResult.EvalResultType.FAILURE, ((TestScriptInterpreter.EvalResult) evalResult).getType());
+        assertEquals("voip.timeout", ((TestScriptInterpreter.EvalResult) evalResult).getResultKey());
+        assertEquals("call timed out after 3000 ms", TestScriptInterpreter.interpret(VOIP_SCRIPTS[15], fieldNameToFieldMap, timeout, true, OPTIONS));
+
+        assertEquals("The incoming packet loss rate is lower than 5%!", TestScriptInterpreter.interpret(VOIP_SCRIPTS[3], OPTIONS));
+    }
+
+    /**
+     * the expressions are evaluated in their own scope, so concurrent evaluations of different results do not interfere
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        final JSONObject[] results = {voip("OK", 1234567L), voip("TIMEOUT", 70000000L), voip("ERROR", JSONObject.NULL)};
+        final List<List<String>> expected = new ArrayList<>();
+        for (final JSONObject json : results)
+            expected.add(interpret(true, VOIP_SCRIPTS, VoipResult.class, json));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < 48; i++) {
+                final JSONObject json = results[i % results.length];
+                futures.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        return interpret(false, VOIP_SCRIPTS, VoipResult.class, json);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++)
+                assertEquals(expected.get(i % results.length), futures.get(i).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
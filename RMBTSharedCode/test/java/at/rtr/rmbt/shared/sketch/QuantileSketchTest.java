@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.shared.sketch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void testVarint() {
+        final long[] values = {0, 1, 127, 128, 300, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final long value : values) {
+            Varint.write(out, value);
+            Varint.write(out, Varint.zigzag(value));
+        }
+        final ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+        for (final long value : values) {
+            assertEquals(value, Varint.read(in));
+            assertEquals(value, Varint.unzigzag(Varint.read(in)));
+        }
+        assertFalse(in.hasRemaining());
+        assertEquals(1, Varint.zigzag(-1));
+        assertEquals(2, Varint.zigzag(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVarintTruncated() {
+        Varint.read(ByteBuffer.wrap(new byte[] {(byte) 0x80}));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final QuantileSketch sketch = new QuantileSketch();
+        sketch.add(-120, 3);
+        sketch.add(-60, 1);
+        sketch.add(0, 2);
+        sketch.add(511, 7);
+
+        final QuantileSketch decoded = QuantileSketch.decode(sketch.encode());
+        assertEquals(13, decoded.getCount());
+        assertEquals(3, decoded.getCount(-120));
+        assertEquals(1, decoded.getCount(-60));
+        assertEquals(2, decoded.getCount(0));
+        assertEquals(7, decoded.getCount(511));
+        assertEquals(0, decoded.getCount(1));
+        assertEquals(-120, decoded.getMinBucket());
+        assertEquals(511, decoded.getMaxBucket());
+        assertArrayEquals(sketch.encode(), decoded.encode());
+
+        final QuantileSketch empty = QuantileSketch.decode(new QuantileSketch().encode());
+        assertEquals(0, empty.getCount());
+        assertTrue(Double.isNaN(empty.getPosition(0.5)));
+    }
+
+    @Test
+    public void testMerge() {
+        final Random random = new Random(42);
+        final QuantileSketch all = new QuantileSketch();
+        final QuantileSketch a = new QuantileSketch();
+        final QuantileSketch b = new QuantileSketch();
+        for (int i = 0; i < 1000; i++) {
+            final int bucket = random.nextInt(2000) - 1000;
+            all.add(bucket, 1);
+            (i % 2 == 0 ? a : b).add(bucket, 1);
+        }
+        final QuantileSketch merged = QuantileSketch.decode(a.encode());
+        merged.addAll(QuantileSketch.decode(b.encode()));
+        assertArrayEquals(all.encode(), merged.encode());
+        assertEquals(1000, merged.getCount());
+    }
+
+    @Test
+    public void testBucketRank() {
+        final Random random = new Random(7);
+        final QuantileSketch sketch = new QuantileSketch();
+        final int[] values = new int[999];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(300);
+            sketch.add(values[i], 1);
+        }
+        Arrays.sort(values);
+        for (final double q : new double[] {0, 0.1, 0.25, 0.5, 0.75, 0.9, 1}) {
+            // rank of the quantile aggregate: the value at position ceil(n * q)
+            final int index = Math.max(0, (int) Math.ceil(values.length * q) - 1);
+            assertEquals("quantile " + q, values[index], sketch.getBucket(q));
+        }
+    }
+
+    @Test
+    public void testPosition() {
+        final QuantileSketch sketch = new QuantileSketch();
+        sketch.add(10, 1);
+        assertEquals(10.5, sketch.getPosition(0.5), 1e-9);
+        sketch.add(20, 1);
+        // interpolated between the centers of the buckets
+        assertEquals(10.5, sketch.getPosition(0), 1e-9);
+        assertEquals(15.5, sketch.getPosition(0.5), 1e-9);
+        assertEquals(20.5, sketch.getPosition(1), 1e-9);
+        sketch.add(20, 2);
+        // values evenly distributed within the bucket: 20 1/6, 20 1/2 and 20 5/6
+        assertEquals(20 + 0.5 / 3, sketch.getPosition(1.0 / 3), 1e-9);
+        assertEquals(20 + 2.5 / 3, sketch.getPosition(1), 1e-9);
+    }
+
+    @Test
+    public void testRangeLimit() {
+        final QuantileSketch sketch = new QuantileSketch();
+        sketch.add(-100, 1);
+        try {
+            sketch.add(Integer.MAX_VALUE, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            sketch.add(500000000, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            sketch.add(Integer.MIN_VALUE, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        sketch.add(-100 + QuantileSketch.MAX_RANGE - 1, 1);
+        sketch.add(-100, 1);
+        assertEquals(3, sketch.getCount());
+        assertEquals(-100 + QuantileSketch.MAX_RANGE - 1, sketch.getMaxBucket());
+
+        final QuantileSketch low = new QuantileSketch();
+        low.add(Integer.MIN_VALUE + 1, 1);
+        low.add(Integer.MIN_VALUE, 1);
+        assertEquals(Integer.MIN_VALUE, low.getMinBucket());
+        assertArrayEquals(low.encode(), QuantileSketch.decode(low.encode()).encode());
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        final QuantileSketch sketch = new QuantileSketch();
+        sketch.add(5, 300);
+        sketch.add(-5, 1);
+        final byte[] data = sketch.encode();
+        for (int length = 0; length < data.length; length++) {
+            try {
+                QuantileSketch.decode(Arrays.copyOf(data, length));
+                fail("truncated to " + length);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            QuantileSketch.decode(Arrays.copyOf(data, data.length + 1));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // second bucket far out of the range of the first
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Varint.write(out, 2);
+        Varint.write(out, Varint.zigzag(-100));
+        Varint.write(out, 1);
+        Varint.write(out, Varint.zigzag(500000000));
+        Varint.write(out, 1);
+        try {
+            QuantileSketch.decode(out.toByteArray());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
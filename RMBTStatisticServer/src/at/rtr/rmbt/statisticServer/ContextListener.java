@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -40,6 +41,7 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
 import at.rtr.rmbt.shared.RevisionHelper;
+import at.rtr.rmbt.statisticServer.export.ExportStore;
 
 public class ContextListener implements ServletContextListener
 {
@@ -50,7 +52,9 @@ public class ContextListener implements ServletContextListener
         scheduler.shutdownNow();
     }
     
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private static final int EXPORT_REBUILD_HOUR = 3;
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
 
     @Override
     public void contextInitialized(ServletContextEvent sce)
@@ -122,5 +126,40 @@ public class ContextListener implements ServletContextListener
             }
         }, 1, 60, TimeUnit.MINUTES);
 
+        //append the new tests to the open data export store
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    ExportStore.getInstance().update();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, 2, 5, TimeUnit.MINUTES);
+
+        //rebuild the recent months of the open data export store every night, without the tests deleted or flagged meanwhile
+        final Calendar nextRebuild = Calendar.getInstance();
+        nextRebuild.set(Calendar.HOUR_OF_DAY, EXPORT_REBUILD_HOUR);
+        nextRebuild.set(Calendar.MINUTE, 0);
+        nextRebuild.set(Calendar.SECOND, 0);
+        if (nextRebuild.getTimeInMillis() <= System.currentTimeMillis())
+            nextRebuild.add(Calendar.DAY_OF_MONTH, 1);
+
+        scheduler.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    ExportStore.getInstance().rebuildRecent();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, nextRebuild.getTimeInMillis() - System.currentTimeMillis(), TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+
     }
 }
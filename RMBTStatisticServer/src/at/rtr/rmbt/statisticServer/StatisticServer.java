@@ -25,6 +25,7 @@ import org.restlet.routing.Router;
 import org.restlet.routing.Template;
 
 import at.rtr.rmbt.statisticServer.export.ExportResource;
+import at.rtr.rmbt.statisticServer.export.ExportStoreResource;
 import at.rtr.rmbt.statisticServer.export.ImageExport;
 import at.rtr.rmbt.statisticServer.opendata.ChoicesResource;
 import at.rtr.rmbt.statisticServer.opendata.HistogramResource;
@@ -92,6 +93,7 @@ public class StatisticServer extends Application
         
         router.attach("/admin/usage", UsageResource.class);
         router.attach("/admin/usageJSON", UsageJSONResource.class);
+        router.attach("/admin/exportStore", ExportStoreResource.class);
                         
         return router;
     }
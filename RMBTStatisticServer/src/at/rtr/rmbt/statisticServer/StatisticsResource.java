@@ -19,7 +19,10 @@ package at.rtr.rmbt.statisticServer;
 import at.rtr.rmbt.db.DbConnection;
 import at.rtr.rmbt.shared.Classification;
 import at.rtr.rmbt.shared.cache.CacheHelper;
-import at.rtr.rmbt.shared.cache.CacheHelper.ObjectWithTimestamp;
+import at.rtr.rmbt.shared.cache.CacheHelper.RefreshPriority;
+import at.rtr.rmbt.statisticServer.rollup.Aggregate;
+import at.rtr.rmbt.statisticServer.rollup.Measure;
+import at.rtr.rmbt.statisticServer.rollup.StatisticRollups;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -77,35 +80,14 @@ public class StatisticsResource extends ServerResource
         final StatisticParameters params = new StatisticParameters(settings.getString("RMBT_DEFAULT_LANGUAGE"), request);
 
         final String cacheKey = CacheHelper.getHash(params);
-        final ObjectWithTimestamp cacheObject = cache.getWithTimestamp(cacheKey, CACHE_STALE);
-
-        if (cacheObject != null)
+        return cache.getOrCompute(cacheKey, CACHE_STALE, CACHE_EXPIRE, new CacheHelper.Loader<String>()
         {
-            final String result = (String)cacheObject.o;
-            System.out.println("cache hit");
-            if (cacheObject.stale)
+            @Override
+            public String load()
             {
-                final Runnable refreshCacheRunnable = new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        System.out.println("adding in background: " + cacheKey);
-                        final String result = generateStatistics(params, cacheKey, ultraGreen);
-                        if (result != null)
-                            cache.set(cacheKey, CACHE_EXPIRE, result, true);
-                    }
-                };
-                cache.getExecutor().execute(refreshCacheRunnable);
+                return generateStatistics(params, cacheKey, ultraGreen);
             }
-            return result; // cache hit
-        }
-        System.out.println("not in cache");
-
-        final String result = generateStatistics(params, cacheKey, ultraGreen);
-        if (result != null)
-            cache.set(cacheKey, CACHE_EXPIRE, result, true);
-        return result;
+        }, RefreshPriority.HIGH);
     }
 
     private static String generateStatistics(final StatisticParameters params, final String cacheKey, final boolean ultraGreen)
@@ -194,38 +176,47 @@ public class StatisticsResource extends ServerResource
             answer.put("duration", durationDays);
             answer.put("type", type);
 
-            try (PreparedStatement ps = selectProviders(conn, true, quantile, durationDays, accuracy, country,
-                    useMobileProvider, where, signalMobile, userServerSelection, endDate, province, signalColumn, ultraGreen);
-                ResultSet rs = ps.executeQuery())
+            // the rollups have no location of the tests
+            final StatisticRollups.Window window = (country == null && province == -1 && accuracy <= 0)
+                    ? StatisticRollups.getWindow(conn, endDate, durationDays) : null;
+            if (window != null)
+                addRollupStatistics(conn, window, answer, providers, devices, lang, quantile, useMobileProvider, where, maxDevices,
+                        signalColumn, ultraGreen);
+            else
             {
-                fillJSON(lang, rs, providers);
-            }
+                try (PreparedStatement ps = selectProviders(conn, true, quantile, durationDays, accuracy, country,
+                        useMobileProvider, where, signalMobile, userServerSelection, endDate, province, signalColumn, ultraGreen);
+                    ResultSet rs = ps.executeQuery())
+                {
+                    fillJSON(lang, rs, providers);
+                }
 
-            try (PreparedStatement ps = selectProviders(conn, false, quantile, durationDays, accuracy, country,
-                    useMobileProvider, where, signalMobile, userServerSelection, endDate, province, signalColumn, ultraGreen);
-                ResultSet rs = ps.executeQuery())
-            {
-                final JSONArray providersSumsArray = new JSONArray();
-                fillJSON(lang, rs, providersSumsArray);
-                if (providersSumsArray.length() == 1)
-                    answer.put("providers_sums", providersSumsArray.get(0));
-            }
+                try (PreparedStatement ps = selectProviders(conn, false, quantile, durationDays, accuracy, country,
+                        useMobileProvider, where, signalMobile, userServerSelection, endDate, province, signalColumn, ultraGreen);
+                    ResultSet rs = ps.executeQuery())
+                {
+                    final JSONArray providersSumsArray = new JSONArray();
+                    fillJSON(lang, rs, providersSumsArray);
+                    if (providersSumsArray.length() == 1)
+                        answer.put("providers_sums", providersSumsArray.get(0));
+                }
             
-            try (PreparedStatement ps = selectDevices(conn, true, quantile, durationDays, accuracy, country,
-            		useMobileProvider, where, maxDevices, userServerSelection,endDate,province);
-                ResultSet rs = ps.executeQuery())
-            {
-                fillJSON(lang, rs, devices);
-            }
+                try (PreparedStatement ps = selectDevices(conn, true, quantile, durationDays, accuracy, country,
+                		useMobileProvider, where, maxDevices, userServerSelection,endDate,province);
+                    ResultSet rs = ps.executeQuery())
+                {
+                    fillJSON(lang, rs, devices);
+                }
             
-            try (PreparedStatement ps = selectDevices(conn, false, quantile, durationDays, accuracy, country,
-            		useMobileProvider, where, maxDevices, userServerSelection,endDate,province);
-                ResultSet rs = ps.executeQuery())
-            {
-                final JSONArray devicesSumsArray = new JSONArray();
-                fillJSON(lang, rs, devicesSumsArray);
-                if (devicesSumsArray.length() == 1)
-                    answer.put("devices_sums", devicesSumsArray.get(0));
+                try (PreparedStatement ps = selectDevices(conn, false, quantile, durationDays, accuracy, country,
+                		useMobileProvider, where, maxDevices, userServerSelection,endDate,province);
+                    ResultSet rs = ps.executeQuery())
+                {
+                    final JSONArray devicesSumsArray = new JSONArray();
+                    fillJSON(lang, rs, devicesSumsArray);
+                    if (devicesSumsArray.length() == 1)
+                        answer.put("devices_sums", devicesSumsArray.get(0));
+                }
             }
             
             final JSONArray countries = new JSONArray(getCountries(conn));
@@ -269,7 +260,10 @@ public class StatisticsResource extends ServerResource
 	    }
     }
 
-    private static String getClausesFor(String dbKey, String jsonKey, boolean ultraGreen, boolean inverse) {
+    /**
+     * the shares of the rollups are computed by {@link Measure#putShares(Map, String, boolean)}
+     */
+    public static String getClausesFor(String dbKey, String jsonKey, boolean ultraGreen, boolean inverse) {
         String sql;
         if (!ultraGreen) {
             sql = String.format(" sum((%1$s >= ?)::int)::double precision / count(%1$s) %2$s_green," +
@@ -555,6 +549,95 @@ public class StatisticsResource extends ServerResource
         return ps;
     }
     
+    /**
+     * same statistics as {@link #selectProviders} and {@link #selectDevices} without country, province and accuracy,
+     * read from the rollups
+     */
+    private static void addRollupStatistics(final Connection conn, final StatisticRollups.Window window, final JSONObject answer,
+            final JSONArray providers, final JSONArray devices, final String lang, final float quantile, final boolean useMobileProvider,
+            final String where, final int maxDevices, final String signalColumn, final boolean ultraGreen) throws SQLException, JSONException
+    {
+        final StatisticRollups.Statistics statistics = StatisticRollups.getStatistics(conn, window, where, useMobileProvider);
+        final boolean signal = signalColumn != null;
+
+        // only known providers (join with provider)
+        final List<Map<String, Object>> providerRows = new ArrayList<>();
+        final Aggregate providersSum = new Aggregate();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT uid, name, shortname FROM provider");
+            ResultSet rs = ps.executeQuery())
+        {
+            while (rs.next())
+            {
+                final Aggregate aggregate = statistics.providers.get(rs.getLong("uid"));
+                if (aggregate == null)
+                    continue;
+                final Map<String, Object> row = new LinkedHashMap<>();
+                row.put("name", rs.getString("name"));
+                row.put("shortname", rs.getString("shortname"));
+                putRollupStatistics(row, aggregate, quantile, signal, true, ultraGreen);
+                providerRows.add(row);
+                providersSum.addAll(aggregate);
+            }
+        }
+        sortByCount(providerRows);
+        fillJSON(lang, providerRows, providers);
+
+        final Map<String, Object> providersSumRow = new LinkedHashMap<>();
+        putRollupStatistics(providersSumRow, providersSum, quantile, signal, true, ultraGreen);
+        final JSONArray providersSumsArray = new JSONArray();
+        fillJSON(lang, Collections.singletonList(providersSumRow), providersSumsArray);
+        answer.put("providers_sums", providersSumsArray.get(0));
+
+        final List<Map<String, Object>> deviceRows = new ArrayList<>();
+        final Aggregate devicesSum = new Aggregate();
+        for (final Map.Entry<String, Aggregate> entry : statistics.devices.entrySet())
+        {
+            devicesSum.addAll(entry.getValue());
+            if (entry.getValue().getCount() <= 10)
+                continue;
+            final Map<String, Object> row = new LinkedHashMap<>();
+            row.put("model", entry.getKey());
+            putRollupStatistics(row, entry.getValue(), quantile, false, false, ultraGreen);
+            deviceRows.add(row);
+        }
+        sortByCount(deviceRows);
+        fillJSON(lang, deviceRows.subList(0, Math.min(deviceRows.size(), Math.max(maxDevices, 0))), devices);
+
+        final Map<String, Object> devicesSumRow = new LinkedHashMap<>();
+        putRollupStatistics(devicesSumRow, devicesSum, quantile, false, false, ultraGreen);
+        final JSONArray devicesSumsArray = new JSONArray();
+        fillJSON(lang, Collections.singletonList(devicesSumRow), devicesSumsArray);
+        answer.put("devices_sums", devicesSumsArray.get(0));
+    }
+
+    /**
+     * puts the same columns as {@link #selectProviders} (with classes) or {@link #selectDevices}
+     */
+    private static void putRollupStatistics(final Map<String, Object> row, final Aggregate aggregate, final float quantile,
+            final boolean signal, final boolean classes, final boolean ultraGreen)
+    {
+        row.put("count", aggregate.getCount());
+        row.put("quantile_down", aggregate.getDown().getQuantile(quantile));
+        row.put("quantile_up", aggregate.getUp().getQuantile(quantile));
+        if (signal)
+            row.put("quantile_signal", aggregate.getSignal().getQuantile(quantile));
+        row.put("quantile_ping", aggregate.getPing().getQuantile(1 - quantile)); // inverse for ping
+
+        if (classes)
+        {
+            aggregate.getDown().putShares(row, "down", ultraGreen);
+            aggregate.getUp().putShares(row, "up", ultraGreen);
+            if (signal)
+                aggregate.getSignal().putShares(row, "signal", ultraGreen);
+            aggregate.getPing().putShares(row, "ping", ultraGreen);
+        }
+    }
+
+    private static void sortByCount(final List<Map<String, Object>> rows)
+    {
+        Collections.sort(rows, (r1, r2) -> Long.compare((Long) r2.get("count"), (Long) r1.get("count")));
+    }
+
     private static void fillJSON(final String lang, final ResultSet rs, final JSONArray providers)
             throws SQLException, JSONException
     {
@@ -566,24 +649,40 @@ public class StatisticsResource extends ServerResource
             for (int j = 1; j <= columnCount; j++)
             {
                 final String colName = metaData.getColumnName(j);
-                Object data = rs.getObject(j);
-                if (colName.equals("name") && data == null)
-                    if (lang != null && lang.equals("de"))
-                        data = "Andere Betreiber";
-                    else
-                        data = "Other operators";
-                if (colName.equals("shortname") && data == null) {
-                    if (lang != null && lang.equals("de"))
-                            data = "Andere";
-                        else
-                            data = "Others";
-                }
-                obj.put(colName, data);
+                obj.put(colName, getData(lang, colName, rs.getObject(j)));
             }
             providers.put(obj);
         }
     }
 
+    private static void fillJSON(final String lang, final List<Map<String, Object>> rows, final JSONArray providers)
+            throws JSONException
+    {
+        for (final Map<String, Object> row : rows)
+        {
+            final JSONObject obj = new JSONObject();
+            for (final Map.Entry<String, Object> entry : row.entrySet())
+                obj.put(entry.getKey(), getData(lang, entry.getKey(), entry.getValue()));
+            providers.put(obj);
+        }
+    }
+
+    private static Object getData(final String lang, final String colName, Object data)
+    {
+        if (colName.equals("name") && data == null)
+            if (lang != null && lang.equals("de"))
+                data = "Andere Betreiber";
+            else
+                data = "Other operators";
+        if (colName.equals("shortname") && data == null) {
+            if (lang != null && lang.equals("de"))
+                    data = "Andere";
+                else
+                    data = "Others";
+        }
+        return data;
+    }
+
     public static Queue<String> getLastRequests() {
         return lastRequests;
     }
@@ -33,6 +33,8 @@ import org.json.JSONObject;
 import org.restlet.data.Form;
 import org.restlet.resource.Get;
 
+import at.rtr.rmbt.statisticServer.rollup.StatisticRollups;
+
 //Statistics for internal purpose
 
 public class UsageJSONResource extends ServerResource
@@ -163,10 +165,17 @@ public class UsageJSONResource extends ServerResource
 
 		final String select = "date_trunc('day', time) _day, count(uid) count_tests, sum(case when status='FINISHED' then 1 else 0 end) count_finished, sum(case when status='ABORTED' then 1 else 0 end) count_aborted, count(DISTINCT client_id) count_clients, count(DISTINCT client_public_ip) count_ips";
         final String where = "deleted=false";
-        final String sql = "SELECT " + select + " FROM test WHERE " + where + " AND time >= ? AND time < ? GROUP BY _day ORDER BY _day ASC";
+        // whole days from the rollups, the rest from the tests
+        final Timestamp rollupEnd = StatisticRollups.getUsageEnd(conn, begin, end);
+        final String rollupSelect = "day _day, tests count_tests, finished count_finished, aborted count_aborted, clients count_clients, ips count_ips";
+        final String sql = "SELECT " + rollupSelect + " FROM statistic_rollup_usage WHERE day >= ? AND day < ?"
+                + " UNION ALL"
+                + " SELECT " + select + " FROM test WHERE " + where + " AND time >= ? AND time < ? GROUP BY _day ORDER BY _day ASC";
         ps = conn.prepareStatement(sql);
         ps.setTimestamp(1, begin);
-        ps.setTimestamp(2, end);
+        ps.setTimestamp(2, rollupEnd);
+        ps.setTimestamp(3, rollupEnd);
+        ps.setTimestamp(4, end);
     	rs = ps.executeQuery();
     	
     	while(rs.next()) {
@@ -16,13 +16,12 @@
  ******************************************************************************/
 package at.rtr.rmbt.statisticServer.export;
 
+import at.rtr.rmbt.db.DbConnection;
 import at.rtr.rmbt.statisticServer.ServerResource;
 import at.rtr.rmbt.statisticServer.opendata.dao.OpenTestDAO;
 import at.rtr.rmbt.statisticServer.opendata.dto.OpenTestExportDTO;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.SequenceWriter;
-import com.fasterxml.jackson.dataformat.csv.CsvGenerator;
-import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import com.github.sett4.dataformat.xlsx.XlsxMapper;
 import io.swagger.annotations.Api;
@@ -36,15 +35,24 @@ import org.restlet.representation.OutputRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Get;
 
+import javax.naming.NamingException;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
-import java.util.Date;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 @Api(value="/export")
 public class ExportResource extends ServerResource
@@ -59,9 +67,12 @@ public class ExportResource extends ServerResource
     private static final String FILENAME_ZIP_CURRENT = "netztest-opendata.zip";
     private static final String FILENAME_XLSX_CURRENT = "netztest-opendata.xlsx";
 
-    private static final boolean zip = true;
-    
-    private static long cacheThresholdMs;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * exports currently being generated by this server, by file name
+     */
+    private static final ConcurrentMap<String, CompletableFuture<Void>> generations = new ConcurrentHashMap<>();
 
     @Get
     @GET
@@ -92,6 +103,7 @@ public class ExportResource extends ServerResource
         int hours = -1;
         boolean hoursExport = false;
         boolean dateExport = false;
+        final long cacheThresholdMs;
 
         String tFormat = "csv";
         if (getRequest().getAttributes().containsKey("format")) {
@@ -137,111 +149,226 @@ public class ExportResource extends ServerResource
         	filename_xlsx = FILENAME_XLSX_CURRENT;
         	cacheThresholdMs = 3*60*60*1000; //3 hours
         }
-        final String filename = ((xlsx)?filename_xlsx:(zip)?filename_zip:filename_csv);
+        final String filename = xlsx ? filename_xlsx : filename_zip;
 
         final File cachedFile = new File(property + File.separator + filename);
         final File generatingFile = new File(property + File.separator + filename + "_tmp");
-        if (cachedFile.exists()) {
-            
-            //check if file has been recently created OR a file is currently being created
-            if (((cachedFile.lastModified() + cacheThresholdMs) > (new Date()).getTime()) ||
-            		(generatingFile.exists() && (generatingFile.lastModified() + cacheThresholdMs) > (new Date()).getTime())) {
-
-                //if so, return the cached file instead of a cost-intensive new one
-                final OutputRepresentation result = new OutputRepresentation(xlsx ? MediaType.APPLICATION_MSOFFICE_XLSX : zip ? MediaType.APPLICATION_ZIP
-                : MediaType.TEXT_CSV) {
-
-                    @Override
-                    public void write(OutputStream out) throws IOException {
-                        InputStream is = new FileInputStream(cachedFile);
-                        IOUtils.copy(is, out);
-                        out.close();
+        final MediaType mediaType = xlsx ? MediaType.APPLICATION_MSOFFICE_XLSX : MediaType.APPLICATION_ZIP;
+        final long now = System.currentTimeMillis();
+        final OutputRepresentation result;
+        if (!xlsx) {
+            //zip files are assembled from the precompressed hours of the export store
+            final Instant from;
+            final Instant to;
+            if (hoursExport) {
+                from = Instant.ofEpochMilli(now).minus(hours, ChronoUnit.HOURS);
+                to = null;
+            } else if (dateExport) {
+                final YearMonth yearMonth = YearMonth.of(year, month);
+                from = yearMonth.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+                to = yearMonth.plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+            } else {
+                from = LocalDate.now().minusDays(31).atStartOfDay(ZoneId.systemDefault()).toInstant();
+                to = null;
+            }
+            result = new OutputRepresentation(mediaType) {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    try {
+                        ExportStore.getInstance().writeZip(out, from, to, filename_csv, getLicense());
                     }
-                    
-                };
-                if (xlsx || zip) {
-                    final Disposition disposition = new Disposition(Disposition.TYPE_ATTACHMENT);
-                    disposition.setFilename(filename);
-                    result.setDisposition(disposition);
+                    catch (SQLException | NamingException e) {
+                        throw new IOException(e);
+                    }
+                    out.close();
                 }
-                return result;
-        
-            }
+            };
         }
+        else if (cachedFile.exists() &&
+                //check if file has been recently created OR a file is currently being created
+                ((cachedFile.lastModified() + cacheThresholdMs) > now ||
+                        generations.containsKey(filename) ||
+                        (generatingFile.exists() && (generatingFile.lastModified() + cacheThresholdMs) > now))) {
 
-        OpenTestDAO openTestDAO = new OpenTestDAO(conn,settings,capabilities);
-        final List<OpenTestExportDTO> results = openTestDAO.getOpenTestExport(hoursExport, dateExport, year, month, hours);
-        
-        final OutputRepresentation result = new OutputRepresentation(xlsx ? MediaType.APPLICATION_MSOFFICE_XLSX : zip ? MediaType.APPLICATION_ZIP
-                : MediaType.TEXT_CSV)
-        {
-            @Override
-            public void write(OutputStream out) throws IOException
+            //if so, return the cached file instead of a cost-intensive new one
+            result = new OutputRepresentation(mediaType) {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    copyFile(cachedFile, out);
+                }
+            };
+        }
+        else {
+            final boolean _hoursExport = hoursExport;
+            final boolean _dateExport = dateExport;
+            final int _year = year;
+            final int _month = month;
+            final int _hours = hours;
+            result = new OutputRepresentation(mediaType)
             {
-                //cache in file => create temporary temporary file (to 
-                // handle errors while fulfilling a request)
-                String property = System.getProperty("java.io.tmpdir");
-                final File cachedFile = new File(property + File.separator + filename + "_tmp");
-                OutputStream outf = new FileOutputStream(cachedFile);
-                
-                if (zip && !xlsx)
+                @Override
+                public void write(OutputStream out) throws IOException
                 {
-                    final ZipOutputStream zos = new ZipOutputStream(outf);
-                    final ZipEntry zeLicense = new ZipEntry("LIZENZ.txt");
-                    zos.putNextEntry(zeLicense);
-                    final InputStream licenseIS = getClass().getResourceAsStream("DATA_LICENSE.txt");
-                    IOUtils.copy(licenseIS, zos);
-                    licenseIS.close();
-                    
-                    final ZipEntry zeCsv = new ZipEntry(filename_csv);
-                    zos.putNextEntry(zeCsv);
-                    outf = zos;
+                    final CompletableFuture<Void> generation = new CompletableFuture<>();
+                    final CompletableFuture<Void> running = generations.putIfAbsent(filename, generation);
+                    if (running != null) {
+                        //another request is generating the file => wait for it
+                        awaitGeneration(running);
+                        copyFile(cachedFile, out);
+                        return;
+                    }
+
+                    try {
+                        generate(out, generatingFile, _hoursExport, _dateExport, _year, _month, _hours);
+
+                        //if we reach this code, the data is now cached in a temporary tmp-file
+                        //so, rename the file for "production use"
+                        Files.move(generatingFile.toPath(), cachedFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        generation.complete(null);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        generatingFile.delete();
+                        generation.completeExceptionally(e);
+                        throw e;
+                    }
+                    finally {
+                        generations.remove(filename, generation);
+                    }
+                    out.close();
                 }
-                
-                final OutputStreamWriter osw = new OutputStreamWriter(outf);
+            };
+        }
+        final Disposition disposition = new Disposition(Disposition.TYPE_ATTACHMENT);
+        disposition.setFilename(filename);
+        result.setDisposition(disposition);
 
+        return result;
+    }
+
+    /**
+     * Streams the tests from the database to the XLSX cache file and to the client at the same time.
+     * The tests are serialized one by one, so the memory does not depend on the size of the export.
+     * CSV exports are assembled by the {@link ExportStore} instead.
+     */
+    private void generate(OutputStream out, File generatingFile,
+                          boolean hoursExport, boolean dateExport, int year, int month, int hours) throws IOException
+    {
+        //the connection of the request has already been released
+        try (Connection conn = DbConnection.getConnection();
+             OutputStream tee = new ExportOutputStream(new FileOutputStream(generatingFile), out))
+        {
+            final XlsxMapper mapper = new XlsxMapper();
+            mapper.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
+            final CsvSchema schema = mapper.schemaFor(OpenTestExportDTO.class).withHeader();
+            final SequenceWriter sequenceWriter = mapper.writer(schema).writeValues(tee);
 
+            final OpenTestDAO openTestDAO = new OpenTestDAO(conn, settings, capabilities);
+            openTestDAO.getOpenTestExport(hoursExport, dateExport, year, month, hours,
+                    new OpenTestDAO.OpenTestExportHandler() {
+                        @Override
+                        public void handle(OpenTestExportDTO dto) throws IOException {
+                            sequenceWriter.write(dto);
+                        }
+                    });
+            sequenceWriter.close();
+        }
+        catch (SQLException | NamingException e) {
+            throw new IOException(e);
+        }
+    }
 
-                if (xlsx) {
-                    XlsxMapper mapper = new XlsxMapper();
-                    mapper.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
-                    CsvSchema schema = mapper.schemaFor(OpenTestExportDTO.class).withHeader();
-                    SequenceWriter sequenceWriter = mapper.writer(schema).writeValues(outf);
-                    sequenceWriter.writeAll(results);
-                    sequenceWriter.flush();
-                    sequenceWriter.close();
+    private static byte[] getLicense() throws IOException
+    {
+        try (InputStream licenseIS = ExportResource.class.getResourceAsStream("DATA_LICENSE.txt")) {
+            return IOUtils.toByteArray(licenseIS);
+        }
+    }
+
+    private static void awaitGeneration(CompletableFuture<Void> generation) throws IOException
+    {
+        try {
+            generation.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("export failed", e.getCause());
+        }
+    }
+
+    private static void copyFile(File file, OutputStream out) throws IOException
+    {
+        try (InputStream is = new FileInputStream(file)) {
+            IOUtils.copy(is, out);
+        }
+        out.close();
+    }
+
+    /**
+     * Writes to the cache file and to the client. If the client fails (e.g. the connection has been closed),
+     * the file is still written, so the export is not lost for the next requests.
+     */
+    private static class ExportOutputStream extends OutputStream
+    {
+        private final OutputStream file;
+        private final OutputStream client;
+        private boolean clientFailed = false;
+
+        ExportOutputStream(OutputStream file, OutputStream client)
+        {
+            this.file = new BufferedOutputStream(file, BUFFER_SIZE);
+            this.client = client;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            file.write(b);
+            if (!clientFailed) {
+                try {
+                    client.write(b);
                 }
-                else {
-                    final CsvMapper cm = new CsvMapper();
-                    final CsvSchema schema;
-                    cm.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
-                    cm.enable(CsvGenerator.Feature.STRICT_CHECK_FOR_QUOTING);
-                    schema = CsvSchema.builder().setLineSeparator("\r\n").setUseHeader(true)
-                            .addColumnsFrom(cm.schemaFor(OpenTestExportDTO.class)).build();
-                    cm.writer(schema).writeValue(outf, results);
+                catch (IOException e) {
+                    clientFailed = true;
                 }
-                
-                if (zip)
-                    outf.close();
-                
-                //if we reach this code, the data is now cached in a temporary tmp-file
-                //so, rename the file for "production use2
-                //concurrency issues should be solved by the operating system
-                File newCacheFile = new File(property + File.separator + filename);
-                Files.move(cachedFile.toPath(), newCacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-                
-                FileInputStream fis = new FileInputStream(newCacheFile);
-                IOUtils.copy(fis, out);
-                fis.close();
-                out.close();
             }
-        };
-        if (xlsx || zip) {
-            final Disposition disposition = new Disposition(Disposition.TYPE_ATTACHMENT);
-            disposition.setFilename(filename);
-            result.setDisposition(disposition);
         }
-        
-        return result;
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            file.write(b, off, len);
+            if (!clientFailed) {
+                try {
+                    client.write(b, off, len);
+                }
+                catch (IOException e) {
+                    clientFailed = true;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            file.flush();
+            if (!clientFailed) {
+                try {
+                    client.flush();
+                }
+                catch (IOException e) {
+                    clientFailed = true;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            //the client is closed by the representation
+            file.close();
+        }
     }
 }
@@ -0,0 +1,931 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.statisticServer.export;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.naming.NamingException;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.dataformat.csv.CsvGenerator;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+import at.rtr.rmbt.db.DbConnection;
+import at.rtr.rmbt.shared.ResourceManager;
+import at.rtr.rmbt.statisticServer.opendata.dao.OpenTestDAO;
+import at.rtr.rmbt.statisticServer.opendata.dto.OpenTestExportDTO;
+
+/**
+ * Store of the CSV open data export, so exports do not query and compress all of their tests again.
+ * <p>
+ * The rows of each month (UTC) are kept in an append-only file of raw deflate segments, one or more per hour.
+ * Every segment is flushed with {@link Deflater#SYNC_FLUSH}, so the segments of any range of hours
+ * can be concatenated to a zip entry by the {@link ExportZipWriter} without compressing them again.
+ * <p>
+ * {@link #update()} appends the tests which have been finished since the last update, up to the highest uid
+ * of the tests started {@link #SETTLE_MINUTES} minutes ago (tests with a lower uid are not expected to change any more).
+ * A month is closed (immutable) once it has ended and all of its tests are settled. Months before the first update
+ * are built once on demand. Exports which reach into the last {@link #SETTLE_MINUTES} minutes get the newest tests
+ * from the database.
+ * <p>
+ * Tests which are changed after they have been stored (e.g. deleted or flagged as implausible later on) are removed
+ * by rebuilding their month from the database: {@link #rebuildRecent()} rebuilds the months of the last
+ * {@link #REBUILD_DAYS} days every night, {@link #invalidate(YearMonth)} lets an admin rebuild any month with the next update.
+ * A rebuild writes a new generation of the data file, so downloads which have started before still read the previous one.
+ */
+public class ExportStore
+{
+    /**
+     * tests started at least this long ago are not expected to change any more
+     */
+    static final int SETTLE_MINUTES = 60;
+
+    /**
+     * the months of the tests of the last days are rebuilt every night
+     */
+    static final int REBUILD_DAYS = 31;
+
+    private static final int COMPRESSION_LEVEL = 6;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String STATE_FILE = "store.properties";
+    private static final String INVALID_FILE = "invalid.txt";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String DATA_SUFFIX = ".dat";
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final Logger logger = Logger.getLogger(ExportStore.class.getName());
+
+    private static final ExportStore instance = new ExportStore(
+            new File(System.getProperty("java.io.tmpdir"), "netztest-opendata-store"));
+
+    public static ExportStore getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * rows of one hour, compressed and flushed
+     */
+    static final class Segment
+    {
+        final long hour;
+        final long offset;
+        final long compressedLength;
+        final long length;
+        final long crc;
+        final long rows;
+        /**
+         * settled uid of the update which has written the segment
+         */
+        final long uid;
+
+        Segment(long hour, long offset, long compressedLength, long length, long crc, long rows, long uid)
+        {
+            this.hour = hour;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.length = length;
+            this.crc = crc;
+            this.rows = rows;
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * immutable index of the segments of a month, ordered by hour and by the order they have been appended
+     */
+    private static final class Month
+    {
+        final YearMonth month;
+        final boolean closed;
+        /**
+         * incremented with every rebuild of the month, which writes a new data file
+         */
+        final int generation;
+        final List<Segment> segments;
+
+        Month(YearMonth month, boolean closed, int generation, List<Segment> segments)
+        {
+            this.month = month;
+            this.closed = closed;
+            this.generation = generation;
+            this.segments = Collections.unmodifiableList(segments);
+        }
+
+        long getDataLength()
+        {
+            long length = 0;
+            for (final Segment segment : segments)
+                length = Math.max(length, segment.offset + segment.compressedLength);
+            return length;
+        }
+    }
+
+    /**
+     * immutable state of the store; downloads use the state they started with
+     */
+    private static final class State
+    {
+        /**
+         * all tests up to this uid have been appended to the months from {@link #incrementalFrom}, -1 before the first update
+         */
+        final long lastUid;
+        final YearMonth incrementalFrom;
+        final SortedMap<YearMonth, Month> months;
+
+        State(long lastUid, YearMonth incrementalFrom, SortedMap<YearMonth, Month> months)
+        {
+            this.lastUid = lastUid;
+            this.incrementalFrom = incrementalFrom;
+            this.months = Collections.unmodifiableSortedMap(months);
+        }
+    }
+
+    /**
+     * compresses rows to raw deflate data which is flushed at the end of a segment
+     */
+    static final class SegmentCompressor
+    {
+        private final Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private final OutputStream out;
+        private long length;
+        private long compressedLength;
+        private long rows;
+
+        SegmentCompressor(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        void write(byte[] data) throws IOException
+        {
+            crc.update(data);
+            length += data.length;
+            deflater.setInput(data);
+            while (!deflater.needsInput())
+                deflate(Deflater.NO_FLUSH);
+        }
+
+        void writeRow(byte[] data) throws IOException
+        {
+            write(data);
+            rows++;
+        }
+
+        /**
+         * ends the segment, the compressor can be used for the next segment
+         */
+        void flush() throws IOException
+        {
+            while (deflate(Deflater.SYNC_FLUSH) == buf.length)
+                ;
+        }
+
+        void reset()
+        {
+            deflater.reset();
+            crc.reset();
+            length = 0;
+            compressedLength = 0;
+            rows = 0;
+        }
+
+        void end()
+        {
+            deflater.end();
+        }
+
+        private int deflate(int flush) throws IOException
+        {
+            final int len = deflater.deflate(buf, 0, buf.length, flush);
+            if (len > 0)
+            {
+                out.write(buf, 0, len);
+                compressedLength += len;
+            }
+            return len;
+        }
+    }
+
+    /**
+     * appends rows to the month files, a segment per hour
+     */
+    private final class Appender implements OpenTestDAO.OpenTestExportHandler
+    {
+        private final long uid;
+        private final boolean rebuild;
+        private final ObjectWriter rowWriter = getRowWriter();
+        private final Map<YearMonth, List<Segment>> segments = new HashMap<>();
+        private final Map<YearMonth, Long> dataLengths = new HashMap<>();
+        private final Map<YearMonth, Integer> generations = new HashMap<>();
+
+        private YearMonth month;
+        private OutputStream out;
+        private SegmentCompressor compressor;
+        private long hour = -1;
+        private String hourPrefix = "";
+
+        /**
+         * @param uid
+         * @param rebuild true to write a new generation of the months instead of appending to the current one
+         */
+        Appender(long uid, boolean rebuild)
+        {
+            this.uid = uid;
+            this.rebuild = rebuild;
+        }
+
+        @Override
+        public void handle(OpenTestExportDTO result) throws IOException
+        {
+            final String time = result.getTime();
+            if (!time.regionMatches(0, hourPrefix, 0, 13))
+            {
+                final long _hour = LocalDateTime.parse(time, TIME_FORMAT).toEpochSecond(ZoneOffset.UTC) / 3600;
+                if (_hour != hour)
+                    startSegment(_hour);
+                hourPrefix = time;
+            }
+            compressor.writeRow(rowWriter.writeValueAsBytes(result));
+        }
+
+        private void startSegment(long _hour) throws IOException
+        {
+            finishSegment();
+            hour = _hour;
+            final YearMonth _month = getMonth(_hour);
+            if (!_month.equals(month))
+            {
+                close();
+                month = _month;
+                if (!dataLengths.containsKey(month))
+                {
+                    final Month existing = state.months.get(month);
+                    final int generation = existing == null ? 0 : rebuild ? existing.generation + 1 : existing.generation;
+                    final long dataLength = existing == null || rebuild ? 0 : existing.getDataLength();
+                    // remove data of a failed update
+                    try (RandomAccessFile raf = new RandomAccessFile(getDataFile(month, generation), "rw"))
+                    {
+                        raf.setLength(dataLength);
+                    }
+                    dataLengths.put(month, dataLength);
+                    generations.put(month, generation);
+                    segments.put(month, new ArrayList<Segment>());
+                }
+                out = new BufferedOutputStream(new FileOutputStream(getDataFile(month, generations.get(month)), true),
+                        BUFFER_SIZE);
+                compressor = new SegmentCompressor(out);
+            }
+        }
+
+        private void finishSegment() throws IOException
+        {
+            if (compressor == null || compressor.rows == 0)
+                return;
+            compressor.flush();
+            final long offset = dataLengths.get(month);
+            segments.get(month).add(new Segment(hour, offset, compressor.compressedLength, compressor.length,
+                    compressor.crc.getValue(), compressor.rows, uid));
+            dataLengths.put(month, offset + compressor.compressedLength);
+            compressor.reset();
+        }
+
+        private void close() throws IOException
+        {
+            if (compressor != null)
+            {
+                compressor.end();
+                compressor = null;
+            }
+            if (out != null)
+            {
+                out.close();
+                out = null;
+            }
+        }
+
+        /**
+         *
+         * @return the new segments per month
+         */
+        Map<YearMonth, List<Segment>> finish() throws IOException
+        {
+            finishSegment();
+            close();
+            return segments;
+        }
+
+        /**
+         * @return the generation of the data file the segments of the month have been written to, null if there are none
+         */
+        Integer getGeneration(YearMonth month)
+        {
+            return generations.get(month);
+        }
+    }
+
+    private final File directory;
+    private final Object writeLock = new Object();
+    private volatile State state;
+
+    /**
+     * months to be rebuilt with the next update
+     */
+    private final SortedSet<YearMonth> invalidMonths = new TreeSet<>();
+
+    ExportStore(File directory)
+    {
+        this.directory = directory;
+        State _state;
+        try
+        {
+            _state = load();
+        }
+        catch (final IOException | RuntimeException e)
+        {
+            e.printStackTrace();
+            _state = new State(-1, null, new TreeMap<YearMonth, Month>());
+        }
+        state = _state;
+        try
+        {
+            loadInvalidMonths();
+        }
+        catch (final IOException | RuntimeException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * appends the tests which have been finished since the last update, closes the months which have ended
+     * and rebuilds the months which have been invalidated
+     */
+    public void update() throws SQLException, IOException, NamingException
+    {
+        synchronized (writeLock)
+        {
+            append();
+            for (final YearMonth month : getInvalidMonths())
+            {
+                rebuild(month);
+                synchronized (invalidMonths)
+                {
+                    invalidMonths.remove(month);
+                    saveInvalidMonths();
+                }
+            }
+        }
+    }
+
+    private void append() throws SQLException, IOException, NamingException
+    {
+        synchronized (writeLock)
+        {
+            final long start = System.currentTimeMillis();
+            final State _state = state;
+            final YearMonth currentMonth = YearMonth.now(ZoneOffset.UTC);
+            final YearMonth incrementalFrom = _state.incrementalFrom != null ? _state.incrementalFrom
+                    : currentMonth.minusMonths(1);
+
+            final Long settledUid;
+            final Map<YearMonth, List<Segment>> newSegments;
+            try (Connection conn = DbConnection.getConnection())
+            {
+                final OpenTestDAO dao = new OpenTestDAO(conn, ResourceManager.getCfgBundle(), null);
+                settledUid = dao.getSettledTestUid(SETTLE_MINUTES);
+                if (settledUid == null || settledUid <= _state.lastUid)
+                    return;
+                final Appender appender = new Appender(settledUid, false);
+                try
+                {
+                    dao.getOpenTestExport(_state.lastUid < 0 ? null : _state.lastUid, settledUid,
+                            getTimestamp(incrementalFrom), null, appender);
+                    newSegments = appender.finish();
+                }
+                finally
+                {
+                    appender.close();
+                }
+            }
+
+            // months which have ended at least SETTLE_MINUTES before the settled tests
+            final YearMonth lastClosed = YearMonth.from(LocalDateTime.now(ZoneOffset.UTC).minusMinutes(2 * SETTLE_MINUTES))
+                    .minusMonths(1);
+
+            final SortedMap<YearMonth, Month> months = new TreeMap<>(_state.months);
+            YearMonth _incrementalFrom = incrementalFrom;
+            for (YearMonth month = incrementalFrom; !month.isAfter(currentMonth); month = month.plusMonths(1))
+            {
+                final Month existing = months.get(month);
+                final List<Segment> segments = existing == null ? new ArrayList<Segment>()
+                        : new ArrayList<>(existing.segments);
+                final List<Segment> appended = newSegments.get(month);
+                if (appended != null)
+                    segments.addAll(appended);
+                final boolean closed = !month.isAfter(lastClosed);
+                if (closed && month.equals(_incrementalFrom))
+                    _incrementalFrom = month.plusMonths(1);
+                if (existing == null || appended != null || closed != existing.closed)
+                {
+                    final Month _month = new Month(month, closed, existing == null ? 0 : existing.generation,
+                            sort(segments));
+                    saveMonth(_month);
+                    months.put(month, _month);
+                }
+            }
+
+            final State newState = new State(settledUid, _incrementalFrom, months);
+            saveState(newState);
+            state = newState;
+            logger.info("export store updated to uid " + settledUid + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Writes a zip file with the license and the CSV export of the tests started in a range of time.
+     * The range is extended to full hours.
+     *
+     * @param out
+     * @param from start of the range
+     * @param to end of the range (exclusive), null for all tests up to now
+     * @param csvName name of the CSV file in the zip file
+     * @param license content of the license file in the zip file
+     */
+    public void writeZip(OutputStream out, Instant from, Instant to, String csvName, byte[] license)
+            throws IOException, SQLException, NamingException
+    {
+        final long fromHour = Math.floorDiv(from.getEpochSecond(), 3600);
+        final long toHour = to == null ? Long.MAX_VALUE : Math.floorDiv(to.getEpochSecond() + 3599, 3600);
+        final YearMonth fromMonth = getMonth(fromHour);
+        final YearMonth toMonth = to == null ? YearMonth.now(ZoneOffset.UTC) : getMonth(toHour - 1);
+        final State _state = ensureMonths(fromMonth, toMonth);
+
+        final ExportZipWriter zip = new ExportZipWriter(out);
+        zip.putEntry("LIZENZ.txt", license);
+        zip.startEntry(csvName);
+
+        final OutputStream segmentOut = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                zip.writeSegment(b, off, len);
+            }
+        };
+        final SegmentCompressor compressor = new SegmentCompressor(segmentOut);
+        long crc;
+        long length;
+        try
+        {
+            compressor.write(getHeader());
+            compressor.flush();
+            crc = compressor.crc.getValue();
+            length = compressor.length;
+
+            final byte[] buf = new byte[BUFFER_SIZE];
+            for (final Month month : _state.months.subMap(fromMonth, toMonth.plusMonths(1)).values())
+            {
+                if (month.segments.isEmpty())
+                    continue;
+                try (RandomAccessFile raf = new RandomAccessFile(getDataFile(month.month, month.generation), "r"))
+                {
+                    for (final Segment segment : month.segments)
+                    {
+                        if (segment.hour < fromHour || segment.hour >= toHour)
+                            continue;
+                        raf.seek(segment.offset);
+                        long remaining = segment.compressedLength;
+                        while (remaining > 0)
+                        {
+                            final int len = (int) Math.min(remaining, buf.length);
+                            raf.readFully(buf, 0, len);
+                            zip.writeSegment(buf, 0, len);
+                            remaining -= len;
+                        }
+                        crc = ExportZipWriter.combineCrc(crc, segment.crc, segment.length);
+                        length += segment.length;
+                    }
+                }
+            }
+
+            // the newest tests, which are not in the store yet
+            if (!toMonth.isBefore(_state.incrementalFrom))
+            {
+                compressor.reset();
+                final ObjectWriter rowWriter = getRowWriter();
+                try (Connection conn = DbConnection.getConnection())
+                {
+                    final OpenTestDAO dao = new OpenTestDAO(conn, ResourceManager.getCfgBundle(), null);
+                    dao.getOpenTestExport(_state.lastUid, null, new Timestamp(fromHour * 3600 * 1000),
+                            to == null ? null : new Timestamp(toHour * 3600 * 1000), new OpenTestDAO.OpenTestExportHandler()
+                            {
+                                @Override
+                                public void handle(OpenTestExportDTO result) throws IOException
+                                {
+                                    compressor.writeRow(rowWriter.writeValueAsBytes(result));
+                                }
+                            });
+                }
+                compressor.flush();
+                crc = ExportZipWriter.combineCrc(crc, compressor.crc.getValue(), compressor.length);
+                length += compressor.length;
+            }
+        }
+        finally
+        {
+            compressor.end();
+        }
+
+        zip.finishEntry(crc, length);
+        zip.finish();
+    }
+
+    /**
+     * makes sure the months of a range are in the store, builds closed months which are missing
+     *
+     * @return the state containing the months
+     */
+    private State ensureMonths(YearMonth fromMonth, YearMonth toMonth) throws SQLException, IOException, NamingException
+    {
+        State _state = state;
+        if (_state.lastUid < 0)
+        {
+            update();
+            _state = state;
+            if (_state.lastUid < 0)
+                throw new IllegalStateException("export store could not be initialized");
+        }
+        for (YearMonth month = fromMonth; month.isBefore(_state.incrementalFrom) && !month.isAfter(toMonth);
+                month = month.plusMonths(1))
+        {
+            if (!_state.months.containsKey(month))
+                _state = build(month);
+        }
+        return _state;
+    }
+
+    /**
+     * builds a closed month before the months which are updated incrementally
+     *
+     * @return the new state
+     */
+    private State build(YearMonth month) throws SQLException, IOException, NamingException
+    {
+        synchronized (writeLock)
+        {
+            final State _state = state;
+            if (_state.months.containsKey(month))
+                return _state;
+
+            final long start = System.currentTimeMillis();
+            final Appender appender = new Appender(_state.lastUid, false);
+            final List<Segment> segments;
+            try (Connection conn = DbConnection.getConnection())
+            {
+                final OpenTestDAO dao = new OpenTestDAO(conn, ResourceManager.getCfgBundle(), null);
+                dao.getOpenTestExport(null, _state.lastUid, getTimestamp(month), getTimestamp(month.plusMonths(1)),
+                        appender);
+                segments = appender.finish().get(month);
+            }
+            finally
+            {
+                appender.close();
+            }
+
+            final Month _month = new Month(month, true, 0, segments == null ? new ArrayList<Segment>() : sort(segments));
+            saveMonth(_month);
+            final SortedMap<YearMonth, Month> months = new TreeMap<>(_state.months);
+            months.put(month, _month);
+            final State newState = new State(_state.lastUid, _state.incrementalFrom, months);
+            state = newState;
+            logger.info("export store: " + month + " built in " + (System.currentTimeMillis() - start) + "ms");
+            return newState;
+        }
+    }
+
+    /**
+     * Rebuilds a month of the store from the database, which removes the tests deleted or flagged since they have been stored.
+     * Months not in the store yet are built when they are requested.
+     */
+    private void rebuild(YearMonth month) throws SQLException, IOException, NamingException
+    {
+        synchronized (writeLock)
+        {
+            final State _state = state;
+            final Month existing = _state.months.get(month);
+            if (existing == null)
+                return;
+
+            final long start = System.currentTimeMillis();
+            final Appender appender = new Appender(_state.lastUid, true);
+            final List<Segment> segments;
+            try (Connection conn = DbConnection.getConnection())
+            {
+                final OpenTestDAO dao = new OpenTestDAO(conn, ResourceManager.getCfgBundle(), null);
+                dao.getOpenTestExport(null, _state.lastUid, getTimestamp(month), getTimestamp(month.plusMonths(1)),
+                        appender);
+                segments = appender.finish().get(month);
+            }
+            finally
+            {
+                appender.close();
+            }
+
+            final Integer generation = appender.getGeneration(month);
+            final Month _month = new Month(month, existing.closed,
+                    generation == null ? existing.generation + 1 : generation,
+                    segments == null ? new ArrayList<Segment>() : sort(segments));
+            if (generation == null)
+                // no tests: an empty data file of the new generation
+                new FileOutputStream(getDataFile(month, _month.generation)).close();
+            saveMonth(_month);
+            final SortedMap<YearMonth, Month> months = new TreeMap<>(_state.months);
+            months.put(month, _month);
+            state = new State(_state.lastUid, _state.incrementalFrom, months);
+
+            // downloads which have started before the previous rebuild are expected to be finished
+            if (_month.generation >= 2)
+                getDataFile(month, _month.generation - 2).delete();
+            logger.info("export store: " + month + " rebuilt in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * rebuilds the months of the tests of the last {@link #REBUILD_DAYS} days
+     */
+    public void rebuildRecent() throws SQLException, IOException, NamingException
+    {
+        final YearMonth currentMonth = YearMonth.now(ZoneOffset.UTC);
+        synchronized (writeLock)
+        {
+            for (YearMonth month = YearMonth.from(LocalDateTime.now(ZoneOffset.UTC).minusDays(REBUILD_DAYS));
+                    !month.isAfter(currentMonth); month = month.plusMonths(1))
+                rebuild(month);
+        }
+    }
+
+    /**
+     * Marks a month to be rebuilt from the database with the next update (e.g. after tests have been deleted).
+     * Until then, downloads get the month as stored.
+     *
+     * @param month
+     * @return false if the month is not in the store, it is built from the database when requested
+     */
+    public boolean invalidate(YearMonth month) throws IOException
+    {
+        if (!state.months.containsKey(month))
+            return false;
+        synchronized (invalidMonths)
+        {
+            if (invalidMonths.add(month))
+                saveInvalidMonths();
+        }
+        return true;
+    }
+
+    /**
+     * @return the months marked to be rebuilt
+     */
+    public SortedSet<YearMonth> getInvalidMonths()
+    {
+        synchronized (invalidMonths)
+        {
+            return new TreeSet<>(invalidMonths);
+        }
+    }
+
+    private static List<Segment> sort(List<Segment> segments)
+    {
+        // stable, so the segments of an hour stay in the order they have been appended
+        Collections.sort(segments, (s1, s2) -> Long.compare(s1.hour, s2.hour));
+        return segments;
+    }
+
+    private static YearMonth getMonth(long hour)
+    {
+        return YearMonth.from(LocalDateTime.ofEpochSecond(hour * 3600, 0, ZoneOffset.UTC));
+    }
+
+    private static Timestamp getTimestamp(YearMonth month)
+    {
+        return Timestamp.from(month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant());
+    }
+
+    private static CsvMapper getCsvMapper()
+    {
+        final CsvMapper cm = new CsvMapper();
+        cm.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
+        cm.enable(CsvGenerator.Feature.STRICT_CHECK_FOR_QUOTING);
+        return cm;
+    }
+
+    /**
+     * same format as the CSV export of {@link ExportResource}, without the header
+     */
+    private static ObjectWriter getRowWriter()
+    {
+        final CsvMapper cm = getCsvMapper();
+        return cm.writer(CsvSchema.builder().setLineSeparator("\r\n").setUseHeader(false)
+                .addColumnsFrom(cm.schemaFor(OpenTestExportDTO.class)).build());
+    }
+
+    private static byte[] getHeader() throws IOException
+    {
+        final CsvMapper cm = getCsvMapper();
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final SequenceWriter writer = cm.writer(CsvSchema.builder().setLineSeparator("\r\n").setUseHeader(true)
+                .addColumnsFrom(cm.schemaFor(OpenTestExportDTO.class)).build()).writeValues(header);
+        writer.close();
+        return header.toByteArray();
+    }
+
+    private File getFile(YearMonth month, String suffix)
+    {
+        return new File(directory, month + suffix);
+    }
+
+    private File getDataFile(YearMonth month, int generation)
+    {
+        return generation == 0 ? getFile(month, DATA_SUFFIX) : getFile(month, "." + generation + DATA_SUFFIX);
+    }
+
+    /**
+     * Loads the state. Segments of the incremental months which have been written by a failed update
+     * (after the last uid of the state) are dropped.
+     */
+    private State load() throws IOException
+    {
+        Files.createDirectories(directory.toPath());
+        final File stateFile = new File(directory, STATE_FILE);
+        long lastUid = -1;
+        YearMonth incrementalFrom = null;
+        if (stateFile.exists())
+        {
+            final Properties properties = new Properties();
+            try (BufferedReader reader = Files.newBufferedReader(stateFile.toPath(), StandardCharsets.UTF_8))
+            {
+                properties.load(reader);
+            }
+            lastUid = Long.parseLong(properties.getProperty("last_uid"));
+            incrementalFrom = YearMonth.parse(properties.getProperty("incremental_from"));
+        }
+
+        final SortedMap<YearMonth, Month> months = new TreeMap<>();
+        final File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                final String name = file.getName();
+                if (!name.endsWith(INDEX_SUFFIX))
+                    continue;
+                final YearMonth month = YearMonth.parse(name.substring(0, name.length() - INDEX_SUFFIX.length()));
+                final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+                final String[] header = lines.get(0).split(" ");
+                final boolean closed = "closed".equals(header[0]);
+                final int generation = header.length > 1 ? Integer.parseInt(header[1]) : 0;
+                final List<Segment> segments = new ArrayList<>();
+                for (final String line : lines.subList(1, lines.size()))
+                {
+                    final String[] f = line.split(" ");
+                    final Segment segment = new Segment(Long.parseLong(f[0]), Long.parseLong(f[1]), Long.parseLong(f[2]),
+                            Long.parseLong(f[3]), Long.parseLong(f[4]), Long.parseLong(f[5]), Long.parseLong(f[6]));
+                    if (closed || segment.uid <= lastUid)
+                        segments.add(segment);
+                }
+                final Month _month = new Month(month, closed, generation, segments);
+                if ((!closed && lastUid < 0) || getDataFile(month, generation).length() < _month.getDataLength())
+                {
+                    // not consistent with the state
+                    file.delete();
+                    getDataFile(month, generation).delete();
+                    continue;
+                }
+                months.put(month, _month);
+            }
+        }
+        return new State(lastUid, incrementalFrom, months);
+    }
+
+    private void saveMonth(Month month) throws IOException
+    {
+        final File file = getFile(month.month, INDEX_SUFFIX);
+        final File tmp = getFile(month.month, INDEX_SUFFIX + "_tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write((month.closed ? "closed" : "open") + " " + month.generation);
+            writer.newLine();
+            for (final Segment s : month.segments)
+            {
+                writer.write(s.hour + " " + s.offset + " " + s.compressedLength + " " + s.length + " " + s.crc + " "
+                        + s.rows + " " + s.uid);
+                writer.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void saveState(State state) throws IOException
+    {
+        final Properties properties = new Properties();
+        properties.setProperty("last_uid", Long.toString(state.lastUid));
+        properties.setProperty("incremental_from", state.incrementalFrom.toString());
+        final File tmp = new File(directory, STATE_FILE + "_tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))
+        {
+            properties.store(writer, null);
+        }
+        Files.move(tmp.toPath(), new File(directory, STATE_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void loadInvalidMonths() throws IOException
+    {
+        final File file = new File(directory, INVALID_FILE);
+        if (!file.exists())
+            return;
+        synchronized (invalidMonths)
+        {
+            for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+                if (!line.isEmpty())
+                    invalidMonths.add(YearMonth.parse(line));
+        }
+    }
+
+    /**
+     * must be called holding the lock of {@link #invalidMonths}
+     */
+    private void saveInvalidMonths() throws IOException
+    {
+        final File tmp = new File(directory, INVALID_FILE + "_tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))
+        {
+            for (final YearMonth month : invalidMonths)
+            {
+                writer.write(month.toString());
+                writer.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), new File(directory, INVALID_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.statisticServer.export;
+
+import java.io.IOException;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+
+import at.rtr.rmbt.statisticServer.ServerResource;
+
+/**
+ * Admin resource of the {@link ExportStore}: <code>POST {"month": "2020-05"}</code> marks a month to be rebuilt
+ * from the database with the next update (e.g. after tests have been deleted), <code>GET</code> lists the months
+ * waiting to be rebuilt.
+ */
+public class ExportStoreResource extends ServerResource
+{
+    @Get("json")
+    public String request(final String entity) throws JSONException
+    {
+        final JSONObject answer = new JSONObject();
+        final JSONArray invalid = new JSONArray();
+        for (final YearMonth month : ExportStore.getInstance().getInvalidMonths())
+            invalid.put(month.toString());
+        answer.put("invalid", invalid);
+        return answer.toString();
+    }
+
+    @Post("json")
+    public String invalidate(final String entity) throws JSONException
+    {
+        final JSONObject answer = new JSONObject();
+        final YearMonth month;
+        try
+        {
+            month = YearMonth.parse(new JSONObject(entity).getString("month"));
+        }
+        catch (final JSONException | DateTimeParseException | NullPointerException e)
+        {
+            setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+            answer.put("error", "parameter month (yyyy-MM) missing or invalid");
+            return answer.toString();
+        }
+
+        try
+        {
+            answer.put("month", month.toString());
+            answer.put("invalidated", ExportStore.getInstance().invalidate(month));
+        }
+        catch (final IOException e)
+        {
+            e.printStackTrace();
+            setStatus(Status.SERVER_ERROR_INTERNAL);
+            answer.put("error", e.getMessage());
+        }
+        return answer.toString();
+    }
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.statisticServer.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip file whose entries are assembled from raw deflate data which has already been compressed,
+ * e.g. the segments of the {@link ExportStore}.
+ * <p>
+ * Deflate data which has been compressed with {@link Deflater#SYNC_FLUSH} (and without {@link Deflater#finish()})
+ * ends on a byte boundary without a final block, so such segments can be concatenated and terminated with
+ * {@link #FINAL_BLOCK}. The CRC32 of the entry is combined from the CRC32 of the segments,
+ * see {@link #combineCrc(long, long, long)}.
+ * <p>
+ * Entries are limited to 4 GB (no zip64).
+ */
+class ExportZipWriter
+{
+    /**
+     * empty final block with static huffman codes
+     */
+    private static final byte[] FINAL_BLOCK = new byte[] { 0x03, 0x00 };
+
+    static final long MAX_ENTRY_SIZE = 0xffffffffL;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION = 20;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static class Entry
+    {
+        byte[] name;
+        int flags;
+        long offset;
+        long crc;
+        long compressedSize;
+        long size;
+    }
+
+    private final OutputStream out;
+    private final int dosTime;
+    private final List<Entry> entries = new ArrayList<>();
+    private Entry current;
+    private long written = 0;
+
+    ExportZipWriter(OutputStream out)
+    {
+        this.out = out;
+        final Calendar cal = Calendar.getInstance();
+        dosTime = (cal.get(Calendar.YEAR) - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21
+                | cal.get(Calendar.DAY_OF_MONTH) << 16 | cal.get(Calendar.HOUR_OF_DAY) << 11
+                | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * writes an entry which is compressed completely in memory
+     */
+    void putEntry(String name, byte[] data) throws IOException
+    {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            final byte[] buf = new byte[8192];
+            while (!deflater.finished())
+                compressed.write(buf, 0, deflater.deflate(buf));
+        }
+        finally
+        {
+            deflater.end();
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+
+        final Entry entry = newEntry(name, 0);
+        entry.crc = crc.getValue();
+        entry.size = data.length;
+        entry.compressedSize = compressed.size();
+        writeLocalHeader(entry);
+        compressed.writeTo(out);
+        written += compressed.size();
+    }
+
+    /**
+     * starts an entry whose data is written with {@link #writeSegment(byte[], int, int)}
+     */
+    void startEntry(String name) throws IOException
+    {
+        if (current != null)
+            throw new IllegalStateException("entry not finished");
+        current = newEntry(name, FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(current);
+    }
+
+    /**
+     * writes deflate data of the current entry, which has been flushed with {@link Deflater#SYNC_FLUSH}
+     */
+    void writeSegment(byte[] data, int off, int len) throws IOException
+    {
+        out.write(data, off, len);
+        written += len;
+        current.compressedSize += len;
+    }
+
+    /**
+     *
+     * @param crc CRC32 of the uncompressed data of the entry
+     * @param size size of the uncompressed data of the entry
+     */
+    void finishEntry(long crc, long size) throws IOException
+    {
+        writeSegment(FINAL_BLOCK, 0, FINAL_BLOCK.length);
+        if (size > MAX_ENTRY_SIZE || current.compressedSize > MAX_ENTRY_SIZE)
+            throw new IOException("zip entry too large: " + size);
+        current.crc = crc;
+        current.size = size;
+
+        final byte[] descriptor = new byte[16];
+        putInt(descriptor, 0, DATA_DESCRIPTOR_SIGNATURE);
+        putInt(descriptor, 4, (int) crc);
+        putInt(descriptor, 8, (int) current.compressedSize);
+        putInt(descriptor, 12, (int) size);
+        write(descriptor);
+        current = null;
+    }
+
+    /**
+     * writes the central directory, does not close the stream
+     */
+    void finish() throws IOException
+    {
+        if (current != null)
+            throw new IllegalStateException("entry not finished");
+        final long directoryOffset = written;
+        for (final Entry entry : entries)
+        {
+            final byte[] header = new byte[46 + entry.name.length];
+            putInt(header, 0, CENTRAL_HEADER_SIGNATURE);
+            putShort(header, 4, VERSION);
+            putShort(header, 6, VERSION);
+            putShort(header, 8, entry.flags);
+            putShort(header, 10, METHOD_DEFLATED);
+            putInt(header, 12, dosTime);
+            putInt(header, 16, (int) entry.crc);
+            putInt(header, 20, (int) entry.compressedSize);
+            putInt(header, 24, (int) entry.size);
+            putShort(header, 28, entry.name.length);
+            // extra, comment, disk, attributes: 0
+            putInt(header, 42, (int) entry.offset);
+            System.arraycopy(entry.name, 0, header, 46, entry.name.length);
+            write(header);
+        }
+        if (written > MAX_ENTRY_SIZE)
+            throw new IOException("zip file too large: " + written);
+
+        final byte[] end = new byte[22];
+        putInt(end, 0, END_SIGNATURE);
+        putShort(end, 8, entries.size());
+        putShort(end, 10, entries.size());
+        putInt(end, 12, (int) (written - directoryOffset));
+        putInt(end, 16, (int) directoryOffset);
+        write(end);
+        out.flush();
+    }
+
+    private Entry newEntry(String name, int flags)
+    {
+        final Entry entry = new Entry();
+        entry.name = name.getBytes(StandardCharsets.UTF_8);
+        entry.flags = flags | FLAG_UTF8;
+        entry.offset = written;
+        entries.add(entry);
+        return entry;
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException
+    {
+        final byte[] header = new byte[30 + entry.name.length];
+        putInt(header, 0, LOCAL_HEADER_SIGNATURE);
+        putShort(header, 4, VERSION);
+        putShort(header, 6, entry.flags);
+        putShort(header, 8, METHOD_DEFLATED);
+        putInt(header, 10, dosTime);
+        // with a data descriptor, crc and sizes are 0
+        putInt(header, 14, (int) entry.crc);
+        putInt(header, 18, (int) entry.compressedSize);
+        putInt(header, 22, (int) entry.size);
+        putShort(header, 26, entry.name.length);
+        System.arraycopy(entry.name, 0, header, 30, entry.name.length);
+        write(header);
+    }
+
+    private void write(byte[] data) throws IOException
+    {
+        out.write(data);
+        written += data.length;
+    }
+
+    private static void putShort(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putInt(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * CRC32 of the concatenation of two blocks of data (same as <code>crc32_combine</code> of zlib)
+     *
+     * @param crc1 CRC32 of the first block
+     * @param crc2 CRC32 of the second block
+     * @param length2 length of the second block
+     * @return the CRC32 of both blocks
+     */
+    static long combineCrc(long crc1, long crc2, long length2)
+    {
+        if (length2 <= 0)
+            return crc1;
+
+        final long[] even = new long[32]; // even-power-of-two zeros operator
+        final long[] odd = new long[32]; // odd-power-of-two zeros operator
+
+        // operator for one zero bit in odd
+        odd[0] = 0xedb88320L; // CRC-32 polynomial
+        long row = 1;
+        for (int n = 1; n < 32; n++)
+        {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // operator for two zero bits in even, four zero bits in odd
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply length2 zeros to crc1 (first square will put the operator for one zero byte, eight zero bits, in even)
+        do
+        {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0)
+                crc1 = gf2MatrixTimes(even, crc1);
+            length2 >>= 1;
+            if (length2 == 0)
+                break;
+
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0)
+                crc1 = gf2MatrixTimes(odd, crc1);
+            length2 >>= 1;
+        }
+        while (length2 != 0);
+
+        return (crc1 ^ crc2) & 0xffffffffL;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec)
+    {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0)
+        {
+            if ((vec & 1) != 0)
+                sum ^= mat[i];
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat)
+    {
+        for (int n = 0; n < 32; n++)
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+    }
+}
@@ -215,7 +215,7 @@ public class PdfExportResource extends ServerResource {
         }
 
         OpenTestDAO dao = new OpenTestDAO(conn, settings, capabilities);
-        OpenTestSearchDTO searchResult = dao.getOpenTestSearchResults(qp, 0, MAX_RESULTS, new HashSet<String>());
+        OpenTestSearchDTO searchResult = dao.getOpenTestSearchResults(qp, MAX_RESULTS, new HashSet<String>());
 
         Map<String, Object> data = new HashMap<>();
 
@@ -24,9 +24,10 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -74,7 +75,7 @@ public class HistogramResource extends ServerResource{
         });
         
         //also allow doing histogram just for single fields
-        List<String> measurements = new LinkedList<>();
+        final List<String> measurements = new LinkedList<>();
         qp.getAllowedFields().put("measurement", QueryParser.FieldType.IGNORE);
         qp.getAllowedFields().put("measurement[]", QueryParser.FieldType.IGNORE);
         if (getParameters.getNames().contains("measurement") || 
@@ -84,8 +85,9 @@ public class HistogramResource extends ServerResource{
                 measurementArray = getParameters.getValuesArray("measurement[]", true, null);
             }
             
-            for (String singleMeasurement : measurementArray) {
-                if (singleMeasurement.matches("download|upload|ping")) {
+            final List<String> requested = Arrays.asList(measurementArray);
+            for (String singleMeasurement : new String[] {"download","upload","ping"}) {
+                if (requested.contains(singleMeasurement)) {
                     measurements.add(singleMeasurement);
                 }
             }
@@ -96,23 +98,17 @@ public class HistogramResource extends ServerResource{
         
         qp.parseQuery(getParameters);
         
-        //try cache first
-        String cacheString = (String) cache.get("opentest-histogram-" + Objects.hash(measurements) + "-" + qp.hashCode());
-        if (cacheString != null) {
-            //System.out.println("cache hit for histogram");
-            return cacheString;
-        }
-        //System.out.println("No hit for: " + "opentest-histogram-" + qp.hashCode());
-        
-        
-        this.adjustHistogramInfo(qp);
-        
-        String json = getHistogram(qp, measurements);
-        
-        //put in cache
-        cache.set("opentest-histogram-" + Objects.hash(measurements) + "-" + qp.hashCode(), CACHE_EXP, json);
-        
-        return json;
+        //try cache first; concurrent requests for the same histogram wait for a single query
+        //no background refresh, as the histogram is queried with the connection of the request
+        //the key is derived from the exact where clause and its values, so different queries never share an entry
+        return cache.getOrCompute("opentest-histogram-" + String.join(",", measurements) + "-" + CacheHelper.getHash(qp), CACHE_EXP, CACHE_EXP,
+                new CacheHelper.Loader<String>() {
+            @Override
+            public String load() {
+                adjustHistogramInfo(qp);
+                return getHistogram(qp, measurements);
+            }
+        });
     }
     
     private void adjustHistogramInfo(QueryParser qp) {
@@ -168,21 +164,12 @@ public class HistogramResource extends ServerResource{
 	 * @return Json as String
 	 */
     private String getHistogram(QueryParser qp, List<String> measurements) {
-        //String whereClause = qp.getWhereClause();
-        
     	JSONObject ret = new JSONObject();
     	try {
-    		/*if (searchValues.isEmpty()) {
-    			//try getting from cache
-    			String cacheString = (String) cache.get("opentest-histogram");
-        		if (cacheString != null) {
-        			System.out.println("cache hit for histogram");
-        			return cacheString;
-        		}
-    		}*/
     		boolean logarithmic;
             double min, max;
-            
+            final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
 	    	//Download
             if (measurements.contains("download")) {
                 // logarithmic if without filters
@@ -202,13 +189,8 @@ public class HistogramResource extends ServerResource{
                 }
                 min = this.histogramInfo.min_download;
                 max = this.histogramInfo.max_download;
-                List<Bucket> downArrayfine = getJSONForHistogram(min, max,
-                        (logarithmic) ? "speed_download_log" : "speed_download",
-                        logarithmic, qp);
-                List<Bucket> downArrayLowRes = getLowResBucketList(downArrayfine);
-
-                ret.put("download_kbit", bucketListToJSONArray(downArrayLowRes));
-                ret.put("download_kbit_fine", bucketListToJSONArray(downArrayfine));
+                histograms.put("download_kbit", new Histogram(min, max,
+                        (logarithmic) ? "speed_download_log" : "speed_download", logarithmic));
             }
 
 			// Upload
@@ -228,16 +210,10 @@ public class HistogramResource extends ServerResource{
                 }
                 min = this.histogramInfo.min_upload;
                 max = this.histogramInfo.max_upload;
-                List<Bucket> uploadBucketsfine = getJSONForHistogram(min, max,
-                        (logarithmic) ? "speed_upload_log" : "speed_upload",
-                        logarithmic, qp);
-
-                List<Bucket> uploadBucketsLowRes = getLowResBucketList(uploadBucketsfine);
-
-                ret.put("upload_kbit", bucketListToJSONArray(uploadBucketsLowRes));
-                ret.put("upload_kbit_fine", bucketListToJSONArray(uploadBucketsfine));
+                histograms.put("upload_kbit", new Histogram(min, max,
+                        (logarithmic) ? "speed_upload_log" : "speed_upload", logarithmic));
             }
-			
+
 			//Ping
             if (measurements.contains("ping")) {
                 if (histogramInfo.max_ping == Long.MIN_VALUE) {
@@ -248,19 +224,17 @@ public class HistogramResource extends ServerResource{
                 }
                 min = this.histogramInfo.min_ping;
                 max = this.histogramInfo.max_ping;
-                List<Bucket> pingArrayH = getJSONForHistogram(min, max, "(t.ping_median::float / 1000000)", false, qp);
-                List<Bucket> pingArrayL = getLowResBucketList(pingArrayH);
+                histograms.put("ping_ms", new Histogram(min, max, "(t.ping_median::float / 1000000)", false));
+            }
+
+            //all histograms in a single scan of the tests
+            queryHistograms(new ArrayList<>(histograms.values()), qp);
 
-                ret.put("ping_ms", bucketListToJSONArray(pingArrayL));
-                ret.put("ping_ms_fine", bucketListToJSONArray(pingArrayH));
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                List<Bucket> fine = entry.getValue().getBuckets();
+                ret.put(entry.getKey(), bucketListToJSONArray(getLowResBucketList(fine)));
+                ret.put(entry.getKey() + "_fine", bucketListToJSONArray(fine));
             }
-		 	
-			//if (searchValues.isEmpty()) {
-				//if it was the default -> save it to the cache for later
-			//	cache.set("opentest-histogram", CACHE_EXP, ret.toString());
-			//}
-			
-			
 		} catch (JSONException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -301,146 +275,181 @@ public class HistogramResource extends ServerResource{
     }
     
     /**
-     * Gets the JSON Array for a specific histogram
-     * @param min lower bound of first class
-     * @param max upper bound of last class
-     * @param field numeric database-field that the histogram is based on 
-     * @param isLogarithmic
+     * Counts the tests per class of several histograms with one query: every test is expanded to one row
+     * per histogram (lateral join), so the tests matching the filter are only read once.
+     * @param histograms the histograms, their rows are filled in
      * @param qp QueryParser object for the current selection
-     * @return
-     * @throws JSONException
      */
-    private List<Bucket> getJSONForHistogram(double min, double max, String field, boolean isLogarithmic, QueryParser qp) throws JSONException {
-
-        int histogramClasses = (isLogarithmic) ? HISTOGRAMCLASSESLOG : HISTOGRAMCLASSES;
-        histogramClasses *= FINEMULTIPLIER;
-
-    	//Get min and max steps
-    	double difference = max - min;
-    	int digits = (int) Math.floor(Math.log10(difference));
-        int roundTo = Math.max(0,(int) -Math.floor(Math.log10(difference/histogramClasses)));
-    	
-    	//get histogram classes
-        //round everything to make for nicer bucket-widths with 10 buckets
-        //e.g. 1,2 to 24 --> diff = 22,8 = 2 digits -> 0 to 30; each resulting bucket 3
-    	long upperBound = new BigDecimal(max).setScale(-digits, BigDecimal.ROUND_CEILING).longValue();
-    	long lowerBound = new BigDecimal(min).setScale(-digits, BigDecimal.ROUND_FLOOR).longValue();
-    	double step = ((double) (upperBound-lowerBound))/((double)histogramClasses);
-        
-        
-    	System.out.println("lower: " + lowerBound + ", upper: " + upperBound + ", digits: " + digits + ", diff: " + difference + ", step: " + step);
-    	
-    	//psql width_bucket: gets the histogram class in which a value belongs
-		final String sql = 
-				"select "
-				+ " width_bucket(" + field + "," + lowerBound + "," + upperBound + "," + histogramClasses + ") bucket, "
-				+ " count(*) cnt "
-				+ " from test t "
-				+ qp.getJoins()
-				+ " where " + field + " > 0 " 
-				+ " AND t.deleted = false"
-				+ " AND status = 'FINISHED' " + qp.getWhereClause("AND") 
-				+ " group by bucket " + "order by bucket asc;";
-    	
-    	
-
-        List<Bucket> buckets = new ArrayList<>();
-		try {
-			PreparedStatement stmt = conn.prepareStatement(sql);
-			qp.fillInWhereClause(stmt, 1);
-			ResultSet rs = stmt.executeQuery();
+    private void queryHistograms(List<Histogram> histograms, QueryParser qp) {
+        if (histograms.isEmpty()) {
+            return;
+        }
+
+        final StringBuilder values = new StringBuilder();
+        final StringBuilder anyField = new StringBuilder();
+        for (int i = 0; i < histograms.size(); i++) {
+            final Histogram h = histograms.get(i);
+            if (i > 0) {
+                values.append(",");
+                anyField.append(" OR ");
+            }
+            //psql width_bucket: gets the histogram class in which a value belongs
+            values.append("(").append(i).append(", CASE WHEN ").append(h.field).append(" > 0 THEN")
+                    .append(" width_bucket(").append(h.field).append(",").append(h.lowerBound).append(",")
+                    .append(h.upperBound).append(",").append(h.classes).append(") END)");
+            anyField.append(h.field).append(" > 0");
+        }
+
+        final String sql =
+                "select h.histogram, h.bucket, count(*) cnt "
+                + " from test t "
+                + qp.getJoins()
+                + " CROSS JOIN LATERAL (VALUES " + values + ") h(histogram, bucket)"
+                + " where (" + anyField + ")"
+                + " AND h.bucket IS NOT NULL"
+                + " AND t.deleted = false"
+                + " AND status = 'FINISHED' " + qp.getWhereClause("AND")
+                + " group by h.histogram, h.bucket order by h.histogram asc, h.bucket asc;";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            qp.fillInWhereClause(stmt, 1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    histograms.get(rs.getInt("histogram")).rows.add(new long[] {rs.getInt("bucket"), rs.getLong("cnt")});
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The classes of a histogram and the number of tests per class
+     */
+    private class Histogram {
+        private final String field;
+        private final boolean isLogarithmic;
+        private final int classes;
+        private final int roundTo;
+        private final long lowerBound;
+        private final long upperBound;
+        private final double step;
+
+        /**
+         * class (as returned by width_bucket) and number of tests, ordered by class
+         */
+        private final List<long[]> rows = new ArrayList<>();
+
+        /**
+         * @param min lower bound of first class
+         * @param max upper bound of last class
+         * @param field numeric database-field that the histogram is based on
+         * @param isLogarithmic
+         */
+        Histogram(double min, double max, String field, boolean isLogarithmic) {
+            this.field = field;
+            this.isLogarithmic = isLogarithmic;
+
+            int histogramClasses = (isLogarithmic) ? HISTOGRAMCLASSESLOG : HISTOGRAMCLASSES;
+            histogramClasses *= FINEMULTIPLIER;
+            this.classes = histogramClasses;
 
+            //Get min and max steps
+            double difference = max - min;
+            int digits = (int) Math.floor(Math.log10(difference));
+            this.roundTo = Math.max(0,(int) -Math.floor(Math.log10(difference/histogramClasses)));
+
+            //get histogram classes
+            //round everything to make for nicer bucket-widths with 10 buckets
+            //e.g. 1,2 to 24 --> diff = 22,8 = 2 digits -> 0 to 30; each resulting bucket 3
+            this.upperBound = new BigDecimal(max).setScale(-digits, BigDecimal.ROUND_CEILING).longValue();
+            this.lowerBound = new BigDecimal(min).setScale(-digits, BigDecimal.ROUND_FLOOR).longValue();
+            this.step = ((double) (upperBound-lowerBound))/((double)histogramClasses);
+
+            System.out.println("lower: " + lowerBound + ", upper: " + upperBound + ", digits: " + digits + ", diff: " + difference + ", step: " + step);
+        }
+
+        /**
+         * @return the buckets of all classes, including the classes without tests
+         */
+        List<Bucket> getBuckets() {
+            List<Bucket> buckets = new ArrayList<>();
             Bucket bucketObj;
-			long prevCnt = 0;
-			int prevBucket = 0;
-			while(rs.next()) {				
-				int bucket = rs.getInt("bucket");
-				long cnt = rs.getLong("cnt");	
-				
-				double current_lower_bound = lowerBound + step * (bucket - 1);
-				//logarithmic -> times 10 for kbit
-				if (isLogarithmic)
-					current_lower_bound = Math.pow(10, current_lower_bound*4)*10;
-				double current_upper_bound = lowerBound + (step * bucket);
-				if (isLogarithmic)
-					current_upper_bound = Math.pow(10, current_upper_bound*4)*10;
-				
-				if (bucket-prevBucket > 1) {
-					//problem: bucket without values
-					//solution: respond with classes with "0" elements in them
-					int diff = bucket-prevBucket;
-					for (int i=1;i<diff;i++) {
-						prevBucket++;
-						//jBucket = new JSONObject();
+            int prevBucket = 0;
+            for (long[] row : rows) {
+                int bucket = (int) row[0];
+                long cnt = row[1];
+
+                double current_lower_bound = lowerBound + step * (bucket - 1);
+                //logarithmic -> times 10 for kbit
+                if (isLogarithmic)
+                    current_lower_bound = Math.pow(10, current_lower_bound*4)*10;
+                double current_upper_bound = lowerBound + (step * bucket);
+                if (isLogarithmic)
+                    current_upper_bound = Math.pow(10, current_upper_bound*4)*10;
+
+                if (bucket-prevBucket > 1) {
+                    //problem: bucket without values
+                    //solution: respond with classes with "0" elements in them
+                    int diff = bucket-prevBucket;
+                    for (int i=1;i<diff;i++) {
+                        prevBucket++;
                         bucketObj = new Bucket();
-						double tLowerBound = lowerBound + step * (prevBucket - 1);
-						if (isLogarithmic)
-							tLowerBound = Math.pow(10, tLowerBound*4)*10;
-						double tUpperBound = lowerBound + (step * prevBucket);
-						if (isLogarithmic)
-							tUpperBound = Math.pow(10, tUpperBound*4)*10;
-
-                        bucketObj.lowerBound = BigDecimal.valueOf(tLowerBound).setScale(roundTo, BigDecimal.ROUND_HALF_UP).doubleValue();;;
-                        bucketObj.upperBound = BigDecimal.valueOf(tUpperBound).setScale(roundTo, BigDecimal.ROUND_HALF_UP).doubleValue();;
+                        double tLowerBound = lowerBound + step * (prevBucket - 1);
+                        if (isLogarithmic)
+                            tLowerBound = Math.pow(10, tLowerBound*4)*10;
+                        double tUpperBound = lowerBound + (step * prevBucket);
+                        if (isLogarithmic)
+                            tUpperBound = Math.pow(10, tUpperBound*4)*10;
+
+                        bucketObj.lowerBound = BigDecimal.valueOf(tLowerBound).setScale(roundTo, BigDecimal.ROUND_HALF_UP).doubleValue();
+                        bucketObj.upperBound = BigDecimal.valueOf(tUpperBound).setScale(roundTo, BigDecimal.ROUND_HALF_UP).doubleValue();
                         bucketObj.results = 0;
                         buckets.add(bucketObj);
-					}
-				}
-				prevBucket = bucket;
-				prevCnt = cnt;
+                    }
+                }
+                prevBucket = bucket;
 
                 bucketObj = new Bucket();
-				if (bucket == 0) {
+                if (bucket == 0) {
                     bucketObj.lowerBound = null;
-				} else {
-					//2 digits accuracy for small differences
-                    bucketObj.lowerBound = BigDecimal.valueOf(current_lower_bound).setScale(roundTo, BigDecimal.ROUND_HALF_UP).doubleValue();;
-				}
+                } else {
+                    //2 digits accuracy for small differences
+                    bucketObj.lowerBound = BigDecimal.valueOf(current_lower_bound).setScale(roundTo, BigDecimal.ROUND_HALF_UP).doubleValue();
+                }
 
-				if (bucket == histogramClasses + 1) {
-					//jBucket.put("upperBound", JSONObject.NULL);
+                if (bucket == classes + 1) {
                     bucketObj.upperBound = null;
                 } else {
                     bucketObj.upperBound = BigDecimal.valueOf(current_upper_bound).setScale(roundTo, BigDecimal.ROUND_HALF_UP).doubleValue();
-				}
-				//jBucket.put("results", cnt);
+                }
                 bucketObj.results = cnt;
-				
-				//jArray.put(jBucket);
                 buckets.add(bucketObj);
-			}
-			
-			//problem: not enough buckets
-			//solution: respond with classes with "0" elements
-			if (buckets.size() < histogramClasses) {
-				int diff = histogramClasses - buckets.size();
-				int bucket = buckets.size();
-				for (int i=0;i<diff;i++) {
-					bucketObj = new Bucket();
-					bucket++;
-					double tLowerBound = lowerBound + step * (bucket - 1);
-					if (isLogarithmic)
-						tLowerBound = Math.pow(10, tLowerBound*4)*10;
-					double tUpperBound = lowerBound + (step * bucket);
-					if (isLogarithmic)
-						tUpperBound = Math.pow(10, tUpperBound*4)*10;
+            }
+
+            //problem: not enough buckets
+            //solution: respond with classes with "0" elements
+            if (buckets.size() < classes) {
+                int diff = classes - buckets.size();
+                int bucket = buckets.size();
+                for (int i=0;i<diff;i++) {
+                    bucketObj = new Bucket();
+                    bucket++;
+                    double tLowerBound = lowerBound + step * (bucket - 1);
+                    if (isLogarithmic)
+                        tLowerBound = Math.pow(10, tLowerBound*4)*10;
+                    double tUpperBound = lowerBound + (step * bucket);
+                    if (isLogarithmic)
+                        tUpperBound = Math.pow(10, tUpperBound*4)*10;
                     bucketObj.lowerBound = tLowerBound;
                     bucketObj.upperBound = tUpperBound;
                     bucketObj.results = 0;
 
-					buckets.add(bucketObj);
-				}
-			}
-			
-			rs.close();
-			stmt.close();
-		
-		} catch (SQLException e) {
-            e.printStackTrace();
+                    buckets.add(bucketObj);
+                }
+            }
+            return buckets;
         }
-    	
-		
-    	return buckets;
     }
 
     public class Bucket {
@@ -2,6 +2,8 @@ package at.rtr.rmbt.statisticServer.opendata;
 
 import at.rtr.rmbt.shared.cache.CacheHelper;
 import at.rtr.rmbt.statisticServer.ServerResource;
+import at.rtr.rmbt.statisticServer.rollup.Aggregate;
+import at.rtr.rmbt.statisticServer.rollup.StatisticRollups;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -11,8 +13,13 @@ import org.restlet.resource.Get;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 public class IntradayResource extends ServerResource {
@@ -53,14 +60,17 @@ public class IntradayResource extends ServerResource {
         qp.parseQuery(parameters);
 
         //try cache first
-        String cacheKey = "opentest-hourly-" + "-" + qp.hashCode() + "-" + quantile;
+        String cacheKey = "opentest-hourly-" + "-" + CacheHelper.getHash(qp) + "-" + quantile;
         String cacheString = (String) cache.get(cacheKey);
         if (cacheString != null) {
             //System.out.println("cache hit for hourly");
             return cacheString;
         }
 
-        List<HourlyStatistic> statistics = queryDb(qp, quantile);
+        List<HourlyStatistic> statistics = queryRollups(qp, quantile);
+        if (statistics == null) {
+            statistics = queryDb(qp, quantile);
+        }
 
         JSONArray ret = new JSONArray();
 
@@ -75,6 +85,63 @@ public class IntradayResource extends ServerResource {
         return ret.toString();
     }
 
+    /**
+     * reads the statistics from the rollups if the query only limits the time
+     * @return the statistics, null if they cannot be read from the rollups
+     */
+    private List<HourlyStatistic> queryRollups(QueryParser qp, double quantile) {
+        Timestamp from = null;
+        Timestamp to = null;
+        for (Map.Entry<String, List<QueryParser.SingleParameter>> entry : qp.getWhereParams().entrySet()) {
+            if (!entry.getKey().equals("time")) {
+                return null;
+            }
+            for (QueryParser.SingleParameter param : entry.getValue()) {
+                if (param.isNegated()) {
+                    return null;
+                }
+                Timestamp time = new Timestamp(Long.parseLong(param.getValue()));
+                if (param.getComperator().equals(">") && from == null) {
+                    from = time;
+                }
+                else if (param.getComperator().equals("<") && to == null) {
+                    to = time;
+                }
+                else {
+                    return null;
+                }
+            }
+        }
+
+        try {
+            StatisticRollups.Window window = StatisticRollups.getWindow(conn, from, to);
+            if (window == null) {
+                return null;
+            }
+            Map<Integer, Aggregate> hours = StatisticRollups.getHours(conn, window);
+            List<Integer> keys = new ArrayList<>(hours.keySet());
+            Collections.sort(keys, Comparator.nullsFirst(Comparator.<Integer>naturalOrder()));
+
+            List<HourlyStatistic> ret = new LinkedList<>();
+            for (Integer hour : keys) {
+                Aggregate aggregate = hours.get(hour);
+                ret.add(new HourlyStatistic(toDouble(aggregate.getDown().getQuantile(quantile)),
+                        toDouble(aggregate.getUp().getQuantile(quantile)),
+                        toDouble(aggregate.getPing().getQuantile(quantile)),
+                        hour == null ? 0 : hour,
+                        aggregate.getCount()));
+            }
+            return ret;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static double toDouble(Long value) {
+        return value == null ? 0 : value;
+    }
+
     private List<HourlyStatistic> queryDb(QueryParser qp, double quantile) {
         String sql = "SELECT" +
                 "  count(t.open_test_uuid)," +
@@ -17,15 +17,18 @@
 package at.rtr.rmbt.statisticServer.opendata;
 
 
+import at.rtr.rmbt.db.DbConnection;
 import at.rtr.rmbt.shared.cache.CacheHelper;
 import at.rtr.rmbt.statisticServer.ServerResource;
 import at.rtr.rmbt.statisticServer.opendata.dao.OpenTestDAO;
 import at.rtr.rmbt.statisticServer.opendata.dto.OpenTestDTO;
 import at.rtr.rmbt.statisticServer.opendata.dto.OpenTestSearchDTO;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.csv.CsvGenerator;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
@@ -43,10 +46,13 @@ import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.Get;
 import org.restlet.resource.Post;
 
+import javax.naming.NamingException;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -151,11 +157,12 @@ public class OpenTestSearchResource extends ServerResource
                     example = "download_kbit", dataType = "string", paramType = "query"),
             @ApiImplicitParam(name = "sort_order", value="The sort_by-Parameter specifies the field, the sort_order-Parameter specifies the direction ('asc' or 'desc').\n " +
                     "Per Default, the results are sorted by the time of the test in descending order (i.e. sort_by=time&sort_order=desc).\n " +
-                    "If the sort parameters are specified, the value of the cursor is a multiple of the parameter max_results, otherwise it is an arbitrary number.", example = "asc", dataType = "string", paramType = "query"),
+                    "Results with the same value are sorted by the test, tests without a value come last in ascending and first in descending order.", example = "asc", dataType = "string", paramType = "query"),
             @ApiImplicitParam(name = "max_results", value="This is the page size, i.e. maximum number of result items that are returned per page.\n " +
                     "The default value is 100 items per page. The page size limit is 10000 items, i.e. not more than 10000 results can be displayed in a page.", example = "10", dataType = "integer", paramType = "query"),
             @ApiImplicitParam(name = "cursor", value = "used for pagination if the query returns more than the number of items according to parameter max_results. " +
-                    "The value to be used for the display of the next page is given by the previous response in returned parameter next_cursor.", dataType = "string", paramType = "query"),
+                    "The value to be used for the display of the next page is given by the previous response in returned parameter next_cursor. " +
+                    "It identifies the last test of the previous page and is only valid for the same sort parameters.", dataType = "string", paramType = "query"),
             @ApiImplicitParam(name = "sender", value = "Sender ID", dataType = "string", paramType = "query"),
             @ApiImplicitParam(name = "timestamp", value = "Alias '_'. Will be ignored and can be used to prevent caching of the response.", dataType = "string", paramType = "query")
     })
@@ -180,14 +187,6 @@ public class OpenTestSearchResource extends ServerResource
         OpenTestSearchDTO ret = new OpenTestSearchDTO();
 
 
-        //calculate offset
-        long offset = -1;
-        if (getParameters.getNames().contains("cursor")) {
-            //is always a valid LONG because it is checked with all other
-            //parameters above
-            offset = Long.parseLong(getParameters.getFirstValue("cursor"));
-        }
-
         //get maximal results-parameter
         long maxrows = DEFAULTROWS;
         if (getParameters.getNames().contains("max_results")) {
@@ -224,39 +223,61 @@ public class OpenTestSearchResource extends ServerResource
             setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
             ret.getInvalidFields().add("field limit exceeded");
         }
-        else {
-            //if valid input, query the db
-            OpenTestDAO dao = new OpenTestDAO(conn, settings, capabilities);
-            ret = dao.getOpenTestSearchResults(qp, offset, maxrows, additionalFields);
-        }
 
+        final boolean valid = ret.getInvalidFields().isEmpty();
+        final long _maxrows = maxrows;
         Representation representation = null;
 
         //format, depending on output format
+        //if valid input, the results are written while they are read from the db
         try {
-            if (format.equals("csv")) {
-                CsvMapper cm = new CsvMapper();
-                cm.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
-                cm.enable(CsvGenerator.Feature.STRICT_CHECK_FOR_QUOTING);
-                CsvSchema schema = CsvSchema.builder().setLineSeparator("\r\n").setUseHeader(true)
-                        .addColumnsFrom(cm.schemaFor(OpenTestDTO.class)).build();
-                representation = new StringRepresentation(cm.writer(schema).writeValueAsString(ret.getResults()));
-            }
-            else if (format.equals("xlsx")) {
-                final OpenTestSearchDTO that = ret;
-                OutputRepresentation or = new OutputRepresentation(MediaType.APPLICATION_MSOFFICE_XLSX) {
+            if (format.equals("csv") || format.equals("xlsx")) {
+                representation = new OutputRepresentation(MediaType.TEXT_CSV) {
                     @Override
                     public void write(OutputStream outputStream) throws IOException {
-                        XlsxMapper mapper = new XlsxMapper();
-                        mapper.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
-                        CsvSchema schema = mapper.schemaFor(OpenTestDTO.class).withHeader();
-                        SequenceWriter sequenceWriter = mapper.writer(schema).writeValues(outputStream);
-                        sequenceWriter.writeAll(that.getResults());
-                        sequenceWriter.flush();
+                        SequenceWriter sequenceWriter;
+                        if (format.equals("csv")) {
+                            CsvMapper cm = new CsvMapper();
+                            cm.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
+                            cm.enable(CsvGenerator.Feature.STRICT_CHECK_FOR_QUOTING);
+                            CsvSchema schema = CsvSchema.builder().setLineSeparator("\r\n").setUseHeader(true)
+                                    .addColumnsFrom(cm.schemaFor(OpenTestDTO.class)).build();
+                            sequenceWriter = cm.writer(schema).writeValues(outputStream);
+                        }
+                        else {
+                            XlsxMapper mapper = new XlsxMapper();
+                            mapper.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
+                            CsvSchema schema = mapper.schemaFor(OpenTestDTO.class).withHeader();
+                            sequenceWriter = mapper.writer(schema).writeValues(outputStream);
+                        }
+                        if (valid) {
+                            search(qp, _maxrows, additionalFields, sequenceWriter::write);
+                        }
                         sequenceWriter.close();
                     }
                 };
-                representation = or;
+            }
+            else if (valid) {
+                representation = new OutputRepresentation(MediaType.APPLICATION_JSON) {
+                    @Override
+                    public void write(OutputStream outputStream) throws IOException {
+                        long startTime = System.currentTimeMillis();
+                        ObjectMapper om = new ObjectMapper();
+                        om.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
+                        om.disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+                        //same fields as OpenTestSearchDTO, the cursor and duration are known after the results
+                        JsonGenerator generator = om.getFactory().createGenerator(outputStream);
+                        generator.writeStartObject();
+                        generator.writeArrayFieldStart("results");
+                        String nextCursor = search(qp, _maxrows, additionalFields, result -> om.writeValue(generator, result));
+                        generator.writeEndArray();
+                        generator.writeObjectField("next_cursor", qp.getNextCursorValue(nextCursor));
+                        generator.writeNumberField("duration_ms", System.currentTimeMillis() - startTime);
+                        generator.writeEndObject();
+                        generator.close();
+                    }
+                };
             }
             else {
                 ObjectMapper om = new ObjectMapper();
@@ -289,8 +310,20 @@ public class OpenTestSearchResource extends ServerResource
         return representation;
     }
 
-
-
-
+    /**
+     * Streams the search results from the database to a handler
+     * @return the cursor of the next page, null if it is the last page
+     */
+    private String search(QueryParser qp, long maxrows, Set<String> additionalFields,
+                          OpenTestDAO.OpenTestSearchHandler handler) throws IOException {
+        //the connection of the request has already been released
+        try (Connection conn = DbConnection.getConnection()) {
+            OpenTestDAO dao = new OpenTestDAO(conn, settings, capabilities);
+            return dao.getOpenTestSearchResults(qp, maxrows, additionalFields, handler);
+        }
+        catch (SQLException | NamingException e) {
+            throw new IOException(e);
+        }
+    }
 }
 
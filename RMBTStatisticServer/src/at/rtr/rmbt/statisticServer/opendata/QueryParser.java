@@ -38,11 +38,14 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.restlet.data.Form;
 
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+
 /**
  *
  * @author Thomas
  */
-public class QueryParser {
+public class QueryParser implements Funnel<QueryParser> {
     /**
      * @return the whereParams
      */
@@ -71,10 +74,32 @@ public class QueryParser {
     }
 
     /**
-     * @return the orderClause
+     * @return the column by which the results are sorted, null if the default order (by uid, descending) is used
+     */
+    public String getSortColumn() {
+        return sortColumn;
+    }
+
+    /**
+     * @return true if the results are sorted in descending order
      */
-    public String getOrderClause() {
-        return orderClause;
+    public boolean isSortDescending() {
+        return sortDescending;
+    }
+
+    /**
+     * @return the uid of the last test of the previous page, null if no cursor is given
+     */
+    public Long getCursorUid() {
+        return cursorUid;
+    }
+
+    /**
+     * @return the value of the sort column of the last test of the previous page,
+     * null if the test has no value (or the default order is used)
+     */
+    public Long getCursorSortValue() {
+        return cursorSortValue;
     }
 
     public Map<String,FieldType> getAllowedFields() {
@@ -82,7 +107,7 @@ public class QueryParser {
     }
     
     
-    public enum FieldType {STRING, DATE, LONG, DOUBLE, BOOLEAN, UUID, SORTBY, SORTORDER, OUTPUT_FORMAT, IGNORE};
+    public enum FieldType {STRING, DATE, LONG, DOUBLE, BOOLEAN, UUID, SORTBY, SORTORDER, CURSOR, OUTPUT_FORMAT, IGNORE};
     private final ResourceBundle settings = ResourceManager.getCfgBundle();
 
     //all fields for which the user can sort the result
@@ -92,7 +117,10 @@ public class QueryParser {
     private final Map<String, SingleParameterTransformator> transformators = new HashMap<>();
     private final Map<String,FieldType> allowedFields = new HashMap<>();
     private String whereClause;
-    private String orderClause;
+    private String sortColumn;
+    private boolean sortDescending;
+    private Long cursorUid;
+    private Long cursorSortValue;
     
     //Values for the database
     private final Queue<Map.Entry<String, FieldType>> searchValues = new LinkedList<>();
@@ -179,7 +207,7 @@ public class QueryParser {
         
         allowedFields.put("sort_by",FieldType.SORTBY);
         allowedFields.put("sort_order",FieldType.SORTORDER);
-        allowedFields.put("cursor", FieldType.LONG);
+        allowedFields.put("cursor", FieldType.CURSOR);
         allowedFields.put("max_results", FieldType.LONG);
 
         allowedFields.put("format", FieldType.OUTPUT_FORMAT);
@@ -190,7 +218,10 @@ public class QueryParser {
         searchValues.clear();
 
         this.whereClause = "";
-        this.orderClause = "";
+        this.sortColumn = null;
+        this.sortDescending = false;
+        this.cursorUid = null;
+        this.cursorSortValue = null;
         final List<String> invalidElements = new ArrayList<>();
         final JSONObject response = new JSONObject();
         
@@ -315,6 +346,8 @@ public class QueryParser {
                         }
                         sortOrder = value;
                         break;
+                    case CURSOR:
+                        break; //parsed when the sort order is known
                     case OUTPUT_FORMAT:
                         if (value.isEmpty() || !(value.toLowerCase().equals("json") || (value.toLowerCase().equals("csv")) ||
                                 (value.toLowerCase().equals("xlsx")) )) {
@@ -344,19 +377,79 @@ public class QueryParser {
         //add defaults
         whereClause += formatWhereClauseDefaults();
         
-        orderClause = formatOrderClause(sortBy, sortOrder);
+        sortColumn = formatSortColumn(sortBy);
+        sortDescending = sortOrder.toUpperCase().equals("DESC");
+
+        if (getParameters.getNames().contains("cursor") && !parseCursor(getParameters.getFirstValue("cursor"))) {
+            invalidElements.add("cursor");
+        }
         return invalidElements;
     }
+
+    /**
+     * Parses the cursor given as "next_cursor" of the previous page, see {@link #formatCursor(Long, long)}
+     * @param cursor
+     * @return false if the cursor is invalid
+     */
+    private boolean parseCursor(String cursor) {
+        if (sortColumn == null) {
+            if (!isLong(cursor)) {
+                return false;
+            }
+            long uid = Long.parseLong(cursor);
+            cursorUid = (uid > 0) ? uid : null;
+            return true;
+        }
+
+        int separator = cursor.lastIndexOf('_');
+        if (separator < 0) {
+            return false;
+        }
+        String value = cursor.substring(0, separator);
+        String uid = cursor.substring(separator + 1);
+        if (!isLong(uid) || (!value.isEmpty() && !isLong(value))) {
+            return false;
+        }
+        cursorSortValue = value.isEmpty() ? null : Long.parseLong(value);
+        cursorUid = Long.parseLong(uid);
+        return true;
+    }
+
+    /**
+     * Formats the cursor for the page following a test: the uid of the test and, if the results are sorted,
+     * the value of the sort column (separated by '_', empty if the test has no value)
+     * @param sortValue the value of the sort column of the test, null if it has no value
+     * @param uid the uid of the test
+     * @return the cursor
+     */
+    public String formatCursor(Long sortValue, long uid) {
+        if (sortColumn == null) {
+            return Long.toString(uid);
+        }
+        return ((sortValue == null) ? "" : sortValue.toString()) + "_" + uid;
+    }
+
+    /**
+     * Gets the cursor as given in "next_cursor": a number (the uid) for the default order, as before the results
+     * could be sorted, a string for sorted results
+     * @param cursor the cursor, see {@link #formatCursor(Long, long)}
+     * @return the value, null if cursor is null
+     */
+    public Object getNextCursorValue(String cursor) {
+        if (cursor == null || sortColumn != null) {
+            return cursor;
+        }
+        return Long.valueOf(cursor);
+    }
     
     /**
-     * Formats the sql-clause for ordering the results
+     * Gets the column by which the results are sorted
      * @param sortBy the field for which the results are ordered, must be contained in openDataFieldsSortable
-     * @param sortOrder the order; ASC or DESC
-     * @return 
+     * @return the column, null if no field is given
      */
-    private static String formatOrderClause(String sortBy, String sortOrder) {
+    private static String formatSortColumn(String sortBy) {
         if (sortBy.isEmpty()) {
-            return "";
+            return null;
         }
         //convert to real field names
         if (sortBy.equals("download_kbit")) {
@@ -387,8 +480,7 @@ public class QueryParser {
             sortBy= "t.lte_rsrp";
         }
 
-        String ret = " ORDER BY " + sortBy + " " + sortOrder;
-        return ret;
+        return sortBy;
     }
     
     private String formatWhereClauseDefaults() {
@@ -479,7 +571,7 @@ public class QueryParser {
                 return " AND NOT " + attr;
             }
         }
-        else if (attr.equals("cursor") || attr.equals("max_results")) {
+        else if (attr.equals("max_results")) {
             return "";
         }
         else if (attr.equals("platform")) {
@@ -851,6 +943,24 @@ public class QueryParser {
         this.transformators.put(field, transformator);
     }
     
+    /**
+     * Funnels the parsed query: the where clause and the values in the order they are filled in,
+     * so two queries give the same data exactly if they are funneled the same
+     * (e.g. for a cache key, see {@link at.rtr.rmbt.shared.cache.CacheHelper#getHash(Funnel)}).
+     */
+    @Override
+    public void funnel(QueryParser o, PrimitiveSink into) {
+        into.putUnencodedChars(o.getClass().getCanonicalName())
+            .putChar(':')
+            .putInt(o.whereClause.length())
+            .putUnencodedChars(o.whereClause);
+        for (Map.Entry<String, FieldType> entry : o.searchValues) {
+            into.putInt(entry.getValue().ordinal())
+                .putInt(entry.getKey().length())
+                .putUnencodedChars(entry.getKey());
+        }
+    }
+
     @Override
     public int hashCode() {
         //return hashCode based on params
@@ -16,8 +16,9 @@ import org.apache.commons.dbutils.BasicRowProcessor;
 import org.apache.commons.dbutils.GenerousBeanProcessor;
 import org.apache.commons.dbutils.handlers.BeanHandler;
 import org.apache.commons.dbutils.handlers.BeanListHandler;
-import org.json.JSONException;
 
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
 import java.sql.*;
 import java.util.*;
 import java.util.logging.Level;
@@ -43,6 +44,9 @@ public class OpenTestDAO {
 
     public final int DEFAULT_SEARCH_ROWS = 100; //default number of rows (when max_results is not specified)
 
+    //number of rows fetched at once by exports and searches
+    private static final int EXPORT_FETCH_SIZE = 1000;
+
 
     private Connection conn;
     private ResourceBundle settings;
@@ -607,34 +611,93 @@ public class OpenTestDAO {
 
     /**
      * Get search results for a given query, containing some open data fields
-     * @param qp the queryParse-object
-     * @param offset a offset-value for paging (given as "next-cursor" in the response), -1 if none is set
+     * @param qp the queryParse-object, including the cursor of the page
      * @param maxrows maximal count of rows returned
      * @param additionalFields additional fields that should be included in the response
      * @return
      */
-    public OpenTestSearchDTO getOpenTestSearchResults(QueryParser qp, long offset, long maxrows, Set<String> additionalFields) {
+    public OpenTestSearchDTO getOpenTestSearchResults(QueryParser qp, long maxrows, Set<String> additionalFields) {
         long startTime = System.currentTimeMillis();
-        OpenTestSearchDTO dto = new OpenTestSearchDTO();
-
-        String offsetString = (offset>0)? " AND t.uid<"+offset:""; //if no sorting is used
-        String offsetString2 = (offset>0)? " OFFSET "+offset:""; //if sorting is used => may have concurrency issues in the results
-
-        String orderClause = qp.getOrderClause();
-        boolean defaultOrder = true;
-        if (orderClause == null || orderClause.isEmpty()) {
-            orderClause = " ORDER BY t.uid DESC ";
-            offsetString2 = "";
-        } else {
-            defaultOrder = false;
-            offsetString = "";
+        final OpenTestSearchDTO dto = new OpenTestSearchDTO();
+        try {
+            final List<OpenTestDTO> results = dto.getResults();
+            dto.setNextCursor(qp.getNextCursorValue(getOpenTestSearchResults(qp, maxrows, additionalFields, results::add)));
+        }
+        catch (SQLException | IOException ex) {
+            Logger.getLogger(OpenTestSearchResource.class.getName()).log(Level.SEVERE, null, ex);
         }
 
+        //also put in the result, how long the query took to execute
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        dto.setDurationMs(elapsedTime);
+        return dto;
+    }
+
+    /**
+     * Receives the results of a search one by one
+     */
+    public interface OpenTestSearchHandler {
+        void handle(OpenTestDTO result) throws IOException;
+    }
+
+    /**
+     * Streams a page of search results for a given query to a handler, as the rows are fetched from the database.
+     * The pages are selected by keyset: the results are sorted by the sort column and the uid, and the cursor
+     * holds the values of both for the last test of the previous page, so a page is found by the index
+     * no matter how deep it is (instead of skipping all rows before it). Every sortable column has an index
+     * on (column, uid), see rmbt.sql.
+     * @param qp the queryParse-object, including the cursor of the page
+     * @param maxrows maximal count of rows returned
+     * @param additionalFields additional fields that should be included in the response
+     * @param handler
+     * @return the cursor of the next page (given as "next_cursor" in the response), null if this is the last page
+     * @throws SQLException
+     * @throws IOException if the handler fails
+     */
+    public String getOpenTestSearchResults(QueryParser qp, long maxrows, Set<String> additionalFields,
+                                           OpenTestSearchHandler handler) throws SQLException, IOException {
         if (maxrows> MAX_SEARCH_ROWS)
             maxrows = MAX_SEARCH_ROWS;
         if (maxrows <= 0)
             maxrows = DEFAULT_SEARCH_ROWS;
 
+        final String sortColumn = qp.getSortColumn();
+        final Long cursorUid = qp.getCursorUid();
+        final Long cursorSortValue = qp.getCursorSortValue();
+
+        String sortKey = "NULL::bigint";
+        String orderClause = " ORDER BY t.uid DESC";
+        String keysetClause = "";
+        if (sortColumn == null) {
+            if (cursorUid != null) {
+                keysetClause = " AND t.uid < ?";
+            }
+        }
+        else {
+            //the cursor holds the sort value as a number, i.e. the time in microseconds since 1970
+            String sortValue = "?";
+            sortKey = sortColumn;
+            if (sortColumn.equals("t.time")) {
+                sortKey = "(extract(epoch from date_trunc('second', t.time))::bigint * 1000000 + extract(microseconds from t.time)::bigint % 1000000)";
+                sortValue = "('epoch'::timestamptz + ? * interval '1 microsecond')";
+            }
+
+            //null values are sorted as the largest values (postgres default): last in ascending, first in descending order
+            String direction = qp.isSortDescending() ? " DESC" : " ASC";
+            orderClause = " ORDER BY " + sortColumn + direction + ", t.uid" + direction;
+            if (cursorUid != null) {
+                if (qp.isSortDescending()) {
+                    keysetClause = (cursorSortValue != null) ?
+                            " AND (" + sortColumn + ", t.uid) < (" + sortValue + ", ?)" :
+                            " AND (" + sortColumn + " IS NOT NULL OR t.uid < ?)";
+                } else {
+                    keysetClause = (cursorSortValue != null) ?
+                            " AND ((" + sortColumn + ", t.uid) > (" + sortValue + ", ?) OR " + sortColumn + " IS NULL)" :
+                            " AND " + sortColumn + " IS NULL AND t.uid > ?";
+                }
+            }
+        }
+
 
         //There are many LEFT JOINs in the sql statement that are usual not needed.
         //This has no significant impact on the performance since our DBMS (postgres)
@@ -642,6 +705,7 @@ public class OpenTestDAO {
         //not needed
         final String sql = "SELECT" +
                 " t.uid as cursor, " + //only for pagination
+                " " + sortKey + " sort_key," + //only for pagination
                 " ('P' || t.open_uuid) open_uuid," +
                 " ('O' || t.open_test_uuid) open_test_uuid," +
                 " to_char(t.time AT TIME ZONE 'UTC', 'YYYY-MM-DD HH24:MI:SS') \"time\"," +
@@ -695,15 +759,15 @@ public class OpenTestDAO {
                 qp.getJoins() +
                 " WHERE " +
                 " (t.deleted = false)" +
-                " AND status = 'FINISHED' " + qp.getWhereClause("AND") + offsetString +
-                orderClause + " LIMIT " + maxrows + offsetString2;
+                " AND status = 'FINISHED' " + qp.getWhereClause("AND") + keysetClause +
+                orderClause + " LIMIT " + maxrows;
 
-
-        PreparedStatement ps = null;
-        ResultSet rs = null;
-        try
+        final boolean autoCommit = conn.getAutoCommit();
+        // the driver only uses a cursor within a transaction
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
         {
-            ps = conn.prepareStatement(sql);
+            ps.setFetchSize(EXPORT_FETCH_SIZE);
 
             //don't show coordinates when not accurate enough
             double accuracy = Double.parseDouble(settings.getString("RMBT_GEO_ACCURACY_DETAIL_LIMIT"));
@@ -715,97 +779,114 @@ public class OpenTestDAO {
             ps.setDouble(6, accuracy);
 
             //fill in values for WHERE
-            //ps = fillInWhereClause(ps, searchValues, 1);
-            qp.fillInWhereClause(ps, 7);
-
-            if (!ps.execute())
-                return null;
-            rs = ps.getResultSet();
-
-            BeanListHandler<OpenTestDTO> handler = new BeanListHandler<>(OpenTestDTO.class,new BasicRowProcessor(new GenerousBeanProcessor()));
-            List<OpenTestDTO> results = handler.handle(rs);
-
-            dto.setResults(results);
-
-            //remember last uid for pagination since rs can only be traversed in one direction
-            //if there are more results than we send, use pagination
-            if (dto.getResults().size() == maxrows) {
-                //if it is the standard sort order
-                if (defaultOrder) {
-                    dto.setNextCursor(results.get(results.size() - 1).getCursor());
-                } else {
-                    offset = (offset<0) ? 0 : offset;
-                    dto.setNextCursor(offset + maxrows);
+            int p = qp.fillInWhereClause(ps, 7);
+            if (cursorUid != null) {
+                if (sortColumn != null && cursorSortValue != null) {
+                    ps.setLong(p++, cursorSortValue);
                 }
-            } else {
-                dto.setNextCursor(null);
+                ps.setLong(p++, cursorUid);
             }
 
-            //also put in the result, how long the query took to execute
-            long elapsedTime = System.currentTimeMillis() - startTime;
-            //jsonResponse.put("duration_ms",elapsedTime);
-            dto.setDurationMs(elapsedTime);
-
-            if (additionalFields != null) {
-                for (OpenTestDTO result : dto.getResults()) {
-                    if (additionalFields.contains("download_classification")) {
-                        result.setDownloadClassification(Classification.classify(Classification.THRESHOLD_DOWNLOAD, result.getDownloadKbit(), 4));
-                    }
-                    if (additionalFields.contains("upload_classification")) {
-                        result.setUploadClassification(Classification.classify(Classification.THRESHOLD_UPLOAD, result.getUploadKbit(), 4));
-                    }
-                    if (additionalFields.contains("ping_classification")) {
-                        result.setPingClassification(Classification.classify(Classification.THRESHOLD_PING, Math.round(result.getPingMs() * 1000000), 4));
-                    }
-                    if (additionalFields.contains("signal_classification") && (result.getSignalStrength() != null || result.getLteRsrp() != null)) {
-                        if (result.getPlatform().contains("WLAN") ) { // RSSI for Wifi
-                            result.setSignalClassification(Classification.classify(Classification.THRESHOLD_SIGNAL_WIFI, result.getSignalStrength(), 4));
-                        } else if (result.getLteRsrp() != null) {
-                            result.setSignalClassification(Classification.classify(Classification.THRESHOLD_SIGNAL_RSRP,result.getLteRsrp(), 4));
-                        }
-                        else { // RSSI for Mobile
-                            result.setSignalClassification(Classification.classify(Classification.THRESHOLD_SIGNAL_MOBILE, result.getSignalStrength(), 4));
-                        }
+            long count = 0;
+            Long lastSortValue = null;
+            long lastUid = 0;
+            try (ResultSet rs = ps.executeQuery())
+            {
+                final BasicRowProcessor rowProcessor = new BasicRowProcessor(new ResultSetBeanProcessor());
+                while (rs.next())
+                {
+                    final OpenTestDTO result = rowProcessor.toBean(rs, OpenTestDTO.class);
+                    //remember the last test for pagination since rs can only be traversed in one direction
+                    lastUid = result.getCursor();
+                    lastSortValue = rs.getLong("sort_key");
+                    if (rs.wasNull())
+                        lastSortValue = null;
+
+                    if (additionalFields != null) {
+                        addClassifications(result, additionalFields);
                     }
+                    handler.handle(result);
+                    count++;
                 }
             }
 
-        }
-        catch (SQLException ex) {
-            try {
-                //setStatus(Status.CLIENT_ERROR_NOT_FOUND);
-            } catch (JSONException ex1) {
-                Logger.getLogger(OpenTestSearchResource.class.getName()).log(Level.SEVERE, null, ex1);
-            }
-            Logger.getLogger(OpenTestSearchResource.class.getName()).log(Level.SEVERE, null, ex);
+            //if there are more results than we send, use pagination
+            return (count == maxrows) ? qp.formatCursor(lastSortValue, lastUid) : null;
         }
         finally
         {
             try
             {
-                if (rs != null)
-                    rs.close();
-                if (ps != null)
-                    ps.close();
+                conn.rollback();
+                conn.setAutoCommit(autoCommit);
             }
             catch (final SQLException e)
             {
-                Logger.getLogger(OpenTestSearchResource.class.getName()).log(Level.SEVERE, null, e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void addClassifications(OpenTestDTO result, Set<String> additionalFields) {
+        if (additionalFields.contains("download_classification")) {
+            result.setDownloadClassification(Classification.classify(Classification.THRESHOLD_DOWNLOAD, result.getDownloadKbit(), 4));
+        }
+        if (additionalFields.contains("upload_classification")) {
+            result.setUploadClassification(Classification.classify(Classification.THRESHOLD_UPLOAD, result.getUploadKbit(), 4));
+        }
+        if (additionalFields.contains("ping_classification")) {
+            result.setPingClassification(Classification.classify(Classification.THRESHOLD_PING, Math.round(result.getPingMs() * 1000000), 4));
+        }
+        if (additionalFields.contains("signal_classification") && (result.getSignalStrength() != null || result.getLteRsrp() != null)) {
+            if (result.getPlatform().contains("WLAN") ) { // RSSI for Wifi
+                result.setSignalClassification(Classification.classify(Classification.THRESHOLD_SIGNAL_WIFI, result.getSignalStrength(), 4));
+            } else if (result.getLteRsrp() != null) {
+                result.setSignalClassification(Classification.classify(Classification.THRESHOLD_SIGNAL_RSRP,result.getLteRsrp(), 4));
+            }
+            else { // RSSI for Mobile
+                result.setSignalClassification(Classification.classify(Classification.THRESHOLD_SIGNAL_MOBILE, result.getSignalStrength(), 4));
             }
         }
-        return dto;
     }
 
     /**
-     * Get a list of open data test results fro a given time with mid-level details
+     * Receives the open data test results of an export one by one
+     */
+    public interface OpenTestExportHandler {
+        void handle(OpenTestExportDTO result) throws IOException;
+    }
+
+    /**
+     * Bean processor for a single result set: the columns are mapped to the properties once,
+     * not for every row
+     */
+    private static class ResultSetBeanProcessor extends GenerousBeanProcessor {
+        private int[] columnToProperty;
+
+        @Override
+        protected int[] mapColumnsToProperties(ResultSetMetaData rsmd, PropertyDescriptor[] props) throws SQLException {
+            if (columnToProperty == null)
+                columnToProperty = super.mapColumnsToProperties(rsmd, props);
+            return columnToProperty;
+        }
+    }
+
+    /**
+     * Streams the open data test results of a given time with mid-level details to a handler.
+     * The rows are fetched with a cursor ({@link #EXPORT_FETCH_SIZE} rows at a time), so the memory
+     * does not depend on the number of tests. The connection is used in a transaction while the rows are fetched.
      * @param hoursExport true, if export should be done for hours
      * @param dateExport true, if export should be done for a given date
      * @param year
      * @param month
      * @param hours get tests of the last X hours
-     * @return
+     * @param handler receives the results in the order of the tests
+     * @return the number of results
+     * @throws SQLException
+     * @throws IOException if the handler fails
      */
-    public List<OpenTestExportDTO> getOpenTestExport(boolean hoursExport, boolean dateExport, int year, int month, int hours) {
+    public long getOpenTestExport(boolean hoursExport, boolean dateExport, int year, int month, int hours,
+                                  OpenTestExportHandler handler) throws SQLException, IOException {
         final String timeClause;
 
         if (dateExport)
@@ -816,7 +897,64 @@ public class OpenTestDAO {
         else
             timeClause = " AND time > current_date - interval '31 days' ";
 
+        return getOpenTestExport(timeClause, Collections.emptyList(), handler);
+    }
+
+    /**
+     * Streams the open data test results of a range of tests to a handler, see
+     * {@link #getOpenTestExport(boolean, boolean, int, int, int, OpenTestExportHandler)}
+     * @param fromUid only tests with a higher uid, null for no limit
+     * @param toUid only tests with this or a lower uid, null for no limit
+     * @param from only tests started at or after this time
+     * @param to only tests started before this time, null for no limit
+     * @param handler receives the results in the order of the tests
+     * @return the number of results
+     * @throws SQLException
+     * @throws IOException if the handler fails
+     */
+    public long getOpenTestExport(Long fromUid, Long toUid, Timestamp from, Timestamp to,
+                                  OpenTestExportHandler handler) throws SQLException, IOException {
+        final StringBuilder timeClause = new StringBuilder(" AND time >= ?");
+        final List<Object> params = new ArrayList<>();
+        params.add(from);
+        if (to != null) {
+            timeClause.append(" AND time < ?");
+            params.add(to);
+        }
+        if (fromUid != null) {
+            timeClause.append(" AND t.uid > ?");
+            params.add(fromUid);
+        }
+        if (toUid != null) {
+            timeClause.append(" AND t.uid <= ?");
+            params.add(toUid);
+        }
+        return getOpenTestExport(timeClause.toString(), params, handler);
+    }
 
+    /**
+     * Get the highest uid of the tests which have been started a given time ago. Tests with
+     * this or a lower uid are not expected to be finished any more
+     * @param minutes
+     * @return the uid, null if there are no tests
+     * @throws SQLException
+     */
+    public Long getSettledTestUid(int minutes) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT max(uid) FROM test WHERE time < now() - ? * interval '1 minute'"))
+        {
+            ps.setInt(1, minutes);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                if (!rs.next())
+                    return null;
+                final long uid = rs.getLong(1);
+                return rs.wasNull() ? null : uid;
+            }
+        }
+    }
+
+    private long getOpenTestExport(String timeClause, List<Object> timeParams,
+                                   OpenTestExportHandler handler) throws SQLException, IOException {
         final String sql = "SELECT" +
                 " ('P' || t.open_uuid) open_uuid," +
                 " ('O' || t.open_test_uuid) open_test_uuid," +
@@ -895,15 +1033,12 @@ public class OpenTestDAO {
                 " AND status = 'FINISHED'" +
                 " ORDER BY t.uid";
 
-        final String[] columns;
-        final List<String[]> data = new ArrayList<>();
-        PreparedStatement ps = null;
-        ResultSet rs = null;
-
-        final List<OpenTestExportDTO> results;
-        try
+        final boolean autoCommit = conn.getAutoCommit();
+        // the driver only uses a cursor within a transaction
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
         {
-            ps = conn.prepareStatement(sql);
+            ps.setFetchSize(EXPORT_FETCH_SIZE);
 
             //insert filter for accuracy
             double accuracy = Double.parseDouble(settings.getString("RMBT_GEO_ACCURACY_DETAIL_LIMIT"));
@@ -914,29 +1049,28 @@ public class OpenTestDAO {
             ps.setDouble(5, accuracy);
             ps.setDouble(6, accuracy);
 
-            if (!ps.execute())
-                return null;
-            rs = ps.getResultSet();
-
-
-            BeanListHandler<OpenTestExportDTO> handler = new BeanListHandler<>(OpenTestExportDTO.class,new BasicRowProcessor(new GenerousBeanProcessor()));
-            results = handler.handle(rs);
-            return results;
+            int p = 7;
+            for (Object param : timeParams)
+                ps.setObject(p++, param);
 
-        }
-        catch (final SQLException e)
-        {
-            e.printStackTrace();
-            return null;
+            long count = 0;
+            try (ResultSet rs = ps.executeQuery())
+            {
+                final BasicRowProcessor rowProcessor = new BasicRowProcessor(new ResultSetBeanProcessor());
+                while (rs.next())
+                {
+                    handler.handle(rowProcessor.toBean(rs, OpenTestExportDTO.class));
+                    count++;
+                }
+            }
+            return count;
         }
         finally
         {
             try
             {
-                if (rs != null)
-                    rs.close();
-                if (ps != null)
-                    ps.close();
+                conn.rollback();
+                conn.setAutoCommit(autoCommit);
             }
             catch (final SQLException e)
             {
@@ -8,20 +8,20 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class OpenTestSearchDTO {
-    private Long nextCursor;
+    private Object nextCursor;
     private Long durationMs;
     private String error;
     private List<OpenTestDTO> results = new ArrayList<>();
     private List<String> invalidFields = new ArrayList<>();
 
     @JsonProperty("next_cursor")
-    @ApiModelProperty(value = "cursor for next page",
+    @ApiModelProperty(value = "cursor for next page, a number unless the results are sorted by sort_by",
             example = "866505")
-    public Long getNextCursor() {
+    public Object getNextCursor() {
         return nextCursor;
     }
 
-    public void setNextCursor(Long nextCursor) {
+    public void setNextCursor(Object nextCursor) {
         this.nextCursor = nextCursor;
     }
 
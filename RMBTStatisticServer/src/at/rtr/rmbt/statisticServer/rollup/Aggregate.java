@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.statisticServer.rollup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import at.rtr.rmbt.shared.Classification;
+import at.rtr.rmbt.shared.sketch.Varint;
+import at.rtr.rmbt.statisticServer.rollup.Measure.Scale;
+
+/**
+ * Aggregated results of a group of tests, stored as <code>data</code> of the rollup tables.
+ * <p>
+ * The signal is only aggregated for tests whose network type has a single signal column, see
+ * {@link RollupAggregation}; it is classified with the thresholds of the network type.
+ */
+public final class Aggregate
+{
+    private static final int VERSION = 1;
+
+    private long count = 0;
+    private final Measure down = new Measure(Scale.LOG);
+    private final Measure up = new Measure(Scale.LOG);
+    private final Measure ping = new Measure(Scale.LOG);
+    private final Measure signal = new Measure(Scale.EXACT);
+
+    void add(boolean counted, Long speedDownload, Long speedUpload, Long pingMedian, Long signalValue, int[] signalThresholds)
+    {
+        if (counted)
+            count++;
+        if (speedDownload != null)
+            down.add(speedDownload, Classification.THRESHOLD_DOWNLOAD);
+        if (speedUpload != null)
+            up.add(speedUpload, Classification.THRESHOLD_UPLOAD);
+        if (pingMedian != null)
+            ping.add(pingMedian, Classification.THRESHOLD_PING);
+        if (signalValue != null && signalThresholds != null)
+            signal.add(signalValue, signalThresholds);
+    }
+
+    public void addAll(Aggregate other)
+    {
+        count += other.count;
+        down.addAll(other.down);
+        up.addAll(other.up);
+        ping.addAll(other.ping);
+        signal.addAll(other.signal);
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public Measure getDown()
+    {
+        return down;
+    }
+
+    public Measure getUp()
+    {
+        return up;
+    }
+
+    public Measure getPing()
+    {
+        return ping;
+    }
+
+    public Measure getSignal()
+    {
+        return signal;
+    }
+
+    byte[] encode()
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(VERSION);
+        Varint.write(out, count);
+        down.encode(out);
+        up.encode(out);
+        ping.encode(out);
+        signal.encode(out);
+        return out.toByteArray();
+    }
+
+    /**
+     *
+     * @throws IllegalArgumentException if the data is invalid
+     */
+    static Aggregate decode(byte[] data)
+    {
+        final ByteBuffer in = ByteBuffer.wrap(data);
+        if (!in.hasRemaining() || in.get() != VERSION)
+            throw new IllegalArgumentException("unknown version of aggregate");
+        final Aggregate aggregate = new Aggregate();
+        aggregate.count = Varint.read(in);
+        aggregate.down.addAll(Measure.decode(in, Scale.LOG));
+        aggregate.up.addAll(Measure.decode(in, Scale.LOG));
+        aggregate.ping.addAll(Measure.decode(in, Scale.LOG));
+        aggregate.signal.addAll(Measure.decode(in, Scale.EXACT));
+        return aggregate;
+    }
+}
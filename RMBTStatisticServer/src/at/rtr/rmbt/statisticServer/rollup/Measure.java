@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.statisticServer.rollup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import at.rtr.rmbt.shared.Classification;
+import at.rtr.rmbt.shared.sketch.QuantileSketch;
+import at.rtr.rmbt.shared.sketch.Varint;
+
+/**
+ * Values of one measurement (e.g. the download speed) of a group of tests: a {@link QuantileSketch} and
+ * the exact number of values per class of {@link Classification} (ultra green, green, yellow, red).
+ */
+public final class Measure
+{
+    /**
+     * mapping of the values to the buckets of the sketch
+     */
+    enum Scale
+    {
+        /**
+         * buckets growing by {@link #GAMMA} for values &gt;= 1, so a quantile is estimated with a relative error
+         * of at most 1% for any range of values (speeds, ping); one bucket for all values &lt; 1
+         */
+        LOG,
+        /**
+         * one bucket per value (signal strength); the values must span less than {@link QuantileSketch#MAX_RANGE}
+         */
+        EXACT
+    }
+
+    public static final int CLASSES = 4;
+
+    static final double GAMMA = 1.02;
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    private final Scale scale;
+    private final QuantileSketch sketch = new QuantileSketch();
+    private final long[] classes = new long[CLASSES];
+
+    Measure(Scale scale)
+    {
+        this.scale = scale;
+    }
+
+    /**
+     *
+     * @param value
+     * @param thresholds thresholds of {@link Classification}, inverse if ascending
+     */
+    void add(long value, int[] thresholds)
+    {
+        sketch.add(getBucket(value), 1);
+        classes[CLASSES - Classification.classify(thresholds, value, CLASSES)]++;
+    }
+
+    void addAll(Measure other)
+    {
+        if (other.scale != scale)
+            throw new IllegalArgumentException("different scale");
+        sketch.addAll(other.sketch);
+        for (int i = 0; i < CLASSES; i++)
+            classes[i] += other.classes[i];
+    }
+
+    /**
+     *
+     * @return the number of values
+     */
+    public long getCount()
+    {
+        return sketch.getCount();
+    }
+
+    /**
+     *
+     * @param quantile
+     * @return the estimated value with the same rank as the <code>quantile</code> aggregate
+     *         (see {@link QuantileSketch#getBucket(double)}), null if there are no values
+     */
+    public Long getQuantile(double quantile)
+    {
+        if (sketch.getCount() == 0)
+            return null;
+        return getValue(sketch.getBucket(quantile));
+    }
+
+    /**
+     *
+     * @param from first class (0: ultra green)
+     * @param to last class (inclusive)
+     * @return the share of the values in the classes, null if there are no values
+     */
+    public Double getShare(int from, int to)
+    {
+        final long count = getCount();
+        if (count == 0)
+            return null;
+        long n = 0;
+        for (int i = from; i <= to; i++)
+            n += classes[i];
+        return (double) n / count;
+    }
+
+    /**
+     * puts the shares of the classes like the class clauses of the statistics query:
+     * <code>&lt;jsonKey&gt;_ultragreen</code> (only if ultraGreen), <code>_green</code>, <code>_yellow</code> and <code>_red</code>
+     *
+     * @param row
+     * @param jsonKey
+     * @param ultraGreen if false, the ultra green values count as green
+     */
+    public void putShares(Map<String, Object> row, String jsonKey, boolean ultraGreen)
+    {
+        if (ultraGreen)
+        {
+            row.put(jsonKey + "_ultragreen", getShare(0, 0));
+            row.put(jsonKey + "_green", getShare(1, 1));
+        }
+        else
+            row.put(jsonKey + "_green", getShare(0, 1));
+        row.put(jsonKey + "_yellow", getShare(2, 2));
+        row.put(jsonKey + "_red", getShare(3, 3));
+    }
+
+    private int getBucket(long value)
+    {
+        if (scale == Scale.EXACT)
+            return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+        if (value < 1)
+            return 0;
+        // bucket b >= 1 holds the values in (GAMMA^(b-2), GAMMA^(b-1)]
+        return 1 + (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    /**
+     *
+     * @return the value which represents a bucket with the smallest relative error
+     */
+    private long getValue(int bucket)
+    {
+        if (scale == Scale.EXACT)
+            return bucket;
+        if (bucket == 0)
+            return 0;
+        return Math.round(2 * Math.pow(GAMMA, bucket - 1) / (GAMMA + 1));
+    }
+
+    void encode(ByteArrayOutputStream out)
+    {
+        for (final long n : classes)
+            Varint.write(out, n);
+        sketch.encode(out);
+    }
+
+    static Measure decode(ByteBuffer in, Scale scale)
+    {
+        final Measure measure = new Measure(scale);
+        for (int i = 0; i < CLASSES; i++)
+            measure.classes[i] = Varint.read(in);
+        measure.sketch.addAll(QuantileSketch.decode(in));
+        return measure;
+    }
+}
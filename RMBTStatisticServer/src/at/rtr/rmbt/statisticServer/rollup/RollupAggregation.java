@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.statisticServer.rollup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import at.rtr.rmbt.shared.Classification;
+
+/**
+ * Aggregates the tests of a period in one pass over the <code>test</code> table, with the same selection
+ * as the statistics which are answered from the rollups:
+ * <ul>
+ * <li>{@link #providers} and {@link #devices}: finished, plausible and pinned tests (see <code>StatisticsResource</code>)</li>
+ * <li>{@link #hours}: finished and plausible tests by the hour in the time zone of the test,
+ * counting tests with an open test uuid (see <code>IntradayResource</code>)</li>
+ * <li>usage: all tests (see <code>UsageJSONResource</code>)</li>
+ * </ul>
+ * Deleted tests are always skipped. Used by the {@link StatisticRollupBuilder} for a day, and by
+ * {@link StatisticRollups} for the parts of a period which are not covered by whole days.
+ */
+final class RollupAggregation
+{
+    private static final boolean ONLY_PINNED = true;
+    private static final int FETCH_SIZE = 10000;
+
+    /**
+     * plausible range of the signal in dBm; the signal is reported by the client and the sketch of the signal
+     * has a bucket per value, so values outside are not aggregated
+     */
+    static final long MIN_SIGNAL = -150;
+    static final long MAX_SIGNAL = 0;
+
+    private static final String SQL = "SELECT t.status, t.implausible, t.pinned, t.client_id, t.client_public_ip,"
+            + " nt.type, nt.group_name, t.provider_id, t.mobile_provider_id, COALESCE(adm.fullname, t.model) model,"
+            + " t.speed_download, t.speed_upload, t.ping_median, t.signal_strength, t.lte_rsrp,"
+            + " extract(hour from t.time AT TIME ZONE t.timezone)::int AS hour,"
+            + " t.open_test_uuid IS NOT NULL AS open_test"
+            + " FROM test t"
+            + " LEFT JOIN network_type nt ON nt.uid=t.network_type"
+            + " LEFT JOIN device_map adm ON adm.codename=t.model"
+            + " WHERE t.deleted = false";
+
+    /**
+     * key: type, group_name (of the network type), provider_id (<code>mobile_provider_id</code> for mobile tests)
+     */
+    final Map<List<Object>, Aggregate> providers = new HashMap<>();
+
+    /**
+     * key: type, group_name, model, mobile_provider (if the test has a mobile provider)
+     */
+    final Map<List<Object>, Aggregate> devices = new HashMap<>();
+
+    /**
+     * key: hour (null if the test has no time zone)
+     */
+    final Map<Integer, Aggregate> hours = new HashMap<>();
+
+    long tests = 0;
+    long finished = 0;
+    long aborted = 0;
+    final Set<Long> clients = new HashSet<>();
+    final Set<String> ips = new HashSet<>();
+
+    /**
+     * adds the tests with from &lt;(=) time &lt;(=) to
+     *
+     * @param from lower bound of the time, null if unbounded
+     * @param to upper bound of the time, null if unbounded
+     * @param where additional condition on the test (alias <code>t</code>) and network type (alias <code>nt</code>), may be null
+     * @throws SQLException
+     */
+    void query(Connection conn, Timestamp from, boolean fromInclusive, Timestamp to, boolean toInclusive, String where) throws SQLException
+    {
+        final StringBuilder sql = new StringBuilder(SQL);
+        if (from != null)
+            sql.append(fromInclusive ? " AND t.time >= ?" : " AND t.time > ?");
+        if (to != null)
+            sql.append(toInclusive ? " AND t.time <= ?" : " AND t.time < ?");
+        if (where != null)
+            sql.append(" AND (").append(where).append(")");
+
+        final boolean autoCommit = conn.getAutoCommit();
+        // the driver only uses a cursor within a transaction; a transaction of the caller is left alone
+        if (autoCommit)
+            conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+        {
+            ps.setFetchSize(FETCH_SIZE);
+            final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+            int p = 1;
+            if (from != null)
+                ps.setTimestamp(p++, from, cal);
+            if (to != null)
+                ps.setTimestamp(p++, to, cal);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                while (rs.next())
+                    add(rs);
+            }
+        }
+        finally
+        {
+            if (autoCommit)
+            {
+                try
+                {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+                catch (final SQLException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    void add(ResultSet rs) throws SQLException
+    {
+        final String status = rs.getString("status");
+        tests++;
+        if ("FINISHED".equals(status))
+            finished++;
+        else if ("ABORTED".equals(status))
+            aborted++;
+        final Long clientId = getLong(rs, "client_id");
+        if (clientId != null)
+            clients.add(clientId);
+        final String ip = rs.getString("client_public_ip");
+        if (ip != null)
+            ips.add(ip);
+
+        if (!"FINISHED".equals(status) || rs.getBoolean("implausible"))
+            return;
+
+        final Long down = getLong(rs, "speed_download");
+        final Long up = getLong(rs, "speed_upload");
+        final Long ping = getLong(rs, "ping_median");
+
+        final Integer hour = (Integer) rs.getObject("hour");
+        getAggregate(hours, hour).add(rs.getBoolean("open_test"), down, up, ping, null, null);
+
+        if (ONLY_PINNED && !rs.getBoolean("pinned"))
+            return;
+
+        final String type = rs.getString("type");
+        final String group = rs.getString("group_name");
+
+        // same signal column and thresholds as StatisticsResource for the network type
+        Long signal = null;
+        int[] signalThresholds = null;
+        if ("WLAN".equals(type))
+        {
+            signal = getLong(rs, "signal_strength");
+            signalThresholds = Classification.THRESHOLD_SIGNAL_WIFI;
+        }
+        else if ("2G".equals(group) || "3G".equals(group))
+        {
+            signal = getLong(rs, "signal_strength");
+            signalThresholds = Classification.THRESHOLD_SIGNAL_MOBILE;
+        }
+        else if ("4G".equals(group) || "5G".equals(group))
+        {
+            signal = getLong(rs, "lte_rsrp");
+            signalThresholds = Classification.THRESHOLD_SIGNAL_MOBILE;
+        }
+        if (signal != null && (signal < MIN_SIGNAL || signal > MAX_SIGNAL))
+            signal = null;
+
+        final Long mobileProviderId = getLong(rs, "mobile_provider_id");
+        final Long providerId = "MOBILE".equals(type) ? mobileProviderId : getLong(rs, "provider_id");
+        if (providerId != null)
+            getAggregate(providers, Arrays.<Object> asList(type, group, providerId))
+                    .add(true, down, up, ping, signal, signalThresholds);
+
+        getAggregate(devices, Arrays.<Object> asList(type, group, rs.getString("model"), mobileProviderId != null))
+                .add(true, down, up, ping, signal, signalThresholds);
+    }
+
+    private static <K> Aggregate getAggregate(Map<K, Aggregate> map, K key)
+    {
+        Aggregate aggregate = map.get(key);
+        if (aggregate == null)
+        {
+            aggregate = new Aggregate();
+            map.put(key, aggregate);
+        }
+        return aggregate;
+    }
+
+    private static Long getLong(ResultSet rs, String column) throws SQLException
+    {
+        final long value = rs.getLong(column);
+        return rs.wasNull() ? null : value;
+    }
+}
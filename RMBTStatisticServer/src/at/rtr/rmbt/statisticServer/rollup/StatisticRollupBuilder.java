@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.statisticServer.rollup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the rollups of the tests per day (in the time zone of the database) and keeps them up to date:
+ * <ul>
+ * <li>{@link #update()} adds the days which have ended (at least {@link #SETTLE_INTERVAL} ago) since the last run,
+ * and adds up to {@link #BACKFILL_DAYS} days before the first day until the day of the first test is reached</li>
+ * <li>{@link #rebuild()} builds the last {@link #REBUILD_DAYS} days again, which takes tests that have been finished late
+ * or marked deleted or implausible since into account</li>
+ * </ul>
+ * The days from <code>from_day</code> (inclusive) to <code>to_day</code> (exclusive) of <code>statistic_rollup_state</code>
+ * are always contiguous, every day is built in a transaction of its own.
+ * Not thread safe; the builds must not run concurrently (see {@link StatisticRollupContextListener}).
+ */
+public class StatisticRollupBuilder
+{
+    private static final String SETTLE_INTERVAL = "1 hour";
+    private static final int BACKFILL_DAYS = 31;
+    private static final int REBUILD_DAYS = 7;
+    private static final int BATCH_SIZE = 1000;
+
+    private final Connection conn;
+
+    public StatisticRollupBuilder(Connection conn)
+    {
+        this.conn = conn;
+    }
+
+    /**
+     * adds the days which have ended since the last update and continues the backfill
+     * @throws SQLException
+     */
+    public void update() throws SQLException
+    {
+        final Timestamp end = getTimestamp("SELECT date_trunc('day', now() - ?::interval)", SETTLE_INTERVAL);
+
+        Timestamp fromDay;
+        Timestamp toDay;
+        boolean complete;
+        try (PreparedStatement ps = conn.prepareStatement("SELECT from_day, to_day, complete FROM statistic_rollup_state");
+                ResultSet rs = ps.executeQuery())
+        {
+            if (rs.next())
+            {
+                fromDay = rs.getTimestamp("from_day");
+                toDay = rs.getTimestamp("to_day");
+                complete = rs.getBoolean("complete");
+            }
+            else
+            {
+                fromDay = null;
+                toDay = null;
+                complete = false;
+            }
+        }
+
+        if (fromDay == null)
+        {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO statistic_rollup_state (from_day, to_day, complete, time) VALUES (?, ?, false, now())"))
+            {
+                ps.setTimestamp(1, end);
+                ps.setTimestamp(2, end);
+                ps.executeUpdate();
+            }
+            fromDay = end;
+            toDay = end;
+        }
+
+        while (toDay.before(end))
+        {
+            final Timestamp next = getDay(toDay, 1);
+            build(toDay, next);
+            toDay = next;
+        }
+
+        if (!complete)
+        {
+            final Timestamp firstDay = getTimestamp("SELECT date_trunc('day', min(time)) FROM test", null);
+            for (int i = 0; i < BACKFILL_DAYS && firstDay != null && fromDay.after(firstDay); i++)
+            {
+                final Timestamp previous = getDay(fromDay, -1);
+                build(previous, fromDay);
+                fromDay = previous;
+            }
+            if (firstDay == null || !fromDay.after(firstDay))
+            {
+                try (PreparedStatement ps = conn.prepareStatement("UPDATE statistic_rollup_state SET complete = true, time = now()"))
+                {
+                    ps.executeUpdate();
+                }
+                System.out.println("statistic rollups complete from " + fromDay);
+            }
+        }
+    }
+
+    /**
+     * builds the last days again and updates the rollups
+     * @throws SQLException
+     */
+    public void rebuild() throws SQLException
+    {
+        Timestamp day = null;
+        Timestamp toDay = null;
+        try (PreparedStatement ps = conn.prepareStatement("SELECT greatest(from_day, to_day - ?::interval), to_day FROM statistic_rollup_state"))
+        {
+            ps.setString(1, String.format("%d days", REBUILD_DAYS));
+            try (ResultSet rs = ps.executeQuery())
+            {
+                if (rs.next())
+                {
+                    day = rs.getTimestamp(1);
+                    toDay = rs.getTimestamp(2);
+                }
+            }
+        }
+        while (day != null && day.before(toDay))
+        {
+            final Timestamp next = getDay(day, 1);
+            build(day, next);
+            day = next;
+        }
+        update();
+    }
+
+    /**
+     * replaces the rollups of a day and extends the state to the day
+     *
+     * @param day start of the day
+     * @param next start of the next day
+     * @throws SQLException
+     */
+    private void build(Timestamp day, Timestamp next) throws SQLException
+    {
+        final boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try
+        {
+            final long start = System.currentTimeMillis();
+            final RollupAggregation aggregation = new RollupAggregation();
+            aggregation.query(conn, day, true, next, false, null);
+
+            for (final String table : new String[] { "statistic_rollup_provider", "statistic_rollup_device",
+                    "statistic_rollup_intraday", "statistic_rollup_usage" })
+            {
+                try (PreparedStatement ps = conn.prepareStatement("DELETE FROM " + table + " WHERE day = ?"))
+                {
+                    ps.setTimestamp(1, day);
+                    ps.executeUpdate();
+                }
+            }
+
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO statistic_rollup_provider (day, type, group_name, provider_id, data) VALUES (?, ?, ?, ?, ?)"))
+            {
+                int batch = 0;
+                for (final Map.Entry<List<Object>, Aggregate> entry : aggregation.providers.entrySet())
+                {
+                    final List<Object> key = entry.getKey();
+                    int p = 1;
+                    ps.setTimestamp(p++, day);
+                    ps.setString(p++, (String) key.get(0));
+                    ps.setString(p++, (String) key.get(1));
+                    ps.setLong(p++, (Long) key.get(2));
+                    ps.setBytes(p++, entry.getValue().encode());
+                    ps.addBatch();
+                    if (++batch >= BATCH_SIZE)
+                    {
+                        ps.executeBatch();
+                        batch = 0;
+                    }
+                }
+                if (batch > 0)
+                    ps.executeBatch();
+            }
+
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO statistic_rollup_device (day, type, group_name, model, mobile_provider, data) VALUES (?, ?, ?, ?, ?, ?)"))
+            {
+                int batch = 0;
+                for (final Map.Entry<List<Object>, Aggregate> entry : aggregation.devices.entrySet())
+                {
+                    final List<Object> key = entry.getKey();
+                    int p = 1;
+                    ps.setTimestamp(p++, day);
+                    ps.setString(p++, (String) key.get(0));
+                    ps.setString(p++, (String) key.get(1));
+                    ps.setString(p++, (String) key.get(2));
+                    ps.setBoolean(p++, (Boolean) key.get(3));
+                    ps.setBytes(p++, entry.getValue().encode());
+                    ps.addBatch();
+                    if (++batch >= BATCH_SIZE)
+                    {
+                        ps.executeBatch();
+                        batch = 0;
+                    }
+                }
+                if (batch > 0)
+                    ps.executeBatch();
+            }
+
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO statistic_rollup_intraday (day, hour, data) VALUES (?, ?, ?)"))
+            {
+                for (final Map.Entry<Integer, Aggregate> entry : aggregation.hours.entrySet())
+                {
+                    ps.setTimestamp(1, day);
+                    ps.setObject(2, entry.getKey(), Types.SMALLINT);
+                    ps.setBytes(3, entry.getValue().encode());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+
+            if (aggregation.tests > 0)
+            {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "INSERT INTO statistic_rollup_usage (day, tests, finished, aborted, clients, ips) VALUES (?, ?, ?, ?, ?, ?)"))
+                {
+                    int p = 1;
+                    ps.setTimestamp(p++, day);
+                    ps.setLong(p++, aggregation.tests);
+                    ps.setLong(p++, aggregation.finished);
+                    ps.setLong(p++, aggregation.aborted);
+                    ps.setLong(p++, aggregation.clients.size());
+                    ps.setLong(p++, aggregation.ips.size());
+                    ps.executeUpdate();
+                }
+            }
+
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE statistic_rollup_state SET from_day = least(from_day, ?), to_day = greatest(to_day, ?), time = now()"))
+            {
+                ps.setTimestamp(1, day);
+                ps.setTimestamp(2, next);
+                ps.executeUpdate();
+            }
+
+            conn.commit();
+            System.out.println("statistic rollups built for " + day + ": " + aggregation.tests + " tests in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        catch (final SQLException | RuntimeException e)
+        {
+            conn.rollback();
+            throw e;
+        }
+        finally
+        {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     *
+     * @return the start of the day which is the given number of days after (or before) a day
+     */
+    private Timestamp getDay(Timestamp day, int days) throws SQLException
+    {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT ?::timestamptz + ?::interval"))
+        {
+            ps.setTimestamp(1, day);
+            ps.setString(2, String.format("%d days", days));
+            try (ResultSet rs = ps.executeQuery())
+            {
+                rs.next();
+                return rs.getTimestamp(1);
+            }
+        }
+    }
+
+    private Timestamp getTimestamp(String sql, String param) throws SQLException
+    {
+        try (PreparedStatement ps = conn.prepareStatement(sql))
+        {
+            if (param != null)
+                ps.setString(1, param);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                return rs.next() ? rs.getTimestamp(1) : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package at.rtr.rmbt.statisticServer.rollup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Reads the statistics of a period from the rollups of the {@link StatisticRollupBuilder}: the whole days of the
+ * period are merged from the rollups, the rest at the start and the end of the period (usually a part of a day,
+ * and the days since the last update) is aggregated from the tests.
+ */
+public final class StatisticRollups
+{
+    /**
+     * if the rollups end longer before the end of the period, the statistics are not read from the rollups
+     */
+    private static final String MAX_TAIL = "3 days";
+
+    private StatisticRollups()
+    {
+    }
+
+    /**
+     * a period whose whole days are covered by the rollups
+     */
+    public static final class Window
+    {
+        private Timestamp from;
+        private Timestamp to;
+        private boolean toInclusive;
+        private Timestamp rollupFrom;
+        private Timestamp rollupTo;
+
+        private Window()
+        {
+        }
+
+        /**
+         * aggregates the tests of the period which are not covered by the rollups
+         */
+        private RollupAggregation queryRest(Connection conn, String where) throws SQLException
+        {
+            final RollupAggregation aggregation = new RollupAggregation();
+            if (from != null)
+                aggregation.query(conn, from, false, rollupFrom, false, where);
+            aggregation.query(conn, rollupTo, true, to, toInclusive, where);
+            return aggregation;
+        }
+    }
+
+    /**
+     * statistics of the providers and devices
+     */
+    public static final class Statistics
+    {
+        /**
+         * key: provider uid
+         */
+        public final Map<Long, Aggregate> providers = new HashMap<>();
+
+        /**
+         * key: model (device name)
+         */
+        public final Map<String, Aggregate> devices = new HashMap<>();
+    }
+
+    /**
+     * period end - durationDays &lt; time &lt;= end
+     *
+     * @param end end of the period, now if null (unbounded)
+     * @param durationDays
+     * @return the window, null if the rollups do not cover the period
+     * @throws SQLException
+     */
+    public static Window getWindow(Connection conn, Timestamp end, int durationDays) throws SQLException
+    {
+        return getWindow(conn, "COALESCE(?::timestamptz, now()) - ?::interval", end, String.format("%d days", durationDays), end, true);
+    }
+
+    /**
+     * period from &lt; time &lt; to
+     *
+     * @param from start of the period, null if unbounded
+     * @param to end of the period, null if unbounded
+     * @return the window, null if the rollups do not cover the period
+     * @throws SQLException
+     */
+    public static Window getWindow(Connection conn, Timestamp from, Timestamp to) throws SQLException
+    {
+        return getWindow(conn, "?::timestamptz", from, null, to, false);
+    }
+
+    private static Window getWindow(Connection conn, String fromSQL, Timestamp fromParam, String fromInterval, Timestamp to, boolean toInclusive)
+            throws SQLException
+    {
+        final String sql = "SELECT w.from_time, date_trunc('day', w.from_time) + '1 day'::interval first_day,"
+                + " date_trunc('day', COALESCE(w.to_time, now())) end_day,"
+                + " COALESCE(w.to_time, now()) - ?::interval min_end_day,"
+                + " s.from_day, s.to_day, s.complete"
+                + " FROM (SELECT " + fromSQL + " from_time, ?::timestamptz to_time) w"
+                + " CROSS JOIN statistic_rollup_state s";
+
+        final Window window = new Window();
+        final Timestamp endDay;
+        final Timestamp minEndDay;
+        try (PreparedStatement ps = conn.prepareStatement(sql))
+        {
+            final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+            int p = 1;
+            ps.setString(p++, MAX_TAIL);
+            ps.setTimestamp(p++, fromParam, cal);
+            if (fromInterval != null)
+                ps.setString(p++, fromInterval);
+            ps.setTimestamp(p++, to, cal);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                if (!rs.next())
+                    return null;
+                window.from = rs.getTimestamp("from_time");
+                window.to = to;
+                window.toInclusive = toInclusive;
+
+                final Timestamp fromDay = rs.getTimestamp("from_day");
+                if (window.from == null || rs.getTimestamp("first_day").before(fromDay))
+                {
+                    // no tests before the first day if the rollups are complete
+                    if (!rs.getBoolean("complete"))
+                        return null;
+                    window.rollupFrom = fromDay;
+                }
+                else
+                    window.rollupFrom = rs.getTimestamp("first_day");
+
+                final Timestamp toDay = rs.getTimestamp("to_day");
+                endDay = rs.getTimestamp("end_day");
+                window.rollupTo = endDay.before(toDay) ? endDay : toDay;
+                minEndDay = rs.getTimestamp("min_end_day");
+            }
+        }
+
+        if (!window.rollupFrom.before(window.rollupTo) || window.rollupTo.before(minEndDay))
+            return null;
+        return window;
+    }
+
+    /**
+     * statistics of the finished, plausible and pinned tests of the window
+     *
+     * @param where condition on the network type (alias <code>nt</code>), as for the tests
+     * @param mobileProvider only devices of tests with a mobile provider
+     * @throws SQLException
+     */
+    public static Statistics getStatistics(Connection conn, Window window, String where, boolean mobileProvider) throws SQLException
+    {
+        final Statistics statistics = new Statistics();
+
+        try (PreparedStatement ps = conn.prepareStatement("SELECT nt.provider_id, nt.data FROM statistic_rollup_provider nt"
+                + " WHERE nt.day >= ? AND nt.day < ? AND (" + where + ")"))
+        {
+            ps.setTimestamp(1, window.rollupFrom);
+            ps.setTimestamp(2, window.rollupTo);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                while (rs.next())
+                    merge(statistics.providers, rs.getLong("provider_id"), Aggregate.decode(rs.getBytes("data")));
+            }
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement("SELECT nt.model, nt.data FROM statistic_rollup_device nt"
+                + " WHERE nt.day >= ? AND nt.day < ? AND (" + where + ")"
+                + (mobileProvider ? " AND nt.mobile_provider" : "")))
+        {
+            ps.setTimestamp(1, window.rollupFrom);
+            ps.setTimestamp(2, window.rollupTo);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                while (rs.next())
+                    merge(statistics.devices, rs.getString("model"), Aggregate.decode(rs.getBytes("data")));
+            }
+        }
+
+        final RollupAggregation rest = window.queryRest(conn, where);
+        for (final Map.Entry<List<Object>, Aggregate> entry : rest.providers.entrySet())
+            merge(statistics.providers, (Long) entry.getKey().get(2), entry.getValue());
+        for (final Map.Entry<List<Object>, Aggregate> entry : rest.devices.entrySet())
+            if (!mobileProvider || (Boolean) entry.getKey().get(3))
+                merge(statistics.devices, (String) entry.getKey().get(2), entry.getValue());
+
+        return statistics;
+    }
+
+    /**
+     * statistics of the finished and plausible tests of the window by the hour in the time zone of the test
+     *
+     * @return key: hour, null if the test has no time zone
+     * @throws SQLException
+     */
+    public static Map<Integer, Aggregate> getHours(Connection conn, Window window) throws SQLException
+    {
+        final Map<Integer, Aggregate> hours = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT hour, data FROM statistic_rollup_intraday"
+                + " WHERE day >= ? AND day < ?"))
+        {
+            ps.setTimestamp(1, window.rollupFrom);
+            ps.setTimestamp(2, window.rollupTo);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                while (rs.next())
+                {
+                    final int hour = rs.getInt("hour");
+                    merge(hours, rs.wasNull() ? null : hour, Aggregate.decode(rs.getBytes("data")));
+                }
+            }
+        }
+
+        final RollupAggregation rest = window.queryRest(conn, null);
+        for (final Map.Entry<Integer, Aggregate> entry : rest.hours.entrySet())
+            merge(hours, entry.getKey(), entry.getValue());
+        return hours;
+    }
+
+    /**
+     * The usage of the days from begin to the result can be read from <code>statistic_rollup_usage</code>,
+     * the usage from the result to end has to be aggregated from the tests.
+     *
+     * @param begin start of a day
+     * @param end
+     * @return the end of the days covered by the rollups, begin if the rollups cannot be used
+     * @throws SQLException
+     */
+    public static Timestamp getUsageEnd(Connection conn, Timestamp begin, Timestamp end) throws SQLException
+    {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT date_trunc('day', ?::timestamptz) begin_day,"
+                + " date_trunc('day', ?::timestamptz) end_day, from_day, to_day, complete FROM statistic_rollup_state"))
+        {
+            ps.setTimestamp(1, begin);
+            ps.setTimestamp(2, end);
+            try (ResultSet rs = ps.executeQuery())
+            {
+                if (!rs.next() || !rs.getTimestamp("begin_day").equals(begin)
+                        || (begin.before(rs.getTimestamp("from_day")) && !rs.getBoolean("complete")))
+                    return begin;
+                final Timestamp endDay = rs.getTimestamp("end_day");
+                final Timestamp toDay = rs.getTimestamp("to_day");
+                final Timestamp usageEnd = endDay.before(toDay) ? endDay : toDay;
+                return usageEnd.after(begin) ? usageEnd : begin;
+            }
+        }
+    }
+
+    private static <K> void merge(Map<K, Aggregate> map, K key, Aggregate aggregate)
+    {
+        final Aggregate existing = map.get(key);
+        if (existing == null)
+            map.put(key, aggregate);
+        else
+            existing.addAll(aggregate);
+    }
+}
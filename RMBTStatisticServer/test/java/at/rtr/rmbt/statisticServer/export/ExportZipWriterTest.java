@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.statisticServer.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class ExportZipWriterTest {
+
+    private static final byte[] LICENSE = "license".getBytes(StandardCharsets.UTF_8);
+
+    private static long crc(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf)) > 0)
+            out.write(buf, 0, len);
+        return out.toByteArray();
+    }
+
+    /**
+     * rows of an hour, like the segments of the export store
+     */
+    private static byte[][] createSegments() {
+        final Random random = new Random(3);
+        final byte[][] segments = new byte[5][];
+        for (int i = 0; i < segments.length; i++) {
+            final StringBuilder rows = new StringBuilder();
+            // an empty hour and an hour with more rows than the buffer of the compressor
+            final int count = i == 2 ? 0 : i == 3 ? 5000 : 10 + random.nextInt(100);
+            for (int row = 0; row < count; row++)
+                rows.append(String.format("%d,%d,%s\r\n", i, row, Long.toHexString(random.nextLong())));
+            segments[i] = rows.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return segments;
+    }
+
+    /**
+     * compresses each segment on its own and assembles them to a zip file with the combined CRC
+     */
+    private static byte[] writeZip(byte[][] segments) throws IOException {
+        final ByteArrayOutputStream zipOut = new ByteArrayOutputStream();
+        final ExportZipWriter zip = new ExportZipWriter(zipOut);
+        zip.putEntry("LIZENZ.txt", LICENSE);
+        zip.startEntry("export.csv");
+        long crc = 0;
+        long length = 0;
+        for (int i = 0; i < segments.length; i++) {
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            final ExportStore.SegmentCompressor compressor = new ExportStore.SegmentCompressor(compressed);
+            try {
+                // segments of the store are written with a compressor which is reset in between
+                if (i % 2 == 1) {
+                    compressor.write("garbage".getBytes(StandardCharsets.UTF_8));
+                    compressor.flush();
+                    compressor.reset();
+                    compressed.reset();
+                }
+                compressor.write(segments[i]);
+                compressor.flush();
+            } finally {
+                compressor.end();
+            }
+            zip.writeSegment(compressed.toByteArray(), 0, compressed.size());
+            crc = i == 0 ? crc(segments[i]) : ExportZipWriter.combineCrc(crc, crc(segments[i]), segments[i].length);
+            length += segments[i].length;
+        }
+        zip.finishEntry(crc, length);
+        zip.finish();
+        return zipOut.toByteArray();
+    }
+
+    private static byte[] concat(byte[][] segments) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] segment : segments)
+            out.write(segment, 0, segment.length);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testZipInputStream() throws Exception {
+        final byte[][] segments = createSegments();
+        final byte[] expected = concat(segments);
+
+        // ZipInputStream checks the CRC and the sizes of the data descriptor at the end of an entry
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(writeZip(segments)))) {
+            ZipEntry entry = in.getNextEntry();
+            assertEquals("LIZENZ.txt", entry.getName());
+            assertArrayEquals(LICENSE, readFully(in));
+            assertEquals(crc(LICENSE), entry.getCrc());
+
+            entry = in.getNextEntry();
+            assertEquals("export.csv", entry.getName());
+            assertArrayEquals(expected, readFully(in));
+            assertEquals(crc(expected), entry.getCrc());
+            assertEquals(expected.length, entry.getSize());
+
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    public void testZipFile() throws Exception {
+        final byte[][] segments = createSegments();
+        final byte[] expected = concat(segments);
+
+        final File file = File.createTempFile("export", ".zip");
+        try {
+            Files.write(file.toPath(), writeZip(segments));
+            // the central directory
+            try (ZipFile zipFile = new ZipFile(file)) {
+                assertEquals(2, zipFile.size());
+                final ZipEntry entry = zipFile.getEntry("export.csv");
+                assertEquals(crc(expected), entry.getCrc());
+                assertEquals(expected.length, entry.getSize());
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    assertArrayEquals(expected, readFully(in));
+                }
+                try (InputStream in = zipFile.getInputStream(zipFile.getEntry("LIZENZ.txt"))) {
+                    assertArrayEquals(LICENSE, readFully(in));
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCombineCrc() {
+        final byte[] data = concat(createSegments());
+        for (final int split : new int[] {0, 1, 1000, data.length - 1, data.length}) {
+            final byte[] first = Arrays.copyOf(data, split);
+            final byte[] second = Arrays.copyOfRange(data, split, data.length);
+            assertEquals(crc(data), ExportZipWriter.combineCrc(crc(first), crc(second), second.length));
+        }
+    }
+}
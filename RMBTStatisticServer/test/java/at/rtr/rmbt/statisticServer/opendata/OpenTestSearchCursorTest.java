@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.statisticServer.opendata;
+
+import at.rtr.rmbt.shared.ResourceManager;
+import at.rtr.rmbt.statisticServer.opendata.dao.OpenTestDAO;
+import org.junit.Test;
+import org.restlet.data.Form;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * pagination of the search by keyset: the cursor and the query for the page following it
+ */
+public class OpenTestSearchCursorTest {
+
+    private static final String TIME_KEY = "(extract(epoch from date_trunc('second', t.time))::bigint * 1000000 + extract(microseconds from t.time)::bigint % 1000000)";
+    private static final String TIME_VALUE = "('epoch'::timestamptz + ? * interval '1 microsecond')";
+
+    private static QueryParser parse(String query) {
+        final QueryParser qp = new QueryParser();
+        final List<String> invalid = qp.parseQuery(new Form(query));
+        assertEquals(query, Collections.emptyList(), invalid);
+        return qp;
+    }
+
+    private static List<String> parseInvalid(String query) {
+        return new QueryParser().parseQuery(new Form(query));
+    }
+
+    @Test
+    public void testDefaultOrderCursor() {
+        final QueryParser qp = parse("cursor=42");
+        assertNull(qp.getSortColumn());
+        assertEquals(Long.valueOf(42), qp.getCursorUid());
+        assertNull(qp.getCursorSortValue());
+        assertEquals("42", qp.formatCursor(null, 42));
+        // a number, as before the results could be sorted
+        assertEquals(42L, qp.getNextCursorValue("42"));
+        assertNull(qp.getNextCursorValue(null));
+
+        // no cursor is the first page
+        assertNull(parse("cursor=0").getCursorUid());
+        assertNull(parse("").getCursorUid());
+        assertEquals(Collections.singletonList("cursor"), parseInvalid("cursor=-_42"));
+        assertEquals(Collections.singletonList("cursor"), parseInvalid("cursor=x"));
+    }
+
+    @Test
+    public void testSortedCursorRoundTrip() {
+        final QueryParser first = parse("sort_by=signal_strength&sort_order=asc");
+        for (final Long sortValue : new Long[] {-85L, 0L, 12345678901L, null}) {
+            final String cursor = first.formatCursor(sortValue, 4711);
+            assertEquals(cursor, first.getNextCursorValue(cursor));
+
+            final QueryParser next = parse("sort_by=signal_strength&sort_order=asc&cursor=" + cursor);
+            assertEquals(Long.valueOf(4711), next.getCursorUid());
+            assertEquals(sortValue, next.getCursorSortValue());
+            assertEquals(cursor, next.formatCursor(next.getCursorSortValue(), next.getCursorUid()));
+        }
+        // the empty value stands for a test without a value
+        assertEquals("_4711", first.formatCursor(null, 4711));
+        assertEquals("-85_4711", first.formatCursor(-85L, 4711));
+    }
+
+    @Test
+    public void testSortedCursorInvalid() {
+        // a cursor of the default order has no sort value
+        assertEquals(Collections.singletonList("cursor"), parseInvalid("sort_by=download_kbit&cursor=42"));
+        assertEquals(Collections.singletonList("cursor"), parseInvalid("sort_by=download_kbit&cursor=x_42"));
+        assertEquals(Collections.singletonList("cursor"), parseInvalid("sort_by=download_kbit&cursor=12_"));
+        assertEquals(Collections.singletonList("cursor"), parseInvalid("sort_by=download_kbit&cursor=12_x"));
+    }
+
+    @Test
+    public void testDefaultOrderQuery() throws Exception {
+        final Query first = search(parse(""));
+        assertTrue(first.sql, first.sql.contains(" NULL::bigint sort_key,"));
+        assertTrue(first.sql, first.sql.endsWith(" ORDER BY t.uid DESC LIMIT 100"));
+        assertFalse(first.sql, first.sql.contains("t.uid <"));
+
+        final Query next = search(parse("cursor=42"));
+        assertTrue(next.sql, next.sql.endsWith(" AND t.uid < ? ORDER BY t.uid DESC LIMIT 100"));
+        assertEquals(Collections.singletonList(42L), next.getLastLongs(1));
+    }
+
+    @Test
+    public void testDescendingQuery() throws Exception {
+        final String order = " ORDER BY t.signal_strength DESC, t.uid DESC LIMIT 100";
+        final Query first = search(parse("sort_by=signal_strength&sort_order=desc"));
+        assertTrue(first.sql, first.sql.contains(" t.signal_strength sort_key,"));
+        assertTrue(first.sql, first.sql.endsWith(order));
+        assertFalse(first.sql, first.sql.contains("t.uid <"));
+
+        // the next page after a test with a value: smaller values, or the same value and a smaller uid
+        final Query value = search(parse("sort_by=signal_strength&sort_order=desc&cursor=-85_42"));
+        assertTrue(value.sql, value.sql.endsWith(" AND (t.signal_strength, t.uid) < (?, ?)" + order));
+        assertEquals(Arrays.asList(-85L, 42L), value.getLastLongs(2));
+
+        // the nulls come first: after a test without a value, the other tests without a value and all values
+        final Query nul = search(parse("sort_by=signal_strength&sort_order=desc&cursor=_42"));
+        assertTrue(nul.sql, nul.sql.endsWith(" AND (t.signal_strength IS NOT NULL OR t.uid < ?)" + order));
+        assertEquals(Collections.singletonList(42L), nul.getLastLongs(1));
+    }
+
+    @Test
+    public void testAscendingQuery() throws Exception {
+        final String order = " ORDER BY t.signal_strength ASC, t.uid ASC LIMIT 100";
+        final Query first = search(parse("sort_by=signal_strength&sort_order=asc"));
+        assertTrue(first.sql, first.sql.endsWith(order));
+
+        // the next page after a test with a value: larger values, the same value and a larger uid, or no value
+        final Query value = search(parse("sort_by=signal_strength&sort_order=asc&cursor=-85_42"));
+        assertTrue(value.sql, value.sql.endsWith(" AND ((t.signal_strength, t.uid) > (?, ?) OR t.signal_strength IS NULL)" + order));
+        assertEquals(Arrays.asList(-85L, 42L), value.getLastLongs(2));
+
+        // the nulls come last: after a test without a value, only the other tests without a value
+        final Query nul = search(parse("sort_by=signal_strength&sort_order=asc&cursor=_42"));
+        assertTrue(nul.sql, nul.sql.endsWith(" AND t.signal_strength IS NULL AND t.uid > ?" + order));
+        assertEquals(Collections.singletonList(42L), nul.getLastLongs(1));
+    }
+
+    /**
+     * the time is compared in microseconds since 1970, so tests within the same millisecond are not skipped
+     */
+    @Test
+    public void testTimeQuery() throws Exception {
+        final QueryParser qp = parse("sort_by=time&sort_order=desc&cursor=1546300800123456_42");
+        assertEquals(Long.valueOf(1546300800123456L), qp.getCursorSortValue());
+
+        final Query query = search(qp);
+        assertTrue(query.sql, query.sql.contains(" " + TIME_KEY + " sort_key,"));
+        assertTrue(query.sql, query.sql.endsWith(" AND (t.time, t.uid) < (" + TIME_VALUE + ", ?) ORDER BY t.time DESC, t.uid DESC LIMIT 100"));
+        assertEquals(Arrays.asList(1546300800123456L, 42L), query.getLastLongs(2));
+
+        final Query ascending = search(parse("sort_by=time&sort_order=asc&cursor=1546300800123456_42"));
+        assertTrue(ascending.sql, ascending.sql.endsWith(" AND ((t.time, t.uid) > (" + TIME_VALUE + ", ?) OR t.time IS NULL) ORDER BY t.time ASC, t.uid ASC LIMIT 100"));
+    }
+
+    /**
+     * a statement as prepared by the search
+     */
+    private static class Query {
+        private String sql;
+        private final TreeMap<Integer, Object> parameters = new TreeMap<>();
+
+        /**
+         * @return the last parameters, all of them set as long
+         */
+        private List<Object> getLastLongs(int n) {
+            final List<Object> values = new ArrayList<>(parameters.values());
+            return values.subList(values.size() - n, values.size());
+        }
+    }
+
+    /**
+     * runs the search on a connection that records the statement and returns no rows
+     */
+    private static Query search(QueryParser qp) throws Exception {
+        final Query query = new Query();
+        final InvocationHandler resultSet = (proxy, method, args) -> {
+            if (method.getName().equals("next"))
+                return false;
+            return null;
+        };
+        final InvocationHandler statement = (proxy, method, args) -> {
+            if (method.getName().startsWith("set") && args.length == 2 && args[0] instanceof Integer) {
+                if (method.getName().equals("setLong"))
+                    query.parameters.put((Integer) args[0], args[1]);
+                else
+                    query.parameters.put((Integer) args[0], method.getName());
+            }
+            else if (method.getName().equals("executeQuery"))
+                return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class[] {ResultSet.class}, resultSet);
+            return null;
+        };
+        final InvocationHandler connection = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    query.sql = (String) args[0];
+                    return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class[] {PreparedStatement.class}, statement);
+                case "getAutoCommit":
+                    return true;
+                default:
+                    return null;
+            }
+        };
+        final Connection conn = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] {Connection.class}, connection);
+
+        final OpenTestDAO dao = new OpenTestDAO(conn, ResourceManager.getCfgBundle(), null);
+        assertNull(dao.getOpenTestSearchResults(qp, 0, null, result -> fail()));
+        assertNotNull(query.sql);
+        return query;
+    }
+}
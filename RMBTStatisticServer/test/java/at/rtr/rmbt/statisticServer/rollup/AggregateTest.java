@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.statisticServer.rollup;
+
+import at.rtr.rmbt.shared.Classification;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AggregateTest {
+
+    private static Aggregate create(long base) {
+        final Aggregate aggregate = new Aggregate();
+        for (long i = 0; i < 100; i++)
+            aggregate.add(i % 10 != 0, base + 1000 * i, base + 500 * i, 1000000L * i, -120 + i / 2,
+                    Classification.THRESHOLD_SIGNAL_MOBILE);
+        aggregate.add(true, null, null, null, null, null);
+        return aggregate;
+    }
+
+    private static void assertAggregateEquals(Aggregate expected, Aggregate actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        final Measure[] e = {expected.getDown(), expected.getUp(), expected.getPing(), expected.getSignal()};
+        final Measure[] a = {actual.getDown(), actual.getUp(), actual.getPing(), actual.getSignal()};
+        for (int i = 0; i < e.length; i++) {
+            assertEquals(e[i].getCount(), a[i].getCount());
+            for (final double q : new double[] {0, 0.2, 0.5, 0.8, 1})
+                assertEquals(e[i].getQuantile(q), a[i].getQuantile(q));
+            for (int c = 0; c < Measure.CLASSES; c++)
+                assertEquals(e[i].getShare(c, c), a[i].getShare(c, c));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final Aggregate aggregate = create(10000);
+        assertEquals(91, aggregate.getCount());
+        assertEquals(100, aggregate.getDown().getCount());
+        assertEquals(100, aggregate.getSignal().getCount());
+
+        final byte[] data = aggregate.encode();
+        final Aggregate decoded = Aggregate.decode(data);
+        assertAggregateEquals(aggregate, decoded);
+        assertArrayEquals(data, decoded.encode());
+    }
+
+    @Test
+    public void testMerge() {
+        final Aggregate merged = Aggregate.decode(create(10000).encode());
+        merged.addAll(Aggregate.decode(create(50000).encode()));
+
+        final Aggregate expected = create(10000);
+        expected.addAll(create(50000));
+        assertAggregateEquals(expected, merged);
+        assertEquals(182, merged.getCount());
+        assertEquals(200, merged.getUp().getCount());
+    }
+
+    @Test
+    public void testDecodeUnknownVersion() {
+        final byte[] data = create(10000).encode();
+        for (final byte version : new byte[] {0, 2, (byte) 0xff}) {
+            data[0] = version;
+            try {
+                Aggregate.decode(data);
+                fail("version " + version);
+            } catch (IllegalArgumentException e) {
+                assertEquals("unknown version of aggregate", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeTruncated() {
+        final byte[] data = create(10000).encode();
+        for (int length = 0; length < data.length; length++) {
+            try {
+                Aggregate.decode(Arrays.copyOf(data, length));
+                fail("truncated to " + length);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.statisticServer.rollup;
+
+import at.rtr.rmbt.shared.Classification;
+import at.rtr.rmbt.statisticServer.StatisticsResource;
+import at.rtr.rmbt.statisticServer.rollup.Measure.Scale;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class MeasureTest {
+
+    private static final double[] QUANTILES = {0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 1};
+
+    /**
+     * a class clause of {@link StatisticsResource#getClausesFor}
+     */
+    private static final Pattern CLAUSE = Pattern.compile("sum\\(\\((.*?)\\)::int\\)::double precision / count\\(\\S+\\) (\\w+)");
+    private static final Pattern CONDITION = Pattern.compile("value (>=|<=|>|<) \\?");
+
+    /**
+     * the value at position ceil(n * quantile), like the <code>quantile</code> aggregate
+     */
+    private static long quantile(long[] sorted, double quantile) {
+        return sorted[Math.max(0, (int) Math.ceil(sorted.length * quantile) - 1)];
+    }
+
+    @Test
+    public void testLogQuantile() {
+        final Random random = new Random(1);
+        final Measure measure = new Measure(Scale.LOG);
+        final long[] values = new long[5000];
+        for (int i = 0; i < values.length; i++) {
+            // speeds from 1 Mbit/s to 1 Gbit/s (in kbit/s)
+            values[i] = (long) (1000 * Math.pow(1000, random.nextDouble()));
+            measure.add(values[i], Classification.THRESHOLD_DOWNLOAD);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, measure.getCount());
+        for (final double q : QUANTILES) {
+            final long expected = quantile(values, q);
+            assertEquals("quantile " + q, expected, measure.getQuantile(q), expected * 0.01);
+        }
+    }
+
+    @Test
+    public void testExactQuantile() {
+        final Random random = new Random(2);
+        final Measure measure = new Measure(Scale.EXACT);
+        final long[] values = new long[1001];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = -140 + random.nextInt(100);
+            measure.add(values[i], Classification.THRESHOLD_SIGNAL_MOBILE);
+        }
+        Arrays.sort(values);
+        for (final double q : QUANTILES)
+            assertEquals("quantile " + q, Long.valueOf(quantile(values, q)), measure.getQuantile(q));
+    }
+
+    @Test
+    public void testEmpty() {
+        final Measure measure = new Measure(Scale.LOG);
+        assertEquals(0, measure.getCount());
+        assertNull(measure.getQuantile(0.5));
+        assertNull(measure.getShare(0, 3));
+    }
+
+    @Test
+    public void testSharesMatchClauses() {
+        // the boundaries of the classes and the values next to them
+        assertSharesMatchClauses(Classification.THRESHOLD_DOWNLOAD, false);
+        assertSharesMatchClauses(Classification.THRESHOLD_UPLOAD, false);
+        assertSharesMatchClauses(Classification.THRESHOLD_SIGNAL_MOBILE, false);
+        assertSharesMatchClauses(Classification.THRESHOLD_SIGNAL_WIFI, false);
+        assertSharesMatchClauses(Classification.THRESHOLD_PING, true);
+    }
+
+    private static void assertSharesMatchClauses(int[] thresholds, boolean inverse) {
+        final List<Long> values = new ArrayList<>();
+        for (final int threshold : thresholds)
+            for (long delta = -1; delta <= 1; delta++)
+                values.add(threshold + delta);
+        values.add((long) thresholds[0] * 2);
+        values.add((long) thresholds[2] / 2);
+
+        for (final boolean ultraGreen : new boolean[] {false, true}) {
+            final Measure measure = new Measure(Scale.LOG);
+            for (final long value : values)
+                measure.add(value, thresholds);
+            final Map<String, Object> row = new HashMap<>();
+            measure.putShares(row, "x", ultraGreen);
+
+            final Map<String, Double> expected = evaluateClauses(
+                    StatisticsResource.getClausesFor("value", "x", ultraGreen, inverse), thresholds, ultraGreen, values);
+            assertEquals(expected.keySet(), row.keySet());
+            for (final Map.Entry<String, Double> entry : expected.entrySet())
+                assertEquals(Arrays.toString(thresholds) + " " + entry.getKey(),
+                        entry.getValue(), (Double) row.get(entry.getKey()), 1e-9);
+        }
+    }
+
+    /**
+     * evaluates the class clauses with the thresholds bound like <code>StatisticsResource.selectProviders</code>
+     */
+    private static Map<String, Double> evaluateClauses(String sql, int[] thresholds, boolean ultraGreen, List<Long> values) {
+        final int[] parameters = ultraGreen
+                ? new int[] {thresholds[0], thresholds[0], thresholds[1], thresholds[1], thresholds[2], thresholds[2]}
+                : new int[] {thresholds[1], thresholds[1], thresholds[2], thresholds[2]};
+        int p = 0;
+        final Map<String, Double> shares = new HashMap<>();
+        final Matcher clause = CLAUSE.matcher(sql);
+        while (clause.find()) {
+            final List<String> operators = new ArrayList<>();
+            final List<Integer> bound = new ArrayList<>();
+            final Matcher condition = CONDITION.matcher(clause.group(1));
+            while (condition.find()) {
+                operators.add(condition.group(1));
+                bound.add(parameters[p++]);
+            }
+            assertFalse(operators.isEmpty());
+            int n = 0;
+            for (final long value : values) {
+                boolean match = true;
+                for (int i = 0; i < operators.size(); i++)
+                    match &= compare(value, operators.get(i), bound.get(i));
+                if (match)
+                    n++;
+            }
+            shares.put(clause.group(2), (double) n / values.size());
+        }
+        assertEquals(parameters.length, p);
+        return shares;
+    }
+
+    private static boolean compare(long value, String operator, int parameter) {
+        switch (operator) {
+            case ">=":
+                return value >= parameter;
+            case "<=":
+                return value <= parameter;
+            case ">":
+                return value > parameter;
+            default:
+                return value < parameter;
+        }
+    }
+}
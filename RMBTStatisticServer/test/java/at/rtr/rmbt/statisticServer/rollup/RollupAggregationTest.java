@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package at.rtr.rmbt.statisticServer.rollup;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RollupAggregationTest {
+
+    /**
+     * a row of the rollup query of a finished, plausible and pinned test
+     */
+    private static ResultSet row(String type, String group, Long signalStrength, Long lteRsrp) {
+        final Map<String, Object> columns = new HashMap<>();
+        columns.put("status", "FINISHED");
+        columns.put("implausible", false);
+        columns.put("pinned", true);
+        columns.put("client_id", 1L);
+        columns.put("client_public_ip", "192.0.2.1");
+        columns.put("type", type);
+        columns.put("group_name", group);
+        columns.put("provider_id", 2L);
+        columns.put("mobile_provider_id", 3L);
+        columns.put("model", "model");
+        columns.put("speed_download", 50000L);
+        columns.put("speed_upload", 10000L);
+        columns.put("ping_median", 20000000L);
+        columns.put("signal_strength", signalStrength);
+        columns.put("lte_rsrp", lteRsrp);
+        columns.put("hour", 12);
+        columns.put("open_test", true);
+
+        final String[] last = new String[1];
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("wasNull"))
+                            return columns.get(last[0]) == null;
+                        if (!method.getName().startsWith("get") || args == null || !(args[0] instanceof String))
+                            throw new UnsupportedOperationException(method.getName());
+                        last[0] = (String) args[0];
+                        final Object value = columns.get(last[0]);
+                        if (value == null && method.getReturnType() == long.class)
+                            return 0L;
+                        if (value == null && method.getReturnType() == boolean.class)
+                            return false;
+                        return value;
+                    }
+                });
+    }
+
+    @Test
+    public void testSignal() throws Exception {
+        final RollupAggregation aggregation = new RollupAggregation();
+        aggregation.add(row("WLAN", "WLAN", -60L, null));
+        aggregation.add(row("MOBILE", "4G", -70L, -100L));
+        aggregation.add(row("MOBILE", "3G", -90L, null));
+
+        assertEquals(3, aggregation.tests);
+        assertEquals(Long.valueOf(-60), aggregation.providers.get(Arrays.<Object> asList("WLAN", "WLAN", 2L)).getSignal().getQuantile(0.5));
+        // rsrp for 4G, mobile provider for mobile tests
+        assertEquals(Long.valueOf(-100), aggregation.providers.get(Arrays.<Object> asList("MOBILE", "4G", 3L)).getSignal().getQuantile(0.5));
+        assertEquals(Long.valueOf(-90), aggregation.providers.get(Arrays.<Object> asList("MOBILE", "3G", 3L)).getSignal().getQuantile(0.5));
+    }
+
+    @Test
+    public void testSignalOutliers() throws Exception {
+        final RollupAggregation aggregation = new RollupAggregation();
+        aggregation.add(row("MOBILE", "3G", -100L, null));
+        aggregation.add(row("MOBILE", "3G", (long) Integer.MAX_VALUE, null));
+        aggregation.add(row("MOBILE", "3G", 500000000L, null));
+        aggregation.add(row("MOBILE", "3G", (long) Integer.MIN_VALUE, null));
+        aggregation.add(row("MOBILE", "4G", null, -200L));
+        aggregation.add(row("MOBILE", "4G", null, 1L));
+
+        final Aggregate mobile3G = aggregation.providers.get(Arrays.<Object> asList("MOBILE", "3G", 3L));
+        // the tests are counted, only the implausible signal is skipped
+        assertEquals(4, mobile3G.getCount());
+        assertEquals(4, mobile3G.getDown().getCount());
+        assertEquals(1, mobile3G.getSignal().getCount());
+        assertEquals(Long.valueOf(-100), mobile3G.getSignal().getQuantile(1));
+
+        final Aggregate mobile4G = aggregation.providers.get(Arrays.<Object> asList("MOBILE", "4G", 3L));
+        assertEquals(2, mobile4G.getCount());
+        assertEquals(0, mobile4G.getSignal().getCount());
+        assertArrayEquals(mobile3G.encode(), Aggregate.decode(mobile3G.encode()).encode());
+    }
+}
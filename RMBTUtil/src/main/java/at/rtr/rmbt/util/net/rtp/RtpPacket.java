@@ -16,6 +16,8 @@
  *******************************************************************************/
 package at.rtr.rmbt.util.net.rtp;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 
@@ -48,7 +50,17 @@ public class RtpPacket {
 	}
 	
 	public RtpPacket(byte[] packet) throws RtpException {
-		if (packet == null || packet.length < 12) {
+		this(packet, packet == null ? 0 : packet.length);
+	}
+	
+	/**
+	 * 
+	 * @param packet buffer containing the packet, may be longer than the packet (e.g. a receive buffer)
+	 * @param length length of the packet
+	 * @throws RtpException
+	 */
+	public RtpPacket(byte[] packet, int length) throws RtpException {
+		if (packet == null || length < 12 || length > packet.length) {
 			throw new RtpException(RtpErrorType.PACKET_SIZE_TOO_SMALL);
 		}
 
@@ -62,8 +74,8 @@ public class RtpPacket {
 				System.arraycopy(packet, curPos, csrcIdentifier, 0, csrcIdentifier.length);
 				curPos += csrcIdentifier.length;
 			}
-			if (packet.length > curPos) {
-				int payloadSize = packet.length - curPos;
+			if (length > curPos) {
+				int payloadSize = length - curPos;
 				payload = new byte[payloadSize];
 				System.arraycopy(packet, curPos, payload, 0, payload.length);
 			}
@@ -305,6 +317,21 @@ public class RtpPacket {
 		
 		return d;
 	}
+	
+	/**
+	 * writes the same bytes as {@link #getBytes()} without creating a copy of the packet
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(header);
+		if (csrcIdentifier != null) {
+			out.write(csrcIdentifier);
+		}
+		if (payload != null) {
+			out.write(payload);
+		}
+	}
 
 	@Override
 	public String toString() {
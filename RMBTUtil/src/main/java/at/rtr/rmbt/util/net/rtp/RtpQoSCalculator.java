@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package at.rtr.rmbt.util.net.rtp;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import at.rtr.rmbt.util.net.rtp.RtpUtil.RtpQoSResult;
+
+/**
+ * Calculates the QoS of a received rtp stream packet by packet, in the order the packets arrive:
+ * <ul>
+ * <li>interarrival jitter as defined in RFC 3550 (6.4.1): J += (|D(i-1,i)| - J) / 16</li>
+ * <li>clock skew, stalls (interarrival time exceeding the jitter buffer), out of order packets and sequential runs</li>
+ * <li>duplicates (ignored) and lost packets, using the 16bit sequence number extended to a packet index</li>
+ * </ul>
+ * Only counters and a bit set of the received packet indices are kept, so the memory needed does not grow with
+ * the number of packets (except for the bit set: 1 bit per packet) and {@link #getResult()} does not need to process the stream again.
+ * <p>
+ * Thread safe; the packets of a stream may be added by different threads.
+ *
+ * @author lb
+ *
+ */
+public class RtpQoSCalculator {
+
+	/**
+	 * packet indices above this limit are not checked for duplicates (a broken or malicious sender must not allocate arbitrary memory)
+	 */
+	private final static int MAX_TRACKED_INDEX = 1 << 24;
+
+	private final static int SEQUENCE_NUMBER_RANGE = 1 << 16;
+
+	private final long initialSequenceNumber;
+	private final int sampleRate;
+	private final long buffer;
+
+	/**
+	 * bit set of received packet indices (extended sequence number - initial sequence number)
+	 */
+	private long[] received = new long[16];
+
+	/**
+	 * highest extended sequence number so far
+	 */
+	private long maxExtendedSequenceNumber;
+
+	private int receivedPackets = 0;
+
+	private long lastReceivedNs;
+	private long lastRtpTimestamp;
+
+	private float jitter = 0f;
+	private double jitterSum = 0d;
+	private long maxJitter = 0;
+	private long maxDelta = 0;
+	private long skew = 0;
+	private int stalls = 0;
+	private long stallTime = 0;
+
+	private int packetsOutOfOrder = 0;
+	private int curSequential = 0;
+	private int minSequential = 0;
+	private int maxSequential = 0;
+
+	/**
+	 *
+	 * @param initialSequenceNumber the sequence number of the first packet of the stream
+	 * @param sampleRate the rtp clock rate
+	 * @param buffer the jitter buffer in ns; a longer interarrival time counts as stall
+	 */
+	public RtpQoSCalculator(long initialSequenceNumber, int sampleRate, long buffer) {
+		this.initialSequenceNumber = initialSequenceNumber;
+		this.sampleRate = sampleRate;
+		this.buffer = buffer;
+		this.maxExtendedSequenceNumber = initialSequenceNumber - 1;
+	}
+
+	/**
+	 *
+	 * @param rtpPacket
+	 * @param receivedNs
+	 * @return false if the packet is a duplicate and has been ignored
+	 */
+	public boolean add(RtpPacket rtpPacket, long receivedNs) {
+		return add(rtpPacket.getSequnceNumber(), rtpPacket.getTimestamp(), receivedNs);
+	}
+
+	/**
+	 *
+	 * @param sequenceNumber the 16bit rtp sequence number
+	 * @param rtpTimestamp the 32bit rtp timestamp
+	 * @param receivedNs
+	 * @return false if the packet is a duplicate and has been ignored
+	 */
+	public synchronized boolean add(int sequenceNumber, long rtpTimestamp, long receivedNs) {
+		//extend the sequence number relative to the highest one received (RFC 3550 A.1)
+		final long extendedSequenceNumber = maxExtendedSequenceNumber
+				+ (short) (sequenceNumber - (maxExtendedSequenceNumber & (SEQUENCE_NUMBER_RANGE - 1)));
+		final long index = extendedSequenceNumber - initialSequenceNumber;
+		if (index >= 0 && index < MAX_TRACKED_INDEX) {
+			if (isReceived((int) index)) {
+				return false;
+			}
+			setReceived((int) index);
+		}
+		maxExtendedSequenceNumber = Math.max(extendedSequenceNumber, maxExtendedSequenceNumber);
+
+		if (receivedPackets > 0) {
+			final long arrivalDiff = receivedNs - lastReceivedNs;
+			//the rtp timestamp wraps around at 32 bit
+			final long timestampDiff = TimeUnit.NANOSECONDS.convert(
+					(long) (((float) ((int) (rtpTimestamp - lastRtpTimestamp)) / (float) sampleRate) * 1000f), TimeUnit.MILLISECONDS);
+
+			if (buffer < arrivalDiff) {
+				stalls++;
+				stallTime += arrivalDiff - buffer;
+			}
+
+			final long delta = Math.abs(arrivalDiff - timestampDiff);
+			jitter = jitter + ((float) delta - jitter) / 16f;
+			maxDelta = Math.max(delta, maxDelta);
+			maxJitter = Math.max((long) jitter, maxJitter);
+			jitterSum += jitter;
+			skew += timestampDiff - arrivalDiff;
+		}
+
+		if (extendedSequenceNumber != initialSequenceNumber + receivedPackets) {
+			packetsOutOfOrder++;
+			maxSequential = Math.max(curSequential, maxSequential);
+			minSequential = updateMinSequential(curSequential, minSequential);
+			curSequential = 0;
+		}
+		else {
+			curSequential++;
+		}
+
+		lastReceivedNs = receivedNs;
+		lastRtpTimestamp = rtpTimestamp;
+		receivedPackets++;
+		return true;
+	}
+
+	private static int updateMinSequential(int curSequential, int minSequential) {
+		if (curSequential > 1) {
+			return curSequential < minSequential ? curSequential : (minSequential == 0 ? curSequential : minSequential);
+		}
+		return minSequential;
+	}
+
+	private boolean isReceived(int index) {
+		final int word = index >>> 6;
+		return word < received.length && (received[word] & (1L << index)) != 0;
+	}
+
+	private void setReceived(int index) {
+		final int word = index >>> 6;
+		if (word >= received.length) {
+			received = Arrays.copyOf(received, Math.max(word + 1, received.length * 2));
+		}
+		received[word] |= 1L << index;
+	}
+
+	/**
+	 *
+	 * @return the number of packets received (without duplicates)
+	 */
+	public synchronized int getReceivedPackets() {
+		return receivedPackets;
+	}
+
+	/**
+	 *
+	 * @return the number of packets missing up to the highest sequence number received
+	 */
+	public synchronized long getLostPackets() {
+		return Math.max(0, maxExtendedSequenceNumber - initialSequenceNumber + 1 - receivedPackets);
+	}
+
+	/**
+	 *
+	 * @return the result of the packets received so far, null if no packet has been received
+	 */
+	public synchronized RtpQoSResult getResult() {
+		if (receivedPackets == 0) {
+			return null;
+		}
+
+		final int maxSeq = Math.max(curSequential, maxSequential);
+		int minSeq = updateMinSequential(curSequential, minSequential);
+		if (minSeq == 0 && maxSeq > 0) {
+			minSeq = maxSeq;
+		}
+
+		return new RtpQoSResult(receivedPackets, getLostPackets(), maxJitter, (long) (jitterSum / receivedPackets), skew, maxDelta,
+				packetsOutOfOrder, minSeq, maxSeq,
+				stalls, stalls == 0 ? 0 : (TimeUnit.MILLISECONDS.convert(stallTime, TimeUnit.NANOSECONDS) / stalls));
+	}
+}
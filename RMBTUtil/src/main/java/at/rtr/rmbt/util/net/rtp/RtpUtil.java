@@ -24,10 +24,12 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -93,6 +95,10 @@ public class RtpUtil {
 			settings.setWriteOnly(true);
 		}
 
+		//the payload is random data, the same array is refilled for every packet
+		final byte[] payload = new byte[payloadSize];
+		initialRtpPacket.setPayload(payload);
+
 		final UdpStreamCallback callback = new UdpStreamCallback() {
 
 			@Override
@@ -107,12 +113,8 @@ public class RtpUtil {
 					initialRtpPacket.setHasMarker(true);
 				}
 
-				final byte[] payload = new byte[payloadSize];
 				r.nextBytes(payload);
-				initialRtpPacket.setPayload(payload);
-
-				final byte[] data = initialRtpPacket.getBytes();
-				dataOut.write(data);
+				initialRtpPacket.writeTo(dataOut);
 				return true;
 			}
 
@@ -154,7 +156,7 @@ public class RtpUtil {
 	 * @return rtp packet ssrc or -1 if packet data is invalid
 	 */
 	public static long getSsrc(byte[] data) {
-		if (data != null && data.length >= 11) {
+		if (data != null && data.length >= 12) {
 			return ByteUtil.getLong(data, 8, 11, ByteOrder.BIG_ENDIAN);
 		}
 		else {
@@ -163,89 +165,26 @@ public class RtpUtil {
 	}
 
 	/**
-	 *
+	 * calculates the QoS of a stream that has already been received completely
 	 * @param rtpControlDataMap
+	 * @deprecated use a {@link RtpQoSCalculator} and add the packets as they arrive
 	 */
+	@Deprecated
 	public static RtpQoSResult calculateQoS(Map<Integer, RtpControlData> rtpControlDataMap,
 											long initialSequenceNumber, int sampleRate, long buffer) {
-		TreeSet<Integer> sequenceNumberSet = new TreeSet<>(rtpControlDataMap.keySet());
-
-		Map<Integer, Float> jitterMap = new HashMap<>();
-		TreeSet<RtpSequence> sequenceSet = new TreeSet<>();
-
-		long maxJitter = 0;
-		long meanJitter = 0;
-		long skew = 0;
-		long maxDelta = 0;
-		long tsDiff = 0;
-		int stalls = 0;
-		long stallTime = 0;
-
-		int prevSeqNr = -1;
-		for (int x : sequenceNumberSet) {
-			RtpControlData i = rtpControlDataMap.get(prevSeqNr);
-			RtpControlData j = rtpControlDataMap.get(x);
-			if (prevSeqNr >= 0) {
-				tsDiff = j.receivedNs - i.receivedNs;
-				if (buffer < tsDiff) {
-					stalls++;
-					stallTime += tsDiff-buffer;
-				}
-				final float prevJitter = jitterMap.get(prevSeqNr);
-				final long delta = Math.abs(calculateDelta(i, j, sampleRate));
-				final float jitter = prevJitter + ((float)delta - prevJitter) / 16f;
-				jitterMap.put(x, jitter);
-				maxDelta = Math.max(delta, maxDelta);;
-				skew += TimeUnit.NANOSECONDS.convert((long) (((float)(j.rtpPacket.getTimestamp() - i.rtpPacket.getTimestamp()) / (float)sampleRate) * 1000f), TimeUnit.MILLISECONDS) - tsDiff;
-				maxJitter = Math.max((long)jitter, maxJitter);
-				meanJitter += jitter;
-			}
-			else {
-				jitterMap.put(x, 0f);
-			}
-			prevSeqNr = x;
-			sequenceSet.add(new RtpSequence(j.receivedNs, x));
-		}
-
-		long nextSeq = initialSequenceNumber;
-		int packetsOutOfOrder = 0;
-		int maxSequential = 0;
-		int minSequential = 0;
-		int curSequential = 0;
-		for (RtpSequence i : sequenceSet) {
-			if (i.seq != nextSeq) {
-				packetsOutOfOrder++;
-				maxSequential = Math.max(curSequential, maxSequential);
-				if (curSequential > 1) {
-					minSequential = curSequential < minSequential ? curSequential : (minSequential == 0 ? curSequential : minSequential);
-				}
-				curSequential = 0;
-			}
-			else {
-				curSequential++;
+		final List<RtpControlData> arrivalOrder = new ArrayList<>(rtpControlDataMap.values());
+		Collections.sort(arrivalOrder, new Comparator<RtpControlData>() {
+			@Override
+			public int compare(RtpControlData o1, RtpControlData o2) {
+				return Long.compare(o1.receivedNs, o2.receivedNs);
 			}
+		});
 
-			nextSeq++;
-		}
-
-		maxSequential = Math.max(curSequential, maxSequential);
-		if (curSequential > 1) {
-			minSequential = curSequential < minSequential ? curSequential : (minSequential == 0 ? curSequential : minSequential);
-		}
-
-		if (minSequential == 0 && maxSequential > 0) {
-			minSequential = maxSequential;
+		final RtpQoSCalculator calculator = new RtpQoSCalculator(initialSequenceNumber, sampleRate, buffer);
+		for (RtpControlData data : arrivalOrder) {
+			calculator.add(data.rtpPacket, data.receivedNs);
 		}
-
-		return new RtpQoSResult(maxJitter, meanJitter / jitterMap.size(), skew, maxDelta,
-				packetsOutOfOrder, minSequential, maxSequential,
-				stalls, stalls == 0 ? 0 : (TimeUnit.MILLISECONDS.convert(stallTime, TimeUnit.NANOSECONDS) / stalls), jitterMap);
-	}
-
-	private static long calculateDelta(RtpControlData i, RtpControlData j, int sampleRate) {
-		final long msDiff = j.receivedNs - i.receivedNs;
-		final long tsDiff = TimeUnit.NANOSECONDS.convert((long) (((float)(j.rtpPacket.getTimestamp() - i.rtpPacket.getTimestamp()) / (float)sampleRate) * 1000f), TimeUnit.MILLISECONDS);
-		return msDiff - tsDiff;
+		return calculator.getResult();
 	}
 
 	/**
@@ -263,26 +202,9 @@ public class RtpUtil {
 		}
 	}
 
-	private final static class RtpSequence implements Comparable<RtpSequence> {
-		long timestampNs;
-		int seq;
-
-		public RtpSequence(long timestampNs, int seq) {
-			this.timestampNs = timestampNs;
-			this.seq = seq;
-		}
-
-		@Override
-		public int compareTo(RtpSequence o) {
-			return Long.valueOf(timestampNs).compareTo(o.timestampNs);
-		}
-
-
-	}
-
 	public final static class RtpQoSResult {
-		final Map<Integer, Float> jitterMap;
 		final int receivedPackets;
+		final long lostPackets;
 		final long maxJitter;
 		final long meanJitter;
 		final long skew;
@@ -293,31 +215,30 @@ public class RtpUtil {
 		final int numberOfStalls;
 		final long avgStallTime;
 
-		public RtpQoSResult(long maxJitter, long meanJitter, long skew, long maxDelta,
+		public RtpQoSResult(int receivedPackets, long lostPackets, long maxJitter, long meanJitter, long skew, long maxDelta,
 							int outOfOrder, int minSequential, int maxSequential,
-							int numberOfStalls, long avgStallTime,
-							Map<Integer, Float> jitterMap) {
-			this.jitterMap = jitterMap;
+							int numberOfStalls, long avgStallTime) {
+			this.receivedPackets = receivedPackets;
+			this.lostPackets = lostPackets;
 			this.maxJitter = maxJitter;
 			this.meanJitter = meanJitter;
 			this.skew = skew;
 			this.maxDelta = maxDelta;
 			this.outOfOrder = outOfOrder;
-			this.receivedPackets = jitterMap.size();
 			this.minSequential = minSequential > receivedPackets ? receivedPackets : minSequential;
 			this.maxSequencial = maxSequential > receivedPackets ? receivedPackets : maxSequential;
 			this.numberOfStalls = numberOfStalls;
 			this.avgStallTime = avgStallTime;
 		}
 
-		public Map<Integer, Float> getJitterMap() {
-			return jitterMap;
-		}
-
 		public int getReceivedPackets() {
 			return receivedPackets;
 		}
 
+		public long getLostPackets() {
+			return lostPackets;
+		}
+
 		public long getMaxJitter() {
 			return maxJitter;
 		}
@@ -356,8 +277,8 @@ public class RtpUtil {
 
 		@Override
 		public String toString() {
-			return "RtpQoSResult [jitterMap=" + jitterMap
-					+ ", receivedPackets=" + receivedPackets
+			return "RtpQoSResult [receivedPackets=" + receivedPackets
+					+ ", lostPackets=" + lostPackets
 					+ ", outOfOrder=" + outOfOrder + ", minSequential=" + minSequential + ", maxSequencial=" + maxSequencial
 					+ ", maxJitter=" + ((float)maxJitter / 1000000f)
 					+ ", meanJitter=" + ((float) meanJitter / 1000000f) + ", skew="
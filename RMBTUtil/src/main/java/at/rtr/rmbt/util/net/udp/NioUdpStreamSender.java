@@ -16,7 +16,6 @@
  *******************************************************************************/
 package at.rtr.rmbt.util.net.udp;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -27,7 +26,6 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -39,12 +37,21 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class NioUdpStreamSender implements StreamSender<DatagramChannel> {
 
+	/**
+	 * waits shorter than this are done by the {@link PacketPacer} instead of the selector (millisecond resolution)
+	 */
+	private final static long SELECT_MIN_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(2);
+
+	private final static long MAX_SELECT_MS = 1000;
+
 	UdpStreamSenderSettings<DatagramChannel> settings;
 	
 	UdpStreamCallback callback;
 	
 	final AtomicBoolean isRunning = new AtomicBoolean(false);
 	
+	private PacketPacer pacer;
+	
 	public NioUdpStreamSender(UdpStreamSenderSettings<DatagramChannel> settings, UdpStreamCallback udpStreamCallback) {
 		this.settings = settings;
 		this.callback = udpStreamCallback;		
@@ -54,6 +61,13 @@ public class NioUdpStreamSender implements StreamSender<DatagramChannel> {
 		isRunning.set(false);
 	}
 
+	/**
+	 * 
+	 * @return how exact the packets were sent, or null if the stream has not been started
+	 */
+	public PacketPacer.SendStatistics getSendStatistics() {
+		return pacer == null ? null : pacer.getStatistics();
+	}
 
 	/**
 	 * send a stream of udp packets
@@ -67,17 +81,17 @@ public class NioUdpStreamSender implements StreamSender<DatagramChannel> {
 	    
 		int packetsSent = 0;
 		int packetsRcv = 0;
-	    final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-	    final DataOutputStream dataOut = new DataOutputStream(byteOut);
+	    final PacketBufferOutputStream packetOut = new PacketBufferOutputStream();
+	    final DataOutputStream dataOut = new DataOutputStream(packetOut);
 	    final ByteBuffer buffer = ByteBuffer.allocate(1024);
 	    final SocketAddress targetAddress = new InetSocketAddress(settings.targetHost, settings.getTargetPort()); 
 
-	    final long delayMs = TimeUnit.MILLISECONDS.convert(settings.delay, settings.timeUnit);
-	    long lastSendTimestamp = 0;
+	    pacer = new PacketPacer(TimeUnit.NANOSECONDS.convert(settings.delay, settings.timeUnit));
+	    //a packet that could not be sent because the socket buffer was full
+	    ByteBuffer pendingPacket = null;
 	    
-	    final long startTimeMs = System.currentTimeMillis();
-	    final long timeoutMs = TimeUnit.MILLISECONDS.convert(settings.timeout, settings.timeUnit);
-	    final long stopTimeMs = timeoutMs > 0 ? timeoutMs + startTimeMs : 0;
+	    final long startTimeNs = System.nanoTime();
+	    final long timeoutNs = TimeUnit.NANOSECONDS.convert(settings.timeout, settings.timeUnit);
 
 	    DatagramChannel channel = null;
 	    Selector selector = null;
@@ -103,12 +117,9 @@ public class NioUdpStreamSender implements StreamSender<DatagramChannel> {
 	    	
 		    selector = Selector.open();
 		    
-		    if (settings.writeOnly) {
-		    	channel.register(selector, SelectionKey.OP_WRITE);
-		    }
-		    else {
-		    	channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-		    }
+		    //OP_WRITE is only of interest while the socket buffer is full, a channel is writable almost always
+		    final int readOps = settings.writeOnly ? 0 : SelectionKey.OP_READ;
+		    final SelectionKey channelKey = channel.register(selector, readOps);
 	
 		    while(isRunning.get()) {
 		    	if (Thread.interrupted()) {
@@ -116,53 +127,70 @@ public class NioUdpStreamSender implements StreamSender<DatagramChannel> {
 		            throw new InterruptedException();	
 	            }
 		    	
-		    	if (stopTimeMs > 0 && stopTimeMs < System.currentTimeMillis()) {
+		    	if (timeoutNs > 0 && System.nanoTime() - startTimeNs > timeoutNs) {
 		    		isRunning.set(false);
-		            throw new TimeoutException("Exceeded timeout of " + timeoutMs + "ms");
+		            throw new TimeoutException("Exceeded timeout of " + TimeUnit.NANOSECONDS.toMillis(timeoutNs) + "ms");
 		    	}
-			    	
-		    	selector.select(1000);
-		    	Set<SelectionKey> readyKeys = selector.selectedKeys();
-		    	if (!readyKeys.isEmpty()) {
-			    	Iterator<SelectionKey> iterator = readyKeys.iterator();
-			    	while (iterator.hasNext()) {
-			    		SelectionKey key = (SelectionKey) iterator.next();
-						iterator.remove();
-						if (key.isReadable() && (packetsRcv < settings.packets) && key.isValid()) {
-							buffer.clear();
-							channel.receive(buffer);
-							buffer.flip();
-							final DatagramPacket dp = new DatagramPacket(buffer.array(), buffer.array().length);
-							if (callback != null) {
-								callback.onReceive(dp);
-							}
-							packetsRcv++;
-						}
-						if (key.isWritable() && (packetsSent < settings.packets) && key.isValid()) {
-					    	//calculate correct packet delay
-					    	long currentDelay = System.currentTimeMillis() - lastSendTimestamp;
-					    	currentDelay = currentDelay > delayMs ? 0 : delayMs - currentDelay;
-					    	if (currentDelay <= 0) {
-								byteOut.reset();
-								buffer.clear();
-						    	try {
-						    		if (callback != null) {
-						    			if (callback.onSend(dataOut, packetsSent, null)) {
-									    	final byte[] data = byteOut.toByteArray();
-									    	buffer.put(data);
-									    	buffer.flip();
-									    	channel.send(buffer, targetAddress);
-											packetsSent++;
-									    	lastSendTimestamp = System.currentTimeMillis();
-						    			}
-						    		}
-						    	} catch (IOException e) {
-						    		e.printStackTrace();
-						    		return null;
-						    	}
-					    	}
-						}
-			    	}
+		    	
+		    	final boolean sendNext = packetsSent < settings.packets && pendingPacket == null;
+		    	final long waitNs = sendNext ? pacer.getRemainingNs() : TimeUnit.MILLISECONDS.toNanos(MAX_SELECT_MS);
+		    	channelKey.interestOps(readOps | (pendingPacket != null ? SelectionKey.OP_WRITE : 0));
+		    	if (waitNs >= SELECT_MIN_WAIT_NS) {
+		    		//wait for responses until the next packet is almost due
+		    		selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNs - SELECT_MIN_WAIT_NS / 2)));
+		    	}
+		    	else if (channelKey.interestOps() != 0) {
+		    		selector.selectNow();
+		    	}
+		    	
+		    	final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+		    	while (iterator.hasNext()) {
+		    		final SelectionKey key = iterator.next();
+		    		iterator.remove();
+		    		if (!key.isValid()) {
+		    			continue;
+		    		}
+		    		if (key.isReadable()) {
+		    			while (packetsRcv < settings.packets) {
+		    				buffer.clear();
+		    				if (channel.receive(buffer) == null) {
+		    					break;
+		    				}
+		    				buffer.flip();
+		    				final DatagramPacket dp = new DatagramPacket(buffer.array(), buffer.array().length);
+		    				if (callback != null) {
+		    					callback.onReceive(dp);
+		    				}
+		    				packetsRcv++;
+		    			}
+		    		}
+		    		if (key.isValid() && key.isWritable() && pendingPacket != null) {
+		    			if (channel.send(pendingPacket, targetAddress) > 0) {
+		    				pendingPacket = null;
+		    				packetsSent++;
+		    				pacer.onSent();
+		    			}
+		    		}
+		    	}
+		    	
+		    	if (sendNext && pacer.getRemainingNs() < SELECT_MIN_WAIT_NS && callback != null) {
+		    		pacer.awaitNext();
+		    		packetOut.reset();
+		    		try {
+		    			if (callback.onSend(dataOut, packetsSent, null)) {
+		    				final ByteBuffer packet = packetOut.getByteBuffer();
+		    				if (channel.send(packet, targetAddress) > 0) {
+		    					packetsSent++;
+		    					pacer.onSent();
+		    				}
+		    				else {
+		    					pendingPacket = packet;
+		    				}
+		    			}
+		    		} catch (IOException e) {
+		    			e.printStackTrace();
+		    			return null;
+		    		}
 		    	}
 		    	
 		    	if (!settings.writeOnly) {
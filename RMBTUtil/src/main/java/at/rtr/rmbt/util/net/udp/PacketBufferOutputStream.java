@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package at.rtr.rmbt.util.net.udp;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/**
+ * Packet buffer the {@link StreamSender.UdpStreamCallback} writes a packet into, which is then sent
+ * from the same array without copying it. The buffer is reused for all packets of a stream.
+ *
+ * @author lb
+ *
+ */
+final class PacketBufferOutputStream extends ByteArrayOutputStream {
+
+	/**
+	 * enough for the packets of the udp and voip tests; the buffer grows if a packet is larger
+	 */
+	final static int DEFAULT_SIZE = 2048;
+
+	private ByteBuffer byteBuffer;
+
+	PacketBufferOutputStream() {
+		super(DEFAULT_SIZE);
+	}
+
+	/**
+	 *
+	 * @return the current packet, valid until the next {@link #reset()}
+	 */
+	ByteBuffer getByteBuffer() {
+		if (byteBuffer == null || byteBuffer.array() != buf) {
+			byteBuffer = ByteBuffer.wrap(buf);
+		}
+		byteBuffer.limit(count).position(0);
+		return byteBuffer;
+	}
+
+	/**
+	 * points the datagram packet to the current packet
+	 * @param packet
+	 */
+	void setData(final DatagramPacket packet) {
+		packet.setData(buf, 0, count);
+	}
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package at.rtr.rmbt.util.net.udp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a packet stream to a fixed interval with nanosecond resolution.<br>
+ * Send times are scheduled on an absolute time line (start + n * interval), so delays of single packets
+ * do not add up. A late sender may catch up with at most {@link #getBurst()} packets sent back to back
+ * (token bucket); if it falls further behind, the time line is moved instead of sending a larger burst.
+ * A burst of 1 never sends two packets closer than the interval.
+ * <p>
+ * Waiting parks the thread and only spins for the last {@link #SPIN_NS} before a send,
+ * which keeps the timing accurate below 1ms without keeping a core busy (see {@link #SYSTEM_CLOCK}).
+ * <p>
+ * Not thread safe, a pacer belongs to the thread sending the stream.
+ *
+ * @author lb
+ *
+ */
+public class PacketPacer {
+
+	/**
+	 * parking is not precise enough for the last part of a wait (timer slack, scheduler latency)
+	 */
+	public final static long SPIN_NS = 100000;
+
+	/**
+	 * allows one packet to be sent right after a delayed one, which keeps the time line for delays up to one interval
+	 */
+	public final static int DEFAULT_BURST = 2;
+
+	/**
+	 * the time line of a pacer
+	 */
+	public interface Clock {
+		long nanoTime();
+
+		/**
+		 * waits until the given time has passed or less; the pacer checks the time again afterwards
+		 * @param ns
+		 * @throws InterruptedException
+		 */
+		void await(long ns) throws InterruptedException;
+	}
+
+	/**
+	 * {@link System#nanoTime()}; parks the thread and yields for the last {@link #SPIN_NS} of a wait
+	 */
+	public final static Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public void await(final long ns) throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (ns > SPIN_NS) {
+				LockSupport.parkNanos(ns - SPIN_NS);
+			}
+			else {
+				Thread.yield();
+			}
+		}
+	};
+
+	private final Clock clock;
+
+	private final long intervalNs;
+
+	private final int burst;
+
+	private long nextSendNs;
+
+	private boolean started = false;
+
+	private final SendStatistics statistics = new SendStatistics();
+
+	/**
+	 *
+	 * @param intervalNs the interval between two packets
+	 * @param burst maximum number of packets that may be sent back to back to catch up after a delay (at least 1)
+	 * @param clock
+	 */
+	public PacketPacer(final long intervalNs, final int burst, final Clock clock) {
+		this.intervalNs = Math.max(0, intervalNs);
+		this.burst = Math.max(1, burst);
+		this.clock = clock;
+	}
+
+	/**
+	 * pacer on the {@link #SYSTEM_CLOCK}
+	 * @param intervalNs
+	 * @param burst
+	 */
+	public PacketPacer(final long intervalNs, final int burst) {
+		this(intervalNs, burst, SYSTEM_CLOCK);
+	}
+
+	/**
+	 * pacer with the {@link #DEFAULT_BURST}
+	 * @param intervalNs
+	 */
+	public PacketPacer(final long intervalNs) {
+		this(intervalNs, DEFAULT_BURST);
+	}
+
+	/**
+	 * the first packet is due immediately
+	 */
+	private void start(final long now) {
+		nextSendNs = now;
+		started = true;
+	}
+
+	/**
+	 *
+	 * @return nanoseconds until the next packet is due, 0 if it is due now
+	 */
+	public long getRemainingNs() {
+		final long now = clock.nanoTime();
+		if (!started) {
+			start(now);
+		}
+		return Math.max(0, nextSendNs - now);
+	}
+
+	/**
+	 * waits until the next packet is due
+	 * @throws InterruptedException
+	 */
+	public void awaitNext() throws InterruptedException {
+		long remaining;
+		while ((remaining = getRemainingNs()) > 0) {
+			clock.await(remaining);
+		}
+	}
+
+	/**
+	 * to be called right after a packet has been sent; schedules the next packet
+	 */
+	public void onSent() {
+		final long now = clock.nanoTime();
+		if (!started) {
+			start(now);
+		}
+		statistics.add(now, now - nextSendNs, intervalNs);
+
+		nextSendNs += intervalNs;
+		//more packets behind than the bucket allows: give up the time that is lost
+		final long earliest = now - (burst - 2) * intervalNs;
+		if (nextSendNs < earliest) {
+			nextSendNs = earliest;
+		}
+	}
+
+	public long getIntervalNs() {
+		return intervalNs;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 *
+	 * @return the statistics of the packets sent so far
+	 */
+	public SendStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * How exact a stream was sent: the lateness of each packet against its scheduled time
+	 * and the deviation of the intervals between two packets from the nominal interval.
+	 *
+	 * @author lb
+	 *
+	 */
+	public static class SendStatistics {
+
+		private int packets;
+
+		private long lastSentNs;
+
+		private long sumLatenessNs;
+
+		private long maxLatenessNs;
+
+		private long sumIntervalDeviationNs;
+
+		private long maxIntervalDeviationNs;
+
+		void add(final long sentNs, final long latenessNs, final long intervalNs) {
+			if (packets > 0) {
+				final long deviation = Math.abs(sentNs - lastSentNs - intervalNs);
+				sumIntervalDeviationNs += deviation;
+				maxIntervalDeviationNs = Math.max(maxIntervalDeviationNs, deviation);
+			}
+			sumLatenessNs += latenessNs;
+			maxLatenessNs = Math.max(maxLatenessNs, latenessNs);
+			lastSentNs = sentNs;
+			packets++;
+		}
+
+		public int getPackets() {
+			return packets;
+		}
+
+		public long getMeanLatenessNs() {
+			return packets == 0 ? 0 : sumLatenessNs / packets;
+		}
+
+		public long getMaxLatenessNs() {
+			return maxLatenessNs;
+		}
+
+		/**
+		 *
+		 * @return mean absolute deviation of the intervals between two packets from the nominal interval
+		 */
+		public long getMeanJitterNs() {
+			return packets < 2 ? 0 : sumIntervalDeviationNs / (packets - 1);
+		}
+
+		public long getMaxJitterNs() {
+			return maxIntervalDeviationNs;
+		}
+
+		@Override
+		public String toString() {
+			return "SendStatistics [packets=" + packets + ", meanLatenessNs=" + getMeanLatenessNs()
+					+ ", maxLatenessNs=" + maxLatenessNs + ", meanJitterNs=" + getMeanJitterNs()
+					+ ", maxJitterNs=" + maxIntervalDeviationNs + "]";
+		}
+	}
+}
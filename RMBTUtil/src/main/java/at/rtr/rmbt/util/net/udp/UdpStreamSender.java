@@ -17,7 +17,6 @@
 // based on: https://raw.githubusercontent.com/alladin-IT/open-rmbt/master/RMBTUtil/src/main/java/at/alladin/rmbt/util/net/udp/UdpStreamSender.java
 package at.rtr.rmbt.util.net.udp;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -61,17 +60,18 @@ public class UdpStreamSender implements StreamSender<DatagramSocket> {
 	    isRunning.set(true);
 	    
 		int packetsSent = 0;
-	    final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-	    final DataOutputStream dataOut = new DataOutputStream(byteOut);
+	    final PacketBufferOutputStream packetOut = new PacketBufferOutputStream();
+	    final DataOutputStream dataOut = new DataOutputStream(packetOut);
 
-	    byte[] data;
+	    //one packet (and receive buffer) for the whole stream, the data is set before each send
+	    final DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+	    final byte[] receiveBuffer = new byte[1024];
+	    final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
 
-	    final long delayMs = TimeUnit.MILLISECONDS.convert(settings.delay, settings.timeUnit);
-	    long lastSendTimestamp = 0;
+	    final PacketPacer pacer = new PacketPacer(TimeUnit.NANOSECONDS.convert(settings.delay, settings.timeUnit));
 	    
-	    final long startTimeMs = System.currentTimeMillis();
-	    final long timeoutMs = TimeUnit.MILLISECONDS.convert(settings.timeout, settings.timeUnit);
-	    final long stopTimeMs = timeoutMs > 0 ? timeoutMs + startTimeMs : 0;
+	    final long startTimeNs = System.nanoTime();
+	    final long timeoutNs = TimeUnit.NANOSECONDS.convert(settings.timeout, settings.timeUnit);
 
 	    while(isRunning.get()) {    	
 	    	if (Thread.interrupted()) {
@@ -79,48 +79,37 @@ public class UdpStreamSender implements StreamSender<DatagramSocket> {
 	            throw new InterruptedException();	
             }
 	    	
-	    	if (stopTimeMs > 0 && stopTimeMs < System.currentTimeMillis()) {
+	    	if (timeoutNs > 0 && System.nanoTime() - startTimeNs > timeoutNs) {
 	    		isRunning.set(false);
 	            throw new TimeoutException();	    		
 	    	}
 
-	    	byteOut.reset();
+	    	packetOut.reset();
 	    	
-	    	//calculate correct packet delay
-	    	long currentDelay = System.currentTimeMillis() - lastSendTimestamp;
-	    	currentDelay = currentDelay > delayMs ? 0 : delayMs - currentDelay;
-	    	if (currentDelay > 0) {
-	    		Thread.sleep(currentDelay);
-	    	}
+	    	pacer.awaitNext();
 	    	
 	    	try {
 
 	    		if (callback != null && callback.onSend(dataOut, packetsSent, null)) {
-					data = byteOut.toByteArray();
-
-    		    	DatagramPacket packet = null;
+					packetOut.setData(packet);
     		    	if (!settings.socket.isConnected()) {
-    				    packet = new DatagramPacket(data, data.length, settings.targetHost, settings.targetPort);		    		
-    		    	}
-    		    	else {
-    		    		packet = new DatagramPacket(data, data.length);
+    				    packet.setAddress(settings.targetHost);
+    				    packet.setPort(settings.targetPort);
     		    	}
     		    	
     	    		settings.socket.send(packet);
     		    	packetsSent++;
-    		    	lastSendTimestamp = System.currentTimeMillis();
+    		    	pacer.onSent();
 	    		}
 
 	    		
 	    		if (!settings.writeOnly) {
 	    			try {
-	    			    byte buffer[] = new byte[1024];
-
-	    			    DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+	    			    receivePacket.setData(receiveBuffer);
 	    			    settings.socket.setSoTimeout((int) TimeUnit.MILLISECONDS.convert(settings.responseSoTimeout, settings.timeUnit));
-	    			    settings.socket.receive(dp);
+	    			    settings.socket.receive(receivePacket);
 	    			    if (callback != null) {
-	    			    	callback.onReceive(dp);
+	    			    	callback.onReceive(receivePacket);
 	    			    }
 	    			}
 	    			catch (SocketTimeoutException e) {
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package at.rtr.rmbt.util.net.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import at.rtr.rmbt.util.net.rtp.RtpUtil.RtpQoSResult;
+
+/**
+ * 
+ * @author lb
+ *
+ */
+public class RtpQoSCalculatorTest {
+
+	private final static int SAMPLE_RATE = 8000;
+	
+	private final static long DELAY_NS = 20000000L;
+	
+	private final static long BUFFER_NS = 100000000L;
+	
+	/**
+	 * 20ms packets with 160 samples each
+	 */
+	private static void add(RtpQoSCalculator calculator, int packet, int initialSequenceNumber, long receivedNs) {
+		calculator.add((initialSequenceNumber + packet) & 0xFFFF, packet * 160L, receivedNs);
+	}
+	
+	@Test
+	public void testNoPackets() {
+		assertNull(new RtpQoSCalculator(0, SAMPLE_RATE, BUFFER_NS).getResult());
+	}
+
+	@Test
+	public void testPerfectStream() {
+		final RtpQoSCalculator calculator = new RtpQoSCalculator(100, SAMPLE_RATE, BUFFER_NS);
+		for (int i = 0; i < 50; i++) {
+			add(calculator, i, 100, i * DELAY_NS);
+		}
+		
+		final RtpQoSResult result = calculator.getResult();
+		assertEquals(50, result.getReceivedPackets());
+		assertEquals(0, result.getLostPackets());
+		assertEquals(0, result.getMaxJitter());
+		assertEquals(0, result.getMeanJitter());
+		assertEquals(0, result.getSkew());
+		assertEquals(0, result.getOutOfOrder());
+		assertEquals(50, result.getMinSequential());
+		assertEquals(50, result.getMaxSequencial());
+		assertEquals(0, result.getNumberOfStalls());
+	}
+
+	@Test
+	public void testJitterAndStalls() {
+		final RtpQoSCalculator calculator = new RtpQoSCalculator(0, SAMPLE_RATE, BUFFER_NS);
+		add(calculator, 0, 0, 0);
+		//16ms late: D = 16ms, J = 1ms
+		add(calculator, 1, 0, DELAY_NS + 16000000L);
+		//150ms gap: stall of 50ms
+		add(calculator, 2, 0, DELAY_NS + 16000000L + 150000000L);
+
+		final RtpQoSResult result = calculator.getResult();
+		assertEquals(130000000L, result.getMaxDelta());
+		assertEquals(1000000L + (130000000L - 1000000L) / 16, result.getMaxJitter());
+		assertEquals(-(16000000L + 130000000L), result.getSkew());
+		assertEquals(1, result.getNumberOfStalls());
+		assertEquals(50, result.getAvgStallTime());
+	}
+
+	@Test
+	public void testLossAndDuplicates() {
+		final RtpQoSCalculator calculator = new RtpQoSCalculator(0, SAMPLE_RATE, BUFFER_NS);
+		for (int i = 0; i < 10; i++) {
+			if (i != 4) {
+				add(calculator, i, 0, i * DELAY_NS);
+			}
+		}
+		assertFalse(calculator.add(3, 3 * 160L, 11 * DELAY_NS));
+
+		final RtpQoSResult result = calculator.getResult();
+		assertEquals(9, result.getReceivedPackets());
+		assertEquals(1, result.getLostPackets());
+		//every packet after the lost one is behind its expected position
+		assertEquals(5, result.getOutOfOrder());
+		assertEquals(4, result.getMaxSequencial());
+	}
+
+	@Test
+	public void testSequenceNumberWrapAround() {
+		final RtpQoSCalculator calculator = new RtpQoSCalculator(65530, SAMPLE_RATE, BUFFER_NS);
+		for (int i = 0; i < 20; i++) {
+			add(calculator, i, 65530, i * DELAY_NS);
+		}
+		
+		final RtpQoSResult result = calculator.getResult();
+		assertEquals(20, result.getReceivedPackets());
+		assertEquals(0, result.getLostPackets());
+		assertEquals(0, result.getOutOfOrder());
+		assertEquals(20, result.getMaxSequencial());
+	}
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2020 Rundfunk und Telekom Regulierungs-GmbH (RTR-GmbH)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package at.rtr.rmbt.util.net.udp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author lb
+ *
+ */
+public class PacketPacerTest {
+
+	private final static long INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(2);
+
+	/**
+	 * time only passes while the pacer waits or when the test advances it
+	 */
+	private final static class TestClock implements PacketPacer.Clock {
+		long now = 1000;
+
+		@Override
+		public long nanoTime() {
+			return now;
+		}
+
+		@Override
+		public void await(long ns) {
+			now += ns;
+		}
+	}
+
+	private final TestClock clock = new TestClock();
+
+	@Test
+	public void testPacketsAreSentOnTheTimeLine() throws Exception {
+		final long start = clock.now;
+		final PacketPacer pacer = new PacketPacer(INTERVAL_NS, PacketPacer.DEFAULT_BURST, clock);
+		for (int i = 0; i < 20; i++) {
+			pacer.awaitNext();
+			pacer.onSent();
+		}
+		
+		assertEquals(19 * INTERVAL_NS, clock.now - start);
+		assertEquals(20, pacer.getStatistics().getPackets());
+		assertEquals(0, pacer.getStatistics().getMaxLatenessNs());
+		assertEquals(0, pacer.getStatistics().getMaxJitterNs());
+	}
+
+	@Test
+	public void testDelayOfOneIntervalKeepsTheTimeLine() throws Exception {
+		final PacketPacer pacer = new PacketPacer(INTERVAL_NS, PacketPacer.DEFAULT_BURST, clock);
+		pacer.awaitNext();
+		pacer.onSent();
+
+		clock.now += INTERVAL_NS * 3 / 2;
+		assertEquals(0, pacer.getRemainingNs());
+		pacer.onSent();
+		assertEquals(INTERVAL_NS / 2, pacer.getRemainingNs());
+		assertEquals(INTERVAL_NS / 2, pacer.getStatistics().getMaxLatenessNs());
+		assertEquals(INTERVAL_NS / 2, pacer.getStatistics().getMaxJitterNs());
+	}
+
+	@Test
+	public void testLateSenderCatchesUpWithLimitedBurst() throws Exception {
+		final PacketPacer pacer = new PacketPacer(INTERVAL_NS, PacketPacer.DEFAULT_BURST, clock);
+		pacer.awaitNext();
+		pacer.onSent();
+		
+		//miss several intervals: only one packet may follow the delayed one immediately
+		clock.now += INTERVAL_NS * 4;
+		assertEquals(0, pacer.getRemainingNs());
+		pacer.onSent();
+		assertEquals(0, pacer.getRemainingNs());
+		pacer.onSent();
+		assertEquals(INTERVAL_NS, pacer.getRemainingNs());
+	}
+
+	@Test
+	public void testBurstOfOneKeepsTheInterval() throws Exception {
+		final PacketPacer pacer = new PacketPacer(INTERVAL_NS, 1, clock);
+		pacer.awaitNext();
+		pacer.onSent();
+		
+		clock.now += INTERVAL_NS * 2;
+		assertEquals(0, pacer.getRemainingNs());
+		pacer.onSent();
+		assertEquals(INTERVAL_NS, pacer.getRemainingNs());
+	}
+}
@@ -2200,6 +2200,42 @@ CREATE FUNCTION public.transscale(public.geometry, double precision, double prec
 
 ALTER FUNCTION public.transscale(public.geometry, double precision, double precision, double precision, double precision) OWNER TO postgres;
 
+--
+-- Name: trigger_qos_test_evaluation_reset(); Type: FUNCTION; Schema: public; Owner: rmbt
+--
+
+CREATE FUNCTION public.trigger_qos_test_evaluation_reset() RETURNS trigger
+    LANGUAGE plpgsql
+    AS $$
+BEGIN
+    -- objectives or descriptions have changed: tests are evaluated again when requested
+    -- (evaluations of an older catalog version are ignored, even if they are stored after the truncate)
+    PERFORM nextval('qos_catalog_version_seq');
+    TRUNCATE qos_test_evaluation;
+    RETURN NULL;
+END;
+$$;
+
+
+ALTER FUNCTION public.trigger_qos_test_evaluation_reset() OWNER TO rmbt;
+
+--
+-- Name: trigger_qos_test_result_evaluation(); Type: FUNCTION; Schema: public; Owner: rmbt
+--
+
+CREATE FUNCTION public.trigger_qos_test_result_evaluation() RETURNS trigger
+    LANGUAGE plpgsql
+    AS $$
+BEGIN
+    -- results have been marked as deleted or implausible: the test is evaluated again when requested
+    DELETE FROM qos_test_evaluation WHERE test_uid = OLD.test_uid OR test_uid = NEW.test_uid;
+    RETURN NULL;
+END;
+$$;
+
+
+ALTER FUNCTION public.trigger_qos_test_result_evaluation() OWNER TO rmbt;
+
 --
 -- Name: trigger_test(); Type: FUNCTION; Schema: public; Owner: rmbt
 --
@@ -3355,6 +3391,54 @@ ALTER TABLE public.geo_location_uid_seq OWNER TO rmbt;
 ALTER SEQUENCE public.geo_location_uid_seq OWNED BY public.geo_location.uid;
 
 
+--
+-- Name: heatmap_grid; Type: TABLE; Schema: public; Owner: rmbt
+--
+
+CREATE TABLE public.heatmap_grid (
+    map_option text NOT NULL,
+    period integer NOT NULL,
+    level smallint NOT NULL,
+    shifted boolean NOT NULL,
+    cx integer NOT NULL,
+    cy integer NOT NULL,
+    sketch bytea NOT NULL
+);
+
+
+ALTER TABLE public.heatmap_grid OWNER TO rmbt;
+
+--
+-- Name: TABLE heatmap_grid; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON TABLE public.heatmap_grid IS 'Pre-aggregated heatmap cells per map option, period (days, 0: all) and grid level; sketch: histogram of the values of the tests in the cell';
+
+
+--
+-- Name: heatmap_grid_state; Type: TABLE; Schema: public; Owner: rmbt
+--
+
+CREATE TABLE public.heatmap_grid_state (
+    map_option text NOT NULL,
+    lower_bound double precision NOT NULL,
+    upper_bound double precision NOT NULL,
+    buckets integer NOT NULL,
+    periods integer[] NOT NULL,
+    max_test_uid bigint NOT NULL,
+    "time" timestamp with time zone DEFAULT now() NOT NULL
+);
+
+
+ALTER TABLE public.heatmap_grid_state OWNER TO rmbt;
+
+--
+-- Name: TABLE heatmap_grid_state; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON TABLE public.heatmap_grid_state IS 'Scale of the heatmap grid sketches per map option and the last test added to the grid';
+
+
 --
 -- Name: json_sender_uid_seq; Type: SEQUENCE; Schema: public; Owner: rmbt
 --
@@ -3976,6 +4060,27 @@ ALTER TABLE public.provider_uid_seq OWNER TO rmbt;
 ALTER SEQUENCE public.provider_uid_seq OWNED BY public.provider.uid;
 
 
+--
+-- Name: qos_catalog_version_seq; Type: SEQUENCE; Schema: public; Owner: rmbt
+--
+
+CREATE SEQUENCE public.qos_catalog_version_seq
+    START WITH 1
+    INCREMENT BY 1
+    NO MINVALUE
+    NO MAXVALUE
+    CACHE 1;
+
+
+ALTER TABLE public.qos_catalog_version_seq OWNER TO rmbt;
+
+--
+-- Name: SEQUENCE qos_catalog_version_seq; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON SEQUENCE public.qos_catalog_version_seq IS 'Version of qos_test_objective and qos_test_desc, incremented on every change; stored with each qos_test_evaluation';
+
+
 --
 -- Name: qos_test_desc; Type: TABLE; Schema: public; Owner: rmbt
 --
@@ -4011,6 +4116,30 @@ ALTER TABLE public.qos_test_desc_uid_seq OWNER TO rmbt;
 ALTER SEQUENCE public.qos_test_desc_uid_seq OWNED BY public.qos_test_desc.uid;
 
 
+--
+-- Name: qos_test_evaluation; Type: TABLE; Schema: public; Owner: rmbt
+--
+
+CREATE TABLE public.qos_test_evaluation (
+    test_uid bigint NOT NULL,
+    lang text NOT NULL,
+    success_count integer DEFAULT 0 NOT NULL,
+    failure_count integer DEFAULT 0 NOT NULL,
+    evaluation json NOT NULL,
+    "time" timestamp with time zone DEFAULT now() NOT NULL,
+    catalog_version bigint DEFAULT 0 NOT NULL
+);
+
+
+ALTER TABLE public.qos_test_evaluation OWNER TO rmbt;
+
+--
+-- Name: TABLE qos_test_evaluation; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON TABLE public.qos_test_evaluation IS 'Evaluated qos results of a test per language, served by the qos result requests; only valid for the catalog_version they have been evaluated with';
+
+
 --
 -- Name: qos_test_objective; Type: TABLE; Schema: public; Owner: rmbt
 --
@@ -4417,6 +4546,115 @@ COMMENT ON COLUMN public.speed.open_test_uuid IS 'uuid of the test';
 COMMENT ON COLUMN public.speed.items IS 'speed items of the test';
 
 
+--
+-- Name: statistic_rollup_device; Type: TABLE; Schema: public; Owner: rmbt
+--
+
+CREATE TABLE public.statistic_rollup_device (
+    day timestamp with time zone NOT NULL,
+    type character varying(200),
+    group_name character varying(200),
+    model character varying(200),
+    mobile_provider boolean NOT NULL,
+    data bytea NOT NULL
+);
+
+
+ALTER TABLE public.statistic_rollup_device OWNER TO rmbt;
+
+--
+-- Name: TABLE statistic_rollup_device; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON TABLE public.statistic_rollup_device IS 'Daily rollup of the finished, plausible and pinned tests per network type and device (model from device_map); data: test count and sketches of download, upload, ping and signal';
+
+
+--
+-- Name: statistic_rollup_intraday; Type: TABLE; Schema: public; Owner: rmbt
+--
+
+CREATE TABLE public.statistic_rollup_intraday (
+    day timestamp with time zone NOT NULL,
+    hour smallint,
+    data bytea NOT NULL
+);
+
+
+ALTER TABLE public.statistic_rollup_intraday OWNER TO rmbt;
+
+--
+-- Name: TABLE statistic_rollup_intraday; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON TABLE public.statistic_rollup_intraday IS 'Daily rollup of the finished and plausible tests per hour in the time zone of the test; data: count of open tests and sketches of download, upload and ping';
+
+
+--
+-- Name: statistic_rollup_provider; Type: TABLE; Schema: public; Owner: rmbt
+--
+
+CREATE TABLE public.statistic_rollup_provider (
+    day timestamp with time zone NOT NULL,
+    type character varying(200),
+    group_name character varying(200),
+    provider_id integer NOT NULL,
+    data bytea NOT NULL
+);
+
+
+ALTER TABLE public.statistic_rollup_provider OWNER TO rmbt;
+
+--
+-- Name: TABLE statistic_rollup_provider; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON TABLE public.statistic_rollup_provider IS 'Daily rollup of the finished, plausible and pinned tests per network type and provider (mobile provider for mobile tests); data: test count and sketches of download, upload, ping and signal';
+
+
+--
+-- Name: statistic_rollup_state; Type: TABLE; Schema: public; Owner: rmbt
+--
+
+CREATE TABLE public.statistic_rollup_state (
+    from_day timestamp with time zone NOT NULL,
+    to_day timestamp with time zone NOT NULL,
+    complete boolean DEFAULT false NOT NULL,
+    "time" timestamp with time zone DEFAULT now() NOT NULL
+);
+
+
+ALTER TABLE public.statistic_rollup_state OWNER TO rmbt;
+
+--
+-- Name: TABLE statistic_rollup_state; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON TABLE public.statistic_rollup_state IS 'Days covered by the statistic rollups (from_day inclusive, to_day exclusive), complete if there are no tests before from_day; a single row';
+
+
+--
+-- Name: statistic_rollup_usage; Type: TABLE; Schema: public; Owner: rmbt
+--
+
+CREATE TABLE public.statistic_rollup_usage (
+    day timestamp with time zone NOT NULL,
+    tests bigint NOT NULL,
+    finished bigint NOT NULL,
+    aborted bigint NOT NULL,
+    clients bigint NOT NULL,
+    ips bigint NOT NULL
+);
+
+
+ALTER TABLE public.statistic_rollup_usage OWNER TO rmbt;
+
+--
+-- Name: TABLE statistic_rollup_usage; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON TABLE public.statistic_rollup_usage IS 'Daily rollup of the number of tests, finished and aborted tests, distinct clients and distinct IPs';
+
+
 --
 -- Name: statistik_austria_gem; Type: TABLE; Schema: public; Owner: rmbt
 --
@@ -4690,6 +4928,7 @@ CREATE TABLE public.test (
 	test_error_cause varchar,
 	last_sequence_number integer,
 	submission_retry_count integer,
+    public_ip_enriched_at timestamp with time zone,
     CONSTRAINT enforce_dims_location CHECK ((public.st_ndims(location) = 2)),
     CONSTRAINT enforce_geotype_location CHECK (((public.geometrytype(location) = 'POINT'::text) OR (location IS NULL))),
     CONSTRAINT enforce_srid_location CHECK ((public.st_srid(location) = 900913)),
@@ -4707,6 +4946,13 @@ ALTER TABLE public.test OWNER TO rmbt;
 COMMENT ON COLUMN public.test.server_id IS 'id of test server used';
 
 
+--
+-- Name: COLUMN test.public_ip_enriched_at; Type: COMMENT; Schema: public; Owner: rmbt
+--
+
+COMMENT ON COLUMN public.test.public_ip_enriched_at IS 'time the AS and the reverse DNS name of client_public_ip were looked up (public_ip_rdns stays NULL if the address has none); NULL while the AS is missing';
+
+
 --
 -- Name: test_location; Type: TABLE; Schema: public; Owner: rmbt
 --
@@ -5952,6 +6198,22 @@ ALTER TABLE ONLY public.geo_location
     ADD CONSTRAINT location_uid_pkey PRIMARY KEY (uid);
 
 
+--
+-- Name: heatmap_grid heatmap_grid_pkey; Type: CONSTRAINT; Schema: public; Owner: rmbt
+--
+
+ALTER TABLE ONLY public.heatmap_grid
+    ADD CONSTRAINT heatmap_grid_pkey PRIMARY KEY (map_option, period, level, shifted, cx, cy);
+
+
+--
+-- Name: heatmap_grid_state heatmap_grid_state_pkey; Type: CONSTRAINT; Schema: public; Owner: rmbt
+--
+
+ALTER TABLE ONLY public.heatmap_grid_state
+    ADD CONSTRAINT heatmap_grid_state_pkey PRIMARY KEY (map_option);
+
+
 --
 -- Name: mcc2country mcc2country_pkey; Type: CONSTRAINT; Schema: public; Owner: rmbt
 --
@@ -6024,6 +6286,14 @@ ALTER TABLE ONLY public.qos_test_desc
     ADD CONSTRAINT qos_test_desc_pkey PRIMARY KEY (uid);
 
 
+--
+-- Name: qos_test_evaluation qos_test_evaluation_pkey; Type: CONSTRAINT; Schema: public; Owner: rmbt
+--
+
+ALTER TABLE ONLY public.qos_test_evaluation
+    ADD CONSTRAINT qos_test_evaluation_pkey PRIMARY KEY (test_uid, lang);
+
+
 --
 -- Name: qos_test_objective qos_test_objective_pkey; Type: CONSTRAINT; Schema: public; Owner: rmbt
 --
@@ -6144,6 +6414,14 @@ ALTER TABLE ONLY public.speed
     ADD CONSTRAINT speed_pkey PRIMARY KEY (open_test_uuid);
 
 
+--
+-- Name: statistic_rollup_usage statistic_rollup_usage_pkey; Type: CONSTRAINT; Schema: public; Owner: rmbt
+--
+
+ALTER TABLE ONLY public.statistic_rollup_usage
+    ADD CONSTRAINT statistic_rollup_usage_pkey PRIMARY KEY (day);
+
+
 --
 -- Name: statistik_austria_gem statistik_austria_gem_pkey; Type: CONSTRAINT; Schema: public; Owner: rmbt
 --
@@ -6672,6 +6950,27 @@ CREATE INDEX rtr_gemeinden_multiband_gix ON public.rtr_gemeinden_multiband USING
 CREATE INDEX settings_key_lang_idx ON public.settings USING btree (key, lang);
 
 
+--
+-- Name: statistic_rollup_device_day_idx; Type: INDEX; Schema: public; Owner: rmbt
+--
+
+CREATE INDEX statistic_rollup_device_day_idx ON public.statistic_rollup_device USING btree (day);
+
+
+--
+-- Name: statistic_rollup_intraday_day_idx; Type: INDEX; Schema: public; Owner: rmbt
+--
+
+CREATE INDEX statistic_rollup_intraday_day_idx ON public.statistic_rollup_intraday USING btree (day);
+
+
+--
+-- Name: statistic_rollup_provider_day_idx; Type: INDEX; Schema: public; Owner: rmbt
+--
+
+CREATE INDEX statistic_rollup_provider_day_idx ON public.statistic_rollup_provider USING btree (day);
+
+
 --
 -- Name: statistik_austria_gem_bbox_gix; Type: INDEX; Schema: public; Owner: rmbt
 --
@@ -6826,6 +7125,13 @@ CREATE INDEX test_location_open_test_uuid_idx ON public.test_location USING btre
 CREATE INDEX test_location_settlement_type_idx ON public.test_location USING btree (settlement_type);
 
 
+--
+-- Name: test_lte_rsrp_uid_idx; Type: INDEX; Schema: public; Owner: rmbt
+--
+
+CREATE INDEX test_lte_rsrp_uid_idx ON public.test USING btree (lte_rsrp, uid);
+
+
 --
 -- Name: test_mobile_network_id_idx; Type: INDEX; Schema: public; Owner: rmbt
 --
@@ -6882,6 +7188,13 @@ CREATE INDEX test_open_uuid_idx ON public.test USING btree (open_uuid);
 CREATE INDEX test_ping_median_log_idx ON public.test USING btree (ping_median_log);
 
 
+--
+-- Name: test_ping_median_uid_idx; Type: INDEX; Schema: public; Owner: rmbt
+--
+
+CREATE INDEX test_ping_median_uid_idx ON public.test USING btree (ping_median, uid);
+
+
 --
 -- Name: test_ping_shortest_log_idx; Type: INDEX; Schema: public; Owner: rmbt
 --
@@ -6917,6 +7230,13 @@ CREATE INDEX test_provider_id_idx ON public.test USING btree (provider_id);
 CREATE INDEX test_similar_test_uid_idx ON public.test USING btree (similar_test_uid);
 
 
+--
+-- Name: test_signal_strength_uid_idx; Type: INDEX; Schema: public; Owner: rmbt
+--
+
+CREATE INDEX test_signal_strength_uid_idx ON public.test USING btree (signal_strength, uid);
+
+
 --
 -- Name: test_speed_download_log_idx; Type: INDEX; Schema: public; Owner: rmbt
 --
@@ -6924,6 +7244,13 @@ CREATE INDEX test_similar_test_uid_idx ON public.test USING btree (similar_test_
 CREATE INDEX test_speed_download_log_idx ON public.test USING btree (speed_download_log);
 
 
+--
+-- Name: test_speed_download_uid_idx; Type: INDEX; Schema: public; Owner: rmbt
+--
+
+CREATE INDEX test_speed_download_uid_idx ON public.test USING btree (speed_download, uid);
+
+
 --
 -- Name: test_speed_upload_log_idx; Type: INDEX; Schema: public; Owner: rmbt
 --
@@ -6931,6 +7258,13 @@ CREATE INDEX test_speed_download_log_idx ON public.test USING btree (speed_downl
 CREATE INDEX test_speed_upload_log_idx ON public.test USING btree (speed_upload_log);
 
 
+--
+-- Name: test_speed_upload_uid_idx; Type: INDEX; Schema: public; Owner: rmbt
+--
+
+CREATE INDEX test_speed_upload_uid_idx ON public.test USING btree (speed_upload, uid);
+
+
 --
 -- Name: test_status_finished2_idx; Type: INDEX; Schema: public; Owner: rmbt
 --
@@ -6973,6 +7307,13 @@ CREATE INDEX test_time_export ON public.test USING btree (date_part('month'::tex
 CREATE INDEX test_time_idx ON public.test USING btree ("time");
 
 
+--
+-- Name: test_time_uid_idx; Type: INDEX; Schema: public; Owner: rmbt
+--
+
+CREATE INDEX test_time_uid_idx ON public.test USING btree ("time", uid);
+
+
 --
 -- Name: test_zip_code_idx; Type: INDEX; Schema: public; Owner: rmbt
 --
@@ -6980,6 +7321,27 @@ CREATE INDEX test_time_idx ON public.test USING btree ("time");
 CREATE INDEX test_zip_code_idx ON public.test USING btree (zip_code);
 
 
+--
+-- Name: qos_test_desc trigger_qos_test_desc_evaluation; Type: TRIGGER; Schema: public; Owner: rmbt
+--
+
+CREATE TRIGGER trigger_qos_test_desc_evaluation AFTER INSERT OR DELETE OR UPDATE OR TRUNCATE ON public.qos_test_desc FOR EACH STATEMENT EXECUTE PROCEDURE public.trigger_qos_test_evaluation_reset();
+
+
+--
+-- Name: qos_test_objective trigger_qos_test_objective_evaluation; Type: TRIGGER; Schema: public; Owner: rmbt
+--
+
+CREATE TRIGGER trigger_qos_test_objective_evaluation AFTER INSERT OR DELETE OR UPDATE OR TRUNCATE ON public.qos_test_objective FOR EACH STATEMENT EXECUTE PROCEDURE public.trigger_qos_test_evaluation_reset();
+
+
+--
+-- Name: qos_test_result trigger_qos_test_result_evaluation; Type: TRIGGER; Schema: public; Owner: rmbt
+--
+
+CREATE TRIGGER trigger_qos_test_result_evaluation AFTER UPDATE OF implausible, deleted ON public.qos_test_result FOR EACH ROW EXECUTE PROCEDURE public.trigger_qos_test_result_evaluation();
+
+
 --
 -- Name: test trigger_test; Type: TRIGGER; Schema: public; Owner: rmbt
 --
@@ -7050,6 +7412,14 @@ ALTER TABLE ONLY public.ping
     ADD CONSTRAINT ping_test_id_fkey FOREIGN KEY (test_id) REFERENCES public.test(uid) ON DELETE CASCADE;
 
 
+--
+-- Name: qos_test_evaluation qos_test_evaluation_test_uid_fkey; Type: FK CONSTRAINT; Schema: public; Owner: rmbt
+--
+
+ALTER TABLE ONLY public.qos_test_evaluation
+    ADD CONSTRAINT qos_test_evaluation_test_uid_fkey FOREIGN KEY (test_uid) REFERENCES public.test(uid) ON DELETE CASCADE;
+
+
 --
 -- Name: qos_test_result qos_test_result_qos_test_uid_fkey; Type: FK CONSTRAINT; Schema: public; Owner: rmbt
 --
@@ -7290,6 +7660,22 @@ GRANT SELECT,USAGE ON SEQUENCE public.geo_location_uid_seq TO rmbt_group_control
 GRANT SELECT ON SEQUENCE public.geo_location_uid_seq TO rmbt_group_read_only;
 
 
+--
+-- Name: TABLE heatmap_grid; Type: ACL; Schema: public; Owner: rmbt
+--
+
+GRANT SELECT ON TABLE public.heatmap_grid TO rmbt_group_read_only;
+GRANT SELECT,INSERT,DELETE,UPDATE ON TABLE public.heatmap_grid TO rmbt_group_control;
+
+
+--
+-- Name: TABLE heatmap_grid_state; Type: ACL; Schema: public; Owner: rmbt
+--
+
+GRANT SELECT ON TABLE public.heatmap_grid_state TO rmbt_group_read_only;
+GRANT SELECT,INSERT,DELETE,UPDATE ON TABLE public.heatmap_grid_state TO rmbt_group_control;
+
+
 --
 -- Name: TABLE json_sender; Type: ACL; Schema: public; Owner: rmbt
 --
@@ -7390,6 +7776,14 @@ GRANT USAGE ON SEQUENCE public.ping_uid_seq TO rmbt_group_control;
 GRANT SELECT ON TABLE public.provider TO rmbt_group_read_only;
 
 
+--
+-- Name: SEQUENCE qos_catalog_version_seq; Type: ACL; Schema: public; Owner: rmbt
+--
+
+GRANT SELECT ON SEQUENCE public.qos_catalog_version_seq TO rmbt_group_read_only;
+GRANT SELECT ON SEQUENCE public.qos_catalog_version_seq TO rmbt_group_control;
+
+
 --
 -- Name: TABLE qos_test_desc; Type: ACL; Schema: public; Owner: rmbt
 --
@@ -7397,6 +7791,14 @@ GRANT SELECT ON TABLE public.provider TO rmbt_group_read_only;
 GRANT SELECT ON TABLE public.qos_test_desc TO rmbt_group_read_only;
 
 
+--
+-- Name: TABLE qos_test_evaluation; Type: ACL; Schema: public; Owner: rmbt
+--
+
+GRANT SELECT ON TABLE public.qos_test_evaluation TO rmbt_group_read_only;
+GRANT SELECT,INSERT,DELETE,UPDATE ON TABLE public.qos_test_evaluation TO rmbt_group_control;
+
+
 --
 -- Name: TABLE qos_test_objective; Type: ACL; Schema: public; Owner: rmbt
 --
@@ -7501,6 +7903,46 @@ GRANT SELECT ON TABLE public.speed TO rmbt_group_read_only;
 GRANT INSERT,UPDATE ON TABLE public.speed TO rmbt_group_control;
 
 
+--
+-- Name: TABLE statistic_rollup_device; Type: ACL; Schema: public; Owner: rmbt
+--
+
+GRANT SELECT ON TABLE public.statistic_rollup_device TO rmbt_group_read_only;
+GRANT SELECT,INSERT,DELETE,UPDATE ON TABLE public.statistic_rollup_device TO rmbt_group_control;
+
+
+--
+-- Name: TABLE statistic_rollup_intraday; Type: ACL; Schema: public; Owner: rmbt
+--
+
+GRANT SELECT ON TABLE public.statistic_rollup_intraday TO rmbt_group_read_only;
+GRANT SELECT,INSERT,DELETE,UPDATE ON TABLE public.statistic_rollup_intraday TO rmbt_group_control;
+
+
+--
+-- Name: TABLE statistic_rollup_provider; Type: ACL; Schema: public; Owner: rmbt
+--
+
+GRANT SELECT ON TABLE public.statistic_rollup_provider TO rmbt_group_read_only;
+GRANT SELECT,INSERT,DELETE,UPDATE ON TABLE public.statistic_rollup_provider TO rmbt_group_control;
+
+
+--
+-- Name: TABLE statistic_rollup_state; Type: ACL; Schema: public; Owner: rmbt
+--
+
+GRANT SELECT ON TABLE public.statistic_rollup_state TO rmbt_group_read_only;
+GRANT SELECT,INSERT,DELETE,UPDATE ON TABLE public.statistic_rollup_state TO rmbt_group_control;
+
+
+--
+-- Name: TABLE statistic_rollup_usage; Type: ACL; Schema: public; Owner: rmbt
+--
+
+GRANT SELECT ON TABLE public.statistic_rollup_usage TO rmbt_group_read_only;
+GRANT SELECT,INSERT,DELETE,UPDATE ON TABLE public.statistic_rollup_usage TO rmbt_group_control;
+
+
 --
 -- Name: TABLE statistik_austria_gem; Type: ACL; Schema: public; Owner: rmbt
 --